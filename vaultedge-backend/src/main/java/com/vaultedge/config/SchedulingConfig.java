@@ -0,0 +1,10 @@
+package com.vaultedge.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+// Enables @Scheduled background maintenance (usage reconcile, ledger flush, ...); pool size in spring.task.scheduling.*
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
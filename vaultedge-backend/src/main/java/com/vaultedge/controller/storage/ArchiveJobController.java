@@ -0,0 +1,89 @@
+package com.vaultedge.controller.storage;
+
+import com.vaultedge.service.ArchiveJobService;
+import com.vaultedge.service.ArchiveJobService.ArchiveJob;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.NoSuchElementException;
+
+/**
+ * Background ZIP archive jobs (the asynchronous counterpart of the streaming download/zip endpoint):
+ * submit, poll progress, then download the finished archive with Range support.
+ */
+@RestController
+@RequestMapping("/api/storage")
+public class ArchiveJobController {
+
+    private final ArchiveJobService archiveJobService;
+
+    public ArchiveJobController(ArchiveJobService archiveJobService) {
+        this.archiveJobService = archiveJobService;
+    }
+
+    // Submit (or reuse a cached) archive job. Empty path archives the whole safebox.
+    @PostMapping("/users/{userId}/safeboxes/{safeBoxName}/archives")
+    public ResponseEntity<?> submit(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestParam(value = "path", required = false) String relativePath) throws IOException {
+        try {
+            ArchiveJob job = archiveJobService.submit(userId, safeBoxName, relativePath);
+            HttpStatus status = job.status == ArchiveJobService.Status.DONE ? HttpStatus.OK : HttpStatus.ACCEPTED;
+            return ResponseEntity.status(status).body(job);
+        } catch (NoSuchElementException ex) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+
+    // Job progress
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/archives/{jobId}")
+    public ResponseEntity<ArchiveJob> status(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String jobId) throws IOException {
+        ArchiveJob job = archiveJobService.get(userId, safeBoxName, jobId);
+        if (job == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok(job);
+    }
+
+    // Download the finished archive (Range / If-Range supported, so interrupted downloads can resume)
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/archives/{jobId}/download")
+    public void download(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String jobId,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        ArchiveJob job = archiveJobService.get(userId, safeBoxName, jobId);
+        if (job == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (job.status != ArchiveJobService.Status.DONE || !Files.exists(job.archiveFile())) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            response.setHeader("X-Error-Reason", "Archive not ready: " + job.status);
+            return;
+        }
+        RangeResponseWriter.write(request, response, job.archiveFile(), MediaType.APPLICATION_OCTET_STREAM_VALUE,
+                "attachment; filename=\"" + job.fileName + "\"");
+    }
+
+    // Cancel a running job or drop a cached archive
+    @DeleteMapping("/users/{userId}/safeboxes/{safeBoxName}/archives/{jobId}")
+    public ResponseEntity<Void> delete(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String jobId) throws IOException {
+        if (!archiveJobService.delete(userId, safeBoxName, jobId)) return ResponseEntity.notFound().build();
+        return ResponseEntity.noContent().build();
+    }
+}
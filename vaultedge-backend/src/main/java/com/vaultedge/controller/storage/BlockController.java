@@ -0,0 +1,87 @@
+package com.vaultedge.controller.storage;
+
+import com.vaultedge.service.StorageService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deduplicated uploads (when <code>storage.dedup.enabled</code>): the client chunks a file, asks which chunk
+ * hashes the server lacks, PUTs only those, then creates the file from its chunk list.
+ */
+@RestController
+@RequestMapping("/api/storage")
+public class BlockController {
+
+    private final StorageService storageService;
+
+    public BlockController(StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    // Which of these SHA-256 chunk hashes still have to be uploaded
+    @PostMapping("/users/{userId}/blocks/missing")
+    public ResponseEntity<?> missing(
+            @PathVariable String userId,
+            @RequestBody List<String> hashes) throws IOException {
+        try {
+            return ResponseEntity.ok(storageService.missingBlocks(userId, hashes));
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+
+    // Upload one chunk (raw request body); rejected unless it hashes to {hash}. Safe to retry.
+    @PutMapping("/users/{userId}/blocks/{hash}")
+    public ResponseEntity<String> putBlock(
+            @PathVariable String userId,
+            @PathVariable String hash,
+            InputStream body) throws IOException {
+        try {
+            boolean created = storageService.putBlock(userId, hash, body);
+            return ResponseEntity.status(created ? HttpStatus.CREATED : HttpStatus.OK).body(hash);
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+
+    // Create (or replace) a file from chunks already stored for this user
+    @PostMapping("/users/{userId}/safeboxes/{safeBoxName}/files/manifest")
+    public ResponseEntity<String> createFromBlocks(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestBody ManifestRequest body) throws IOException {
+        if (body == null || body.path == null || body.blocks == null) {
+            return ResponseEntity.badRequest().body("path and blocks are required");
+        }
+        List<String> hashes = new ArrayList<>(body.blocks.size());
+        List<Long> sizes = new ArrayList<>(body.blocks.size());
+        for (BlockRef b : body.blocks) {
+            if (b == null) return ResponseEntity.badRequest().body("Invalid block entry");
+            hashes.add(b.hash);
+            sizes.add(b.size);
+        }
+        try {
+            storageService.saveFileFromBlocks(userId, safeBoxName, body.path, hashes, sizes, body.originalDateMs);
+            return ResponseEntity.ok(body.path);
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body("Upload failed: " + ex.getMessage());
+        }
+    }
+
+    public static class ManifestRequest {
+        public String path;
+        public List<BlockRef> blocks;
+        public Long originalDateMs;
+    }
+
+    public static class BlockRef {
+        public String hash;
+        public Long size;
+    }
+}
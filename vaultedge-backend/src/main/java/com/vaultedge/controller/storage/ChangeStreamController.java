@@ -0,0 +1,68 @@
+package com.vaultedge.controller.storage;
+
+import com.vaultedge.service.ChangeBroadcaster;
+import com.vaultedge.service.ChangeBroadcaster.EventBatch;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Live change notifications for all of a user's safeboxes, so clients need not poll the tree:
+ * a Server-Sent Events stream, and a long-poll fallback for clients that cannot keep one open.
+ * Both use the same event ids; send the last one seen (Last-Event-ID / ?after=) to resume without gaps.
+ * A resync event (or flag) means notifications were skipped: catch up per safebox via /changes?since=.
+ */
+@RestController
+@RequestMapping("/api/storage")
+public class ChangeStreamController {
+
+    private final ChangeBroadcaster broadcaster;
+
+    public ChangeStreamController(ChangeBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    // Events: ready (once, on connect), change (one per mutation), resync; comment lines keep the stream alive
+    @GetMapping(value = "/users/{userId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public void stream(
+            @PathVariable String userId,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+            @RequestParam(value = "after", required = false) String after,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.TEXT_EVENT_STREAM_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+        response.setHeader("X-Accel-Buffering", "no"); // no proxy buffering of the stream
+        try {
+            broadcaster.subscribe(userId, lastEventId != null ? lastEventId : after, request);
+        } catch (IllegalStateException ex) {
+            response.reset();
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        }
+    }
+
+    // Answers as soon as there are events after ?after= (or with none once timeoutMs passes); without it, just the cursor
+    @GetMapping("/users/{userId}/events/poll")
+    public DeferredResult<EventBatch> poll(
+            @PathVariable String userId,
+            @RequestParam(value = "after", required = false) String after,
+            @RequestParam(value = "timeoutMs", defaultValue = "25000") long timeoutMs) {
+        try {
+            return broadcaster.poll(userId, after, Math.max(1000, Math.min(timeoutMs, 60000)));
+        } catch (IllegalStateException ex) {
+            DeferredResult<EventBatch> busy = new DeferredResult<>();
+            busy.setErrorResult(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(ex.getMessage()));
+            return busy;
+        }
+    }
+}
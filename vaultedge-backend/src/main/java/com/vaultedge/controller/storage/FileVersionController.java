@@ -0,0 +1,108 @@
+package com.vaultedge.controller.storage;
+
+import com.vaultedge.service.FileContentStore;
+import com.vaultedge.service.FileVersionStore;
+import com.vaultedge.service.StorageService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Prior versions of files: list, download (Range supported) and restore, plus the per-safebox retention policy
+ * (at most N versions per file, none older than D days).
+ */
+@RestController
+@RequestMapping("/api/storage")
+public class FileVersionController {
+
+    private final StorageService storageService;
+
+    public FileVersionController(StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    // Versions of a file, newest first
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/versions")
+    public ResponseEntity<?> list(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestParam("path") String relativePath) throws IOException {
+        try {
+            List<FileVersionStore.Version> versions = storageService.listVersions(userId, safeBoxName, relativePath);
+            return ResponseEntity.ok(versions);
+        } catch (IllegalArgumentException | SecurityException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+
+    // Download one version
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/versions/{versionId}/download")
+    public void download(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String versionId,
+            @RequestParam("path") String relativePath,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        FileContentStore.Content content;
+        try {
+            content = storageService.openVersion(userId, safeBoxName, relativePath, versionId);
+        } catch (NoSuchElementException | SecurityException ex) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try (content) {
+            String fileName = Paths.get(relativePath).getFileName().toString();
+            String mime = URLConnection.guessContentTypeFromName(fileName);
+            RangeResponseWriter.write(request, response, content,
+                    mime != null ? mime : MediaType.APPLICATION_OCTET_STREAM_VALUE,
+                    "attachment; filename=\"" + fileName + "\"");
+        }
+    }
+
+    // Make a version current again (the replaced content becomes a version)
+    @PostMapping("/users/{userId}/safeboxes/{safeBoxName}/versions/{versionId}/restore")
+    public ResponseEntity<String> restore(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String versionId,
+            @RequestParam("path") String relativePath) throws IOException {
+        try {
+            storageService.restoreVersion(userId, safeBoxName, relativePath, versionId);
+            return ResponseEntity.ok(relativePath);
+        } catch (NoSuchElementException ex) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body("Restore failed: " + ex.getMessage());
+        }
+    }
+
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/settings/versions")
+    public ResponseEntity<FileVersionStore.Policy> getPolicy(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName) throws IOException {
+        return ResponseEntity.ok(storageService.getVersionPolicy(userId, safeBoxName));
+    }
+
+    // maxVersions=0 turns versioning off for the safebox; maxAgeDays=0 removes the age limit
+    @PutMapping("/users/{userId}/safeboxes/{safeBoxName}/settings/versions")
+    public ResponseEntity<?> setPolicy(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestParam(value = "maxVersions", required = false) Integer maxVersions,
+            @RequestParam(value = "maxAgeDays", required = false) Integer maxAgeDays) throws IOException {
+        try {
+            return ResponseEntity.ok(storageService.setVersionPolicy(userId, safeBoxName, maxVersions, maxAgeDays));
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+}
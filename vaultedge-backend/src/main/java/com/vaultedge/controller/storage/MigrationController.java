@@ -6,18 +6,22 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.IOException;
-import java.nio.file.Paths;
 
 @RestController
 @RequestMapping("/api/storage/users")
 public class MigrationController {
 
-    // lightweight per-call service construction - fine for admin-triggered migration
+    // Shares the application's mapping store (same storage.root as StorageService)
+    private final StorageMigrationService migrationService;
+
+    public MigrationController(StorageMigrationService migrationService) {
+        this.migrationService = migrationService;
+    }
+
     @PostMapping("/{userId}/migrate")
     public ResponseEntity<String> migrateUser(@PathVariable String userId) {
         try {
-            StorageMigrationService svc = new StorageMigrationService(Paths.get(System.getProperty("user.dir")).resolve("storage"));
-            svc.migrateUser(userId);
+            migrationService.migrateUser(userId);
             return ResponseEntity.ok("Migration completed for user " + userId);
         } catch (IOException e) {
             return ResponseEntity.status(500).body("Migration failed: " + e.getMessage());
@@ -26,13 +30,8 @@ public class MigrationController {
 
     @GetMapping("/{userId}/mapping")
     public ResponseEntity<StorageMappings.UserMapping> getMapping(@PathVariable String userId) {
-        try {
-            StorageMigrationService svc = new StorageMigrationService(Paths.get(System.getProperty("user.dir")).resolve("storage"));
-            StorageMappings.UserMapping m = svc.getMapping(userId);
-            if (m == null) return ResponseEntity.notFound().build();
-            return ResponseEntity.ok(m);
-        } catch (IOException e) {
-            return ResponseEntity.status(500).build();
-        }
+        StorageMappings.UserMapping m = migrationService.getMapping(userId);
+        if (m == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok(m);
     }
 }
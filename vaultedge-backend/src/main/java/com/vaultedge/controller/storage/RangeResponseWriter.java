@@ -0,0 +1,229 @@
+package com.vaultedge.controller.storage;
+
+import com.vaultedge.service.FileContentStore;
+import com.vaultedge.service.StorageService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Streams a file to the servlet response with HTTP Range / If-Range support (RFC 9110).
+ * <ul>
+ *   <li>If-Match naming another entity: 412. If-None-Match naming this one: 304 (nothing sent).</li>
+ *   <li>No Range (or stale If-Range): 200 with the whole file.</li>
+ *   <li>One range: 206 with Content-Range.</li>
+ *   <li>Several ranges: 206 multipart/byteranges.</li>
+ *   <li>Unsatisfiable: 416 with <code>Content-Range: bytes *&#47;len</code>.</li>
+ * </ul>
+ * Bytes never pass through a heap buffer sized to the file: single-part bodies of plainly stored files are
+ * handed to Tomcat's sendfile when the connector advertises it, otherwise copied with FileChannel.transferTo.
+ * Encoded content (e.g. deduplicated chunks) is read from its logical channel, touching only the requested ranges.
+ */
+final class RangeResponseWriter {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    // Guard against range-flood requests; beyond this we just send the full entity
+    private static final int MAX_RANGES = 16;
+
+    private RangeResponseWriter() { }
+
+    static void write(HttpServletRequest request, HttpServletResponse response, Path file,
+                      String contentType, String contentDisposition) throws IOException {
+        try (FileContentStore.Content content = FileContentStore.Content.of(file)) {
+            write(request, response, content, contentType, contentDisposition);
+        }
+    }
+
+    static void write(HttpServletRequest request, HttpServletResponse response, FileContentStore.Content content,
+                      String contentType, String contentDisposition) throws IOException {
+        String etag = "\"" + Long.toHexString(content.lastModified) + "-" + Long.toHexString(content.size) + "\"";
+        write(request, response, content, etag, contentType, contentDisposition);
+    }
+
+    /** etag is the content's entity tag: strong (its digest), or weak (W/...), which never satisfies If-Match or If-Range. */
+    static void write(HttpServletRequest request, HttpServletResponse response, FileContentStore.Content content,
+                      String etag, String contentType, String contentDisposition) throws IOException {
+        long length = content.size;
+        long lastModified = content.lastModified;
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch != null && !StorageService.Precondition.listed(ifMatch, etag, false)) {
+            response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return;
+        }
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && StorageService.Precondition.listed(ifNoneMatch, etag, true)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        if (contentDisposition != null) response.setHeader(HttpHeaders.CONTENT_DISPOSITION, contentDisposition);
+
+        boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && !ifRangeMatches(request, etag, lastModified)) rangeHeader = null;
+        List<long[]> ranges = rangeHeader == null ? null : parseRanges(rangeHeader, length);
+
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            if (!head) sendSingle(request, response, content, 0, length);
+            return;
+        }
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            long[] r = ranges.get(0);
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + r[0] + "-" + r[1] + "/" + length);
+            response.setContentLengthLong(r[1] - r[0] + 1);
+            if (!head) sendSingle(request, response, content, r[0], r[1] - r[0] + 1);
+            return;
+        }
+        sendMultipart(response, content, contentType, length, ranges, head);
+    }
+
+    /** Null means "ignore Range, send 200"; empty means unsatisfiable. Ranges come back as inclusive [start, end]. */
+    static List<long[]> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) return null;
+        List<long[]> out = new ArrayList<>();
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+        for (String raw : specs) {
+            String spec = raw.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            String a = spec.substring(0, dash).trim();
+            String b = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (a.isEmpty()) {
+                    // suffix range: last N bytes
+                    if (b.isEmpty()) return null;
+                    long suffix = Long.parseLong(b);
+                    if (suffix <= 0) continue;
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(a);
+                    long requestedEnd = b.isEmpty() ? Long.MAX_VALUE : Long.parseLong(b);
+                    if (start < 0 || requestedEnd < start) return null;
+                    end = Math.min(requestedEnd, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start >= length || length == 0) continue; // unsatisfiable part
+            out.add(new long[]{start, end});
+        }
+        return out;
+    }
+
+    private static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return !etag.startsWith("W/") && ifRange.equals(etag); // strong comparison; weak validators never match
+        }
+        try {
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return date >= 0 && lastModified / 1000 == date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void sendSingle(HttpServletRequest request, HttpServletResponse response,
+                                   FileContentStore.Content content, long start, long count) throws IOException {
+        if (count == 0) return;
+        Path file = content.plainFile();
+        if (file != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Tomcat writes the region with sendfile(2) after the servlet returns
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            return;
+        }
+        OutputStream os = response.getOutputStream();
+        transfer(content.channel(), start, count, Channels.newChannel(os));
+        os.flush();
+    }
+
+    private static void sendMultipart(HttpServletResponse response, FileContentStore.Content content, String contentType, long length,
+                                      List<long[]> ranges, boolean head) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long total = 0;
+        for (long[] r : ranges) {
+            String h = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + length + "\r\n\r\n";
+            byte[] hb = h.getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(hb);
+            total += hb.length + (r[1] - r[0] + 1);
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        total += trailer.length;
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(total);
+        if (head) return;
+        OutputStream os = response.getOutputStream();
+        WritableByteChannel out = Channels.newChannel(os);
+        SeekableByteChannel ch = content.channel();
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] r = ranges.get(i);
+            os.write(partHeaders.get(i));
+            transfer(ch, r[0], r[1] - r[0] + 1, out);
+        }
+        os.write(trailer);
+        os.flush();
+    }
+
+    static void transfer(SeekableByteChannel ch, long start, long count, WritableByteChannel out) throws IOException {
+        long pos = start;
+        long end = start + count;
+        if (ch instanceof FileChannel fc) {
+            while (pos < end) {
+                long n = fc.transferTo(pos, end - pos, out);
+                if (n <= 0) break;
+                pos += n;
+            }
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        ch.position(pos);
+        while (pos < end) {
+            buf.clear().limit((int) Math.min(buf.capacity(), end - pos));
+            int n = ch.read(buf);
+            if (n < 0) break;
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+            pos += n;
+        }
+    }
+}
@@ -1,33 +1,77 @@
 package com.vaultedge.controller.storage;
 
+import com.vaultedge.service.AuditExportService;
+import com.vaultedge.service.BatchOperationService;
+import com.vaultedge.service.DeletePendingException;
+import com.vaultedge.service.DeleteRetryService;
+import com.vaultedge.service.DirectoryListingService;
+import com.vaultedge.service.DirectoryListingService.ListingPage;
+import com.vaultedge.service.FileContentStore;
+import com.vaultedge.service.PreconditionFailedException;
+import com.vaultedge.service.SafeBoxChangeJournal;
 import com.vaultedge.service.StorageService;
+import com.vaultedge.service.TreeSnapshotService;
+import com.vaultedge.service.ZipStreamService;
 import com.vaultedge.service.StorageService.Node;
 import com.vaultedge.service.StorageService.SafeBoxUsage;
 import com.vaultedge.service.StorageService.AuditEntry;
 import com.vaultedge.service.StorageService.AuditPage;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.constraints.NotBlank;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.UriUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 @RestController
 @RequestMapping("/api/storage")
 public class StorageController {
 
     private final StorageService storageService;
+    private final ZipStreamService zipStreamService;
+    private final DirectoryListingService listingService;
+    private final TreeSnapshotService treeSnapshots;
+    private final AuditExportService auditExport;
+    private final SafeBoxChangeJournal changeJournal;
+    private final BatchOperationService batchOperations;
+    private final long streamTimeoutMs;
 
-    public StorageController(StorageService storageService) {
+    public StorageController(StorageService storageService, ZipStreamService zipStreamService,
+                             DirectoryListingService listingService, TreeSnapshotService treeSnapshots,
+                             AuditExportService auditExport, SafeBoxChangeJournal changeJournal,
+                             BatchOperationService batchOperations,
+                             @Value("${streaming.timeoutMs:14400000}") long streamTimeoutMs) {
         this.storageService = storageService;
+        this.zipStreamService = zipStreamService;
+        this.listingService = listingService;
+        this.treeSnapshots = treeSnapshots;
+        this.auditExport = auditExport;
+        this.changeJournal = changeJournal;
+        this.batchOperations = batchOperations;
+        this.streamTimeoutMs = streamTimeoutMs;
     }
 
     // Ensure user root exists (simulate user provisioning)
@@ -69,12 +113,53 @@ public class StorageController {
         return ResponseEntity.ok(storageService.usage(userId, safeBoxName));
     }
 
-    // Get the tree structure (files and folders) of a safebox
+    // Get the tree structure (files and folders) of a safebox; cached, 304 when If-None-Match is current.
+    // X-Change-Seq is a change-journal cursor taken before the tree was read: poll /changes?since= from there.
     @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/tree")
     public ResponseEntity<Node> getTree(
             @PathVariable String userId,
-            @PathVariable String safeBoxName) throws IOException {
-        return ResponseEntity.ok(storageService.tree(userId, safeBoxName));
+            @PathVariable String safeBoxName,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) throws IOException {
+        long seq = changeJournal.latestSeq(storageService.ensureSafeBox(userId, safeBoxName));
+        TreeSnapshotService.Snapshot snap = treeSnapshots.get(userId, safeBoxName);
+        if (ifNoneMatch != null && (ifNoneMatch.contains(snap.etag) || ifNoneMatch.trim().equals("*"))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(snap.etag).header("X-Change-Seq", Long.toString(seq)).build();
+        }
+        return ResponseEntity.ok().eTag(snap.etag).header("X-Change-Seq", Long.toString(seq))
+                .cacheControl(CacheControl.noCache()).body(snap.tree);
+    }
+
+    // Delta sync: journaled changes after ?since= (oldest first). Without since, only the current cursor.
+    // resetRequired means the history behind the cursor was discarded: reload /tree and continue from nextSince.
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/changes")
+    public ResponseEntity<SafeBoxChangeJournal.ChangePage> changes(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestParam(value = "since", required = false) Long since,
+            @RequestParam(value = "limit", defaultValue = "1000") int limit) throws IOException {
+        Path base = storageService.ensureSafeBox(userId, safeBoxName);
+        return ResponseEntity.ok(changeJournal.changes(base, since, Math.max(1, Math.min(limit, 10000))));
+    }
+
+    // List one folder level, paginated (lazy alternative to /tree for large safeboxes).
+    // sort: name|size|modified, order: asc|desc; depth > 1 inlines the first page of nested folders.
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/list")
+    public ResponseEntity<?> list(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestParam(value = "path", required = false) String relativePath,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", defaultValue = "200") int limit,
+            @RequestParam(value = "sort", defaultValue = "name") String sort,
+            @RequestParam(value = "order", defaultValue = "asc") String order,
+            @RequestParam(value = "depth", defaultValue = "1") int depth) throws IOException {
+        try {
+            ListingPage page = listingService.list(userId, safeBoxName, relativePath, cursor, limit, sort, order,
+                    Math.max(1, Math.min(depth, 3)));
+            return ResponseEntity.ok(page);
+        } catch (IllegalArgumentException | SecurityException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
     }
 
     // Create a subfolder under a safebox
@@ -105,13 +190,15 @@ public class StorageController {
 
     // Delete a folder (and all its contents) in a safebox
     @DeleteMapping("/users/{userId}/safeboxes/{safeBoxName}/folders")
-    public ResponseEntity<Void> deleteFolder(
+    public ResponseEntity<?> deleteFolder(
             @PathVariable String userId,
             @PathVariable String safeBoxName,
             @RequestParam("path") String relativePath) throws IOException {
         try {
             storageService.deleteFolder(userId, safeBoxName, relativePath);
             return ResponseEntity.noContent().build();
+        } catch (DeletePendingException ex) {
+            return pending(userId, safeBoxName, ex);
         } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
             return ResponseEntity.badRequest().header("X-Error-Reason", ex.getMessage()).build();
         }
@@ -124,11 +211,17 @@ public class StorageController {
             @PathVariable String safeBoxName,
             @RequestParam("path") String relativePath,
             @RequestParam("file") MultipartFile file,
-            @RequestParam(value = "originalDateMs", required = false) Long originalDateMs) throws IOException {
+            @RequestParam(value = "originalDateMs", required = false) Long originalDateMs,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) throws IOException {
         if (file.isEmpty()) return ResponseEntity.badRequest().body("Empty file");
-        try {
-            storageService.saveFile(userId, safeBoxName, relativePath, file.getBytes(), originalDateMs);
-            return ResponseEntity.ok(relativePath);
+        // Stream from the multipart temp file; never materialize the whole upload in heap
+        try (InputStream in = file.getInputStream()) {
+            Path saved = storageService.saveFile(userId, safeBoxName, relativePath, in, file.getSize(), originalDateMs,
+                    new StorageService.Precondition(ifMatch, ifNoneMatch));
+            return ResponseEntity.ok().eTag(storageService.etag(storageService.ensureSafeBox(userId, safeBoxName), saved)).body(relativePath);
+        } catch (PreconditionFailedException ex) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(ex.getMessage());
         } catch (IllegalArgumentException | IllegalStateException ex) {
             return ResponseEntity.badRequest().body("Upload failed: " + ex.getMessage());
         }
@@ -136,18 +229,35 @@ public class StorageController {
 
     // Delete a file in a safebox
     @DeleteMapping("/users/{userId}/safeboxes/{safeBoxName}/files")
-    public ResponseEntity<Void> delete(
+    public ResponseEntity<?> delete(
             @PathVariable String userId,
             @PathVariable String safeBoxName,
-            @RequestParam("path") String relativePath) throws IOException {
+            @RequestParam("path") String relativePath,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) throws IOException {
         try {
-            storageService.deleteFile(userId, safeBoxName, relativePath);
+            storageService.deleteFile(userId, safeBoxName, relativePath, new StorageService.Precondition(ifMatch, ifNoneMatch));
             return ResponseEntity.noContent().build();
+        } catch (DeletePendingException ex) {
+            return pending(userId, safeBoxName, ex);
+        } catch (PreconditionFailedException ex) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).header("X-Error-Reason", ex.getMessage()).build();
         } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
             return ResponseEntity.badRequest().header("X-Error-Reason", ex.getMessage()).build();
         }
     }
 
+    // Outcome of a delete that answered 202 (a locked file, retried in the background): PENDING, DONE or FAILED
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/deletes/{jobId}")
+    public ResponseEntity<DeleteRetryService.DeleteJob> deleteStatus(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String jobId) throws IOException {
+        DeleteRetryService.DeleteJob job = storageService.deleteStatus(userId, safeBoxName, jobId);
+        if (job == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok(job);
+    }
+
     // Rename a file (same parent)
     @PutMapping("/users/{userId}/safeboxes/{safeBoxName}/files/rename")
     public ResponseEntity<String> renameFile(
@@ -163,6 +273,19 @@ public class StorageController {
         }
     }
 
+    // Several deletes / renames / moves / folder creations in one request; each item reports its own status
+    @PostMapping("/users/{userId}/safeboxes/{safeBoxName}/batch")
+    public ResponseEntity<?> batch(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestBody BatchOperationService.BatchRequest request) throws IOException {
+        try {
+            return ResponseEntity.ok(batchOperations.run(userId, safeBoxName, request == null ? null : request.operations));
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+
     // Read audit log entries (user + safebox logs). Optional ?limit=100
     @GetMapping("/users/{userId}/audit")
     public ResponseEntity<List<AuditEntry>> audit(
@@ -171,118 +294,173 @@ public class StorageController {
         return ResponseEntity.ok(storageService.readAudit(userId, limit));
     }
 
-    // Search audit with optional filters and pagination
+    // Search audit with optional filters and pagination (page/size, or ?cursor= from the previous page's nextCursor);
+    // ?total=false skips counting all matches (total -1)
     @GetMapping("/users/{userId}/audit/search")
-    public ResponseEntity<AuditPage> auditSearch(
+    public ResponseEntity<?> auditSearch(
             @PathVariable String userId,
             @RequestParam(value = "from", required = false) String fromIso,
             @RequestParam(value = "to", required = false) String toIso,
             @RequestParam(value = "scopes", required = false) List<String> scopes,
             @RequestParam(value = "safeboxes", required = false) List<String> safeboxes,
             @RequestParam(value = "q", required = false) String q,
+            @RequestParam(value = "cursor", required = false) String cursor,
             @RequestParam(value = "page", defaultValue = "0") int page,
-            @RequestParam(value = "size", defaultValue = "200") int size
+            @RequestParam(value = "size", defaultValue = "200") int size,
+            @RequestParam(value = "total", defaultValue = "true") boolean withTotal
     ) throws IOException {
-        java.time.Instant from = null;
-        java.time.Instant to = null;
-        try { if (fromIso != null && !fromIso.isBlank()) from = java.time.Instant.parse(fromIso); } catch (Exception ignored) {}
-        try { if (toIso != null && !toIso.isBlank()) to = java.time.Instant.parse(toIso); } catch (Exception ignored) {}
-        java.util.Set<String> scopeSet = (scopes == null || scopes.isEmpty()) ? java.util.Set.of() : new java.util.HashSet<>(scopes);
-        java.util.Set<String> sbSet = (safeboxes == null || safeboxes.isEmpty()) ? java.util.Set.of() : new java.util.HashSet<>(safeboxes);
+        java.time.Instant from = parseInstant(fromIso);
+        java.time.Instant to = parseInstant(toIso);
+        java.util.Set<String> scopeSet = toSet(scopes);
+        java.util.Set<String> sbSet = toSet(safeboxes);
         if (size <= 0) size = 200;
         if (page < 0) page = 0;
-        AuditPage result = storageService.searchAudit(userId, from, to, scopeSet, sbSet, q, page, size);
-        return ResponseEntity.ok(result);
+        try {
+            AuditPage result = storageService.searchAudit(userId, from, to, scopeSet, sbSet, q, cursor, page, size, withTotal);
+            return ResponseEntity.ok(result);
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+
+    // Export audit entries matching the search filters as NDJSON (default) or CSV, streamed; ?gzip=true compresses
+    @GetMapping("/users/{userId}/audit/export")
+    public ResponseEntity<?> auditExport(
+            @PathVariable String userId,
+            @RequestParam(value = "from", required = false) String fromIso,
+            @RequestParam(value = "to", required = false) String toIso,
+            @RequestParam(value = "scopes", required = false) List<String> scopes,
+            @RequestParam(value = "safeboxes", required = false) List<String> safeboxes,
+            @RequestParam(value = "q", required = false) String q,
+            @RequestParam(value = "format", defaultValue = "ndjson") String format,
+            @RequestParam(value = "gzip", defaultValue = "false") boolean gzip,
+            HttpServletRequest request
+    ) {
+        AuditExportService.Format fmt;
+        try {
+            fmt = AuditExportService.Format.parse(format);
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+        java.time.Instant from = parseInstant(fromIso);
+        java.time.Instant to = parseInstant(toIso);
+        java.util.Set<String> scopeSet = toSet(scopes);
+        java.util.Set<String> sbSet = toSet(safeboxes);
+        String fileName = "audit-" + userId + "." + fmt.extension + (gzip ? ".gz" : "");
+        StreamingResponseBody body = out -> auditExport.export(userId, from, to, scopeSet, sbSet, q, fmt, gzip, out);
+        extendStreamTimeout(request);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .contentType(MediaType.parseMediaType(gzip ? "application/gzip" : fmt.contentType + ";charset=UTF-8"))
+                .body(body);
+    }
+
+    // Streamed bodies can run far longer than the container's default async timeout; lift it for this request only
+    // (the handler applies interceptors right before it starts async processing) so every other async endpoint
+    // keeps the default and a stalled client cannot hold its request forever
+    private void extendStreamTimeout(HttpServletRequest request) {
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(StorageController.class,
+                new CallableProcessingInterceptor() {
+                    @Override
+                    public <T> void beforeConcurrentHandling(NativeWebRequest webRequest, Callable<T> task) {
+                        if (webRequest instanceof AsyncWebRequest async) async.setTimeout(streamTimeoutMs);
+                    }
+                });
     }
 
-    // Download a file by path
+    private static ResponseEntity<DeleteRetryService.DeleteJob> pending(String userId, String safeBoxName, DeletePendingException ex) {
+        DeleteRetryService.DeleteJob job = ex.getJob();
+        return ResponseEntity.accepted()
+                .location(URI.create("/api/storage/users/" + UriUtils.encodePathSegment(userId, StandardCharsets.UTF_8)
+                        + "/safeboxes/" + UriUtils.encodePathSegment(safeBoxName, StandardCharsets.UTF_8) + "/deletes/" + job.id))
+                .body(job);
+    }
+
+    private static java.time.Instant parseInstant(String iso) {
+        try { if (iso != null && !iso.isBlank()) return java.time.Instant.parse(iso); } catch (Exception ignored) {}
+        return null;
+    }
+
+    private static java.util.Set<String> toSet(List<String> values) {
+        return (values == null || values.isEmpty()) ? java.util.Set.of() : new java.util.HashSet<>(values);
+    }
+
+    // Download a file by path. Streams from disk; honours Range / If-Range (206, multipart/byteranges) and
+    // If-None-Match / If-Match against the ETag (304 / 412): the content digest, or a weak tag until it is known
     @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/files")
-    public ResponseEntity<byte[]> download(
+    public void download(
             @PathVariable String userId,
             @PathVariable String safeBoxName,
-            @RequestParam("path") String relativePath) throws IOException {
+            @RequestParam("path") String relativePath,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
         Path base = storageService.ensureSafeBox(userId, safeBoxName);
         Path file = base.resolve(relativePath).normalize();
-        if (!Files.exists(file) || Files.isDirectory(file)) return ResponseEntity.notFound().build();
+        if (!file.startsWith(base) || StorageService.isInternalPath(base, file)
+                || !Files.exists(file) || Files.isDirectory(file)) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
         String mime = Files.probeContentType(file);
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFileName() + "\"")
-                .contentType(MediaType.parseMediaType(mime != null ? mime : MediaType.APPLICATION_OCTET_STREAM_VALUE))
-                .body(Files.readAllBytes(file));
+        // Validator before content: if the file is replaced in between, the client holds new bytes under the old
+        // ETag and simply re-downloads next time (never old bytes under the new ETag)
+        String etag = storageService.etag(base, file);
+        try (FileContentStore.Content content = storageService.openContent(base, file)) {
+            RangeResponseWriter.write(request, response, content, etag,
+                    mime != null ? mime : MediaType.APPLICATION_OCTET_STREAM_VALUE,
+                    "attachment; filename=\"" + file.getFileName() + "\"");
+        }
     }
 
     // Download a folder (or entire safebox) as ZIP. If path is empty or missing, zips the safebox root.
+    // The archive is streamed as entries are produced; nothing is buffered whole.
     @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/download/zip")
-    public ResponseEntity<byte[]> downloadZip(
+    public ResponseEntity<StreamingResponseBody> downloadZip(
             @PathVariable String userId,
             @PathVariable String safeBoxName,
-            @RequestParam(value = "path", required = false) String relativePath
+            @RequestParam(value = "path", required = false) String relativePath,
+            HttpServletRequest request
     ) throws IOException {
         Path base = storageService.ensureSafeBox(userId, safeBoxName);
         Path target = (relativePath == null || relativePath.isBlank()) ? base : base.resolve(relativePath).normalize();
-        if (!target.startsWith(base) || !Files.exists(target)) return ResponseEntity.notFound().build();
+        if (!target.startsWith(base) || StorageService.isInternalPath(base, target) || !Files.exists(target)) return ResponseEntity.notFound().build();
 
         String zipName = target.equals(base) ? safeBoxName + ".zip" : target.getFileName().toString() + ".zip";
-        byte[] zipBytes = zipPathToBytes(base, target);
+        List<Path> files = zipStreamService.collectFiles(base, target);
+        extendStreamTimeout(request);
         return ResponseEntity.ok()
                 .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + zipName + "\"")
                 .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .body(zipBytes);
+                .body(out -> zipStreamService.writeZip(base, files, out));
     }
 
     // Download a ZIP containing a set of files by their relative paths
     @PostMapping("/users/{userId}/safeboxes/{safeBoxName}/download/zip")
-    public ResponseEntity<byte[]> downloadZipOfFiles(
+    public ResponseEntity<StreamingResponseBody> downloadZipOfFiles(
             @PathVariable String userId,
             @PathVariable String safeBoxName,
-            @RequestBody PathsRequest body
+            @RequestBody PathsRequest body,
+            HttpServletRequest request
     ) throws IOException {
         if (body == null || body.paths == null || body.paths.isEmpty()) {
             return ResponseEntity.badRequest().build();
         }
         Path base = storageService.ensureSafeBox(userId, safeBoxName);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (java.util.zip.ZipOutputStream zos = new ZipOutputStream(baos)) {
-            for (String rel : body.paths) {
-                Path file = base.resolve(rel).normalize();
-                if (!file.startsWith(base) || !Files.exists(file) || Files.isDirectory(file)) {
-                    continue; // skip invalid entries
-                }
-                String entryName = rel.replace('\\', '/');
-                zos.putNextEntry(new ZipEntry(entryName));
-                Files.copy(file, zos);
-                zos.closeEntry();
+        Set<Path> files = new LinkedHashSet<>();
+        for (String rel : body.paths) {
+            Path file = base.resolve(rel).normalize();
+            if (!file.startsWith(base) || StorageService.isInternalPath(base, file) || !Files.exists(file) || Files.isDirectory(file)) {
+                continue; // skip invalid entries
             }
+            files.add(file);
         }
-        byte[] zip = baos.toByteArray();
         String zipName = safeBoxName + "-files.zip";
+        List<Path> entries = new ArrayList<>(files);
+        extendStreamTimeout(request);
         return ResponseEntity.ok()
                 .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + zipName + "\"")
                 .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .body(zip);
-    }
-
-    private byte[] zipPathToBytes(Path base, Path target) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (java.util.zip.ZipOutputStream zos = new ZipOutputStream(baos)) {
-            if (Files.isRegularFile(target)) {
-                String entryName = base.relativize(target).toString().replace('\\', '/');
-                zos.putNextEntry(new ZipEntry(entryName));
-                Files.copy(target, zos);
-                zos.closeEntry();
-            } else {
-                Files.walk(target).forEach(p -> {
-                    try {
-                        if (Files.isDirectory(p)) return;
-                        String entryName = base.relativize(p).toString().replace('\\', '/');
-                        zos.putNextEntry(new ZipEntry(entryName));
-                        Files.copy(p, zos);
-                        zos.closeEntry();
-                    } catch (IOException ignored) { }
-                });
-            }
-        }
-        return baos.toByteArray();
+                .body(out -> zipStreamService.writeZip(base, entries, out));
     }
 
     public static class PathsRequest {
@@ -0,0 +1,89 @@
+package com.vaultedge.controller.storage;
+
+import com.vaultedge.service.SafeBoxTrash;
+import com.vaultedge.service.StorageService;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Deleted files and folders: list, restore and purge, plus the per-safebox retention after which they are purged
+ * automatically. Purges run in the background at a bounded rate, so they answer 202 Accepted.
+ */
+@RestController
+@RequestMapping("/api/storage")
+public class TrashController {
+
+    private final StorageService storageService;
+
+    public TrashController(StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    // Trashed entries, oldest first
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/trash")
+    public ResponseEntity<List<SafeBoxTrash.Item>> list(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName) throws IOException {
+        return ResponseEntity.ok(storageService.listTrash(userId, safeBoxName));
+    }
+
+    // Back to where it was deleted from, or to ?to= (a path relative to the safebox)
+    @PostMapping("/users/{userId}/safeboxes/{safeBoxName}/trash/{id}/restore")
+    public ResponseEntity<String> restore(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String id,
+            @RequestParam(value = "to", required = false) String to) throws IOException {
+        try {
+            return ResponseEntity.ok(storageService.restoreFromTrash(userId, safeBoxName, id, to));
+        } catch (NoSuchElementException ex) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body("Restore failed: " + ex.getMessage());
+        }
+    }
+
+    @DeleteMapping("/users/{userId}/safeboxes/{safeBoxName}/trash/{id}")
+    public ResponseEntity<String> purge(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String id) throws IOException {
+        try {
+            return ResponseEntity.accepted().body(storageService.purgeTrash(userId, safeBoxName, id));
+        } catch (NoSuchElementException ex) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    @DeleteMapping("/users/{userId}/safeboxes/{safeBoxName}/trash")
+    public ResponseEntity<Map<String, Integer>> empty(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName) throws IOException {
+        return ResponseEntity.accepted().body(Map.of("queued", storageService.emptyTrash(userId, safeBoxName)));
+    }
+
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/settings/trash")
+    public ResponseEntity<SafeBoxTrash.Policy> getPolicy(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName) throws IOException {
+        return ResponseEntity.ok(storageService.getTrashPolicy(userId, safeBoxName));
+    }
+
+    // retentionDays=0 keeps trashed entries until purged by hand; lowering it purges what is now past it
+    @PutMapping("/users/{userId}/safeboxes/{safeBoxName}/settings/trash")
+    public ResponseEntity<?> setPolicy(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestParam("retentionDays") int retentionDays) throws IOException {
+        try {
+            return ResponseEntity.ok(storageService.setTrashPolicy(userId, safeBoxName, retentionDays));
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.vaultedge.controller.storage;
+
+import com.vaultedge.service.PreconditionFailedException;
+import com.vaultedge.service.StorageService;
+import com.vaultedge.service.UploadSessionService;
+import com.vaultedge.service.UploadSessionService.UploadSession;
+import com.vaultedge.service.UploadSessionService.UploadStatus;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+
+/**
+ * Resumable, parallel chunked uploads: open a session, PUT numbered chunks in any order,
+ * query which chunks arrived, then commit.
+ */
+@RestController
+@RequestMapping("/api/storage")
+public class UploadSessionController {
+
+    private final UploadSessionService uploadSessionService;
+
+    public UploadSessionController(UploadSessionService uploadSessionService) {
+        this.uploadSessionService = uploadSessionService;
+    }
+
+    // Open an upload session for a file path
+    @PostMapping("/users/{userId}/safeboxes/{safeBoxName}/uploads")
+    public ResponseEntity<?> open(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @RequestParam("path") String relativePath,
+            @RequestParam("chunkCount") int chunkCount,
+            @RequestParam("chunkSize") long chunkSize,
+            @RequestParam(value = "totalSize", required = false) Long totalSize,
+            @RequestParam(value = "originalDateMs", required = false) Long originalDateMs) throws IOException {
+        try {
+            UploadSession s = uploadSessionService.open(userId, safeBoxName, relativePath, chunkCount, chunkSize, totalSize, originalDateMs);
+            return ResponseEntity.ok(s);
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+
+    // Upload one chunk (raw request body). Safe to retry; chunks may be sent in parallel.
+    @PutMapping("/users/{userId}/safeboxes/{safeBoxName}/uploads/{sessionId}/chunks/{index}")
+    public ResponseEntity<String> putChunk(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String sessionId,
+            @PathVariable int index,
+            InputStream body) throws IOException {
+        try {
+            long size = uploadSessionService.putChunk(userId, safeBoxName, sessionId, index, body);
+            return ResponseEntity.ok(Long.toString(size));
+        } catch (NoSuchElementException ex) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+    }
+
+    // Which chunks have arrived (used to resume after a failure)
+    @GetMapping("/users/{userId}/safeboxes/{safeBoxName}/uploads/{sessionId}")
+    public ResponseEntity<UploadStatus> status(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String sessionId) throws IOException {
+        try {
+            UploadStatus st = uploadSessionService.status(userId, safeBoxName, sessionId);
+            if (st == null) return ResponseEntity.notFound().build();
+            return ResponseEntity.ok(st);
+        } catch (NoSuchElementException ex) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    // Assemble all chunks into the target file
+    @PostMapping("/users/{userId}/safeboxes/{safeBoxName}/uploads/{sessionId}/commit")
+    public ResponseEntity<String> commit(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String sessionId,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) throws IOException {
+        try {
+            UploadSession s = uploadSessionService.commit(userId, safeBoxName, sessionId,
+                    new StorageService.Precondition(ifMatch, ifNoneMatch));
+            return ResponseEntity.ok(s.path);
+        } catch (NoSuchElementException ex) {
+            return ResponseEntity.notFound().build();
+        } catch (PreconditionFailedException ex) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(ex.getMessage());
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException ex) {
+            return ResponseEntity.badRequest().body("Upload failed: " + ex.getMessage());
+        }
+    }
+
+    // Abort a session and discard received chunks
+    @DeleteMapping("/users/{userId}/safeboxes/{safeBoxName}/uploads/{sessionId}")
+    public ResponseEntity<Void> abort(
+            @PathVariable String userId,
+            @PathVariable String safeBoxName,
+            @PathVariable String sessionId) throws IOException {
+        try {
+            if (!uploadSessionService.abort(userId, safeBoxName, sessionId)) return ResponseEntity.notFound().build();
+            return ResponseEntity.noContent().build();
+        } catch (NoSuchElementException ex) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.vaultedge.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paths the API is changing right now or changed a moment ago, so the filesystem watcher can tell the echoes of
+ * its own writes from edits made outside.
+ * <p>
+ * A mutation registers its paths before touching the disk and keeps them marked until a short quiet window after
+ * it finishes (watch events arrive late, and on some platforms are polled). A marked path is the API's doing; its
+ * {@link SafeBoxChangeEvent} is already out, so the watcher drops the event instead of publishing a duplicate
+ * EXTERNAL change. Deletes mark the whole subtree (every removed entry raises its own event); other mutations mark
+ * just their paths, plus the missing parent folders they are about to create, so an outside edit inside a
+ * folder the API just created is still seen.
+ */
+@Component
+public class ApiMutationWindow {
+
+    private final long quietMillis;
+    // path -> {mutations in flight, quiet until (epoch millis), 1 if the subtree is covered}; guarded by itself
+    private final Map<Path, long[]> marks = new HashMap<>();
+
+    public ApiMutationWindow(@Value("${tree.watch.apiEchoWindowMs:2000}") long quietMillis) {
+        this.quietMillis = Math.max(0, quietMillis);
+    }
+
+    /** Marks paths (absolute, inside base) before a mutation; close the result once the change is published. */
+    public Mark begin(Path base, Path... paths) {
+        List<Path> marked = new ArrayList<>(paths.length);
+        for (Path p : paths) {
+            marked.add(p);
+            addMissingParents(base, p, marked);
+        }
+        return mark(marked.toArray(new Path[0]), false);
+    }
+
+    /** Marks path and everything under it before a delete; close the result once the change is published. */
+    public Mark beginTree(Path path) {
+        return mark(new Path[]{path}, true);
+    }
+
+    private Mark mark(Path[] paths, boolean subtree) {
+        synchronized (marks) {
+            if (marks.size() > 1024) {
+                long now = System.currentTimeMillis();
+                marks.values().removeIf(m -> m[0] == 0 && m[1] <= now);
+            }
+            for (Path p : paths) {
+                long[] m = marks.computeIfAbsent(p, k -> new long[3]);
+                m[0]++;
+                if (subtree) m[2] = 1;
+            }
+        }
+        return new Mark(paths);
+    }
+
+    /** True if the API is changing path, or changed it within the quiet window. */
+    public boolean isApiChange(Path path) {
+        long now = System.currentTimeMillis();
+        synchronized (marks) {
+            if (marks.isEmpty()) return false;
+            for (Path p = path; p != null; p = p.getParent()) {
+                long[] m = marks.get(p);
+                if (m == null) continue;
+                if (m[0] == 0 && m[1] <= now) {
+                    marks.remove(p);
+                } else if (p == path || m[2] == 1) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Folders the mutation will create on the way to path; each may get watched (and raise events) as it appears
+    private static void addMissingParents(Path base, Path path, List<Path> out) {
+        for (Path p = path.getParent(); p != null && p.startsWith(base) && !p.equals(base) && !Files.exists(p); p = p.getParent()) {
+            out.add(p);
+        }
+    }
+
+    /** One mutation's hold on its paths; closing it starts their quiet window. */
+    public final class Mark implements AutoCloseable {
+        private final Path[] paths;
+        private boolean closed;
+
+        private Mark(Path[] paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public void close() {
+            long until = System.currentTimeMillis() + quietMillis;
+            synchronized (marks) {
+                if (closed) return;
+                closed = true;
+                for (Path p : paths) {
+                    long[] m = marks.get(p);
+                    if (m == null) continue;
+                    m[0]--;
+                    m[1] = Math.max(m[1], until);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.vaultedge.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Asynchronous ZIP archive jobs for folders / whole safeboxes.
+ * <p>
+ * Entries are deflated in parallel across cores, each into its own temp file, and then stitched in
+ * order into <code>.vaultedge/archives/&lt;jobId&gt;.zip</code> by {@link ZipArchiveWriter}. A finished
+ * archive is reused for identical requests until something under the archived path changes
+ * ({@link SafeBoxChangeEvent}) or its TTL expires, so repeat downloads cost only disk reads.
+ * <p>
+ * Archives are server-side cache, not user content, so they do not count toward the safebox quota; instead all
+ * archives share one disk budget (<code>maxCacheBytes</code>). A job is charged the worst-case archive size while
+ * it builds, the real size once done, and nothing once evicted. A job that does not fit evicts finished archives,
+ * least recently used first, and fails if the builds in progress alone leave no room.
+ */
+@Service
+public class ArchiveJobService {
+
+    private static final Logger log = LoggerFactory.getLogger(ArchiveJobService.class);
+    // Local header + data descriptor + central directory record, ZIP64 extras included, excluding the name
+    private static final long ENTRY_OVERHEAD = 160;
+
+    public enum Status { QUEUED, RUNNING, DONE, FAILED }
+
+    private final StorageService storageService;
+    private final ZipStreamService zipStreamService;
+    private final FileContentStore contentStore;
+    private final ExecutorService jobPool;
+    private final ExecutorService compressPool;
+    private final int compressThreads;
+
+    private final Map<String, ArchiveJob> jobs = new ConcurrentHashMap<>();
+    // safebox root + relative path -> job id, for cache hits
+    private final Map<String, String> jobsByKey = new ConcurrentHashMap<>();
+    private final long maxCacheBytes;
+    private long cacheBytes; // charged by all jobs; guarded by jobs
+
+    @Value("${archive.ttlMinutes:60}")
+    private long ttlMinutes;
+
+    @Value("${archive.deflateLevel:6}")
+    private int deflateLevel;
+
+    public ArchiveJobService(StorageService storageService,
+                             ZipStreamService zipStreamService,
+                             FileContentStore contentStore,
+                             @Value("${archive.jobThreads:2}") int jobThreads,
+                             @Value("${archive.compressThreads:0}") int compressThreads,
+                             @Value("${archive.maxCacheBytes:10737418240}") long maxCacheBytes) {
+        this.storageService = storageService;
+        this.zipStreamService = zipStreamService;
+        this.contentStore = contentStore;
+        this.compressThreads = compressThreads > 0 ? compressThreads : Runtime.getRuntime().availableProcessors();
+        this.jobPool = Executors.newFixedThreadPool(Math.max(1, jobThreads), daemon("archive-job"));
+        this.compressPool = Executors.newFixedThreadPool(this.compressThreads, daemon("archive-deflate"));
+        this.maxCacheBytes = Math.max(1, maxCacheBytes);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobPool.shutdownNow();
+        compressPool.shutdownNow();
+    }
+
+    /** Returns the cached job for this path if still valid, otherwise queues a new one. */
+    public ArchiveJob submit(String userId, String safeBoxName, String relativePath) throws IOException {
+        Path base = storageService.ensureSafeBox(userId, safeBoxName);
+        Path target = (relativePath == null || relativePath.isBlank()) ? base : base.resolve(relativePath).normalize();
+        if (!target.startsWith(base) || StorageService.isInternalPath(base, target)) throw new SecurityException("Invalid path");
+        if (!Files.exists(target)) throw new NoSuchElementException("Path not found: " + relativePath);
+        String rel = StorageService.relativize(base, target);
+        String key = base + "|" + rel;
+
+        synchronized (jobsByKey) {
+            String existingId = jobsByKey.get(key);
+            ArchiveJob existing = existingId == null ? null : jobs.get(existingId);
+            if (existing != null && existing.status != Status.FAILED && !isExpired(existing)) {
+                existing.lastUsed = System.nanoTime();
+                return existing;
+            }
+            if (existing != null) evict(existing);
+
+            ArchiveJob job = new ArchiveJob();
+            job.id = UUID.randomUUID().toString();
+            job.safeBoxName = safeBoxName;
+            job.path = rel;
+            job.fileName = target.equals(base) ? safeBoxName + ".zip" : target.getFileName().toString() + ".zip";
+            job.status = Status.QUEUED;
+            job.createdAt = Instant.now();
+            job.lastUsed = System.nanoTime();
+            job.safeBoxRoot = base;
+            job.key = key;
+            Path dir = archivesDir(base);
+            purgeOrphans(dir);
+            job.archiveFile = dir.resolve(job.id + ".zip");
+            jobs.put(job.id, job);
+            jobsByKey.put(key, job.id);
+            job.future = jobPool.submit(() -> run(job, target));
+            return job;
+        }
+    }
+
+    /** Looks up a job, scoped to the caller's safebox. */
+    public ArchiveJob get(String userId, String safeBoxName, String jobId) throws IOException {
+        ArchiveJob job = jobs.get(jobId);
+        if (job == null) return null;
+        Path base = storageService.ensureSafeBox(userId, safeBoxName);
+        if (!base.equals(job.safeBoxRoot)) return null;
+        job.lastUsed = System.nanoTime(); // polled or downloaded: keep it cached
+        return job;
+    }
+
+    public boolean delete(String userId, String safeBoxName, String jobId) throws IOException {
+        ArchiveJob job = get(userId, safeBoxName, jobId);
+        if (job == null) return false;
+        evict(job);
+        return true;
+    }
+
+    /** Any change under (or above) an archived path makes the cached archive stale. */
+    @EventListener
+    public void onSafeBoxChange(SafeBoxChangeEvent event) {
+        for (ArchiveJob job : jobs.values()) {
+            if (job.safeBoxRoot.equals(event.getSafeBoxRoot()) && event.affects(job.path)) evict(job);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${archive.sweepIntervalMs:60000}")
+    public void sweepExpired() {
+        for (ArchiveJob job : jobs.values()) {
+            if (isExpired(job)) evict(job);
+        }
+    }
+
+    // ===== build =====
+
+    private void run(ArchiveJob job, Path target) {
+        job.status = Status.RUNNING;
+        job.startedAt = Instant.now();
+        Path workDir = null;
+        Deque<Future<Prepared>> window = new ArrayDeque<>();
+        try {
+            List<Path> files = zipStreamService.collectFiles(job.safeBoxRoot, target);
+            job.totalFiles = files.size();
+            long total = 0;
+            long overhead = 0;
+            for (Path f : files) {
+                try { total += contentStore.contentSize(job.safeBoxRoot, f); } catch (IOException ignored) { }
+                overhead += ENTRY_OVERHEAD + 2L * 3 * StorageService.relativize(job.safeBoxRoot, f).length(); // name twice, UTF-8
+            }
+            job.totalBytes = total;
+            // Worst case is every entry STORED; deflated temp files are deleted as they're appended, so the
+            // archive plus pending temps stay within the same bound
+            charge(job, total + overhead);
+            if (job.evicted) return; // evicted before the charge was visible; uncharged in finally
+            workDir = Files.createTempDirectory(archivesDir(job.safeBoxRoot), job.id + "-");
+            Path partial = job.archiveFile.resolveSibling(job.id + ".zip.part");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial), 256 * 1024)) {
+                ZipArchiveWriter zip = new ZipArchiveWriter(out);
+                // Bounded window: keeps all cores busy without deflating the whole tree to temp up front
+                int next = 0;
+                int windowSize = compressThreads * 2;
+                while (next < files.size() || !window.isEmpty()) {
+                    while (window.size() < windowSize && next < files.size()) {
+                        Path f = files.get(next++);
+                        Path tmpDir = workDir;
+                        window.add(compressPool.submit(() -> prepare(job.safeBoxRoot, f, tmpDir)));
+                    }
+                    Prepared p = window.poll().get();
+                    if (p != null) append(zip, job.safeBoxRoot, p);
+                    job.processedFiles.incrementAndGet();
+                    if (p != null) job.processedBytes.addAndGet(p.size);
+                }
+                zip.finish();
+            }
+            Files.move(partial, job.archiveFile, StandardCopyOption.REPLACE_EXISTING);
+            job.archiveSize = Files.size(job.archiveFile);
+            recharge(job, job.archiveSize);
+            job.completedAt = Instant.now();
+            job.status = Status.DONE;
+            if (job.evicted) deleteQuietly(job.archiveFile); // invalidated while building
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(job, "cancelled");
+        } catch (IllegalStateException e) {
+            fail(job, e.getMessage()); // no room in the archive cache
+        } catch (Exception e) {
+            log.warn("Archive job {} failed", job.id, e);
+            fail(job, e.getMessage());
+        } finally {
+            for (Future<Prepared> f : window) {
+                f.cancel(true);
+                try {
+                    Prepared p = f.get();
+                    if (p != null && p.deflated != null) deleteQuietly(p.deflated);
+                } catch (Exception ignored) { }
+            }
+            if (workDir != null) deleteTree(workDir);
+            if (job.evicted || job.status != Status.DONE) uncharge(job);
+        }
+    }
+
+    private Prepared prepare(Path base, Path file, Path workDir) {
+        Prepared p = new Prepared();
+        p.file = file;
+        try {
+            p.lastModified = Files.getLastModifiedTime(file).toMillis();
+            CRC32 crc = new CRC32();
+            byte[] buf = new byte[64 * 1024];
+            if (ZipStreamService.isAlreadyCompressed(file.getFileName().toString())) {
+                // STORED: only the CRC is needed now; bytes are copied from the source during assembly
+                p.method = ZipArchiveWriter.METHOD_STORED;
+                try (FileContentStore.Content content = contentStore.open(base, file); InputStream in = content.stream()) {
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        crc.update(buf, 0, n);
+                        p.size += n;
+                    }
+                }
+                p.compressedSize = p.size;
+            } else {
+                p.method = ZipArchiveWriter.METHOD_DEFLATED;
+                p.deflated = Files.createTempFile(workDir, "entry-", ".bin");
+                Deflater deflater = new Deflater(deflateLevel, true); // raw deflate, as ZIP expects
+                try (FileContentStore.Content content = contentStore.open(base, file);
+                     InputStream in = content.stream();
+                     OutputStream out = new DeflaterOutputStream(Files.newOutputStream(p.deflated), deflater, 64 * 1024)) {
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        crc.update(buf, 0, n);
+                        out.write(buf, 0, n);
+                        p.size += n;
+                    }
+                } finally {
+                    deflater.end();
+                }
+                p.compressedSize = Files.size(p.deflated);
+            }
+            p.crc = crc.getValue();
+            return p;
+        } catch (IOException e) {
+            if (p.deflated != null) deleteQuietly(p.deflated);
+            return null; // unreadable / vanished: skipped like the streaming ZIP
+        }
+    }
+
+    private void append(ZipArchiveWriter zip, Path base, Prepared p) throws IOException {
+        zip.beginEntry(StorageService.relativize(base, p.file), p.method, p.crc, p.compressedSize, p.size, p.lastModified);
+        long copied = 0;
+        // STORED entries are copied from the file's logical content, DEFLATED ones from their temp file
+        try (FileContentStore.Content content = p.method == ZipArchiveWriter.METHOD_STORED ? contentStore.open(base, p.file) : null;
+             InputStream in = content != null ? content.stream() : Files.newInputStream(p.deflated)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while (copied < p.compressedSize && (n = in.read(buf, 0, (int) Math.min(buf.length, p.compressedSize - copied))) >= 0) {
+                zip.data(buf, 0, n);
+                copied += n;
+            }
+        } finally {
+            if (p.deflated != null) deleteQuietly(p.deflated);
+        }
+        if (copied != p.compressedSize) throw new IOException("File changed while archiving: " + p.file);
+    }
+
+    // ===== housekeeping =====
+
+    private boolean isExpired(ArchiveJob job) {
+        Instant ref = job.completedAt != null ? job.completedAt : job.createdAt;
+        return job.status != Status.QUEUED && job.status != Status.RUNNING
+                && ref.plus(Duration.ofMinutes(ttlMinutes)).isBefore(Instant.now());
+    }
+
+    private void evict(ArchiveJob job) {
+        job.evicted = true;
+        jobs.remove(job.id);
+        jobsByKey.remove(job.key, job.id);
+        if (job.future != null && !job.future.isDone()) job.future.cancel(true);
+        deleteQuietly(job.archiveFile);
+        uncharge(job);
+    }
+
+    /**
+     * Charges a new build its worst-case size, evicting finished archives (least recently used first) until it fits.
+     *
+     * @throws IllegalStateException if builds in progress leave no room, or the archive alone exceeds the budget
+     */
+    private void charge(ArchiveJob job, long bytes) {
+        if (bytes > maxCacheBytes) throw new IllegalStateException("Archive too large for the archive cache");
+        synchronized (jobs) {
+            while (cacheBytes + bytes > maxCacheBytes) {
+                ArchiveJob lru = null;
+                for (ArchiveJob j : jobs.values()) {
+                    if (j != job && j.status == Status.DONE && j.charged > 0 && (lru == null || j.lastUsed - lru.lastUsed < 0)) lru = j;
+                }
+                if (lru == null) throw new IllegalStateException("Archive cache is full; try again later");
+                evict(lru);
+            }
+            cacheBytes += bytes;
+            job.charged = bytes;
+        }
+    }
+
+    /** Replaces a finished build's estimate with its real size; nothing if it was evicted meanwhile. */
+    private void recharge(ArchiveJob job, long bytes) {
+        synchronized (jobs) {
+            if (job.charged == 0) return;
+            cacheBytes += bytes - job.charged;
+            job.charged = bytes;
+        }
+    }
+
+    private void uncharge(ArchiveJob job) {
+        synchronized (jobs) {
+            cacheBytes -= job.charged;
+            job.charged = 0;
+        }
+    }
+
+    private void fail(ArchiveJob job, String reason) {
+        job.status = Status.FAILED;
+        job.error = reason;
+        job.completedAt = Instant.now();
+        deleteQuietly(job.archiveFile.resolveSibling(job.id + ".zip.part"));
+    }
+
+    private Path archivesDir(Path base) throws IOException {
+        Path dir = base.resolve(StorageService.INTERNAL_DIR).resolve("archives");
+        Files.createDirectories(dir);
+        return dir;
+    }
+
+    // Archives left behind by a restart are no longer referenced by any job
+    private void purgeOrphans(Path dir) {
+        try (var stream = Files.list(dir)) {
+            for (Path p : stream.collect(Collectors.toList())) {
+                String name = p.getFileName().toString();
+                String id = name.length() >= 36 ? name.substring(0, 36) : name;
+                if (!jobs.containsKey(id)) {
+                    if (Files.isDirectory(p)) deleteTree(p); else deleteQuietly(p);
+                }
+            }
+        } catch (IOException ignored) { }
+    }
+
+    private static void deleteQuietly(Path p) {
+        try { Files.deleteIfExists(p); } catch (IOException ignored) { }
+    }
+
+    private static void deleteTree(Path dir) {
+        try (var walk = Files.walk(dir)) {
+            for (Path p : walk.sorted(java.util.Comparator.reverseOrder()).collect(Collectors.toList())) deleteQuietly(p);
+        } catch (IOException ignored) { }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static final class Prepared {
+        Path file;
+        Path deflated; // temp file with raw deflate data (DEFLATED entries only)
+        int method;
+        long crc;
+        long size;
+        long compressedSize;
+        long lastModified;
+    }
+
+    public static class ArchiveJob {
+        public String id;
+        public String safeBoxName;
+        public String path;
+        public String fileName;
+        public volatile Status status;
+        public volatile String error;
+        public Instant createdAt;
+        public volatile Instant startedAt;
+        public volatile Instant completedAt;
+        public volatile int totalFiles;
+        public volatile long totalBytes;
+        public final AtomicLong processedFiles = new AtomicLong();
+        public final AtomicLong processedBytes = new AtomicLong();
+        public volatile long archiveSize;
+
+        // server-side only
+        transient Path safeBoxRoot;
+        transient Path archiveFile;
+        transient String key;
+        transient Future<?> future;
+        transient volatile boolean evicted;
+        transient volatile long lastUsed; // System.nanoTime() of the last submit or lookup, for LRU eviction
+        transient long charged; // bytes counted against maxCacheBytes; guarded by the service's jobs map
+
+        public Path archiveFile() {
+            return archiveFile;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.vaultedge.service.StorageService.AuditEntry;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams audit entries matching the search filters straight to an output stream as NDJSON or CSV,
+ * optionally gzip-compressed. Entries come from the merged segment scan one at a time, so memory use does
+ * not depend on the number of rows.
+ */
+@Service
+public class AuditExportService {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final String CSV_HEADER = "timestamp,scope,safeBoxName,message\r\n";
+
+    public enum Format {
+        NDJSON("application/x-ndjson", "ndjson"),
+        CSV("text/csv", "csv");
+
+        public final String contentType;
+        public final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        /** Parses ndjson / csv (case-insensitive); anything else is rejected. */
+        public static Format parse(String value) {
+            if (value == null || value.isBlank()) return NDJSON;
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unsupported export format: " + value + " (use ndjson or csv)");
+            }
+        }
+    }
+
+    private final StorageService storageService;
+    private final JsonFactory json = new JsonFactory();
+
+    public AuditExportService(StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    /** Writes every matching entry, newest first. The caller owns out; it is flushed but not closed. */
+    public void export(String userId, Instant from, Instant to, Set<String> scopes, Set<String> safeBoxes,
+                       String query, Format format, boolean gzip, OutputStream out) throws IOException {
+        GZIPOutputStream gz = gzip ? new GZIPOutputStream(out, BUFFER_BYTES) : null;
+        Writer w = new BufferedWriter(new OutputStreamWriter(gz != null ? gz : out, StandardCharsets.UTF_8), BUFFER_BYTES);
+        if (format == Format.CSV) {
+            w.write(CSV_HEADER);
+            storageService.forEachAudit(userId, from, to, scopes, safeBoxes, query, e -> writeCsv(w, e));
+        } else {
+            JsonGenerator gen = json.createGenerator(w);
+            gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            gen.setRootValueSeparator(null); // one object per line, separated by writeRaw('\n') only
+            storageService.forEachAudit(userId, from, to, scopes, safeBoxes, query, e -> writeJson(gen, e));
+            gen.flush();
+        }
+        w.flush();
+        if (gz != null) gz.finish();
+        out.flush();
+    }
+
+    private static void writeJson(JsonGenerator gen, AuditEntry e) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("timestamp", e.timestamp);
+        gen.writeStringField("scope", e.scope);
+        gen.writeStringField("safeBoxName", e.safeBoxName);
+        gen.writeStringField("message", e.message);
+        gen.writeEndObject();
+        gen.writeRaw('\n');
+    }
+
+    private static void writeCsv(Writer w, AuditEntry e) throws IOException {
+        w.write(csv(e.timestamp));
+        w.write(',');
+        w.write(csv(e.scope));
+        w.write(',');
+        w.write(csv(e.safeBoxName));
+        w.write(',');
+        w.write(csv(e.message));
+        w.write("\r\n");
+    }
+
+    // RFC 4180 quoting; a leading formula character is neutralised so spreadsheets don't evaluate it (tab and
+    // carriage return count too: some spreadsheets strip them and then read the formula behind)
+    static String csv(String value) {
+        if (value == null || value.isEmpty()) return "";
+        String v = value;
+        char first = v.charAt(0);
+        if (first == '=' || first == '+' || first == '-' || first == '@' || first == '\t' || first == '\r') v = "'" + v;
+        boolean quote = v.indexOf(',') >= 0 || v.indexOf('"') >= 0 || v.indexOf('\n') >= 0 || v.indexOf('\r') >= 0;
+        return quote ? '"' + v.replace("\"", "\"\"") + '"' : v;
+    }
+}
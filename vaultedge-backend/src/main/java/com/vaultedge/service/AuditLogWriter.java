@@ -0,0 +1,309 @@
+package com.vaultedge.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Audit pipeline: request threads only enqueue; one writer thread drains the bounded queue, groups the
+ * batch per log file, appends each group with a single write on a channel that stays open, and forces
+ * to disk on a configurable interval (group commit). Maintenance (retention) runs on the writer thread
+ * against a scope (a file or directory), so it never races with appends to files in that scope.
+ * <p>
+ * Records are stamped with the current time while queue order is decided, so timestamps within any one
+ * file never go backwards.
+ */
+@Component
+public class AuditLogWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(AuditLogWriter.class);
+
+    /** File operation run on the writer thread while the channels in its scope are closed. */
+    @FunctionalInterface
+    public interface Maintenance {
+        void run() throws IOException;
+    }
+
+    /** Builds the bytes to append (and the file to append them to) for the given timestamp. */
+    @FunctionalInterface
+    public interface Stamp {
+        Chunk at(long epochMillis);
+    }
+
+    public static final class Chunk {
+        final Path file;
+        final byte[] data;
+
+        public Chunk(Path file, byte[] data) {
+            this.file = file;
+            this.data = data;
+        }
+    }
+
+    private final BlockingQueue<Record> queue;
+    private final long lingerMs;
+    private final long fsyncIntervalMs;
+    private final long maintenanceIntervalMs;
+    private final int maxOpenFiles;
+
+    private final Object progress = new Object();
+    private long enqueued; // guarded by progress
+    private long processed; // guarded by progress
+
+    // writer-thread state
+    private final Map<Path, FileChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<FileChannel> unsynced = new HashSet<>();
+    private final Map<Path, Long> lastMaintenance = new HashMap<>();
+    private long lastSync = System.currentTimeMillis();
+
+    private volatile boolean running = true;
+    private Thread writerThread;
+
+    public AuditLogWriter(@Value("${audit.queueCapacity:65536}") int queueCapacity,
+                          @Value("${audit.flushIntervalMs:5}") long lingerMs,
+                          @Value("${audit.fsyncIntervalMs:1000}") long fsyncIntervalMs,
+                          @Value("${audit.pruneIntervalMs:3600000}") long maintenanceIntervalMs,
+                          @Value("${audit.maxOpenFiles:256}") int maxOpenFiles) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(16, queueCapacity));
+        this.lingerMs = Math.max(1, lingerMs);
+        this.fsyncIntervalMs = Math.max(0, fsyncIntervalMs);
+        this.maintenanceIntervalMs = Math.max(0, maintenanceIntervalMs);
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+    }
+
+    @PostConstruct
+    public void start() {
+        writerThread = new Thread(this::writeLoop, "audit-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (writerThread == null) return;
+        try {
+            writerThread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues an append. periodic (may be null) is run on the writer thread at most once per maintenance
+     * interval for scope. Blocks only when the queue is full (back-pressure, nothing is dropped).
+     */
+    public void append(Path scope, Maintenance periodic, Stamp stamp) {
+        Record r = new Record();
+        r.scope = scope;
+        r.maintenance = periodic;
+        r.stamp = stamp;
+        enqueue(r);
+    }
+
+    /** Queues a one-off maintenance action for scope, ordered after every append queued before it. */
+    public void maintain(Path scope, Maintenance action) {
+        Record r = new Record();
+        r.scope = scope;
+        r.maintenance = action;
+        r.maintenanceOnly = true;
+        enqueue(r);
+    }
+
+    /** Waits until everything queued before this call is written (not necessarily fsynced). For readers. */
+    public void flush() {
+        if (writerThread == null || Thread.currentThread() == writerThread) return;
+        synchronized (progress) {
+            long target = enqueued;
+            while (processed < target && writerThread.isAlive()) {
+                try {
+                    progress.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void enqueue(Record r) {
+        synchronized (progress) {
+            // Stamp and offer under one lock: queue order == timestamp order
+            while (true) {
+                if (r.stamp != null) {
+                    Chunk c = r.stamp.at(System.currentTimeMillis());
+                    r.file = c.file;
+                    r.data = c.data;
+                }
+                if (queue.offer(r)) {
+                    enqueued++;
+                    return;
+                }
+                try {
+                    progress.wait(10); // full: wait for the writer to drain
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while queueing audit record");
+                }
+            }
+        }
+    }
+
+    // ===== writer thread =====
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Record first = queue.poll(lingerMs, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    writeBatch(batch);
+                }
+                if (fsyncIntervalMs == 0 || System.currentTimeMillis() - lastSync >= fsyncIntervalMs) syncAll();
+            } catch (InterruptedException e) {
+                // stop() clears running; keep draining
+            } catch (RuntimeException e) {
+                log.error("Audit writer error", e);
+            } finally {
+                if (!batch.isEmpty()) {
+                    synchronized (progress) {
+                        processed += batch.size();
+                        progress.notifyAll();
+                    }
+                    batch.clear();
+                }
+            }
+        }
+        syncAll();
+        for (FileChannel ch : channels.values()) closeQuietly(ch);
+        channels.clear();
+    }
+
+    private void writeBatch(List<Record> batch) {
+        // Group appends per file, preserving order; a maintenance record first writes what is pending in its scope
+        Map<Path, ByteArrayOutputStream> pending = new LinkedHashMap<>();
+        Map<Path, Maintenance> periodic = new HashMap<>();
+        for (Record r : batch) {
+            if (r.maintenanceOnly) {
+                Iterator<Map.Entry<Path, ByteArrayOutputStream>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Path, ByteArrayOutputStream> e = it.next();
+                    if (!e.getKey().startsWith(r.scope)) continue;
+                    writeGroup(e.getKey(), e.getValue());
+                    it.remove();
+                }
+                runMaintenance(r.scope, r.maintenance);
+                continue;
+            }
+            pending.computeIfAbsent(r.file, k -> new ByteArrayOutputStream(256)).writeBytes(r.data);
+            if (r.maintenance != null) periodic.put(r.scope, r.maintenance);
+        }
+        for (Map.Entry<Path, ByteArrayOutputStream> e : pending.entrySet()) writeGroup(e.getKey(), e.getValue());
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Path, Maintenance> e : periodic.entrySet()) {
+            Long last = lastMaintenance.get(e.getKey());
+            if (last == null || now - last >= maintenanceIntervalMs) runMaintenance(e.getKey(), e.getValue());
+        }
+    }
+
+    private void writeGroup(Path file, ByteArrayOutputStream group) {
+        if (group == null || group.size() == 0) return;
+        try {
+            FileChannel ch = channel(file);
+            ByteBuffer buf = ByteBuffer.wrap(group.toByteArray());
+            while (buf.hasRemaining()) ch.write(buf);
+            unsynced.add(ch);
+        } catch (IOException e) {
+            log.warn("Failed to append {} audit bytes to {}: {}", group.size(), file, e.toString());
+            closeChannel(file);
+        }
+    }
+
+    private void runMaintenance(Path scope, Maintenance action) {
+        List<Path> inScope = new ArrayList<>();
+        for (Path p : channels.keySet()) if (p.startsWith(scope)) inScope.add(p);
+        for (Path p : inScope) closeChannel(p);
+        lastMaintenance.put(scope, System.currentTimeMillis());
+        try {
+            action.run();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Audit maintenance failed for {}: {}", scope, e.toString());
+        }
+    }
+
+    private FileChannel channel(Path file) throws IOException {
+        FileChannel ch = channels.get(file);
+        if (ch != null && ch.isOpen()) return ch;
+        Files.createDirectories(file.getParent());
+        ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channels.put(file, ch);
+        if (channels.size() > maxOpenFiles) {
+            Iterator<Map.Entry<Path, FileChannel>> it = channels.entrySet().iterator();
+            Map.Entry<Path, FileChannel> eldest = it.next();
+            it.remove();
+            forceQuietly(eldest.getValue());
+            closeQuietly(eldest.getValue());
+        }
+        return ch;
+    }
+
+    private void closeChannel(Path file) {
+        FileChannel ch = channels.remove(file);
+        if (ch == null) return;
+        forceQuietly(ch);
+        closeQuietly(ch);
+    }
+
+    private void syncAll() {
+        for (FileChannel ch : new ArrayList<>(unsynced)) forceQuietly(ch);
+        lastSync = System.currentTimeMillis();
+    }
+
+    private void forceQuietly(FileChannel ch) {
+        unsynced.remove(ch);
+        try {
+            if (ch.isOpen()) ch.force(false);
+        } catch (IOException e) {
+            log.warn("Audit fsync failed: {}", e.toString());
+        }
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) { }
+    }
+
+    private static final class Record {
+        Path scope;
+        Stamp stamp;
+        Path file;
+        byte[] data;
+        Maintenance maintenance;
+        boolean maintenanceOnly;
+    }
+}
@@ -0,0 +1,727 @@
+package com.vaultedge.service;
+
+import com.vaultedge.service.StorageService.AuditEntry;
+import com.vaultedge.service.StorageService.AuditPage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the audit segments written by {@link AuditSegmentStore} without loading or sorting whole logs.
+ * <p>
+ * Each safebox stream is read backwards (newest first) and the streams are combined with a k-way merge
+ * on timestamp. Time bounds and cursors are resolved inside a day segment through a sparse in-memory
+ * index (one sample every <code>audit.indexEvery</code> records), built only for segments where a bound
+ * actually falls; unbounded reads just walk the tail. Safebox, scope and text filters are applied while
+ * scanning, before any entry is built.
+ * <p>
+ * Per (user, filter) the engine remembers, for as long as none of the filtered streams has changed, the total
+ * and the cursor at which each page/size page starts, so paging by number neither recounts nor re-skips from
+ * the top. Per-segment counts for the total are kept across changes and revalidated by segment size, so after
+ * an append only the growing segment is counted again.
+ */
+@Component
+public class AuditQueryEngine {
+
+    static final int SCOPE_SAFEBOX = 0;
+    static final int SCOPE_USER = 1;
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private final int indexEvery;
+    // segment file -> sparse index, LRU-bounded
+    private final Map<Path, SegmentIndex> indexes;
+    // user root + filter -> remembered totals / page starts, LRU-bounded
+    private final Map<String, QueryState> queries;
+
+    public AuditQueryEngine(@Value("${audit.indexEvery:64}") int indexEvery,
+                            @Value("${audit.indexCacheSegments:4096}") int maxIndexedSegments,
+                            @Value("${audit.queryCacheFilters:1024}") int maxCachedQueries) {
+        this.indexEvery = Math.max(1, indexEvery);
+        this.indexes = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, SegmentIndex> eldest) {
+                return size() > maxIndexedSegments;
+            }
+        });
+        this.queries = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QueryState> eldest) {
+                return size() > maxCachedQueries;
+            }
+        });
+    }
+
+    /** Search filters; null / empty members mean "no restriction". from and to are inclusive. */
+    public static class Filter {
+        public Instant from;
+        public Instant to;
+        public Set<String> scopes;
+        public Set<String> safeBoxes;
+        public String query;
+    }
+
+    // ===== public API =====
+
+    /** Newest entries first, reading only as much of each stream's tail as needed. */
+    public List<AuditEntry> latest(Path userRoot, int limit) throws IOException {
+        List<AuditEntry> out = new ArrayList<>();
+        try (Scan scan = new Scan(userRoot, new Filter(), null)) {
+            Hit h;
+            while (out.size() < limit && (h = scan.next()) != null) out.add(h.entry);
+        }
+        return out;
+    }
+
+    public AuditPage search(Path userRoot, Filter filter, String cursor, int page, int size) throws IOException {
+        return search(userRoot, filter, cursor, page, size, true);
+    }
+
+    /**
+     * One page of matches, newest first. With a cursor the page starts right after it (page is ignored and
+     * total is not computed, -1); otherwise page/size select the page and, if withTotal, total counts all
+     * matches (-1 when not asked for). A cursor that does not point at a record of its segment is rejected
+     * with IllegalArgumentException.
+     */
+    public AuditPage search(Path userRoot, Filter filter, String cursor, int page, int size, boolean withTotal) throws IOException {
+        AuditPage ap = new AuditPage();
+        ap.items = new ArrayList<>();
+        boolean byPage = cursor == null || cursor.isBlank();
+        ap.page = byPage ? page : 0;
+        ap.size = size;
+        Cursor after = byPage ? null : Cursor.decode(cursor);
+        QueryState state = null;
+        long skip = 0;
+        long seen = 0;
+        if (byPage) {
+            state = state(userRoot, filter);
+            skip = (long) page * size;
+            // Resume from the nearest page start remembered for this filter instead of skipping from the top
+            for (int p = page; p > 0; p--) {
+                String anchor = state.pageStarts.get(size + ":" + p);
+                if (anchor == null) continue;
+                after = Cursor.decode(anchor);
+                seen = (long) p * size;
+                break;
+            }
+        }
+        try (Scan scan = new Scan(userRoot, filter, after)) {
+            Hit h = null;
+            while (seen < skip && (h = scan.next()) != null) {
+                seen++;
+                if (state != null && seen % size == 0) state.pageStarts.putIfAbsent(size + ":" + (seen / size), h.key.encode());
+            }
+            Hit last = null;
+            while (ap.items.size() < size && (h = scan.next()) != null) {
+                ap.items.add(h.entry);
+                seen++;
+                last = h;
+            }
+            boolean more = ap.items.size() == size && scan.hasNext();
+            ap.nextCursor = more && last != null ? last.key.encode() : null;
+            if (state != null && ap.nextCursor != null) state.pageStarts.putIfAbsent(size + ":" + (page + 1), ap.nextCursor);
+            if (!byPage || !withTotal) {
+                ap.total = -1;
+            } else if (state.total >= 0) {
+                ap.total = (int) Math.min(Integer.MAX_VALUE, state.total);
+            } else if (filter.query == null || filter.query.isBlank()) {
+                state.total = count(userRoot, filter, state);
+                ap.total = (int) Math.min(Integer.MAX_VALUE, state.total);
+            } else {
+                // Text filter: counting needs the scan anyway, but nothing is materialised or sorted
+                if (more) {
+                    while (scan.next() != null) seen++;
+                }
+                state.total = seen;
+                ap.total = (int) Math.min(Integer.MAX_VALUE, seen);
+            }
+        }
+        return ap;
+    }
+
+    /** Streams every match, newest first, to consumer (constant memory). */
+    public void forEach(Path userRoot, Filter filter, EntryConsumer consumer) throws IOException {
+        try (Scan scan = new Scan(userRoot, filter, null)) {
+            Hit h;
+            while ((h = scan.next()) != null) consumer.accept(h.entry);
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(AuditEntry entry) throws IOException;
+    }
+
+    /**
+     * Number of matching entries without a text filter: record counts from the index, times the scopes shown.
+     * A segment whose size is unchanged since the last count for this filter is not opened again.
+     */
+    private long count(Path userRoot, Filter filter, QueryState state) throws IOException {
+        int scopesShown = (allows(filter, "SAFEBOX") ? 1 : 0) + (allows(filter, "USER") ? 1 : 0);
+        if (scopesShown == 0) return 0;
+        long lower = filter.from == null ? Long.MIN_VALUE : filter.from.toEpochMilli();
+        long upperExcl = filter.to == null ? Long.MAX_VALUE : filter.to.toEpochMilli() + 1;
+        long records = 0;
+        Map<Path, long[]> counted = new HashMap<>();
+        for (Map.Entry<String, Path> stream : AuditSegmentStore.safeBoxStreams(userRoot).entrySet()) {
+            if (!allowsSafeBox(filter, stream.getKey())) continue;
+            for (Path seg : AuditSegmentStore.segments(stream.getValue())) {
+                LocalDate day = AuditSegmentStore.segmentDay(seg);
+                if (!dayInRange(day, lower, upperExcl)) continue;
+                long[] known = state.segmentCounts.get(seg);
+                try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.READ)) {
+                    long size = ch.size();
+                    if (known == null || known[0] != size) {
+                        SegmentIndex idx = index(seg, ch);
+                        long start = lower == Long.MIN_VALUE ? 0 : idx.locate(ch, lower)[1];
+                        long end = upperExcl == Long.MAX_VALUE ? idx.records : idx.locate(ch, upperExcl)[1];
+                        known = new long[]{size, Math.max(0, end - start)};
+                    }
+                }
+                counted.put(seg, known);
+                records += known[1];
+            }
+        }
+        state.segmentCounts = counted; // segments pruned by retention drop out
+        return records * scopesShown;
+    }
+
+    /**
+     * What is remembered for this user and filter. Totals and page starts only hold while every filtered stream
+     * is as it was (same segments, newest one the same size); otherwise they are dropped, segment counts kept.
+     */
+    private QueryState state(Path userRoot, Filter filter) throws IOException {
+        String key = userRoot + "\n" + filter.from + "\n" + filter.to + "\n" + sortedJoin(filter.scopes) + "\n"
+                + sortedJoin(filter.safeBoxes) + "\n" + (filter.query == null ? "" : filter.query.toLowerCase());
+        StringBuilder fp = new StringBuilder();
+        for (Map.Entry<String, Path> stream : AuditSegmentStore.safeBoxStreams(userRoot).entrySet()) {
+            if (!allowsSafeBox(filter, stream.getKey())) continue;
+            List<Path> segs = AuditSegmentStore.segments(stream.getValue());
+            fp.append(stream.getKey()).append('/').append(segs.size());
+            if (!segs.isEmpty()) {
+                Path newest = segs.get(segs.size() - 1);
+                long size;
+                try {
+                    size = Files.size(newest);
+                } catch (IOException e) {
+                    size = -1;
+                }
+                fp.append('/').append(newest.getFileName()).append('/').append(size);
+            }
+            fp.append('\n');
+        }
+        String fingerprint = fp.toString();
+        synchronized (queries) {
+            QueryState state = queries.get(key);
+            if (state == null || !state.fingerprint.equals(fingerprint)) {
+                QueryState fresh = new QueryState(fingerprint);
+                if (state != null) fresh.segmentCounts = state.segmentCounts;
+                queries.put(key, fresh);
+                state = fresh;
+            }
+            return state;
+        }
+    }
+
+    private static String sortedJoin(Set<String> values) {
+        if (values == null || values.isEmpty()) return "";
+        List<String> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return String.join(",", sorted);
+    }
+
+    private static final class QueryState {
+        final String fingerprint;
+        volatile long total = -1;
+        // "size:page" -> cursor after the last entry of the previous page
+        final Map<String, String> pageStarts = new ConcurrentHashMap<>();
+        volatile Map<Path, long[]> segmentCounts = Map.of(); // segment -> {size, matching records}
+
+        QueryState(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    // ===== merged scan =====
+
+    private final class Scan implements Closeable {
+        private final boolean showSafeBox;
+        private final boolean showUser;
+        private final String needle;
+        private final PriorityQueue<Stream> heap = new PriorityQueue<>(
+                Comparator.comparingLong((Stream s) -> -s.ts).thenComparing(s -> s.name));
+        private final List<Stream> streams = new ArrayList<>();
+        private Stream current;
+        private int nextScope; // next scope to consider for current's record
+        private Hit peeked;
+
+        Scan(Path userRoot, Filter filter, Cursor after) throws IOException {
+            this.showSafeBox = allows(filter, "SAFEBOX");
+            this.showUser = allows(filter, "USER");
+            this.needle = filter.query == null || filter.query.isBlank() ? null : filter.query.toLowerCase();
+            if (!showSafeBox && !showUser) return;
+            long lower = filter.from == null ? Long.MIN_VALUE : filter.from.toEpochMilli();
+            long toExcl = filter.to == null ? Long.MAX_VALUE : filter.to.toEpochMilli() + 1;
+            for (Map.Entry<String, Path> e : AuditSegmentStore.safeBoxStreams(userRoot).entrySet()) {
+                String name = e.getKey();
+                if (!allowsSafeBox(filter, name)) continue;
+                Stream s = new Stream(name, AuditSegmentStore.segments(e.getValue()), lower);
+                streams.add(s);
+                int pending = SCOPE_SAFEBOX;
+                if (after == null) {
+                    s.start(toExcl);
+                } else {
+                    int cmp = name.compareTo(after.safeBox);
+                    if (cmp < 0) {
+                        // Same-timestamp records of earlier streams were already returned
+                        s.start(Math.min(toExcl, after.ts));
+                    } else if (cmp > 0) {
+                        s.start(Math.min(toExcl, after.ts + 1));
+                    } else {
+                        boolean userPending = after.scope == SCOPE_SAFEBOX && showUser;
+                        s.startAt(after.day, after.offset, after.ts, userPending);
+                        if (userPending) pending = SCOPE_USER;
+                    }
+                }
+                if (s.has()) {
+                    s.firstScope = pending;
+                    heap.add(s);
+                }
+            }
+        }
+
+        boolean hasNext() throws IOException {
+            if (peeked == null) peeked = advance();
+            return peeked != null;
+        }
+
+        Hit next() throws IOException {
+            if (peeked != null) {
+                Hit h = peeked;
+                peeked = null;
+                return h;
+            }
+            return advance();
+        }
+
+        private Hit advance() throws IOException {
+            while (true) {
+                if (current != null) {
+                    while (nextScope <= SCOPE_USER) {
+                        int scope = nextScope++;
+                        Hit h = emit(current, scope);
+                        if (h != null) return h;
+                    }
+                    current.prev();
+                    if (current.has()) heap.add(current);
+                    current = null;
+                }
+                current = heap.poll();
+                if (current == null) return null;
+                nextScope = current.firstScope;
+                current.firstScope = SCOPE_SAFEBOX;
+            }
+        }
+
+        private Hit emit(Stream s, int scope) {
+            if (scope == SCOPE_SAFEBOX ? !showSafeBox : !showUser) return null;
+            String msg = s.message();
+            if (needle != null) {
+                String blob = scope == SCOPE_SAFEBOX ? msg + " " + s.name : s.name + ": " + msg + " ";
+                if (!blob.toLowerCase().contains(needle)) return null;
+            }
+            AuditEntry e = new AuditEntry();
+            e.timestamp = Instant.ofEpochMilli(s.ts).toString();
+            if (scope == SCOPE_SAFEBOX) {
+                e.scope = "SAFEBOX";
+                e.safeBoxName = s.name;
+                e.message = msg;
+            } else {
+                e.scope = "USER";
+                e.message = s.name + ": " + msg; // derived USER view
+            }
+            Hit h = new Hit();
+            h.entry = e;
+            h.key = new Cursor(s.ts, s.name, s.segmentDay(), s.offset, scope);
+            return h;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Stream s : streams) s.close();
+        }
+    }
+
+    private static final class Hit {
+        AuditEntry entry;
+        Cursor key;
+    }
+
+    /** One safebox's records, newest first, across its day segments. */
+    private final class Stream implements Closeable {
+        final String name;
+        final List<Path> segments; // oldest day first
+        final long lower; // inclusive lower time bound
+        int segIdx;
+        FileChannel ch;
+        Window window;
+        long startOffset; // first record of the current segment still in range
+        long end; // exclusive end of the next record to read
+        int firstScope = SCOPE_SAFEBOX;
+
+        // current record
+        boolean valid;
+        long ts;
+        long offset;
+        private int msgLen;
+        private long msgPos;
+        private String message;
+
+        Stream(String name, List<Path> segments, long lower) {
+            this.name = name;
+            this.segments = segments;
+            this.lower = lower;
+        }
+
+        /** Positions on the newest record with ts &lt; upperExcl. */
+        void start(long upperExcl) throws IOException {
+            segIdx = segments.size();
+            while (--segIdx >= 0) {
+                LocalDate day = AuditSegmentStore.segmentDay(segments.get(segIdx));
+                if (day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() >= upperExcl) continue; // whole day too new
+                open(upperExcl);
+                prev();
+                return;
+            }
+            valid = false;
+        }
+
+        /**
+         * Positions on the record at (day, offset) if reread, otherwise on the record before it. The offset must
+         * be where a record with timestamp expectTs starts (a cursor can be stale or edited).
+         */
+        void startAt(LocalDate day, long recordOffset, long expectTs, boolean reread) throws IOException {
+            segIdx = segments.size();
+            while (--segIdx >= 0) {
+                LocalDate d = AuditSegmentStore.segmentDay(segments.get(segIdx));
+                if (d.isAfter(day)) continue;
+                open(Long.MAX_VALUE);
+                if (d.equals(day)) {
+                    if (!isRecordAt(recordOffset, expectTs)) {
+                        close();
+                        throw new IllegalArgumentException("Invalid cursor");
+                    }
+                    long e = recordOffset;
+                    if (reread) {
+                        ByteBuffer b = window.at(recordOffset, 4);
+                        e = recordOffset + AuditSegmentStore.RECORD_OVERHEAD + b.getInt(b.position());
+                    }
+                    end = Math.min(end, e);
+                }
+                prev();
+                return;
+            }
+            valid = false;
+        }
+
+        boolean has() {
+            return valid;
+        }
+
+        private boolean isRecordAt(long off, long expectTs) throws IOException {
+            long size = ch.size();
+            if (off < 0 || off > size - AuditSegmentStore.RECORD_OVERHEAD) return false;
+            ByteBuffer h = window.at(off, 12);
+            int len = h.getInt(h.position());
+            if (len < 0 || off + AuditSegmentStore.RECORD_OVERHEAD + len > size) return false;
+            if (h.getLong(h.position() + 4) != expectTs) return false;
+            ByteBuffer t = window.at(off + AuditSegmentStore.RECORD_OVERHEAD - 4 + len, 4);
+            return t.getInt(t.position()) == len;
+        }
+
+        LocalDate segmentDay() {
+            return AuditSegmentStore.segmentDay(segments.get(segIdx));
+        }
+
+        String message() {
+            if (message == null) {
+                ByteBuffer b = window.at(msgPos, msgLen);
+                byte[] bytes = new byte[msgLen];
+                b.get(bytes);
+                message = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return message;
+        }
+
+        private void open(long upperExcl) throws IOException {
+            close();
+            Path seg = segments.get(segIdx);
+            ch = FileChannel.open(seg, StandardOpenOption.READ);
+            window = new Window(ch);
+            long size = ch.size();
+            end = size;
+            startOffset = 0;
+            LocalDate day = AuditSegmentStore.segmentDay(seg);
+            long dayStart = day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            long dayEnd = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            // Only segments a bound falls into need the index; others are read from the tail as-is
+            if (upperExcl < dayEnd || (lower != Long.MIN_VALUE && lower > dayStart)) {
+                SegmentIndex idx = index(seg, ch);
+                end = Math.min(idx.indexedEnd, size);
+                if (upperExcl < dayEnd) end = idx.locate(ch, upperExcl)[0];
+                if (lower > dayStart) startOffset = idx.locate(ch, lower)[0];
+            }
+        }
+
+        /** Moves to the previous (older) record, crossing into older segments as needed. */
+        void prev() throws IOException {
+            message = null;
+            while (true) {
+                if (ch != null && end - startOffset >= AuditSegmentStore.RECORD_OVERHEAD) {
+                    ByteBuffer tail = window.before(end, 4);
+                    int len = tail.getInt(tail.position());
+                    long recStart = end - AuditSegmentStore.RECORD_OVERHEAD - len;
+                    if (len >= 0 && recStart >= startOffset) {
+                        ByteBuffer rec = window.at(recStart, AuditSegmentStore.RECORD_OVERHEAD - 4);
+                        int p = rec.position();
+                        if (rec.getInt(p) == len) {
+                            ts = rec.getLong(p + 4);
+                            offset = recStart;
+                            msgPos = recStart + 13;
+                            msgLen = len;
+                            end = recStart;
+                            valid = ts >= lower;
+                            if (!valid) close();
+                            return;
+                        }
+                    }
+                    // Torn / foreign bytes at this position: nothing older in this segment can be trusted
+                    end = startOffset;
+                }
+                if (--segIdx < 0) {
+                    valid = false;
+                    close();
+                    return;
+                }
+                LocalDate day = AuditSegmentStore.segmentDay(segments.get(segIdx));
+                if (lower != Long.MIN_VALUE && day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() <= lower) {
+                    valid = false;
+                    close();
+                    return;
+                }
+                open(Long.MAX_VALUE);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (ch != null) {
+                ch.close();
+                ch = null;
+            }
+        }
+    }
+
+    // ===== sparse index =====
+
+    private SegmentIndex index(Path seg, FileChannel ch) throws IOException {
+        SegmentIndex idx = indexes.get(seg);
+        long size = ch.size();
+        if (idx == null || idx.indexedEnd > size) {
+            idx = new SegmentIndex();
+            indexes.put(seg, idx);
+        }
+        synchronized (idx) {
+            if (idx.indexedEnd < size) idx.extend(ch, size, indexEvery);
+        }
+        return idx;
+    }
+
+    /** Every N-th record's (timestamp, offset, ordinal) of one segment; extended as the segment grows. */
+    private static final class SegmentIndex {
+        long indexedEnd;
+        long records;
+        long lastTs = Long.MIN_VALUE;
+        long[] ts = new long[16];
+        long[] off = new long[16];
+        long[] ord = new long[16];
+        int n;
+
+        void extend(FileChannel ch, long size, int every) throws IOException {
+            Window w = new Window(ch);
+            long pos = indexedEnd;
+            while (size - pos >= AuditSegmentStore.RECORD_OVERHEAD) {
+                ByteBuffer h = w.at(pos, 12);
+                int len = h.getInt(h.position());
+                long t = h.getLong(h.position() + 4);
+                long next = pos + AuditSegmentStore.RECORD_OVERHEAD + len;
+                if (len < 0 || next > size) break; // incomplete tail; picked up on a later extend
+                if (records % every == 0) add(t, pos, records);
+                records++;
+                lastTs = t;
+                pos = next;
+            }
+            indexedEnd = pos;
+        }
+
+        private void add(long t, long o, long r) {
+            if (n == ts.length) {
+                ts = Arrays.copyOf(ts, n * 2);
+                off = Arrays.copyOf(off, n * 2);
+                ord = Arrays.copyOf(ord, n * 2);
+            }
+            ts[n] = t;
+            off[n] = o;
+            ord[n] = r;
+            n++;
+        }
+
+        /** {offset, ordinal} of the first record with timestamp &gt;= bound (indexedEnd/records if none). */
+        synchronized long[] locate(FileChannel ch, long bound) throws IOException {
+            if (n == 0 || bound > lastTs) return new long[]{indexedEnd, records};
+            // last sample with ts < bound
+            int lo = 0;
+            int hi = n - 1;
+            int best = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ts[mid] < bound) {
+                    best = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (best < 0) return new long[]{0, 0};
+            long pos = off[best];
+            long r = ord[best];
+            Window w = new Window(ch);
+            while (pos < indexedEnd) {
+                ByteBuffer h = w.at(pos, 12);
+                int len = h.getInt(h.position());
+                if (h.getLong(h.position() + 4) >= bound) break;
+                pos += AuditSegmentStore.RECORD_OVERHEAD + len;
+                r++;
+            }
+            return new long[]{pos, r};
+        }
+    }
+
+    /** Block cache over a segment channel for small positional reads in either direction. */
+    private static final class Window {
+        private final FileChannel ch;
+        private ByteBuffer buf = ByteBuffer.allocate(0);
+        private long bufStart;
+
+        Window(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        /** Buffer positioned at pos with at least len bytes (reads forward from pos on a miss). */
+        ByteBuffer at(long pos, int len) {
+            if (pos < bufStart || pos + len > bufStart + buf.limit()) load(pos, Math.max(BLOCK_BYTES, len));
+            return buf.duplicate().position((int) (pos - bufStart));
+        }
+
+        /** Buffer positioned at endExcl - len (reads backward from endExcl on a miss). */
+        ByteBuffer before(long endExcl, int len) {
+            long pos = endExcl - len;
+            if (pos < bufStart || endExcl > bufStart + buf.limit()) {
+                long start = Math.max(0, endExcl - Math.max(BLOCK_BYTES, len));
+                load(start, (int) (endExcl - start));
+            }
+            return buf.duplicate().position((int) (pos - bufStart));
+        }
+
+        private void load(long start, int len) {
+            try {
+                ByteBuffer b = ByteBuffer.allocate(len);
+                long p = start;
+                while (b.hasRemaining()) {
+                    int r = ch.read(b, p);
+                    if (r < 0) break;
+                    p += r;
+                }
+                b.flip();
+                buf = b;
+                bufStart = start;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // ===== filters & cursor =====
+
+    private static boolean allows(Filter f, String scope) {
+        return f.scopes == null || f.scopes.isEmpty() || f.scopes.contains(scope);
+    }
+
+    private static boolean allowsSafeBox(Filter f, String safeBoxName) {
+        return f.safeBoxes == null || f.safeBoxes.isEmpty() || f.safeBoxes.contains(safeBoxName);
+    }
+
+    private static boolean dayInRange(LocalDate day, long lower, long upperExcl) {
+        long dayStart = day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        long dayEnd = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        return dayStart < upperExcl && dayEnd > lower;
+    }
+
+    /** Position of the last returned entry: timestamp, stream, segment day, record offset, scope. */
+    static final class Cursor {
+        final long ts;
+        final String safeBox;
+        final LocalDate day;
+        final long offset;
+        final int scope;
+
+        Cursor(long ts, String safeBox, LocalDate day, long offset, int scope) {
+            this.ts = ts;
+            this.safeBox = safeBox;
+            this.day = day;
+            this.offset = offset;
+            this.scope = scope;
+        }
+
+        String encode() {
+            String raw = String.join("\n", "a1", Long.toString(ts), day.toString(), Long.toString(offset),
+                    Integer.toString(scope), safeBox);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Cursor decode(String cursor) {
+            try {
+                String[] p = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 6);
+                if (p.length != 6 || !"a1".equals(p[0])) throw new IllegalArgumentException("Invalid cursor");
+                Cursor c = new Cursor(Long.parseLong(p[1]), p[5], LocalDate.parse(p[2]), Long.parseLong(p[3]), Integer.parseInt(p[4]));
+                if (c.offset < 0 || (c.scope != SCOPE_SAFEBOX && c.scope != SCOPE_USER)) throw new IllegalArgumentException("Invalid cursor");
+                return c;
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.vaultedge.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Time-bucketed audit storage: one segment file per safebox per UTC day under the user root,
+ * <code>.audit/sb/&lt;safebox&gt;/yyyyMMdd.seg</code>.
+ * <p>
+ * A segment is a sequence of records
+ * <code>[u32 len][i64 epochMillis][u8 scope][len bytes UTF-8 message][u32 len]</code>; the safebox is
+ * identified by the segment's directory. The trailing length allows reading a segment backwards
+ * (newest first). Retention deletes whole expired segments instead of rewriting a log.
+ */
+@Component
+public class AuditSegmentStore {
+
+    private static final Logger log = LoggerFactory.getLogger(AuditSegmentStore.class);
+
+    public static final String AUDIT_DIR = ".audit";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final byte SCOPE_SAFEBOX = 0;
+    static final int RECORD_OVERHEAD = 4 + 8 + 1 + 4;
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+    private static final String LEGACY_USER_LOG = "usuario.log";
+
+    private final AuditLogWriter writer;
+    private final Set<Path> prepared = ConcurrentHashMap.newKeySet();
+
+    public AuditSegmentStore(AuditLogWriter writer) {
+        this.writer = writer;
+    }
+
+    // ===== layout =====
+
+    static Path auditRoot(Path userRoot) {
+        return userRoot.resolve(AUDIT_DIR);
+    }
+
+    static Path safeBoxDir(Path userRoot, String safeBoxName) {
+        return auditRoot(userRoot).resolve("sb").resolve(safeBoxName);
+    }
+
+    static Path segmentFor(Path dir, long epochMillis) {
+        return dir.resolve(DAY.format(Instant.ofEpochMilli(epochMillis)) + SEGMENT_SUFFIX);
+    }
+
+    /** Day (UTC) a segment covers, or null if the name is not a segment. */
+    static LocalDate segmentDay(Path segment) {
+        String name = segment.getFileName().toString();
+        if (!name.endsWith(SEGMENT_SUFFIX) || name.length() != 8 + SEGMENT_SUFFIX.length()) return null;
+        try {
+            return LocalDate.parse(name.substring(0, 8), DateTimeFormatter.BASIC_ISO_DATE);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Segment files of a stream directory, oldest day first. */
+    static List<Path> segments(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return List.of();
+        try (var s = Files.list(dir)) {
+            return s.filter(p -> segmentDay(p) != null).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /** Safebox streams present under the user root, keyed by safebox name. */
+    static Map<String, Path> safeBoxStreams(Path userRoot) throws IOException {
+        Path dir = auditRoot(userRoot).resolve("sb");
+        Map<String, Path> out = new TreeMap<>();
+        if (!Files.isDirectory(dir)) return out;
+        try (var s = Files.list(dir)) {
+            s.filter(Files::isDirectory).forEach(p -> out.put(p.getFileName().toString(), p));
+        }
+        return out;
+    }
+
+    // ===== write path =====
+
+    /** Source of a safebox's retention setting, evaluated on the writer thread. */
+    @FunctionalInterface
+    public interface RetentionDays {
+        int get() throws IOException;
+    }
+
+    /** Queues one safebox audit record; retention for that safebox is applied periodically by the writer. */
+    public void appendSafeBox(Path userRoot, String safeBoxName, String message, RetentionDays retention) throws IOException {
+        prepare(userRoot);
+        Path dir = safeBoxDir(userRoot, safeBoxName);
+        byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+        writer.append(dir, () -> applyRetention(dir, retention.get()),
+                ts -> new AuditLogWriter.Chunk(segmentFor(dir, ts), encode(ts, SCOPE_SAFEBOX, msg)));
+    }
+
+    /** Deletes segments whose whole day is older than retentionDays (runs on the writer thread). */
+    public void scheduleRetention(Path userRoot, String safeBoxName, int retentionDays) {
+        Path dir = safeBoxDir(userRoot, safeBoxName);
+        writer.maintain(dir, () -> applyRetention(dir, retentionDays));
+    }
+
+    static void applyRetention(Path dir, int retentionDays) throws IOException {
+        if (retentionDays <= 0) return;
+        LocalDate oldestKept = Instant.now().minusSeconds((long) retentionDays * 24 * 60 * 60).atZone(ZoneOffset.UTC).toLocalDate();
+        for (Path seg : segments(dir)) {
+            LocalDate day = segmentDay(seg);
+            if (day != null && day.isBefore(oldestKept)) Files.deleteIfExists(seg);
+        }
+    }
+
+    static byte[] encode(long ts, byte scope, byte[] msg) {
+        ByteBuffer b = ByteBuffer.allocate(RECORD_OVERHEAD + msg.length);
+        b.putInt(msg.length).putLong(ts).put(scope).put(msg).putInt(msg.length);
+        return b.array();
+    }
+
+    // ===== read path =====
+
+    /** Makes queued records visible to readers and migrates legacy logs on first use. */
+    public void prepareForRead(Path userRoot) throws IOException {
+        prepare(userRoot);
+        writer.flush();
+    }
+
+    static final class Record {
+        long timestamp;
+        byte scope;
+        String message;
+    }
+
+    // ===== legacy migration =====
+
+    private void prepare(Path userRoot) throws IOException {
+        if (prepared.contains(userRoot)) return;
+        synchronized (prepared) {
+            if (prepared.contains(userRoot)) return;
+            migrateLegacyLogs(userRoot);
+            prepared.add(userRoot);
+        }
+    }
+
+    /**
+     * One-time conversion of <code>&lt;safebox&gt;.log</code> text logs into segments. The old
+     * <code>usuario.log</code> only mirrored safebox lines (the USER view is now derived), so it is dropped.
+     * Runs before this process queues anything for the user, so it never interleaves with the writer.
+     */
+    private void migrateLegacyLogs(Path userRoot) throws IOException {
+        if (!Files.isDirectory(userRoot)) return;
+        List<Path> logs;
+        try (var s = Files.list(userRoot)) {
+            logs = s.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().endsWith(".log")).collect(Collectors.toList());
+        }
+        for (Path legacy : logs) {
+            String name = legacy.getFileName().toString();
+            if (!name.equals(LEGACY_USER_LOG)) {
+                String safeBoxName = name.substring(0, name.length() - 4);
+                Path dir = safeBoxDir(userRoot, safeBoxName);
+                List<Record> records = new ArrayList<>();
+                long fallback = Files.getLastModifiedTime(legacy).toMillis();
+                for (String line : Files.readAllLines(legacy, StandardCharsets.UTF_8)) {
+                    if (line.isBlank()) continue;
+                    int idx = line.indexOf(' ');
+                    Record r = new Record();
+                    r.scope = SCOPE_SAFEBOX;
+                    r.timestamp = fallback;
+                    r.message = line;
+                    if (idx > 0) {
+                        try {
+                            r.timestamp = Instant.parse(line.substring(0, idx)).toEpochMilli();
+                            r.message = line.substring(idx + 1);
+                        } catch (RuntimeException ignored) { }
+                    }
+                    records.add(r);
+                }
+                records.sort(Comparator.comparingLong(r -> r.timestamp));
+                Map<Path, ByteArrayOutputStream> bySegment = new LinkedHashMap<>();
+                for (Record r : records) {
+                    bySegment.computeIfAbsent(segmentFor(dir, r.timestamp), k -> new ByteArrayOutputStream())
+                            .writeBytes(encode(r.timestamp, r.scope, r.message.getBytes(StandardCharsets.UTF_8)));
+                }
+                Files.createDirectories(dir);
+                // A crash mid-migration leaves the .log in place; rerunning rewrites the same segments
+                for (Map.Entry<Path, ByteArrayOutputStream> e : bySegment.entrySet()) {
+                    Files.write(e.getKey(), e.getValue().toByteArray(), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                }
+                log.info("Migrated {} audit line(s) from {} into segments", records.size(), legacy);
+            }
+            Files.deleteIfExists(legacy);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.vaultedge.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a list of file operations against one safebox in a single request (the UI's multi-select actions).
+ * <p>
+ * Items whose paths overlap (one is, contains or lies inside the other, counting rename and move targets)
+ * run one after another in the order given. Independent groups are pulled from a per-request queue by the request
+ * thread plus at most <code>helpersPerRequest</code> workers from a shared pool, so one large batch cannot occupy
+ * the whole pool, and a batch whose helpers are still queued behind other requests keeps progressing. All items
+ * share one {@link StorageService.Batch}: the safebox is resolved once, the usage ledger gets one delta and
+ * the audit log one grouped record. Every item reports its own outcome; a failing item does not stop the rest,
+ * and a delete that hits a locked file reports 202 with the id of the retry job that finishes it.
+ */
+@Service
+public class BatchOperationService {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchOperationService.class);
+
+    private final StorageService storageService;
+    private final ExecutorService pool;
+    private final int maxItems;
+    private final int helpersPerRequest;
+
+    public BatchOperationService(StorageService storageService,
+                                 @Value("${storage.batch.threads:4}") int threads,
+                                 @Value("${storage.batch.maxItems:1000}") int maxItems,
+                                 @Value("${storage.batch.helpersPerRequest:2}") int helpersPerRequest) {
+        this.storageService = storageService;
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads), daemon("batch-op"));
+        this.maxItems = Math.max(1, maxItems);
+        this.helpersPerRequest = Math.max(0, helpersPerRequest);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public BatchResult run(String userId, String safeBoxName, List<BatchItem> items) throws IOException {
+        if (items == null || items.isEmpty()) throw new IllegalArgumentException("No operations given");
+        if (items.size() > maxItems) throw new IllegalArgumentException("Too many operations (max " + maxItems + ")");
+        ItemResult[] results = new ItemResult[items.size()];
+        try (StorageService.Batch batch = storageService.openBatch(userId, safeBoxName)) {
+            List<List<Integer>> groups = groups(batch.base(), items);
+            AtomicInteger next = new AtomicInteger(); // this request's queue: index of the next unclaimed group
+            CountDownLatch finished = new CountDownLatch(groups.size());
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Runnable drain = () -> {
+                for (int g = next.getAndIncrement(); g < groups.size(); g = next.getAndIncrement()) {
+                    try {
+                        runGroup(batch, items, groups.get(g), results);
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            };
+            List<Future<?>> helpers = new ArrayList<>();
+            for (int h = Math.min(helpersPerRequest, groups.size() - 1); h > 0; h--) helpers.add(pool.submit(drain));
+            drain.run(); // the request thread works too, so the batch finishes even if no helper ever starts
+            try {
+                finished.await(); // groups claimed by helpers
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for batch items", e);
+            } finally {
+                helpers.forEach(f -> f.cancel(false)); // still queued behind other requests: nothing left for them
+            }
+            if (failure.get() != null) throw new IllegalStateException("Batch item failed unexpectedly", failure.get());
+        }
+        BatchResult out = new BatchResult();
+        out.items = List.of(results);
+        for (ItemResult r : results) {
+            if (r.status == 200) out.succeeded++;
+            else if (r.status == 202) out.pending++;
+            else out.failed++;
+        }
+        return out;
+    }
+
+    private void runGroup(StorageService.Batch batch, List<BatchItem> items, List<Integer> group, ItemResult[] results) {
+        for (int i : group) {
+            results[i] = runOne(batch, i, items.get(i));
+            if (results[i].status == 202) batch.pending();
+            else if (results[i].status != 200) batch.failed();
+        }
+    }
+
+    private ItemResult runOne(StorageService.Batch batch, int index, BatchItem item) {
+        ItemResult r = new ItemResult();
+        r.index = index;
+        r.op = item == null ? null : item.op;
+        r.path = item == null ? null : item.path;
+        try {
+            if (item == null || item.op == null) throw new IllegalArgumentException("Operation required");
+            if (item.path == null || item.path.isBlank()) throw new IllegalArgumentException("Path required");
+            switch (item.op) {
+                case "deleteFile" -> batch.deleteFile(item.path, new StorageService.Precondition(item.ifMatch, null));
+                case "deleteFolder" -> batch.deleteFolder(item.path);
+                case "rename" -> batch.rename(item.path, item.newName);
+                case "move" -> batch.move(item.path, item.to);
+                case "createFolder" -> batch.createFolder(item.path);
+                default -> throw new IllegalArgumentException("Unknown operation: " + item.op);
+            }
+            r.status = 200;
+        } catch (DeletePendingException e) {
+            r.status = 202;
+            r.jobId = e.getJob().id;
+            r.error = e.getJob().error;
+        } catch (PreconditionFailedException e) {
+            r.status = 412;
+            r.error = e.getMessage();
+        } catch (IllegalArgumentException | IllegalStateException | SecurityException e) {
+            r.status = 400;
+            r.error = e.getMessage();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Batch {} {} failed", r.op, r.path, e);
+            r.status = 500;
+            r.error = "I/O error";
+        }
+        return r;
+    }
+
+    /** Splits items into groups that must run in order because their paths overlap; groups keep submission order. */
+    static List<List<Integer>> groups(Path base, List<BatchItem> items) {
+        int n = items.size();
+        List<List<Path>> touched = new ArrayList<>(n);
+        for (BatchItem item : items) touched.add(paths(base, item));
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) parent[i] = i;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (find(parent, i) != find(parent, j) && overlap(touched.get(i), touched.get(j))) {
+                    parent[find(parent, j)] = find(parent, i);
+                }
+            }
+        }
+        List<List<Integer>> groups = new ArrayList<>();
+        int[] groupOf = new int[n];
+        Arrays.fill(groupOf, -1);
+        for (int i = 0; i < n; i++) {
+            int root = find(parent, i);
+            if (groupOf[root] < 0) {
+                groupOf[root] = groups.size();
+                groups.add(new ArrayList<>());
+            }
+            groups.get(groupOf[root]).add(i);
+        }
+        return groups;
+    }
+
+    /** Paths an item reads or writes; an item without a usable path is put with everything (runs in order). */
+    private static List<Path> paths(Path base, BatchItem item) {
+        List<Path> out = new ArrayList<>(2);
+        if (item == null || item.path == null || item.path.isBlank()) {
+            out.add(base);
+            return out;
+        }
+        Path src = base.resolve(item.path).normalize();
+        out.add(src);
+        if ("rename".equals(item.op) && item.newName != null && src.getParent() != null) {
+            out.add(src.getParent().resolve(item.newName).normalize());
+        } else if ("move".equals(item.op) && src.getFileName() != null) {
+            out.add(base.resolve(item.to == null ? "" : item.to).normalize().resolve(src.getFileName()));
+        }
+        return out;
+    }
+
+    private static boolean overlap(List<Path> a, List<Path> b) {
+        for (Path x : a) {
+            for (Path y : b) {
+                if (x.startsWith(y) || y.startsWith(x)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public static class BatchRequest {
+        public List<BatchItem> operations;
+    }
+
+    public static class BatchItem {
+        public String op; // deleteFile | deleteFolder | rename | move | createFolder
+        public String path; // relative to the safebox
+        public String newName; // rename: new name within the same folder
+        public String to; // move: destination folder ("" is the safebox root)
+        public String ifMatch; // deleteFile: optional ETag precondition
+    }
+
+    public static class ItemResult {
+        public int index;
+        public String op;
+        public String path;
+        public int status; // HTTP-style: 200, 202 (locked; retrying), 400, 412 or 500
+        public String error;
+        public String jobId; // 202: poll .../deletes/{jobId} for the outcome
+    }
+
+    public static class BatchResult {
+        public int succeeded;
+        public int failed;
+        public int pending; // handed to the delete retry queue
+        public List<ItemResult> items; // same order as the request
+    }
+}
@@ -0,0 +1,489 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed chunk storage for deduplicated files, one store per user under
+ * <code>&lt;userRoot&gt;/.blocks/</code> (per user, so the "which hashes do you have" API can't be used to
+ * probe other users' content).
+ * <p>
+ * A block is stored once as <code>data/&lt;h0h1&gt;/&lt;sha256&gt;</code>. Reference counts (one per
+ * manifest occurrence) live in memory and are persisted like the other stores: <code>refs.json</code>
+ * snapshot plus an append-only <code>refs.journal</code>. Unreferenced blocks are deleted by a background
+ * sweep once their grace period (counted from when they were stored) runs out; only a manifest referencing a
+ * block keeps it beyond that. Lookups never extend the grace period: an unreferenced block past half of it is
+ * reported missing, so the client sends it again and the commit that follows still finds it.
+ * <p>
+ * Blocks belong to no safebox until a manifest references them, so they cannot be charged to a safebox quota
+ * when uploaded; instead the bytes of uploaded-but-unreferenced blocks are capped per user.
+ */
+@Component
+public class BlockStore {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockStore.class);
+
+    public static final String BLOCKS_DIR = ".blocks";
+    private static final String DATA_DIR = "data";
+    private static final String TMP_DIR = "tmp";
+    private static final String SNAPSHOT_FILE = "refs.json";
+    private static final String JOURNAL_FILE = "refs.journal";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final int compactAfterEntries;
+    private final long gcGraceMs;
+    private final long maxPendingBytes;
+
+    // user root -> loaded reference counts
+    private final Map<Path, UserBlocks> users = new ConcurrentHashMap<>();
+
+    public BlockStore(@Value("${storage.dedup.compactAfterEntries:1000}") int compactAfterEntries,
+                      @Value("${storage.dedup.gcGraceMs:3600000}") long gcGraceMs,
+                      @Value("${storage.dedup.maxPendingBytes:1073741824}") long maxPendingBytes) {
+        this.compactAfterEntries = Math.max(1, compactAfterEntries);
+        this.gcGraceMs = Math.max(0, gcGraceMs);
+        this.maxPendingBytes = Math.max(0, maxPendingBytes);
+    }
+
+    // ===== blocks =====
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        return HEX.formatHex(digest);
+    }
+
+    /** Lower-case 64-char hex, or IllegalArgumentException. */
+    static String checkHash(String hash) {
+        String h = hash == null ? "" : hash.trim().toLowerCase();
+        if (h.length() != 64 || !h.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+            throw new IllegalArgumentException("Invalid block hash: " + hash);
+        }
+        return h;
+    }
+
+    Path blockFile(Path userRoot, String hash) {
+        return userRoot.resolve(BLOCKS_DIR).resolve(DATA_DIR).resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Hashes (normalized) that the client has to upload: those this user's store does not hold, and unreferenced
+     * ones too close to being swept to be relied on.
+     */
+    public List<String> missing(Path userRoot, Collection<String> hashes) throws IOException {
+        UserBlocks ub = user(userRoot);
+        List<String> out = new ArrayList<>();
+        synchronized (ub) {
+            for (String raw : hashes) {
+                String h = checkHash(raw);
+                if (!usable(ub, h, blockFile(userRoot, h))) out.add(h);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Stores data under its SHA-256 unless already present. Returns the hash. For content the server chunks
+     * itself, which the safebox quota already covers, so it does not count against the pending cap.
+     */
+    public String put(Path userRoot, byte[] data, int offset, int length) throws IOException {
+        MessageDigest md = sha256();
+        md.update(data, offset, length);
+        String h = hex(md.digest());
+        UserBlocks ub = user(userRoot);
+        Path file = blockFile(userRoot, h);
+        synchronized (ub) {
+            if (usable(ub, h, file)) return h;
+        }
+        Path tmp = tempFile(userRoot);
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+            install(ub, h, tmp, file, -1);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return h;
+    }
+
+    /**
+     * Stores a client-sent block after checking it hashes to expectedHash. Returns false if it was already there.
+     * Counts against the user's cap on unreferenced bytes until a manifest references it.
+     */
+    public boolean put(Path userRoot, String expectedHash, InputStream in, long maxBytes) throws IOException {
+        String h = checkHash(expectedHash);
+        UserBlocks ub = user(userRoot);
+        Path file = blockFile(userRoot, h);
+        synchronized (ub) {
+            if (usable(ub, h, file)) return false;
+            admit(ub, maxBytes);
+        }
+        Path tmp = null;
+        try {
+            tmp = tempFile(userRoot);
+            MessageDigest md = sha256();
+            long total = 0;
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    total += n;
+                    if (total > maxBytes) throw new IllegalArgumentException("Block exceeds " + maxBytes + " bytes");
+                    md.update(buf, 0, n);
+                    ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                    while (bb.hasRemaining()) ch.write(bb);
+                }
+            }
+            if (!hex(md.digest()).equals(h)) throw new IllegalArgumentException("Block content does not match hash " + h);
+            install(ub, h, tmp, file, total);
+            return true;
+        } finally {
+            synchronized (ub) {
+                ub.inFlightBytes -= maxBytes;
+            }
+            if (tmp != null) Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Size of a stored block, or -1 if absent or reported missing by {@link #missing}. */
+    public long size(Path userRoot, String hash) throws IOException {
+        UserBlocks ub = user(userRoot);
+        String h = checkHash(hash);
+        Path file = blockFile(userRoot, h);
+        synchronized (ub) {
+            if (!usable(ub, h, file)) return -1;
+            return Files.size(file);
+        }
+    }
+
+    /** Bytes of blocks this user uploaded that no manifest references yet (as far as this process knows). */
+    public long pendingBytes(Path userRoot) throws IOException {
+        UserBlocks ub = user(userRoot);
+        synchronized (ub) {
+            return ub.pendingBytes;
+        }
+    }
+
+    public FileChannel open(Path userRoot, String hash) throws IOException {
+        return FileChannel.open(blockFile(userRoot, hash), StandardOpenOption.READ);
+    }
+
+    private Path tempFile(Path userRoot) throws IOException {
+        Path dir = userRoot.resolve(BLOCKS_DIR).resolve(TMP_DIR);
+        Files.createDirectories(dir);
+        return Files.createTempFile(dir, "block-", ".part");
+    }
+
+    /**
+     * Moves a written block into place; pendingSize &gt;= 0 counts it against the pending cap. A stale
+     * unreferenced copy is replaced (same bytes, fresh mtime), which is the one way to extend an unreferenced
+     * block's life: sending it again.
+     */
+    private void install(UserBlocks ub, String hash, Path tmp, Path file, long pendingSize) throws IOException {
+        Files.createDirectories(file.getParent());
+        synchronized (ub) {
+            if (usable(ub, hash, file)) return; // stored concurrently; identical by definition
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (pendingSize >= 0 && !ub.refs.containsKey(hash)) {
+                Long old = ub.pending.put(hash, pendingSize);
+                ub.pendingBytes += pendingSize - (old == null ? 0 : old);
+            }
+        }
+    }
+
+    /**
+     * True if the block can be relied on by a manifest committed now: referenced, or unreferenced but stored
+     * within the first half of its grace period. Never changes the block's mtime. Caller holds the user lock.
+     */
+    private boolean usable(UserBlocks ub, String hash, Path file) {
+        try {
+            long mtime = Files.getLastModifiedTime(file).toMillis();
+            return ub.refs.containsKey(hash) || mtime >= System.currentTimeMillis() - gcGraceMs / 2;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Rejects an upload that could push the user's unreferenced blocks over the cap. Caller holds the user lock. */
+    private void admit(UserBlocks ub, long bytes) {
+        if (ub.pendingBytes + ub.inFlightBytes + bytes > maxPendingBytes) {
+            throw new IllegalStateException("Too many uploaded blocks are not part of any file yet (" + ub.pendingBytes
+                    + " bytes, limit " + maxPendingBytes + "); create files from them before uploading more");
+        }
+        ub.inFlightBytes += bytes;
+    }
+
+    // ===== reference counts =====
+
+    /** Adds one reference per entry (duplicates count). Blocks must have been stored first. */
+    public void retain(Path userRoot, List<String> hashes) throws IOException {
+        if (hashes.isEmpty()) return;
+        change(user(userRoot), "retain", hashes);
+    }
+
+    /** Drops one reference per entry; blocks reaching zero become eligible for the sweep. */
+    public void release(Path userRoot, List<String> hashes) throws IOException {
+        if (hashes.isEmpty()) return;
+        change(user(userRoot), "release", hashes);
+    }
+
+    /** Number of distinct blocks and their total size currently referenced by this user's manifests. */
+    public long[] stats(Path userRoot) throws IOException {
+        UserBlocks ub = user(userRoot);
+        long blocks = 0;
+        long bytes = 0;
+        synchronized (ub) {
+            for (String h : ub.refs.keySet()) {
+                try {
+                    bytes += Files.size(blockFile(userRoot, h));
+                    blocks++;
+                } catch (IOException ignored) { }
+            }
+        }
+        return new long[]{blocks, bytes};
+    }
+
+    private void change(UserBlocks ub, String op, List<String> hashes) throws IOException {
+        JournalEntry je = new JournalEntry();
+        je.op = op;
+        je.blocks = hashes;
+        synchronized (ub) {
+            byte[] line = (mapper.writeValueAsString(je) + "\n").getBytes(StandardCharsets.UTF_8);
+            Files.createDirectories(ub.journalFile.getParent());
+            try (FileChannel ch = FileChannel.open(ub.journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buf = ByteBuffer.wrap(line);
+                while (buf.hasRemaining()) ch.write(buf);
+                ch.force(false);
+            }
+            replay(ub.refs, je);
+            if ("retain".equals(op)) {
+                for (String h : hashes) {
+                    Long size = ub.pending.remove(h);
+                    if (size != null) ub.pendingBytes -= size;
+                }
+            }
+            if (++ub.journalEntries >= compactAfterEntries) compactLocked(ub);
+        }
+    }
+
+    private static void replay(Map<String, Integer> refs, JournalEntry je) {
+        if (je.blocks == null || je.op == null) return;
+        int delta = "retain".equals(je.op) ? 1 : "release".equals(je.op) ? -1 : 0;
+        if (delta == 0) return;
+        for (String h : je.blocks) {
+            int n = refs.getOrDefault(h, 0) + delta;
+            if (n > 0) refs.put(h, n);
+            else refs.remove(h);
+        }
+    }
+
+    /** Moves a user's block store to a new user root (storage migration); no-op if the target already has one. */
+    public void relocate(Path fromUserRoot, Path toUserRoot) throws IOException {
+        Path from = fromUserRoot.resolve(BLOCKS_DIR);
+        Path to = toUserRoot.resolve(BLOCKS_DIR);
+        synchronized (users) {
+            if (!Files.isDirectory(from) || Files.exists(to)) return;
+            UserBlocks ub = users.remove(fromUserRoot);
+            if (ub == null) {
+                Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            }
+            synchronized (ub) {
+                if (ub.journalEntries > 0) compactLocked(ub);
+                Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    // ===== sweep & compaction =====
+
+    /** Deletes blocks of loaded users that have no references and were not touched within the grace period. */
+    @Scheduled(initialDelayString = "${storage.dedup.gcIntervalMs:3600000}",
+            fixedDelayString = "${storage.dedup.gcIntervalMs:3600000}")
+    public void collectGarbage() {
+        for (Map.Entry<Path, UserBlocks> e : users.entrySet()) {
+            try {
+                sweep(e.getKey(), e.getValue());
+            } catch (IOException ex) {
+                log.warn("Block sweep failed for {}", e.getKey(), ex);
+            }
+        }
+    }
+
+    int sweep(Path userRoot, UserBlocks ub) throws IOException {
+        Path data = userRoot.resolve(BLOCKS_DIR).resolve(DATA_DIR);
+        if (!Files.isDirectory(data)) return 0;
+        long cutoff = System.currentTimeMillis() - gcGraceMs;
+        List<Path> candidates = new ArrayList<>();
+        Files.walkFileTree(data, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.lastModifiedTime().toMillis() < cutoff) candidates.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        int deleted = 0;
+        for (Path file : candidates) {
+            synchronized (ub) {
+                // Re-check under the lock: a retain or a fresh upload may have happened since the walk
+                String h = file.getFileName().toString();
+                if (ub.refs.containsKey(h)) continue;
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() >= cutoff) continue;
+                    if (Files.deleteIfExists(file)) {
+                        deleted++;
+                        Long size = ub.pending.remove(h);
+                        if (size != null) ub.pendingBytes -= size;
+                    }
+                } catch (IOException ignored) { }
+            }
+        }
+        if (deleted > 0) log.info("Removed {} unreferenced block(s) for {}", deleted, userRoot);
+        return deleted;
+    }
+
+    @Scheduled(fixedDelayString = "${storage.dedup.compactIntervalMs:60000}")
+    public void compactIfNeeded() {
+        for (Map.Entry<Path, UserBlocks> e : users.entrySet()) {
+            UserBlocks ub = e.getValue();
+            if (ub.journalEntries == 0) continue;
+            try {
+                synchronized (ub) {
+                    compactLocked(ub);
+                }
+            } catch (IOException ex) {
+                log.warn("Block refcount compaction failed for {}", e.getKey(), ex);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compactIfNeeded();
+    }
+
+    // ===== internals =====
+
+    private UserBlocks user(Path userRoot) throws IOException {
+        UserBlocks ub = users.get(userRoot);
+        if (ub != null) return ub;
+        synchronized (users) {
+            ub = users.get(userRoot);
+            if (ub == null) {
+                ub = load(userRoot);
+                users.put(userRoot, ub);
+            }
+            return ub;
+        }
+    }
+
+    private UserBlocks load(Path userRoot) throws IOException {
+        Path dir = userRoot.resolve(BLOCKS_DIR);
+        UserBlocks ub = new UserBlocks(dir.resolve(JOURNAL_FILE));
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            Snapshot snap = mapper.readValue(snapshotFile.toFile(), Snapshot.class);
+            if (snap != null && snap.refs != null) ub.refs.putAll(snap.refs);
+        }
+        if (Files.exists(ub.journalFile)) {
+            try (BufferedReader r = Files.newBufferedReader(ub.journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    try {
+                        replay(ub.refs, mapper.readValue(line, JournalEntry.class));
+                        ub.journalEntries++;
+                    } catch (IOException e) {
+                        // torn tail from a crash mid-append; everything before it is intact
+                        log.warn("Ignoring unreadable block journal line in {}", ub.journalFile);
+                    }
+                }
+            }
+        }
+        return ub;
+    }
+
+    private void compactLocked(UserBlocks ub) throws IOException {
+        Path snapshotFile = ub.journalFile.resolveSibling(SNAPSHOT_FILE);
+        Path tmp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        Snapshot out = new Snapshot();
+        out.refs = new HashMap<>(ub.refs);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(mapper.writeValueAsBytes(out));
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        try {
+            Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(ub.journalFile);
+        ub.journalEntries = 0;
+    }
+
+    static final class UserBlocks {
+        final Path journalFile;
+        final Map<String, Integer> refs = new HashMap<>(); // guarded by this
+        final Map<String, Long> pending = new HashMap<>(); // uploaded, never referenced: hash -> size; guarded by this
+        long pendingBytes; // guarded by this
+        long inFlightBytes; // uploads admitted but not installed yet; guarded by this
+        volatile int journalEntries;
+
+        UserBlocks(Path journalFile) {
+            this.journalFile = journalFile;
+        }
+    }
+
+    public static class Snapshot {
+        public Map<String, Integer> refs;
+    }
+
+    public static class JournalEntry {
+        public String op; // retain | release
+        public List<String> blocks;
+    }
+}
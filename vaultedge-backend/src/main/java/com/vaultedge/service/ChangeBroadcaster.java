@@ -0,0 +1,509 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes journaled safebox changes to a user's live clients, over Server-Sent Events or long-poll.
+ * <p>
+ * Each user with listeners has one bounded ring of recent notifications, written once per change however many
+ * clients listen; a client only holds a cursor into it. Publishing therefore never blocks the mutating request
+ * and memory does not grow with slow clients: a client that falls more than <code>bufferEvents</code> behind is
+ * lapped, skips to the head and is told to <code>resync</code> (catch up per safebox through the change journal).
+ * A stream whose output has not drained for <code>sendTimeoutMs</code> is closed.
+ * <p>
+ * Waiting clients are parked as servlet async requests ({@link AsyncContext}, {@link DeferredResult}), so an idle
+ * connection holds no thread. Streams write in non-blocking mode: a drain on the small sender pool
+ * (<code>senderThreads</code>, one drain per stream at a time) writes only while the connection accepts data and
+ * otherwise returns, to be rescheduled when the container reports it writable. A client that stops reading
+ * therefore never holds a sender thread, and closing its stream completes the async request right away.
+ */
+@Component
+public class ChangeBroadcaster {
+
+    private static final Logger log = LoggerFactory.getLogger(ChangeBroadcaster.class);
+
+    private static final int MAX_BATCH = 500;
+
+    private final ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    private final int bufferEvents;
+    private final int maxConnections;
+    private final int maxConnectionsPerUser;
+    private final long streamTimeoutMs;
+    private final long sendTimeoutNanos;
+    private final long idleEvictMs;
+    private final long heartbeatMs;
+    private final ExecutorService senders;
+    private final ScheduledExecutorService ticker; // heartbeat only, so maintenance walks on the shared scheduler cannot delay it
+
+    // userId -> ring and listeners; only users with a client (or one recently) have an entry
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public ChangeBroadcaster(@Value("${storage.push.bufferEvents:1024}") int bufferEvents,
+                             @Value("${storage.push.maxConnections:10000}") int maxConnections,
+                             @Value("${storage.push.maxConnectionsPerUser:16}") int maxConnectionsPerUser,
+                             @Value("${storage.push.streamTimeoutMs:1800000}") long streamTimeoutMs,
+                             @Value("${storage.push.sendTimeoutMs:30000}") long sendTimeoutMs,
+                             @Value("${storage.push.idleEvictMs:600000}") long idleEvictMs,
+                             @Value("${storage.push.senderThreads:4}") int senderThreads,
+                             @Value("${storage.push.heartbeatMs:15000}") long heartbeatMs) {
+        this.bufferEvents = Math.max(16, bufferEvents);
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxConnectionsPerUser = Math.max(1, maxConnectionsPerUser);
+        this.streamTimeoutMs = streamTimeoutMs;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1000, sendTimeoutMs));
+        this.idleEvictMs = idleEvictMs;
+        this.senders = Executors.newFixedThreadPool(Math.max(1, senderThreads), daemon("change-push"));
+        this.ticker = Executors.newSingleThreadScheduledExecutor(daemon("change-heartbeat"));
+        this.heartbeatMs = Math.max(1000, heartbeatMs);
+    }
+
+    @PostConstruct
+    public void start() {
+        ticker.scheduleWithFixedDelay(this::heartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands a change to the user's listeners. Called by {@link SafeBoxChangeJournal} under its lock, so a safebox's
+     * changes arrive in sequence order; change is null if the journal could not record it (no seq to resume from).
+     */
+    public void publish(SafeBoxChangeEvent event, SafeBoxChangeJournal.Change change) {
+        Channel ch = channels.get(event.getUserId());
+        if (ch == null) return; // nobody listening
+        Notification n = new Notification();
+        n.safeBox = event.getSafeBoxName();
+        n.type = event.getType().name();
+        n.path = event.getPath();
+        n.newPath = event.getNewPath();
+        n.at = event.getTimestamp().toEpochMilli();
+        n.retentionDays = event.getRetentionDays();
+        if (change != null) {
+            n.seq = change.seq;
+            n.size = change.size;
+            n.sha256 = change.sha256;
+        }
+        List<Stream> wake;
+        List<Waiter> ready;
+        synchronized (ch) {
+            if (ch.evicted) return;
+            n.id = ch.stream + ":" + (ch.head + 1);
+            ch.ring[(int) (ch.head % ch.ring.length)] = n;
+            ch.head++;
+            ch.lastActive = System.currentTimeMillis();
+            wake = new ArrayList<>(ch.streams);
+            ready = new ArrayList<>(ch.waiters);
+            ch.waiters.clear();
+        }
+        for (Stream s : wake) s.schedule();
+        for (Waiter w : ready) w.result.setResult(ch.slice(w.cursor).toBatch(ch));
+    }
+
+    /**
+     * Opens an event stream for the user on the given request, which is put into async mode; the caller sets the
+     * response headers first. lastEventId (an id from an earlier stream or poll) resumes after that event; without
+     * it the stream starts at the current head.
+     *
+     * @throws IllegalStateException if the user or the server already has too many open connections
+     */
+    public void subscribe(String userId, String lastEventId, HttpServletRequest request) throws IOException {
+        Stream stream = null;
+        while (stream == null) {
+            Channel ch = channels.computeIfAbsent(userId, Channel::new);
+            synchronized (ch) {
+                if (ch.evicted) continue; // lost a race with eviction: take the fresh channel
+                acquire(ch);
+                try {
+                    AsyncContext async = request.startAsync();
+                    async.setTimeout(streamTimeoutMs);
+                    stream = new Stream(ch, async, async.getResponse().getOutputStream(), ch.cursorOf(lastEventId));
+                } catch (IOException | RuntimeException e) {
+                    connections.decrementAndGet();
+                    throw e;
+                }
+                ch.streams.add(stream);
+            }
+        }
+        stream.start(); // the first onWritePossible sends the ready event, and any backlog after lastEventId
+    }
+
+    /**
+     * Long-poll counterpart of {@link #subscribe}: completes as soon as there are events after the given id, or with
+     * an empty batch after timeoutMs. Without an id it returns the current cursor immediately.
+     *
+     * @throws IllegalStateException if the user or the server already has too many open connections
+     */
+    public DeferredResult<EventBatch> poll(String userId, String after, long timeoutMs) {
+        for (;;) {
+            Channel ch = channels.computeIfAbsent(userId, Channel::new);
+            synchronized (ch) {
+                if (ch.evicted) continue;
+                ch.lastActive = System.currentTimeMillis();
+                long cursor = ch.cursorOf(after);
+                if (after == null || cursor != ch.head) {
+                    DeferredResult<EventBatch> now = new DeferredResult<>();
+                    now.setResult(ch.slice(cursor).toBatch(ch));
+                    return now;
+                }
+                acquire(ch);
+                Waiter w = new Waiter(cursor, new DeferredResult<>(timeoutMs, () -> ch.slice(cursor).toBatch(ch)));
+                ch.waiters.add(w);
+                AtomicBoolean released = new AtomicBoolean();
+                w.result.onCompletion(() -> {
+                    if (!released.compareAndSet(false, true)) return;
+                    synchronized (ch) {
+                        ch.waiters.remove(w);
+                        ch.lastActive = System.currentTimeMillis();
+                    }
+                    connections.decrementAndGet();
+                });
+                return w.result;
+            }
+        }
+    }
+
+    /** Open streams plus parked polls, across all users. */
+    public int connectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Keeps idle streams alive through proxies (and finds dead clients, whose writes fail), closes streams whose
+     * client stopped reading and forgets users nobody has listened to for a while. Runs every heartbeatMs on its
+     * own thread.
+     */
+    public void heartbeat() {
+        try {
+            sweep();
+        } catch (RuntimeException e) { // keep the schedule alive
+            log.warn("Change stream heartbeat failed", e);
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        long wall = System.currentTimeMillis();
+        for (Channel ch : channels.values()) {
+            List<Stream> streams;
+            synchronized (ch) {
+                if (ch.streams.isEmpty() && ch.waiters.isEmpty() && wall - ch.lastActive > idleEvictMs) {
+                    ch.evicted = true;
+                    channels.remove(ch.userId, ch);
+                    continue;
+                }
+                streams = new ArrayList<>(ch.streams);
+            }
+            for (Stream s : streams) {
+                long since = s.blockedSince;
+                if (since != 0 && now - since > sendTimeoutNanos) {
+                    log.info("Closing change stream for {}: client not reading for over {} ms", ch.userId, TimeUnit.NANOSECONDS.toMillis(sendTimeoutNanos));
+                    s.abort();
+                } else {
+                    s.heartbeatDue = true;
+                    s.schedule();
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Channel ch : channels.values()) {
+            List<Stream> streams;
+            List<Waiter> waiters;
+            synchronized (ch) {
+                ch.evicted = true;
+                streams = new ArrayList<>(ch.streams);
+                waiters = new ArrayList<>(ch.waiters);
+            }
+            for (Stream s : streams) s.abort();
+            for (Waiter w : waiters) w.result.setResult(ch.slice(w.cursor).toBatch(ch));
+        }
+        channels.clear();
+        ticker.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    // ===== internals =====
+
+    /** Caller holds the channel lock. */
+    private void acquire(Channel ch) {
+        if (ch.streams.size() + ch.waiters.size() >= maxConnectionsPerUser) {
+            throw new IllegalStateException("Too many open change streams for this user");
+        }
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            throw new IllegalStateException("Too many open change streams");
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private final class Channel {
+        final String userId;
+        final String stream = Long.toHexString(ThreadLocalRandom.current().nextLong() & 0xffffffffffffL); // tells ids of different channels apart
+        final Notification[] ring = new Notification[bufferEvents]; // event n (1-based) at (n - 1) % length; guarded by this
+        long head; // events published so far
+        final List<Stream> streams = new ArrayList<>();
+        final List<Waiter> waiters = new ArrayList<>();
+        long lastActive = System.currentTimeMillis();
+        boolean evicted;
+
+        Channel(String userId) {
+            this.userId = userId;
+        }
+
+        /** Position after the given event id; head for none, -1 for an id this channel did not issue. Caller holds the lock. */
+        long cursorOf(String eventId) {
+            if (eventId == null || eventId.isBlank()) return head;
+            int colon = eventId.lastIndexOf(':');
+            if (colon < 0 || !eventId.substring(0, colon).trim().equals(stream)) return -1;
+            try {
+                long n = Long.parseLong(eventId.substring(colon + 1).trim());
+                return n >= 0 && n <= head ? n : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        synchronized boolean hasAfter(long cursor) {
+            return cursor != head;
+        }
+
+        /** Up to MAX_BATCH events after cursor; a lapped or foreign cursor skips to the head with resync set. */
+        synchronized Slice slice(long cursor) {
+            if (cursor < 0 || cursor > head || cursor < head - ring.length) return new Slice(head, true, List.of());
+            long to = Math.min(head, cursor + MAX_BATCH);
+            List<Notification> events = new ArrayList<>((int) (to - cursor));
+            for (long n = cursor; n < to; n++) events.add(ring[(int) (n % ring.length)]);
+            return new Slice(to, false, events);
+        }
+    }
+
+    private record Slice(long cursor, boolean resync, List<Notification> events) {
+        EventBatch toBatch(Channel ch) {
+            EventBatch b = new EventBatch();
+            b.stream = ch.stream;
+            b.lastEventId = ch.stream + ":" + cursor;
+            b.resync = resync;
+            b.events = events;
+            return b;
+        }
+    }
+
+    private record Waiter(long cursor, DeferredResult<EventBatch> result) { }
+
+    /**
+     * One open SSE connection. Only the drain that won {@link #scheduled} writes, so frames never interleave; it
+     * writes while the output is ready and otherwise leaves it to the container's onWritePossible to reschedule.
+     */
+    private final class Stream implements WriteListener, AsyncListener {
+        final Channel ch;
+        final AsyncContext async;
+        final ServletOutputStream out;
+        final ArrayDeque<byte[]> outbox = new ArrayDeque<>(); // frames of the current slice; drain thread only
+        boolean unflushed;
+        long cursor; // touched by the draining thread only
+        boolean greeted;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+        volatile long blockedSince; // System.nanoTime() since the output stopped accepting data, else 0
+        volatile boolean writePossible; // set by the container when blocked output drains
+        volatile boolean heartbeatDue;
+
+        Stream(Channel ch, AsyncContext async, ServletOutputStream out, long cursor) {
+            this.ch = ch;
+            this.async = async;
+            this.out = out;
+            this.cursor = cursor;
+        }
+
+        void start() {
+            async.addListener(this);
+            out.setWriteListener(this);
+        }
+
+        @Override
+        public void onWritePossible() {
+            writePossible = true;
+            schedule();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.debug("Change stream for {} closed: {}", ch.userId, t.toString());
+            abort();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            abort();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            abort();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        void schedule() {
+            if (closed.get() || !scheduled.compareAndSet(false, true)) return;
+            try {
+                senders.execute(this::drain);
+            } catch (RuntimeException e) { // shutting down
+                scheduled.set(false);
+            }
+        }
+
+        private void drain() {
+            try {
+                for (;;) {
+                    if (closed.get()) return;
+                    if (outbox.isEmpty()) fill();
+                    if (outbox.isEmpty() && !unflushed) {
+                        scheduled.set(false);
+                        // A publish that raced with the flag reset found it still set and left the work to us
+                        if (closed.get() || !(ch.hasAfter(cursor) || heartbeatDue) || !scheduled.compareAndSet(false, true)) return;
+                        continue;
+                    }
+                    writePossible = false;
+                    if (!out.isReady()) { // the container calls onWritePossible once the client catches up
+                        if (blockedSince == 0) blockedSince = System.nanoTime() | 1; // never 0 while blocked
+                        scheduled.set(false);
+                        if (!writePossible || !scheduled.compareAndSet(false, true)) return;
+                        continue;
+                    }
+                    blockedSince = 0;
+                    if (outbox.isEmpty()) {
+                        out.flush();
+                        unflushed = false;
+                    } else {
+                        out.write(outbox.poll());
+                        unflushed = true;
+                    }
+                }
+            } catch (Exception e) {
+                // Client went away; the container reports it via the listeners too
+                log.debug("Change stream for {} closed: {}", ch.userId, e.toString());
+                abort();
+            }
+        }
+
+        // Frames whatever is due next: the greeting, a resync, the next slice of events, else a keep-alive
+        private void fill() throws IOException {
+            if (!greeted) {
+                greeted = true;
+                outbox.add(frame(null, "ready", mapper.writeValueAsString(new Ready(ch.stream))));
+            }
+            Slice slice = ch.slice(cursor);
+            if (slice.resync) {
+                EventBatch b = slice.toBatch(ch);
+                b.events = null;
+                outbox.add(frame(b.lastEventId, "resync", mapper.writeValueAsString(b)));
+            }
+            for (Notification n : slice.events) {
+                outbox.add(frame(n.id, "change", mapper.writeValueAsString(n)));
+            }
+            cursor = slice.cursor;
+            if (outbox.isEmpty() && heartbeatDue) {
+                heartbeatDue = false;
+                outbox.add(":keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /** Drops the stream and completes its request; a write the client never drained is discarded by the container. */
+        void abort() {
+            close();
+            try {
+                async.complete();
+            } catch (IllegalStateException e) {
+                // already completed
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            synchronized (ch) {
+                ch.streams.remove(this);
+                ch.lastActive = System.currentTimeMillis();
+            }
+            connections.decrementAndGet();
+        }
+    }
+
+    // One SSE event; data is single-line JSON
+    private static byte[] frame(String id, String name, String data) {
+        StringBuilder sb = new StringBuilder(data.length() + 64);
+        if (id != null) sb.append("id:").append(id).append('\n');
+        sb.append("event:").append(name).append('\n');
+        sb.append("data:").append(data).append("\n\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Ready(String stream) { }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Notification {
+        public String id; // event id: pass back as Last-Event-ID / ?after= to resume
+        public String safeBox;
+        public Long seq; // change-journal sequence in that safebox; null if the change could not be journaled
+        public String type; // SafeBoxChangeEvent.Type name
+        public String path;
+        public String newPath;
+        public long at; // epoch millis
+        public Long size;
+        public String sha256;
+        public Integer retentionDays;
+    }
+
+    public static class EventBatch {
+        public String stream;
+        public String lastEventId; // pass back as ?after= on the next poll
+        public boolean resync; // events were skipped: catch up each safebox via /changes?since=
+        public List<Notification> events;
+    }
+}
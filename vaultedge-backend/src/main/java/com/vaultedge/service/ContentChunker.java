@@ -0,0 +1,110 @@
+package com.vaultedge.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.SplittableRandom;
+
+/**
+ * Content-defined chunking with a gear rolling hash (FastCDC-style normalized cut points).
+ * <p>
+ * A cut is made where the hash's top bits are zero: with a stricter mask before the average size and a
+ * looser one after it, chunk sizes cluster around the average while staying within [min, max]. Because
+ * cut points depend only on nearby content, an insertion or edit only changes the chunks around it and the
+ * rest of a re-uploaded file deduplicates against the previous copy.
+ */
+final class ContentChunker {
+
+    // Fixed seed: the gear table (and so every cut point) must be identical across restarts and nodes
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom r = new SplittableRandom(0x5641554c54454447L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = r.nextLong();
+    }
+
+    /** Receives each chunk; the bytes are only valid during the call. */
+    @FunctionalInterface
+    interface ChunkSink {
+        void accept(byte[] data, int offset, int length) throws IOException;
+    }
+
+    /** Called with the running byte count after every read (limit checks); may throw to abort. */
+    @FunctionalInterface
+    interface Progress {
+        void bytesRead(long total) throws IOException;
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long strictMask;
+    private final long looseMask;
+
+    ContentChunker(int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max");
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = 63 - Long.numberOfLeadingZeros(avgSize); // floor(log2(avg))
+        this.strictMask = -1L << (64 - Math.min(63, bits + 1));
+        this.looseMask = -1L << (64 - Math.max(1, bits - 1));
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    /** Splits the whole channel into chunks, in order. Returns the number of bytes read. */
+    long split(ReadableByteChannel in, ChunkSink sink, Progress progress) throws IOException {
+        byte[] buf = new byte[Math.max(maxSize * 2, 256 * 1024)];
+        int start = 0; // first byte of the pending chunk
+        int end = 0; // end of valid data
+        long total = 0;
+        boolean eof = false;
+        while (true) {
+            // Keep at least maxSize bytes buffered past start (or everything until EOF)
+            if (!eof && end - start < maxSize) {
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                while (!eof && end < buf.length) {
+                    int n = in.read(ByteBuffer.wrap(buf, end, buf.length - end));
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        end += n;
+                        total += n;
+                        if (progress != null) progress.bytesRead(total);
+                    }
+                }
+            }
+            if (start == end) return total;
+            int len = cut(buf, start, end - start);
+            sink.accept(buf, start, len);
+            start += len;
+        }
+    }
+
+    /** Length of the chunk starting at off, given len available bytes. */
+    int cut(byte[] data, int off, int len) {
+        if (len <= minSize) return len;
+        int limit = Math.min(len, maxSize);
+        int normal = Math.min(limit, avgSize);
+        long h = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            h = (h << 1) + GEAR[data[off + i] & 0xff];
+            if ((h & strictMask) == 0) return i + 1;
+        }
+        for (; i < limit; i++) {
+            h = (h << 1) + GEAR[data[off + i] & 0xff];
+            if ((h & looseMask) == 0) return i + 1;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,150 @@
+package com.vaultedge.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Master key (KEK) for encryption at rest. Each encrypted file carries its own data key, wrapped under this one.
+ * <p>
+ * The key comes from <code>storage.encryption.masterKey</code> (base64, 32 bytes) when set, else from a key
+ * file (<code>storage.encryption.keyFile</code>). A key kept next to the data it protects protects nothing, so
+ * with encryption enabled the application refuses to start unless the key is configured or the key file lives
+ * outside <code>storage.root</code> and already exists. Only <code>storage.encryption.allowGeneratedKey</code>
+ * (development) lifts that: the key file, by default <code>&lt;storage.root&gt;/.vaultedge_master.key</code>, is
+ * then generated on first use. Files record a short key id, so a file sealed under another key fails with a
+ * clear error instead of a tag mismatch.
+ */
+@Component
+public class ContentKeyring {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentKeyring.class);
+
+    static final int KEY_BYTES = 32;
+    private static final String DEFAULT_KEY_FILE = ".vaultedge_master.key";
+
+    private final String configuredKey;
+    private final Path keyFile;
+    private final boolean allowGeneratedKey;
+    private volatile SecretKey masterKey;
+    private volatile int keyId;
+
+    public ContentKeyring(StorageMappingStore mappingStore,
+                          @Value("${storage.encryption.masterKey:}") String configuredKey,
+                          @Value("${storage.encryption.keyFile:}") String keyFile,
+                          @Value("${storage.encryption.enabled:false}") boolean encryptionEnabled,
+                          @Value("${storage.encryption.allowGeneratedKey:false}") boolean allowGeneratedKey) {
+        this.configuredKey = configuredKey == null ? "" : configuredKey.trim();
+        Path storageRoot = mappingStore.getStorageRoot().toAbsolutePath().normalize();
+        this.keyFile = keyFile == null || keyFile.isBlank()
+                ? storageRoot.resolve(DEFAULT_KEY_FILE)
+                : Paths.get(keyFile).toAbsolutePath().normalize();
+        this.allowGeneratedKey = allowGeneratedKey;
+        if (encryptionEnabled && this.configuredKey.isEmpty() && !allowGeneratedKey) {
+            if (within(this.keyFile, storageRoot)) {
+                throw new IllegalStateException("storage.encryption.enabled needs storage.encryption.masterKey or a "
+                        + "storage.encryption.keyFile outside storage.root (the key would sit next to the data: " + this.keyFile + ")");
+            }
+            if (!Files.isRegularFile(this.keyFile)) {
+                throw new IllegalStateException("storage.encryption.keyFile " + this.keyFile + " does not exist; "
+                        + "create it (base64, " + KEY_BYTES + " bytes) or set storage.encryption.allowGeneratedKey for development");
+            }
+        }
+    }
+
+    /** The master key, loading (or generating) it on first use. */
+    public SecretKey masterKey() throws IOException {
+        SecretKey k = masterKey;
+        if (k == null) {
+            synchronized (this) {
+                k = masterKey;
+                if (k == null) {
+                    byte[] raw = configuredKey.isEmpty() ? loadOrCreate() : decode(configuredKey);
+                    keyId = idOf(raw);
+                    masterKey = k = new SecretKeySpec(raw, "AES");
+                }
+            }
+        }
+        return k;
+    }
+
+    /** First four bytes of the key's SHA-256; stored in each file header. */
+    public int keyId() throws IOException {
+        masterKey();
+        return keyId;
+    }
+
+    private static byte[] decode(String base64) {
+        byte[] raw;
+        try {
+            raw = Base64.getDecoder().decode(base64);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("storage.encryption.masterKey is not valid base64");
+        }
+        if (raw.length != KEY_BYTES) throw new IllegalStateException("storage.encryption.masterKey must be " + KEY_BYTES + " bytes");
+        return raw;
+    }
+
+    private byte[] loadOrCreate() throws IOException {
+        if (!Files.exists(keyFile)) {
+            if (!allowGeneratedKey) throw new IllegalStateException("Storage master key file " + keyFile + " is missing");
+            byte[] raw = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(raw);
+            Files.createDirectories(keyFile.getParent());
+            Path tmp = keyFile.resolveSibling(keyFile.getFileName() + ".tmp");
+            Files.write(tmp, Base64.getEncoder().encode(raw));
+            try {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Non-POSIX filesystem: rely on the storage root's ACLs
+            }
+            try {
+                // A link never replaces an existing file: if another node created the key meanwhile, its key wins
+                Files.createLink(keyFile, tmp);
+                log.warn("Generated a new storage master key at {}; back it up, encrypted files are unreadable without it", keyFile);
+            } catch (FileAlreadyExistsException e) {
+                // keep the existing key
+            } catch (UnsupportedOperationException e) {
+                Files.move(tmp, keyFile, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return decode(Files.readString(keyFile).trim());
+    }
+
+    // Compares real paths where they exist, so a symlinked key folder inside the root is still caught
+    private static boolean within(Path file, Path root) {
+        return real(file).startsWith(real(root));
+    }
+
+    private static Path real(Path p) {
+        Path missing = Paths.get("");
+        for (Path q = p; q != null; q = q.getParent()) {
+            try {
+                return q.toRealPath().resolve(missing);
+            } catch (IOException e) {
+                missing = q.getFileName().resolve(missing);
+            }
+        }
+        return p;
+    }
+
+    private static int idOf(byte[] raw) {
+        return ByteBuffer.wrap(BlockStore.sha256().digest(raw)).getInt();
+    }
+}
@@ -0,0 +1,18 @@
+package com.vaultedge.service;
+
+/** A delete hit a locked file and was handed to {@link DeleteRetryService}; maps to HTTP 202 with the job. */
+public class DeletePendingException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient DeleteRetryService.DeleteJob job; // live job state, not meant to be serialized
+
+    public DeletePendingException(DeleteRetryService.DeleteJob job) {
+        super(job.op + " " + job.path + " pending: " + job.error);
+        this.job = job;
+    }
+
+    public DeleteRetryService.DeleteJob getJob() {
+        return job;
+    }
+}
@@ -0,0 +1,249 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries deletes that hit a locked file (typically one held open by another program on Windows) off the request
+ * thread, which answers 202 with the job at once.
+ * <p>
+ * Attempts run on one scheduler thread with exponential backoff and jitter. A delete still failing after the last
+ * attempt, or failing for another reason, is recorded in the safebox's dead-letter file
+ * (<code>.vaultedge/delete-dead-letter.jsonl</code>). Jobs live in memory: finished ones are forgotten after
+ * <code>keepFinishedMs</code>, and pending ones do not survive a restart (the file is then simply still there).
+ */
+@Service
+public class DeleteRetryService {
+
+    private static final Logger log = LoggerFactory.getLogger(DeleteRetryService.class);
+    private static final String DEAD_LETTER_FILE = "delete-dead-letter.jsonl";
+
+    public enum Status { PENDING, DONE, FAILED }
+
+    /** One try at the delete; a {@link #retryable} exception schedules the next one. */
+    @FunctionalInterface
+    public interface Attempt {
+        void run() throws IOException;
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    private final ScheduledExecutorService scheduler;
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final long keepFinishedMs;
+    private final int maxPending;
+
+    private final Map<String, DeleteJob> jobs = new ConcurrentHashMap<>();
+    // safebox root + op + relative path -> pending job, so repeating a delete does not queue it twice
+    private final Map<String, DeleteJob> pendingByKey = new ConcurrentHashMap<>();
+
+    public DeleteRetryService(@Value("${storage.deleteRetry.maxAttempts:8}") int maxAttempts,
+                              @Value("${storage.deleteRetry.baseDelayMs:500}") long baseDelayMs,
+                              @Value("${storage.deleteRetry.maxDelayMs:60000}") long maxDelayMs,
+                              @Value("${storage.deleteRetry.keepFinishedMs:3600000}") long keepFinishedMs,
+                              @Value("${storage.deleteRetry.maxPending:10000}") int maxPending) {
+        this.maxAttempts = Math.max(2, maxAttempts);
+        this.baseDelayMs = Math.max(1, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.keepFinishedMs = keepFinishedMs;
+        this.maxPending = Math.max(1, maxPending);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemon("delete-retry"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /** Locks and sharing violations surface as FileSystemException; a missing file or other I/O error is final. */
+    public static boolean retryable(IOException e) {
+        return e instanceof FileSystemException && !(e instanceof NoSuchFileException);
+    }
+
+    /**
+     * Queues retries of a delete whose first attempt (made by the caller) failed with cause. Returns the pending
+     * job for the same path if there is one already.
+     *
+     * @throws IllegalStateException if too many deletes are pending
+     */
+    public DeleteJob submit(String userId, String safeBoxName, Path base, String op, String path, IOException cause,
+                            Attempt attempt) {
+        String key = base + "|" + op + "|" + path;
+        synchronized (pendingByKey) {
+            DeleteJob existing = pendingByKey.get(key);
+            if (existing != null) return existing;
+            if (pendingByKey.size() >= maxPending) {
+                throw new IllegalStateException("Failed to delete " + path + ". Reason: " + describe(cause));
+            }
+            DeleteJob job = new DeleteJob();
+            job.id = UUID.randomUUID().toString();
+            job.safeBoxName = safeBoxName;
+            job.op = op;
+            job.path = path;
+            job.status = Status.PENDING;
+            job.attempts = 1;
+            job.maxAttempts = maxAttempts;
+            job.error = describe(cause);
+            job.createdAt = Instant.now();
+            job.userId = userId;
+            job.safeBoxRoot = base;
+            job.key = key;
+            jobs.put(job.id, job);
+            pendingByKey.put(key, job);
+            schedule(job, attempt);
+            return job;
+        }
+    }
+
+    /** Looks up a job, scoped to the caller's safebox; null if unknown or already forgotten. */
+    public DeleteJob get(Path base, String jobId) {
+        DeleteJob job = jobs.get(jobId);
+        return job != null && base.equals(job.safeBoxRoot) ? job : null;
+    }
+
+    @Scheduled(fixedDelayString = "${storage.deleteRetry.sweepIntervalMs:60000}")
+    public void sweepFinished() {
+        Instant cutoff = Instant.now().minusMillis(keepFinishedMs);
+        jobs.values().removeIf(j -> j.status != Status.PENDING && j.completedAt != null && j.completedAt.isBefore(cutoff));
+    }
+
+    // ===== attempts =====
+
+    private void schedule(DeleteJob job, Attempt attempt) {
+        long delay = backoff(job.attempts);
+        job.nextAttemptAt = Instant.now().plusMillis(delay);
+        scheduler.schedule(() -> run(job, attempt), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * base * 2^(n-1), capped, then "equal jitter": half of it fixed and half random, so a burst of deletes that hit
+     * the same lock does not retry in lockstep.
+     */
+    private long backoff(int failedAttempts) {
+        long d = baseDelayMs << Math.min(failedAttempts - 1, 30);
+        if (d <= 0 || d > maxDelayMs) d = maxDelayMs;
+        long half = d / 2;
+        return half + ThreadLocalRandom.current().nextLong(d - half + 1);
+    }
+
+    private void run(DeleteJob job, Attempt attempt) {
+        job.nextAttemptAt = null;
+        try {
+            attempt.run();
+            finish(job, Status.DONE);
+        } catch (IOException e) {
+            job.attempts++;
+            job.error = describe(e);
+            if (retryable(e) && job.attempts < maxAttempts) {
+                schedule(job, attempt);
+                return;
+            }
+            giveUp(job);
+        } catch (RuntimeException e) {
+            // Not found, precondition failed, path no longer valid...: retrying cannot help
+            job.attempts++;
+            job.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            giveUp(job);
+        }
+    }
+
+    private void giveUp(DeleteJob job) {
+        log.warn("Giving up on {} {} in {} after {} attempts: {}", job.op, job.path, job.safeBoxRoot, job.attempts, job.error);
+        job.completedAt = Instant.now();
+        try {
+            Path f = job.safeBoxRoot.resolve(StorageService.INTERNAL_DIR).resolve(DEAD_LETTER_FILE);
+            Files.createDirectories(f.getParent());
+            String line = mapper.writeValueAsString(new DeadLetter(job)) + "\n";
+            Files.write(f, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.warn("Could not record dead-lettered delete {} in {}", job.path, job.safeBoxRoot, e);
+        }
+        finish(job, Status.FAILED); // after the record, so a FAILED status can be looked up there
+    }
+
+    private void finish(DeleteJob job, Status status) {
+        if (status == Status.DONE) job.error = null;
+        if (job.completedAt == null) job.completedAt = Instant.now();
+        job.status = status;
+        pendingByKey.remove(job.key, job);
+    }
+
+    private static String describe(IOException e) {
+        if (e instanceof AccessDeniedException) return "access denied";
+        if (e instanceof FileSystemException) return "file is in use or locked";
+        return "I/O error";
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public static class DeleteJob {
+        public String id;
+        public String safeBoxName;
+        public String op; // DELETE_FILE | DELETE_FOLDER
+        public String path;
+        public volatile Status status;
+        public volatile int attempts; // including the request's own
+        public int maxAttempts;
+        public volatile String error; // reason of the last failure
+        public Instant createdAt;
+        public volatile Instant nextAttemptAt;
+        public volatile Instant completedAt;
+
+        // server-side only
+        transient String userId;
+        transient Path safeBoxRoot;
+        transient String key;
+    }
+
+    /** A line of the dead-letter file. */
+    static class DeadLetter {
+        public String id;
+        public String userId;
+        public String op;
+        public String path;
+        public int attempts;
+        public String error;
+        public Instant createdAt;
+        public Instant failedAt;
+
+        DeadLetter(DeleteJob job) {
+            id = job.id;
+            userId = job.userId;
+            op = job.op;
+            path = job.path;
+            attempts = job.attempts;
+            error = job.error;
+            createdAt = job.createdAt;
+            failedAt = job.completedAt;
+        }
+    }
+}
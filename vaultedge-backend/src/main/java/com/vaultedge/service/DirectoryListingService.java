@@ -0,0 +1,396 @@
+package com.vaultedge.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One-folder-at-a-time browsing for large safeboxes.
+ * <p>
+ * Each directory is read once into a cached snapshot (entries + attributes). Folder aggregates
+ * (recursive bytes / files) are computed bottom-up and cached per directory, apart from the snapshots, so
+ * evicting a snapshot never forces a subtree walk. After a change only the changed directory is re-read and
+ * only the ancestor chain's aggregates are recomputed, each from its own files plus its children's cached
+ * aggregates. Pages are served from the sorted snapshot with keyset cursors, so page N costs the same as page 1;
+ * size-sorted views carry each folder's aggregate, so the order and the cursor use the same key.
+ */
+@Service
+public class DirectoryListingService {
+
+    public static final int MAX_LIMIT = 1000;
+
+    private final StorageService storageService;
+    private final SafeBoxMetadataStore metadataStore;
+    private final FileContentStore contentStore;
+
+    // directory -> snapshot, LRU-bounded
+    private final SubtreeCache<DirSnapshot> cache;
+    // directory -> {recursive bytes, recursive files}, LRU-bounded; a few dozen bytes each, so kept far longer
+    private final SubtreeCache<long[]> aggregates;
+
+    public DirectoryListingService(StorageService storageService,
+                                   SafeBoxMetadataStore metadataStore,
+                                   FileContentStore contentStore,
+                                   @Value("${listing.cacheMaxDirectories:20000}") int maxDirectories,
+                                   @Value("${listing.cacheMaxAggregates:500000}") int maxAggregates) {
+        this.storageService = storageService;
+        this.metadataStore = metadataStore;
+        this.contentStore = contentStore;
+        this.cache = new SubtreeCache<>(maxDirectories);
+        this.aggregates = new SubtreeCache<>(maxAggregates);
+    }
+
+    public ListingPage list(String userId, String safeBoxName, String relativePath, String cursor,
+                            int limit, String sort, String order, int depth) throws IOException {
+        Path base = storageService.ensureSafeBox(userId, safeBoxName);
+        Path dir = (relativePath == null || relativePath.isBlank()) ? base : base.resolve(relativePath).normalize();
+        if (!dir.startsWith(base) || StorageService.isInternalPath(base, dir)) throw new SecurityException("Invalid folder path");
+        if (!Files.isDirectory(dir)) throw new IllegalArgumentException("Folder not found: " + relativePath);
+        int pageSize = Math.max(1, Math.min(limit, MAX_LIMIT));
+        Comparator<ListEntry> cmp = comparator(sort, order);
+
+        List<ListEntry> sorted = sorted(base, dir, sort, order, cmp);
+        int from = 0;
+        if (cursor != null && !cursor.isBlank()) {
+            ListEntry after = decodeCursor(cursor, sort, order);
+            from = upperBound(sorted, after, cmp);
+        }
+        int to = Math.min(sorted.size(), from + pageSize);
+
+        ListingPage page = new ListingPage();
+        page.path = StorageService.relativize(base, dir);
+        page.total = sorted.size();
+        page.items = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            page.items.add(materialize(base, sorted.get(i), sort, order, cmp, depth - 1, pageSize));
+        }
+        page.nextCursor = to < sorted.size() ? encodeCursor(sorted.get(to - 1), sort, order) : null;
+        return page;
+    }
+
+    /**
+     * Drops the snapshots of the changed path, its subtree and its parent (whose entries changed), and the
+     * aggregates of the subtree and every ancestor (totals change upward). Higher ancestors keep their snapshots
+     * and only lose their size-sorted views.
+     */
+    @EventListener
+    public void onSafeBoxChange(SafeBoxChangeEvent event) {
+        if (!event.changesContent()) return;
+        invalidate(event.getSafeBoxRoot(), event.getPath());
+        if (event.getNewPath() != null) invalidate(event.getSafeBoxRoot(), event.getNewPath());
+    }
+
+    public void invalidate(Path base, String relPath) {
+        Path changed = relPath == null || relPath.isEmpty() ? base : base.resolve(relPath).normalize();
+        aggregates.removeSubtree(changed);
+        dropAggregates(base, changed.getParent());
+        cache.removeSubtree(changed);
+        Path parent = changed.getParent();
+        if (parent != null && parent.startsWith(base)) cache.remove(parent);
+        for (Path p = parent == null ? null : parent.getParent(); p != null && p.startsWith(base); p = p.getParent()) {
+            DirSnapshot snap = cache.get(p);
+            if (snap != null) snap.sortedViews.keySet().removeIf(k -> k.startsWith("size:"));
+        }
+    }
+
+    private void dropAggregates(Path base, Path from) {
+        for (Path p = from; p != null && p.startsWith(base); p = p.getParent()) aggregates.remove(p);
+    }
+
+    // ===== snapshots =====
+
+    private DirSnapshot snapshot(Path base, Path dir) throws IOException {
+        DirSnapshot snap = cache.get(dir);
+        long mtime = Files.getLastModifiedTime(dir).toMillis();
+        // Direct children added/removed outside the API bump the directory mtime
+        if (snap != null && snap.dirModified == mtime) return snap;
+        if (snap != null) dropAggregates(base, dir); // its totals (and every ancestor's) came from the old entries
+        snap = read(base, dir, mtime);
+        cache.put(dir, snap);
+        return snap;
+    }
+
+    private DirSnapshot read(Path base, Path dir, long mtime) throws IOException {
+        DirSnapshot snap = new DirSnapshot();
+        snap.dirModified = mtime;
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                if (StorageService.isInternalPath(base, p)) continue;
+                children.add(p);
+            }
+        }
+        for (Path p : children) {
+            String name = p.getFileName().toString();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            } catch (IOException e) {
+                continue; // vanished between list and stat
+            }
+            ListEntry e = new ListEntry();
+            e.name = name;
+            e.path = StorageService.relativize(base, p);
+            if (attrs.isDirectory()) {
+                e.type = "folder";
+            } else {
+                e.type = "file";
+                SafeBoxMetadataStore.FileMeta meta = metadataStore.get(base, e.path);
+                e.size = contentStore.contentSize(base, p, attrs, meta);
+                e.modifiedAt = attrs.lastModifiedTime().toInstant();
+                e.createdAt = attrs.creationTime() != null ? attrs.creationTime().toInstant() : null;
+                if (meta != null && meta.originalDate != null) e.originalDate = Instant.ofEpochMilli(meta.originalDate);
+                snap.fileBytes += e.size;
+                snap.fileCount++;
+            }
+            snap.entries.add(e);
+        }
+        return snap;
+    }
+
+    /**
+     * Recursive totals: the directory's own files plus its children's cached aggregates. Only a subtree never
+     * seen before is walked, once; after that a change costs one re-read per ancestor level.
+     */
+    private long[] aggregate(Path base, Path dir) throws IOException {
+        long[] agg = aggregates.get(dir);
+        if (agg != null) return agg;
+        DirSnapshot snap = snapshot(base, dir);
+        long bytes = snap.fileBytes;
+        long files = snap.fileCount;
+        for (ListEntry e : snap.entries) {
+            if (!"folder".equals(e.type)) continue;
+            long[] sub = aggregate(base, base.resolve(e.path));
+            bytes += sub[0];
+            files += sub[1];
+        }
+        agg = new long[]{bytes, files};
+        aggregates.put(dir, agg);
+        return agg;
+    }
+
+    /** The directory's entries in the requested order; for size, folders are ordered by their aggregate. */
+    private List<ListEntry> sorted(Path base, Path dir, String sort, String order, Comparator<ListEntry> cmp) throws IOException {
+        DirSnapshot snap = snapshot(base, dir);
+        String key = sortKey(sort, order);
+        if (!"size".equals(normalizeSort(sort))) return snap.sorted(key, cmp);
+        List<ListEntry> view = snap.sortedViews.get(key);
+        if (view != null) return view;
+        List<ListEntry> copy = new ArrayList<>(snap.entries.size());
+        for (ListEntry e : snap.entries) {
+            if (!"folder".equals(e.type)) {
+                copy.add(e);
+                continue;
+            }
+            ListEntry c = e.copy();
+            long[] agg = aggregate(base, base.resolve(e.path));
+            c.aggregateSize = agg[0];
+            c.aggregateFiles = agg[1];
+            copy.add(c);
+        }
+        copy.sort(cmp);
+        view = Collections.unmodifiableList(copy);
+        snap.sortedViews.put(key, view);
+        return view;
+    }
+
+    private ListEntry materialize(Path base, ListEntry e, String sort, String order, Comparator<ListEntry> cmp,
+                                  int remainingDepth, int limit) throws IOException {
+        ListEntry out = e.copy();
+        if (!"folder".equals(e.type)) return out;
+        Path dir = base.resolve(e.path);
+        if (!Files.isDirectory(dir)) return out;
+        DirSnapshot child = snapshot(base, dir);
+        long[] agg = aggregate(base, dir);
+        out.childCount = (long) child.entries.size();
+        out.aggregateSize = agg[0];
+        out.aggregateFiles = agg[1];
+        if (remainingDepth > 0) {
+            List<ListEntry> sorted = sorted(base, dir, sort, order, cmp);
+            out.children = new ArrayList<>();
+            for (int i = 0; i < Math.min(limit, sorted.size()); i++) {
+                out.children.add(materialize(base, sorted.get(i), sort, order, cmp, remainingDepth - 1, limit));
+            }
+        }
+        return out;
+    }
+
+    // ===== sorting & cursors =====
+
+    private static String sortKey(String sort, String order) {
+        return normalizeSort(sort) + ":" + ("desc".equalsIgnoreCase(order) ? "desc" : "asc");
+    }
+
+    private static String normalizeSort(String sort) {
+        if ("size".equalsIgnoreCase(sort)) return "size";
+        if ("modified".equalsIgnoreCase(sort)) return "modified";
+        return "name";
+    }
+
+    /** Folders first (as in the tree view), then the requested key, then name as a stable tie-breaker. */
+    private static Comparator<ListEntry> comparator(String sort, String order) {
+        Comparator<ListEntry> key = switch (normalizeSort(sort)) {
+            case "size" -> Comparator.comparingLong(ListEntry::sortSize);
+            case "modified" -> Comparator.comparingLong(ListEntry::sortModified);
+            default -> Comparator.comparing((ListEntry e) -> e.name.toLowerCase(Locale.ROOT));
+        };
+        if ("desc".equalsIgnoreCase(order)) key = key.reversed();
+        return Comparator.comparing((ListEntry e) -> "folder".equals(e.type) ? 0 : 1)
+                .thenComparing(key)
+                .thenComparing(e -> e.name);
+    }
+
+    private static int upperBound(List<ListEntry> sorted, ListEntry probe, Comparator<ListEntry> cmp) {
+        int lo = 0;
+        int hi = sorted.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cmp.compare(sorted.get(mid), probe) <= 0) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static String encodeCursor(ListEntry last, String sort, String order) {
+        String raw = String.join("\n", "v1", sortKey(sort, order), last.type,
+                Long.toString(last.sortSize()), Long.toString(last.sortModified()), last.name);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ListEntry decodeCursor(String cursor, String sort, String order) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 6);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        if (parts.length != 6 || !"v1".equals(parts[0])) throw new IllegalArgumentException("Invalid cursor");
+        if (!parts[1].equals(sortKey(sort, order))) throw new IllegalArgumentException("Cursor does not match sort order");
+        ListEntry probe = new ListEntry();
+        probe.type = parts[2];
+        try {
+            probe.size = Long.parseLong(parts[3]);
+            probe.modifiedAt = Instant.ofEpochMilli(Long.parseLong(parts[4]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        probe.name = parts[5];
+        return probe;
+    }
+
+    /**
+     * LRU map keyed by directory, with a sorted index of the keys so a subtree is dropped as one key range
+     * (["dir/", "dir0") for '/' separators) instead of by scanning every cached directory.
+     */
+    private static final class SubtreeCache<V> {
+        private static final char SEPARATOR = java.io.File.separatorChar;
+        private final TreeMap<String, Path> index = new TreeMap<>();
+        private final LinkedHashMap<Path, V> lru;
+
+        SubtreeCache(int maxEntries) {
+            this.lru = new LinkedHashMap<>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, V> eldest) {
+                    if (size() <= maxEntries) return false;
+                    index.remove(eldest.getKey().toString());
+                    return true;
+                }
+            };
+        }
+
+        synchronized V get(Path dir) {
+            return lru.get(dir);
+        }
+
+        synchronized void put(Path dir, V value) {
+            index.put(dir.toString(), dir);
+            lru.put(dir, value);
+        }
+
+        synchronized void remove(Path dir) {
+            if (lru.remove(dir) != null) index.remove(dir.toString());
+        }
+
+        /** Removes dir and everything cached beneath it. */
+        synchronized void removeSubtree(Path dir) {
+            remove(dir);
+            String s = dir.toString();
+            Map<String, Path> under = index.subMap(s + SEPARATOR, s + (char) (SEPARATOR + 1));
+            for (Path p : under.values()) lru.remove(p);
+            under.clear();
+        }
+    }
+
+    private static final class DirSnapshot {
+        final List<ListEntry> entries = new ArrayList<>();
+        final Map<String, List<ListEntry>> sortedViews = new ConcurrentHashMap<>();
+        long dirModified;
+        long fileBytes;
+        long fileCount;
+
+        List<ListEntry> sorted(String key, Comparator<ListEntry> cmp) {
+            return sortedViews.computeIfAbsent(key, k -> {
+                List<ListEntry> copy = new ArrayList<>(entries);
+                copy.sort(cmp);
+                return Collections.unmodifiableList(copy);
+            });
+        }
+    }
+
+    public static class ListEntry {
+        public String type; // file | folder
+        public String name;
+        public String path;
+        public Long size; // files
+        public Instant modifiedAt; // files
+        public Instant createdAt; // files
+        public Instant originalDate; // files, client-provided
+        public Long childCount; // folders: direct children
+        public Long aggregateSize; // folders: recursive bytes
+        public Long aggregateFiles; // folders: recursive file count
+        public List<ListEntry> children; // folders, only when depth > 1
+
+        long sortSize() {
+            if (size != null) return size;
+            return aggregateSize != null ? aggregateSize : 0L;
+        }
+
+        long sortModified() {
+            return modifiedAt != null ? modifiedAt.toEpochMilli() : 0L;
+        }
+
+        ListEntry copy() {
+            ListEntry c = new ListEntry();
+            c.type = type;
+            c.name = name;
+            c.path = path;
+            c.size = size;
+            c.modifiedAt = modifiedAt;
+            c.createdAt = createdAt;
+            c.originalDate = originalDate;
+            return c;
+        }
+    }
+
+    public static class ListingPage {
+        public String path;
+        public List<ListEntry> items;
+        public String nextCursor; // null on the last page
+        public int total; // direct children of path
+    }
+}
@@ -0,0 +1,744 @@
+package com.vaultedge.service;
+
+import com.vaultedge.service.SafeBoxMetadataStore.FileMeta;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * How file content is laid out on disk, and the one place that turns a safebox file back into its bytes.
+ * <p>
+ * By default a safebox file holds its content as-is. With <code>storage.dedup.enabled</code>, new uploads
+ * are split by {@link ContentChunker}, each chunk is stored once in the user's {@link BlockStore}, and the
+ * file itself becomes a small chunk manifest. Both layouts can coexist (files keep the layout they were
+ * written with); the encoding is recorded in {@link SafeBoxMetadataStore} and, for files touched outside
+ * the API, detected from the file header. Readers always see logical bytes and logical sizes.
+ * <p>
+ * Header detection only runs once an encoded mode has been enabled on this storage root (remembered in a marker
+ * file, so turning the mode off again keeps detection on); a file found to be stored as-is is recorded as such, so
+ * it is sniffed once. Chunk references are only ever taken from files whose metadata says they are manifests, that
+ * is, files written through the API, so a legacy file that merely starts with the manifest magic never releases
+ * blocks.
+ * <p>
+ * Files stored whole may also be compressed at rest ({@link FramedCompression}, <code>storage.compression.*</code>):
+ * known text-like types always are, already-compressed media never, and anything else only when a sample of
+ * its first frame deflates well. Deduplicated chunks are stored as-is.
+ * <p>
+ * With <code>storage.encryption.enabled</code>, whole files (compressed or not) are additionally sealed in
+ * AES-256-GCM segments under a per-file key ({@link SegmentedEncryption}, master key from {@link ContentKeyring}),
+ * compressing before encrypting. Ranges decrypt only the segments they cover.
+ */
+@Component
+public class FileContentStore {
+
+    public static final String ENCODING_DEDUP = "dedup";
+    public static final String ENCODING_DEFLATE_FRAMES = "deflate-frames";
+    public static final String ENCODING_AES_GCM = "aes-gcm";
+    public static final String ENCODING_AES_GCM_FRAMES = "aes-gcm+deflate-frames";
+
+    // Types that reliably compress; everything else that is not known media gets the sample test
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of(
+            "txt", "log", "csv", "tsv", "json", "ndjson", "xml", "html", "htm", "css", "md", "rtf", "svg",
+            "yaml", "yml", "ini", "conf", "cfg", "properties", "sql", "js", "ts", "java", "kt", "py", "rb",
+            "go", "rs", "c", "h", "cpp", "hpp", "cs", "php", "sh", "bat", "ps1",
+            "doc", "xls", "ppt", "bmp", "tif", "tiff", "wav", "tar");
+    private static final int SAMPLE_BYTES = 64 * 1024;
+
+    // Manifest: magic, u64 logical size, u32 chunk count, then per chunk 32-byte SHA-256 + u32 length
+    private static final byte[] MANIFEST_MAGIC = "VEDGMAN1".getBytes(StandardCharsets.US_ASCII);
+    private static final int MANIFEST_HEADER = MANIFEST_MAGIC.length + 8 + 4;
+    private static final int MANIFEST_ENTRY = 32 + 4;
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+    // Files waiting for their digest to be computed in the background; beyond this, requests are dropped
+    private static final int DIGEST_BACKFILL_QUEUE = 1024;
+    // Under the storage root: present once any encoded layout has been enabled
+    private static final String ENCODED_MARKER = ".vaultedge_encoded";
+
+    private static final Logger log = LoggerFactory.getLogger(FileContentStore.class);
+
+    private final BlockStore blockStore;
+    private final SafeBoxMetadataStore metadataStore;
+    private final Path storageRoot;
+    private final boolean dedupEnabled;
+    private final ContentChunker chunker;
+    private final boolean compressionEnabled;
+    private final int compressionLevel;
+    private final int frameBytes;
+    private final long compressMinFileBytes;
+    private final double compressMaxSampleRatio;
+    private final ContentKeyring keyring;
+    private final boolean encryptionEnabled;
+    private final int segmentBytes;
+    // false only while no file on this storage root can be anything but plain: headers are then never read
+    private final boolean mayHoldEncoded;
+    private final Set<Path> digestsQueued = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor digestBackfill = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(DIGEST_BACKFILL_QUEUE), r -> {
+                Thread t = new Thread(r, "digest-backfill");
+                t.setDaemon(true);
+                return t;
+            });
+
+    public FileContentStore(BlockStore blockStore,
+                            SafeBoxMetadataStore metadataStore,
+                            StorageMappingStore mappingStore,
+                            ContentKeyring keyring,
+                            @Value("${storage.dedup.enabled:false}") boolean dedupEnabled,
+                            @Value("${storage.dedup.minChunkBytes:16384}") int minChunkBytes,
+                            @Value("${storage.dedup.avgChunkBytes:65536}") int avgChunkBytes,
+                            @Value("${storage.dedup.maxChunkBytes:262144}") int maxChunkBytes,
+                            @Value("${storage.compression.enabled:false}") boolean compressionEnabled,
+                            @Value("${storage.compression.level:5}") int compressionLevel,
+                            @Value("${storage.compression.frameBytes:262144}") int frameBytes,
+                            @Value("${storage.compression.minFileBytes:4096}") long compressMinFileBytes,
+                            @Value("${storage.compression.maxSampleRatio:0.9}") double compressMaxSampleRatio,
+                            @Value("${storage.encryption.enabled:false}") boolean encryptionEnabled,
+                            @Value("${storage.encryption.segmentBytes:65536}") int segmentBytes) {
+        if (encryptionEnabled && dedupEnabled) {
+            // Chunks are shared by content hash, which plaintext-equal files would reveal; keep the modes apart
+            throw new IllegalStateException("storage.encryption.enabled and storage.dedup.enabled cannot both be set");
+        }
+        this.blockStore = blockStore;
+        this.metadataStore = metadataStore;
+        this.storageRoot = mappingStore.getStorageRoot();
+        this.dedupEnabled = dedupEnabled;
+        this.chunker = new ContentChunker(minChunkBytes, avgChunkBytes, maxChunkBytes);
+        this.compressionEnabled = compressionEnabled;
+        this.compressionLevel = Math.max(1, Math.min(9, compressionLevel));
+        this.frameBytes = Math.max(4096, Math.min(FramedCompression.MAX_FRAME_SIZE, frameBytes));
+        this.compressMinFileBytes = compressMinFileBytes;
+        this.compressMaxSampleRatio = compressMaxSampleRatio;
+        this.keyring = keyring;
+        this.encryptionEnabled = encryptionEnabled;
+        this.segmentBytes = Math.max(4096, Math.min(SegmentedEncryption.MAX_SEGMENT_SIZE, segmentBytes));
+        this.mayHoldEncoded = markEncoded(storageRoot.resolve(ENCODED_MARKER), dedupEnabled || compressionEnabled || encryptionEnabled);
+    }
+
+    private static boolean markEncoded(Path marker, boolean enabled) {
+        if (Files.exists(marker)) return true;
+        if (!enabled) return false;
+        try {
+            Files.createDirectories(marker.getParent());
+            Files.write(marker, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            log.warn("Could not write {}; header detection stays on for this run only", marker, e);
+        }
+        return true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        digestBackfill.shutdownNow();
+    }
+
+    public boolean dedupEnabled() {
+        return dedupEnabled;
+    }
+
+    /** Largest chunk the chunker produces; client-sent blocks may not exceed it. */
+    public int maxChunkBytes() {
+        return chunker.maxSize();
+    }
+
+    public BlockStore blocks() {
+        return blockStore;
+    }
+
+    /** Result of writing content to a temp file; blocks are the manifest's chunk references (empty if plain). */
+    public static class Stored {
+        public String encoding; // null = plain
+        public long size; // logical bytes
+        public String sha256; // of the logical bytes, hex; null when not computed while writing
+        public List<String> blocks = List.of();
+    }
+
+    // ===== write =====
+
+    /**
+     * Writes content to tmp in the configured layout, computing the SHA-256 of the logical bytes on the way.
+     * fileName drives the compression policy. progress sees the
+     * running logical byte count (may be null) and may throw to abort (size / quota limits). Blocks written for an aborted
+     * upload are left to the sweep.
+     */
+    public Stored write(Path userRoot, String fileName, ReadableByteChannel content, Path tmp,
+                        ContentChunker.Progress progress) throws IOException {
+        Stored s = new Stored();
+        MessageDigest digest = BlockStore.sha256();
+        if (dedupEnabled) {
+            List<String> hashes = new ArrayList<>();
+            List<Integer> lengths = new ArrayList<>();
+            s.size = chunker.split(content, (data, off, len) -> {
+                digest.update(data, off, len);
+                hashes.add(blockStore.put(userRoot, data, off, len));
+                lengths.add(len);
+            }, progress);
+            writeManifest(tmp, s.size, hashes, lengths);
+            s.encoding = ENCODING_DEDUP;
+            s.blocks = hashes;
+            s.sha256 = BlockStore.hex(digest.digest());
+            return s;
+        }
+        // The first frame is read before deciding, so the sample test sees real content
+        byte[] head = new byte[compressionEnabled ? frameBytes : COPY_BUFFER_BYTES];
+        int headLen = 0;
+        boolean eof = false;
+        while (headLen < head.length) {
+            int n = content.read(ByteBuffer.wrap(head, headLen, head.length - headLen));
+            if (n < 0) {
+                eof = true;
+                break;
+            }
+            headLen += n;
+            if (progress != null) progress.bytesRead(headLen);
+        }
+        s.size = headLen;
+        digest.update(head, 0, headLen);
+        boolean compress = compressionEnabled && shouldCompress(fileName, head, headLen, eof);
+        try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SegmentedEncryption.Writer sealer = encryptionEnabled
+                    ? new SegmentedEncryption.Writer(file, keyring.masterKey(), keyring.keyId(), segmentBytes,
+                            compress ? SegmentedEncryption.FLAG_FRAMED : 0)
+                    : null;
+            WritableByteChannel out = sealer != null ? sealer : file;
+            if (compress) {
+                FramedCompression.Writer w = new FramedCompression.Writer(out, frameBytes, compressionLevel);
+                try {
+                    w.write(head, 0, headLen);
+                    ByteBuffer buf = ByteBuffer.wrap(head);
+                    while (!eof) {
+                        buf.clear();
+                        int n = content.read(buf);
+                        if (n < 0) break;
+                        s.size += n;
+                        if (progress != null) progress.bytesRead(s.size);
+                        digest.update(head, 0, n);
+                        w.write(head, 0, n);
+                    }
+                    w.finish();
+                } catch (IOException | RuntimeException e) {
+                    w.abort();
+                    throw e;
+                }
+            } else {
+                ByteBuffer buf = ByteBuffer.wrap(head, 0, headLen);
+                while (buf.hasRemaining()) out.write(buf);
+                while (!eof) {
+                    buf = ByteBuffer.wrap(head);
+                    int n = content.read(buf);
+                    if (n < 0) break;
+                    s.size += n;
+                    if (progress != null) progress.bytesRead(s.size);
+                    digest.update(head, 0, n);
+                    buf.flip();
+                    while (buf.hasRemaining()) out.write(buf);
+                }
+            }
+            if (sealer != null) sealer.finish();
+        }
+        if (encryptionEnabled) {
+            s.encoding = compress ? ENCODING_AES_GCM_FRAMES : ENCODING_AES_GCM;
+        } else if (compress) {
+            s.encoding = ENCODING_DEFLATE_FRAMES;
+        }
+        s.sha256 = BlockStore.hex(digest.digest());
+        return s;
+    }
+
+    /** Per-type policy, then a quick deflate of a sample of the first frame for types not known either way. */
+    private boolean shouldCompress(String fileName, byte[] head, int headLen, boolean eof) {
+        if (eof && headLen < compressMinFileBytes) return false;
+        if (ZipStreamService.isAlreadyCompressed(fileName)) return false;
+        int dot = fileName.lastIndexOf('.');
+        String ext = dot >= 0 ? fileName.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+        if (COMPRESSIBLE_EXTENSIONS.contains(ext)) return true;
+        String type = URLConnection.guessContentTypeFromName(fileName);
+        if (type != null && type.startsWith("text/")) return true;
+        int sampleLen = Math.min(headLen, SAMPLE_BYTES);
+        if (sampleLen == 0) return false;
+        Deflater d = new Deflater(1, true);
+        try {
+            d.setInput(head, 0, sampleLen);
+            d.finish();
+            byte[] out = new byte[sampleLen];
+            int packed = 0;
+            while (!d.finished() && packed < out.length) packed += d.deflate(out, packed, out.length - packed);
+            return d.finished() && packed <= sampleLen * compressMaxSampleRatio;
+        } finally {
+            d.end();
+        }
+    }
+
+    /**
+     * Writes a manifest for chunks the client already stored (see {@link BlockStore#missing}). Every block
+     * must exist with the stated size; otherwise IllegalStateException names how many are missing.
+     */
+    public Stored writeFromBlocks(Path userRoot, List<String> hashes, List<Long> sizes, Path tmp) throws IOException {
+        if (hashes.size() != sizes.size()) throw new IllegalArgumentException("Each chunk needs a hash and a size");
+        List<String> normalized = new ArrayList<>(hashes.size());
+        List<Integer> lengths = new ArrayList<>(hashes.size());
+        long total = 0;
+        int missing = 0;
+        for (int i = 0; i < hashes.size(); i++) {
+            String h = BlockStore.checkHash(hashes.get(i));
+            long actual = blockStore.size(userRoot, h);
+            if (actual < 0) {
+                missing++;
+                continue;
+            }
+            if (sizes.get(i) == null || actual != sizes.get(i)) throw new IllegalArgumentException("Size mismatch for block " + h);
+            normalized.add(h);
+            lengths.add((int) actual);
+            total += actual;
+        }
+        if (missing > 0) throw new IllegalStateException(missing + " block(s) are not stored yet; upload them first");
+        // The digest costs one read of the blocks now, instead of one per download later (it is the ETag)
+        MessageDigest digest = BlockStore.sha256();
+        ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_BYTES);
+        for (String h : normalized) {
+            try (FileChannel block = blockStore.open(userRoot, h)) {
+                while (block.read(buf) >= 0) {
+                    buf.flip();
+                    digest.update(buf);
+                    buf.clear();
+                }
+            }
+        }
+        writeManifest(tmp, total, normalized, lengths);
+        Stored s = new Stored();
+        s.encoding = ENCODING_DEDUP;
+        s.size = total;
+        s.sha256 = BlockStore.hex(digest.digest());
+        s.blocks = normalized;
+        return s;
+    }
+
+    private static void writeManifest(Path tmp, long size, List<String> hashes, List<Integer> lengths) throws IOException {
+        HexFormat hex = HexFormat.of();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_BYTES);
+            buf.put(MANIFEST_MAGIC).putLong(size).putInt(hashes.size());
+            for (int i = 0; i < hashes.size(); i++) {
+                if (buf.remaining() < MANIFEST_ENTRY) {
+                    buf.flip();
+                    while (buf.hasRemaining()) out.write(buf);
+                    buf.clear();
+                }
+                buf.put(hex.parseHex(hashes.get(i))).putInt(lengths.get(i));
+            }
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+        }
+    }
+
+    /** Adds the references of freshly written content (call before it becomes visible). */
+    public void retain(Path userRoot, Stored stored) throws IOException {
+        blockStore.retain(userRoot, stored.blocks);
+    }
+
+    /** Drops references held by a file that was just replaced or deleted. */
+    public void release(Path userRoot, List<String> blocks) throws IOException {
+        blockStore.release(userRoot, blocks);
+    }
+
+    // ===== read =====
+
+    /**
+     * Encoding of an existing file: from its metadata when current, else from the file header. A file found to be
+     * plain is recorded as such, so it is not read again until it changes.
+     */
+    public String encodingOf(Path base, Path file, BasicFileAttributes attrs) throws IOException {
+        String rel = StorageService.relativize(base, file);
+        FileMeta meta = metadataStore.get(base, rel);
+        if (meta != null && meta.matches(attrs)) return meta.encoding;
+        String encoding = sniff(file, attrs);
+        if (encoding == null && mayHoldEncoded) recordPlain(base, rel, file, attrs, meta);
+        return encoding;
+    }
+
+    private String encodingOf(Path file, BasicFileAttributes attrs, FileMeta meta) {
+        if (meta != null && meta.matches(attrs)) return meta.encoding;
+        return sniff(file, attrs);
+    }
+
+    /** Records a file as stored as-is, as of attrs, unless its entry changed meanwhile (e.g. an upload landed). */
+    private void recordPlain(Path base, String rel, Path file, BasicFileAttributes attrs, FileMeta previous) throws IOException {
+        FileMeta meta = new FileMeta();
+        meta.size = attrs.size();
+        meta.modifiedAt = attrs.lastModifiedTime().toMillis();
+        meta.contentType = URLConnection.guessContentTypeFromName(file.getFileName().toString());
+        meta.originalDate = previous != null ? previous.originalDate : null;
+        metadataStore.replace(base, rel, previous, meta);
+    }
+
+    private String sniff(Path file, BasicFileAttributes attrs) {
+        if (!mayHoldEncoded || attrs.size() < MANIFEST_HEADER) return null;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            // All magics are 8 bytes; the encrypted header's flags byte follows its version byte
+            ByteBuffer b = ByteBuffer.allocate(MANIFEST_MAGIC.length + 2);
+            while (b.hasRemaining() && ch.read(b) >= 0) { }
+            byte[] magic = Arrays.copyOf(b.array(), MANIFEST_MAGIC.length);
+            if (Arrays.equals(magic, MANIFEST_MAGIC)) return ENCODING_DEDUP;
+            if (Arrays.equals(magic, FramedCompression.MAGIC)) return ENCODING_DEFLATE_FRAMES;
+            if (Arrays.equals(magic, SegmentedEncryption.MAGIC)) {
+                return (b.get(MANIFEST_MAGIC.length + 1) & SegmentedEncryption.FLAG_FRAMED) != 0
+                        ? ENCODING_AES_GCM_FRAMES : ENCODING_AES_GCM;
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Logical size of a file, using meta (may be null) when it is current. */
+    public long contentSize(Path file, BasicFileAttributes attrs, FileMeta meta) throws IOException {
+        if (meta != null && meta.matches(attrs)) return meta.contentSize();
+        String encoding = encodingOf(file, attrs, null);
+        if (encoding == null) return attrs.size();
+        if (isEncrypted(encoding)) {
+            try (SeekableByteChannel ch = openEncrypted(file)) {
+                return ch.size();
+            }
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ENCODING_DEFLATE_FRAMES.equals(encoding)) return FramedCompression.logicalSize(ch);
+            ByteBuffer b = ByteBuffer.allocate(MANIFEST_HEADER);
+            while (b.hasRemaining() && ch.read(b) >= 0) { }
+            return b.getLong(MANIFEST_MAGIC.length);
+        }
+    }
+
+    public long contentSize(Path base, Path file) throws IOException {
+        return contentSize(base, file, Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    public long contentSize(Path base, Path file, BasicFileAttributes attrs) throws IOException {
+        return contentSize(base, file, attrs, metadataStore.get(base, StorageService.relativize(base, file)));
+    }
+
+    /** Same, recording a file without current metadata as plain when its header says so (see encodingOf). */
+    public long contentSize(Path base, Path file, BasicFileAttributes attrs, FileMeta meta) throws IOException {
+        if (meta != null && meta.matches(attrs)) return meta.contentSize();
+        if (encodingOf(base, file, attrs) == null) return attrs.size();
+        return contentSize(file, attrs, null);
+    }
+
+    /** User root owning a safebox root: the storage root's child on its path (plain or RootVault layout). */
+    Path userRootOf(Path base) {
+        Path p = base;
+        while (p.getParent() != null && !p.getParent().equals(storageRoot)) p = p.getParent();
+        return p;
+    }
+
+    /** How an existing file is stored: encoding, logical size, known digest and chunk references. */
+    public Stored storedOf(Path base, Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        FileMeta meta = metadataStore.get(base, StorageService.relativize(base, file));
+        Stored s = new Stored();
+        s.sha256 = meta != null && meta.matches(attrs) ? meta.sha256 : null;
+        s.encoding = encodingOf(base, file, attrs);
+        s.size = contentSize(base, file, attrs);
+        s.blocks = blocksOf(base, file);
+        return s;
+    }
+
+    /** The recorded SHA-256 (hex) of a file's logical content, or null if none is recorded for its current state. */
+    public String knownSha256(Path base, Path file, BasicFileAttributes attrs) throws IOException {
+        FileMeta meta = metadataStore.get(base, StorageService.relativize(base, file));
+        return meta != null && meta.matches(attrs) ? meta.sha256 : null;
+    }
+
+    /**
+     * Computes and records a file's digest on a background thread (one file at a time, each file queued once),
+     * so files written outside the API get a strong ETag without a request paying for the read.
+     */
+    public void backfillDigest(Path base, Path file) {
+        if (!digestsQueued.add(file)) return;
+        try {
+            digestBackfill.execute(() -> {
+                try {
+                    if (Files.isRegularFile(file)) sha256(base, file);
+                } catch (IOException e) {
+                    log.debug("Digest backfill failed for {}", file, e);
+                } finally {
+                    digestsQueued.remove(file);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            digestsQueued.remove(file); // queue full (or shutting down): a later request queues it again
+        }
+    }
+
+    /**
+     * SHA-256 (hex) of a file's logical content. Uploads record it as they stream; for files dropped into the
+     * folder it is computed once here (in the background, see {@link #backfillDigest}, or for a precondition)
+     * and cached in the metadata store, unless the file changed while it was being read.
+     */
+    public String sha256(Path base, Path file) throws IOException {
+        String rel = StorageService.relativize(base, file);
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        FileMeta current = metadataStore.get(base, rel);
+        boolean known = current != null && current.matches(attrs);
+        if (known && current.sha256 != null) return current.sha256;
+        MessageDigest digest = BlockStore.sha256();
+        try (Content c = open(base, file)) {
+            SeekableByteChannel ch = c.channel();
+            ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_BYTES);
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+        String hex = BlockStore.hex(digest.digest());
+        BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+        String encoding = known ? current.encoding : encodingOf(file, attrs, null);
+        // A manifest is only recorded by the upload that wrote it (see blocksOf); a sniffed one stays unrecorded
+        boolean recordable = known || !ENCODING_DEDUP.equals(encoding);
+        if (recordable && after.size() == attrs.size() && after.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+            FileMeta meta = SafeBoxMetadataStore.describe(file, current, null);
+            meta.encoding = encoding;
+            meta.logicalSize = known ? current.logicalSize : (meta.encoding != null ? contentSize(file, attrs, null) : null);
+            meta.sha256 = hex;
+            metadataStore.put(base, rel, meta);
+        }
+        return hex;
+    }
+
+    /**
+     * Chunk references held by a file: empty unless its current metadata records it as a manifest, which only an
+     * upload through the API does. A file that merely looks like one (a legacy file starting with the magic) or
+     * whose entry went stale holds nothing, so releasing its blocks can never drop references it did not take.
+     */
+    public List<String> blocksOf(Path base, Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        FileMeta meta = metadataStore.get(base, StorageService.relativize(base, file));
+        if (meta == null || !meta.matches(attrs) || !ENCODING_DEDUP.equals(meta.encoding)) return List.of();
+        Manifest m = Manifest.read(file);
+        return Arrays.asList(m.hashes);
+    }
+
+    /** Opens a file's logical content. The caller closes the result. */
+    public Content open(Path base, Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String encoding = encodingOf(base, file, attrs);
+        if (ENCODING_DEFLATE_FRAMES.equals(encoding) || isEncrypted(encoding)) {
+            SeekableByteChannel ch = isEncrypted(encoding) ? openEncrypted(file) : FramedCompression.open(file);
+            return new Content(ch.size(), lastModified, null, ch);
+        }
+        if (!ENCODING_DEDUP.equals(encoding)) {
+            return new Content(attrs.size(), lastModified, file, null);
+        }
+        Manifest m = Manifest.read(file);
+        return new Content(m.size, lastModified, null, new ManifestChannel(userRootOf(base), m));
+    }
+
+    private static boolean isEncrypted(String encoding) {
+        return ENCODING_AES_GCM.equals(encoding) || ENCODING_AES_GCM_FRAMES.equals(encoding);
+    }
+
+    /** Decrypting view of an encrypted file, inflating too when its header says the content is framed. */
+    private SeekableByteChannel openEncrypted(Path file) throws IOException {
+        SegmentedEncryption.EncryptedChannel ch = SegmentedEncryption.open(file, keyring.masterKey(), keyring.keyId());
+        return ch.framed() ? FramedCompression.open(ch) : ch;
+    }
+
+    /** A file's logical bytes. plainFile() is set when they are stored as-is (eligible for sendfile / transferTo). */
+    public static final class Content implements Closeable {
+        public final long size;
+        public final long lastModified;
+        private final Path plainFile;
+        private SeekableByteChannel channel;
+
+        Content(long size, long lastModified, Path plainFile, SeekableByteChannel channel) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.plainFile = plainFile;
+            this.channel = channel;
+        }
+
+        /** Wraps a file stored as-is (e.g. a built archive). */
+        public static Content of(Path file) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return new Content(attrs.size(), attrs.lastModifiedTime().toMillis(), file, null);
+        }
+
+        public Path plainFile() {
+            return plainFile;
+        }
+
+        public SeekableByteChannel channel() throws IOException {
+            if (channel == null) channel = FileChannel.open(plainFile, StandardOpenOption.READ);
+            return channel;
+        }
+
+        public InputStream stream() throws IOException {
+            return Channels.newInputStream(channel());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+        }
+    }
+
+    // ===== manifest =====
+
+    private static final class Manifest {
+        long size;
+        String[] hashes;
+        long[] offsets; // logical start of each chunk
+
+        static Manifest read(Path file) throws IOException {
+            byte[] all = Files.readAllBytes(file);
+            ByteBuffer b = ByteBuffer.wrap(all);
+            if (all.length < MANIFEST_HEADER || !Arrays.equals(Arrays.copyOf(all, MANIFEST_MAGIC.length), MANIFEST_MAGIC)) {
+                throw new IOException("Not a chunk manifest: " + file);
+            }
+            b.position(MANIFEST_MAGIC.length);
+            Manifest m = new Manifest();
+            m.size = b.getLong();
+            int count = b.getInt();
+            if (count < 0 || (long) count * MANIFEST_ENTRY != b.remaining()) throw new IOException("Corrupt chunk manifest: " + file);
+            HexFormat hex = HexFormat.of();
+            m.hashes = new String[count];
+            m.offsets = new long[count + 1];
+            byte[] digest = new byte[32];
+            long pos = 0;
+            for (int i = 0; i < count; i++) {
+                b.get(digest);
+                m.hashes[i] = hex.formatHex(digest);
+                m.offsets[i] = pos;
+                pos += Integer.toUnsignedLong(b.getInt());
+            }
+            m.offsets[count] = pos;
+            if (pos != m.size) throw new IOException("Corrupt chunk manifest: " + file);
+            return m;
+        }
+
+        /** Index of the chunk containing logical position pos (pos &lt; size). */
+        int chunkAt(long pos) {
+            int i = Arrays.binarySearch(offsets, 0, hashes.length, pos);
+            if (i >= 0) {
+                while (i + 1 < hashes.length && offsets[i + 1] == pos) i++; // skip empty chunks
+                return i;
+            }
+            return -i - 2;
+        }
+    }
+
+    /** Read-only seekable view over a manifest's chunks; keeps the current block open. */
+    private final class ManifestChannel implements SeekableByteChannel {
+        private final Path userRoot;
+        private final Manifest manifest;
+        private long position;
+        private int openIndex = -1;
+        private FileChannel block;
+        private boolean open = true;
+
+        ManifestChannel(Path userRoot, Manifest manifest) {
+            this.userRoot = userRoot;
+            this.manifest = manifest;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new java.nio.channels.ClosedChannelException();
+            if (position >= manifest.size) return -1;
+            int total = 0;
+            while (dst.hasRemaining() && position < manifest.size) {
+                int i = manifest.chunkAt(position);
+                if (i != openIndex) {
+                    if (block != null) block.close();
+                    block = blockStore.open(userRoot, manifest.hashes[i]);
+                    openIndex = i;
+                }
+                long inChunk = position - manifest.offsets[i];
+                long left = manifest.offsets[i + 1] - position;
+                ByteBuffer view = dst;
+                int limit = dst.limit();
+                if (dst.remaining() > left) dst.limit(dst.position() + (int) left);
+                int n;
+                try {
+                    n = block.read(view, inChunk);
+                } finally {
+                    dst.limit(limit);
+                }
+                if (n <= 0) throw new IOException("Block " + manifest.hashes[i] + " is shorter than its manifest entry");
+                position += n;
+                total += n;
+            }
+            return total;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return manifest.size;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            if (block != null) block.close();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prior versions of files, kept in the safebox's hidden <code>.vaultedge/versions/&lt;path&gt;/&lt;id&gt;</code>.
+ * <p>
+ * A replaced file becomes a version without copying: its name is hard-linked into the version area right
+ * before the new content is renamed over it (or, where links are unsupported, renamed there itself).
+ * Deduplicated files keep their chunk references while versioned. Version metadata lives in the safebox's
+ * metadata store under the version file's path. Ids sort chronologically (replacement time).
+ * <p>
+ * Versions occupy the disk like any file, so they count on the safebox's usage ledger: a replaced file stays
+ * on it as a version, and every removal here takes the version off under the safebox's quota lock.
+ * <p>
+ * Each safebox has a policy (<code>.vaultedge/versions.json</code>): keep at most N versions per file and none
+ * older than a number of days. The count is enforced when a version is added, the age by a background pruner.
+ */
+@Component
+public class FileVersionStore {
+
+    private static final Logger log = LoggerFactory.getLogger(FileVersionStore.class);
+    static final String VERSIONS_DIR = "versions";
+    private static final String POLICY_FILE = "versions.json";
+
+    private final FileContentStore contentStore;
+    private final SafeBoxMetadataStore metadataStore;
+    private final SafeBoxUsageLedger usageLedger;
+    private final QuotaManager quotaManager;
+    private final Path storageRoot;
+    private final int defaultMaxVersions;
+    private final int defaultMaxAgeDays;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public FileVersionStore(FileContentStore contentStore,
+                            SafeBoxMetadataStore metadataStore,
+                            SafeBoxUsageLedger usageLedger,
+                            QuotaManager quotaManager,
+                            StorageMappingStore mappingStore,
+                            @Value("${versions.maxPerFile:10}") int defaultMaxVersions,
+                            @Value("${versions.maxAgeDays:30}") int defaultMaxAgeDays) {
+        this.contentStore = contentStore;
+        this.metadataStore = metadataStore;
+        this.usageLedger = usageLedger;
+        this.quotaManager = quotaManager;
+        this.storageRoot = mappingStore.getStorageRoot();
+        this.defaultMaxVersions = Math.max(0, defaultMaxVersions);
+        this.defaultMaxAgeDays = Math.max(0, defaultMaxAgeDays);
+    }
+
+    // ===== policy =====
+
+    public Policy policy(Path base) throws IOException {
+        Path f = policyFile(base);
+        Policy p = new Policy();
+        p.maxVersions = defaultMaxVersions;
+        p.maxAgeDays = defaultMaxAgeDays;
+        if (Files.exists(f)) {
+            try {
+                Policy stored = mapper.readValue(f.toFile(), Policy.class);
+                if (stored.maxVersions != null) p.maxVersions = Math.max(0, stored.maxVersions);
+                if (stored.maxAgeDays != null) p.maxAgeDays = Math.max(0, stored.maxAgeDays);
+            } catch (IOException e) {
+                log.warn("Version policy {} unreadable; using defaults", f, e);
+            }
+        }
+        return p;
+    }
+
+    /** Stores the policy (null fields keep the current value) and applies it right away. */
+    public Policy setPolicy(Path base, Integer maxVersions, Integer maxAgeDays) throws IOException {
+        if ((maxVersions != null && maxVersions < 0) || (maxAgeDays != null && maxAgeDays < 0)) {
+            throw new IllegalArgumentException("Version limits must be >= 0");
+        }
+        Policy p = policy(base);
+        if (maxVersions != null) p.maxVersions = maxVersions;
+        if (maxAgeDays != null) p.maxAgeDays = maxAgeDays;
+        Path f = policyFile(base);
+        Files.createDirectories(f.getParent());
+        Path tmp = f.resolveSibling(POLICY_FILE + ".tmp");
+        Files.write(tmp, mapper.writeValueAsBytes(p));
+        try {
+            Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING);
+        }
+        prune(base);
+        return p;
+    }
+
+    // ===== versions of one file =====
+
+    /**
+     * Keeps the current content of file as a version, if the safebox's policy retains any. Must be called right
+     * before the file is replaced. Returns the version file, or null when nothing was kept (the caller then
+     * drops the replaced content as before).
+     */
+    public Path preserve(Path base, Path file) throws IOException {
+        Policy p = policy(base);
+        if (p.maxVersions <= 0) return null;
+        String rel = StorageService.relativize(base, file);
+        Path dir = versionsDir(base, rel);
+        Files.createDirectories(dir);
+        Path version = dir.resolve(newId());
+        SafeBoxMetadataStore.FileMeta current = metadataStore.get(base, rel);
+        try {
+            Files.createLink(version, file);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.move(file, version, StandardCopyOption.ATOMIC_MOVE);
+        }
+        SafeBoxMetadataStore.FileMeta meta = SafeBoxMetadataStore.describe(version, current, null);
+        if (current != null) {
+            meta.encoding = current.encoding;
+            meta.logicalSize = current.logicalSize;
+            meta.sha256 = current.sha256;
+        }
+        metadataStore.put(base, StorageService.relativize(base, version), meta);
+        trim(base, rel, p.maxVersions);
+        return version;
+    }
+
+    /** Undoes {@link #preserve} when the replacement then failed: the version goes away, file stays as it was. */
+    public void rollback(Path base, Path version, Path file) throws IOException {
+        if (Files.exists(file)) {
+            Files.deleteIfExists(version);
+        } else {
+            Files.move(version, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+        metadataStore.remove(base, StorageService.relativize(base, version));
+    }
+
+    /** Versions of a file, newest first. */
+    public List<Version> list(Path base, String rel) throws IOException {
+        Path dir = versionsDir(base, rel);
+        List<Version> out = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return out;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, Files::isRegularFile)) {
+            for (Path v : ds) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(v, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // pruned concurrently
+                }
+                SafeBoxMetadataStore.FileMeta meta = metadataStore.get(base, StorageService.relativize(base, v));
+                Version ver = new Version();
+                ver.id = v.getFileName().toString();
+                ver.path = rel;
+                ver.size = contentStore.contentSize(v, attrs, meta);
+                ver.modifiedAt = attrs.lastModifiedTime().toInstant();
+                ver.replacedAt = Instant.ofEpochMilli(replacedAtMillis(ver.id));
+                ver.originalDate = meta != null && meta.originalDate != null ? Instant.ofEpochMilli(meta.originalDate) : null;
+                ver.sha256 = meta != null ? meta.sha256 : null;
+                out.add(ver);
+            }
+        }
+        out.sort(Comparator.comparing((Version v) -> v.id).reversed());
+        return out;
+    }
+
+    /** The stored file of a version; NoSuchElementException if there is none with that id. */
+    public Path find(Path base, String rel, String versionId) {
+        if (versionId == null || !versionId.matches("\\d{13}-[0-9a-f]{6}")) throw new NoSuchElementException("Version not found: " + versionId);
+        Path v = versionsDir(base, rel).resolve(versionId);
+        if (!Files.isRegularFile(v)) throw new NoSuchElementException("Version not found: " + versionId);
+        return v;
+    }
+
+    /**
+     * Moves a file's (or a folder's) versions along with a rename. When the destination already has versions
+     * (a name that was used before), the histories are merged: ids order them by replacement time, and the
+     * count limit is applied to each merged file.
+     */
+    public void rename(Path base, String rel, String newRel) throws IOException {
+        Path from = versionsDir(base, rel);
+        Path to = versionsDir(base, newRel);
+        if (!Files.isDirectory(from)) return;
+        if (!Files.exists(to)) {
+            Files.createDirectories(to.getParent());
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+            metadataStore.move(base, StorageService.relativize(base, from), StorageService.relativize(base, to));
+            return;
+        }
+        List<Path> dirs = new ArrayList<>();
+        Files.walkFileTree(from, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                dirs.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        int maxVersions = policy(base).maxVersions;
+        for (Path dir : dirs) {
+            Path targetDir = to.resolve(from.relativize(dir).toString());
+            List<Path> versions = versionFiles(dir);
+            if (versions.isEmpty()) continue;
+            if (Files.isRegularFile(targetDir)) continue; // a version where a folder of versions would go; left for the pruner
+            Files.createDirectories(targetDir);
+            for (Path v : versions) {
+                Path dest = targetDir.resolve(v.getFileName().toString());
+                if (Files.exists(dest)) {
+                    remove(base, v); // same id on both sides: practically impossible, but never overwrite a version
+                    continue;
+                }
+                Files.move(v, dest, StandardCopyOption.ATOMIC_MOVE);
+                metadataStore.move(base, StorageService.relativize(base, v), StorageService.relativize(base, dest));
+            }
+            trim(base, StorageService.relativize(base.resolve(StorageService.INTERNAL_DIR).resolve(VERSIONS_DIR), targetDir), maxVersions);
+        }
+        for (int i = dirs.size() - 1; i >= 0; i--) deleteIfEmpty(dirs.get(i));
+    }
+
+    // ===== pruning =====
+
+    /** Applies every safebox's age limit. Safeboxes are found by walking the storage root (two or three levels). */
+    @Scheduled(initialDelayString = "${versions.pruneIntervalMs:3600000}",
+            fixedDelayString = "${versions.pruneIntervalMs:3600000}")
+    public void pruneAll() {
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(storageRoot, Files::isDirectory)) {
+            for (Path userRoot : users) {
+                if (userRoot.getFileName().toString().startsWith(".")) continue;
+                try (DirectoryStream<Path> boxes = Files.newDirectoryStream(userRoot, Files::isDirectory)) {
+                    for (Path box : boxes) {
+                        if ("RootVault".equals(box.getFileName().toString())) {
+                            try (DirectoryStream<Path> masked = Files.newDirectoryStream(box, Files::isDirectory)) {
+                                for (Path m : masked) pruneQuietly(m);
+                            }
+                        } else if (!box.getFileName().toString().startsWith(".")) {
+                            pruneQuietly(box);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            log.warn("Version prune pass failed", e);
+        }
+    }
+
+    private void pruneQuietly(Path base) {
+        if (!Files.isDirectory(base.resolve(StorageService.INTERNAL_DIR).resolve(VERSIONS_DIR))) return;
+        try {
+            prune(base);
+        } catch (IOException e) {
+            log.warn("Version prune failed for {}", base, e);
+        }
+    }
+
+    /** Enforces the safebox's policy on every versioned file. Returns the number of versions removed. */
+    public int prune(Path base) throws IOException {
+        Path root = base.resolve(StorageService.INTERNAL_DIR).resolve(VERSIONS_DIR);
+        if (!Files.isDirectory(root)) return 0;
+        Policy p = policy(base);
+        long cutoff = p.maxAgeDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(p.maxAgeDays) : Long.MIN_VALUE;
+        List<Path> dirs = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                dirs.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        int removed = 0;
+        for (Path dir : dirs) {
+            List<Path> versions = versionFiles(dir);
+            for (int i = 0; i < versions.size(); i++) {
+                Path v = versions.get(i);
+                // newest first: beyond the count limit, or replaced before the cutoff
+                if (i >= p.maxVersions || replacedAtMillis(v.getFileName().toString()) < cutoff) {
+                    if (remove(base, v)) removed++;
+                }
+            }
+            if (!dir.equals(root)) deleteIfEmpty(dir);
+        }
+        return removed;
+    }
+
+    private void trim(Path base, String rel, int maxVersions) throws IOException {
+        List<Path> versions = versionFiles(versionsDir(base, rel));
+        for (int i = maxVersions; i < versions.size(); i++) remove(base, versions.get(i));
+    }
+
+    private boolean remove(Path base, Path version) throws IOException {
+        List<String> blocks;
+        synchronized (quotaManager.lockFor(base)) {
+            BasicFileAttributes attrs;
+            long size;
+            try {
+                attrs = Files.readAttributes(version, BasicFileAttributes.class);
+                size = contentStore.contentSize(base, version, attrs);
+                blocks = contentStore.blocksOf(base, version);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            if (!Files.deleteIfExists(version)) return false;
+            usageLedger.add(base, SafeBoxUsageLedger.Kind.VERSIONS, -size, -1, -attrs.size());
+            metadataStore.remove(base, StorageService.relativize(base, version));
+        }
+        contentStore.release(contentStore.userRootOf(base), blocks);
+        return true;
+    }
+
+    // ===== internals =====
+
+    private static List<Path> versionFiles(Path dir) throws IOException {
+        List<Path> out = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return out;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, Files::isRegularFile)) {
+            for (Path v : ds) out.add(v);
+        }
+        out.sort(Comparator.comparing((Path v) -> v.getFileName().toString()).reversed());
+        return out;
+    }
+
+    private static void deleteIfEmpty(Path dir) {
+        try {
+            Files.deleteIfExists(dir);
+        } catch (DirectoryNotEmptyException ignored) {
+        } catch (IOException e) {
+            log.debug("Could not remove version folder {}", dir, e);
+        }
+    }
+
+    /** A stored version (anything below the versions folder that is not the folder itself). */
+    static boolean isVersionContent(Path base, Path p) {
+        Path root = base.resolve(StorageService.INTERNAL_DIR).resolve(VERSIONS_DIR);
+        return p.startsWith(root) && !p.equals(root);
+    }
+
+    /** Versions folder itself or anything inside it (the usage scan descends here despite it being internal). */
+    static boolean inVersions(Path base, Path p) {
+        return p.startsWith(base.resolve(StorageService.INTERNAL_DIR).resolve(VERSIONS_DIR));
+    }
+
+    private static Path versionsDir(Path base, String rel) {
+        Path root = base.resolve(StorageService.INTERNAL_DIR).resolve(VERSIONS_DIR);
+        Path dir = root.resolve(rel).normalize();
+        if (!dir.startsWith(root) || dir.equals(root)) throw new SecurityException("Invalid file path");
+        return dir;
+    }
+
+    private static Path policyFile(Path base) {
+        return base.resolve(StorageService.INTERNAL_DIR).resolve(POLICY_FILE);
+    }
+
+    // <13-digit epoch millis>-<6 hex>: sorts by replacement time, unique within a millisecond
+    private static String newId() {
+        return String.format("%013d-%06x", System.currentTimeMillis(), ThreadLocalRandom.current().nextInt(1 << 24));
+    }
+
+    private static long replacedAtMillis(String id) {
+        try {
+            return Long.parseLong(id.substring(0, Math.min(13, id.length())));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    public static class Policy {
+        public Integer maxVersions; // 0 = versioning off for this safebox
+        public Integer maxAgeDays; // 0 = no age limit
+    }
+
+    public static class Version {
+        public String id;
+        public String path;
+        public long size;
+        public Instant modifiedAt; // when this content was written
+        public Instant replacedAt; // when it stopped being the current content
+        public Instant originalDate;
+        public String sha256;
+    }
+}
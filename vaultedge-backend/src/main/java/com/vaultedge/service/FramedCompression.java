@@ -0,0 +1,287 @@
+package com.vaultedge.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Seekable compressed file format: content is cut into fixed-size frames that are deflated independently, so
+ * a read at any offset inflates only the frames it covers.
+ * <pre>
+ * magic "VEDGZF01"
+ * frame data...                      (each frame deflated, or raw when deflate did not shrink it)
+ * index: per frame u32 stored length, u8 method (0 raw, 1 deflate)
+ * trailer: u64 index offset, u32 frame count, u32 frame size, u64 logical size, magic "VEDGZF01"
+ * </pre>
+ * The index sits at the end so files can be written in one streaming pass. The container can itself sit
+ * inside another seekable layer ({@link SegmentedEncryption}): reads only need position and read.
+ */
+final class FramedCompression {
+
+    static final byte[] MAGIC = "VEDGZF01".getBytes(StandardCharsets.US_ASCII);
+    static final int TRAILER = 8 + 4 + 4 + 8 + MAGIC.length;
+    static final int MAX_FRAME_SIZE = 16 << 20;
+    private static final int INDEX_ENTRY = 4 + 1;
+    private static final byte METHOD_RAW = 0;
+    private static final byte METHOD_DEFLATE = 1;
+
+    private FramedCompression() { }
+
+    /** Streams logical bytes into a framed file. Not thread-safe; does not close the target. */
+    static final class Writer {
+        private final WritableByteChannel out;
+        private final int frameSize;
+        private final Deflater deflater;
+        private final byte[] frame;
+        private final byte[] packed;
+        private int filled;
+        private long logicalSize;
+        private long written;
+        private ByteBuffer index = ByteBuffer.allocate(1024);
+        private int frames;
+
+        Writer(WritableByteChannel out, int frameSize, int level) throws IOException {
+            this.out = out;
+            this.frameSize = frameSize;
+            this.deflater = new Deflater(level, true);
+            this.frame = new byte[frameSize];
+            this.packed = new byte[frameSize];
+            writeFully(ByteBuffer.wrap(MAGIC));
+        }
+
+        void write(byte[] data, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, frameSize - filled);
+                System.arraycopy(data, off, frame, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+                logicalSize += n;
+                if (filled == frameSize) flushFrame();
+            }
+        }
+
+        /** Writes the last frame, the index and the trailer. Returns the logical size. */
+        long finish() throws IOException {
+            try {
+                if (filled > 0) flushFrame();
+                long indexOffset = written;
+                index.flip();
+                writeFully(index);
+                ByteBuffer t = ByteBuffer.allocate(TRAILER);
+                t.putLong(indexOffset).putInt(frames).putInt(frameSize).putLong(logicalSize).put(MAGIC).flip();
+                writeFully(t);
+                return logicalSize;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        void abort() {
+            deflater.end();
+        }
+
+        private void flushFrame() throws IOException {
+            deflater.reset();
+            deflater.setInput(frame, 0, filled);
+            deflater.finish();
+            int packedLen = 0;
+            // Output is capped at the frame size: a frame that does not shrink is stored raw
+            while (!deflater.finished() && packedLen < packed.length) {
+                packedLen += deflater.deflate(packed, packedLen, packed.length - packedLen);
+            }
+            boolean raw = !deflater.finished() || packedLen >= filled;
+            writeFully(raw ? ByteBuffer.wrap(frame, 0, filled) : ByteBuffer.wrap(packed, 0, packedLen));
+            if (index.remaining() < INDEX_ENTRY) {
+                ByteBuffer bigger = ByteBuffer.allocate(index.capacity() * 2);
+                index.flip();
+                bigger.put(index);
+                index = bigger;
+            }
+            index.putInt(raw ? filled : packedLen).put(raw ? METHOD_RAW : METHOD_DEFLATE);
+            frames++;
+            filled = 0;
+        }
+
+        private void writeFully(ByteBuffer b) throws IOException {
+            written += b.remaining();
+            while (b.hasRemaining()) out.write(b);
+        }
+    }
+
+    /** Logical size from the trailer. */
+    static long logicalSize(SeekableByteChannel ch) throws IOException {
+        return readTrailer(ch).getLong(16);
+    }
+
+    /** Opens a framed file as a read-only seekable channel over its logical bytes. */
+    static SeekableByteChannel open(Path file) throws IOException {
+        return open(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    /** Same over an already open channel, which the result owns (closed with it, or on failure). */
+    static SeekableByteChannel open(SeekableByteChannel ch) throws IOException {
+        try {
+            return new FramedChannel(ch);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer readTrailer(SeekableByteChannel ch) throws IOException {
+        long size = ch.size();
+        if (size < MAGIC.length + TRAILER) throw new IOException("Not a framed file");
+        ByteBuffer t = ByteBuffer.allocate(TRAILER);
+        readFully(ch, t, size - TRAILER);
+        byte[] magic = new byte[MAGIC.length];
+        t.get(TRAILER - MAGIC.length, magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Framed file has no trailer (truncated?)");
+        return t;
+    }
+
+    private static void readFully(SeekableByteChannel ch, ByteBuffer dst, long pos) throws IOException {
+        ch.position(pos);
+        while (dst.hasRemaining()) {
+            if (ch.read(dst) < 0) throw new IOException("Unexpected end of framed file");
+        }
+    }
+
+    private static final class FramedChannel implements SeekableByteChannel {
+        private final SeekableByteChannel file;
+        private final long size;
+        private final int frameSize;
+        private final long[] offsets; // stored start of each frame, plus the index offset at the end
+        private final boolean[] deflated;
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] current;
+        private byte[] stored;
+        private int currentFrame = -1;
+        private int currentLength;
+        private long position;
+        private boolean open = true;
+
+        FramedChannel(SeekableByteChannel file) throws IOException {
+            this.file = file;
+            ByteBuffer t = readTrailer(file);
+            long indexOffset = t.getLong(0);
+            int frames = t.getInt(8);
+            this.frameSize = t.getInt(12);
+            this.size = t.getLong(16);
+            if (frames < 0 || frameSize <= 0 || frameSize > MAX_FRAME_SIZE || (long) frames * frameSize < size
+                    || indexOffset + (long) frames * INDEX_ENTRY != file.size() - TRAILER) {
+                throw new IOException("Corrupt framed file index");
+            }
+            ByteBuffer idx = ByteBuffer.allocate(frames * INDEX_ENTRY);
+            readFully(file, idx, indexOffset);
+            idx.flip();
+            offsets = new long[frames + 1];
+            deflated = new boolean[frames];
+            long pos = MAGIC.length;
+            for (int i = 0; i < frames; i++) {
+                offsets[i] = pos;
+                pos += Integer.toUnsignedLong(idx.getInt());
+                deflated[i] = idx.get() == METHOD_DEFLATE;
+            }
+            offsets[frames] = pos;
+            if (pos != indexOffset) throw new IOException("Corrupt framed file index");
+            this.current = new byte[frameSize];
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            if (position >= size) return -1;
+            int total = 0;
+            while (dst.hasRemaining() && position < size) {
+                int f = (int) (position / frameSize);
+                load(f);
+                int inFrame = (int) (position - (long) f * frameSize);
+                int n = Math.min(dst.remaining(), currentLength - inFrame);
+                if (n <= 0) throw new IOException("Frame " + f + " is shorter than expected");
+                dst.put(current, inFrame, n);
+                position += n;
+                total += n;
+            }
+            return total;
+        }
+
+        private void load(int f) throws IOException {
+            if (f == currentFrame) return;
+            int storedLength = (int) (offsets[f + 1] - offsets[f]);
+            int expected = (int) Math.min(frameSize, size - (long) f * frameSize);
+            if (!deflated[f]) {
+                readFully(file, ByteBuffer.wrap(current, 0, storedLength), offsets[f]);
+                currentLength = storedLength;
+            } else {
+                if (stored == null || stored.length < storedLength) stored = new byte[Math.max(storedLength, 4096)];
+                readFully(file, ByteBuffer.wrap(stored, 0, storedLength), offsets[f]);
+                inflater.reset();
+                inflater.setInput(stored, 0, storedLength);
+                int n = 0;
+                try {
+                    while (n < expected && !inflater.finished()) {
+                        int got = inflater.inflate(current, n, expected - n);
+                        if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                        n += got;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed frame " + f, e);
+                }
+                currentLength = n;
+            }
+            if (currentLength != expected) throw new IOException("Frame " + f + " has " + currentLength + " bytes, expected " + expected);
+            currentFrame = f;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            inflater.end();
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.vaultedge.service;
+
+/** A conditional write or delete (If-Match / If-None-Match) found the file in another state; maps to HTTP 412. */
+public class PreconditionFailedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PreconditionFailedException(String message) {
+        super(message);
+    }
+}
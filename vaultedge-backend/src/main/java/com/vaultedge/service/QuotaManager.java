@@ -0,0 +1,125 @@
+package com.vaultedge.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Capacity reservations on top of {@link SafeBoxUsageLedger}.
+ * <p>
+ * An upload reserves bytes before writing them (its declared size up front, or growing step by step while
+ * streaming); the check "used + reserved + request &lt;= capacity" and the reservation happen under one lock,
+ * so concurrent uploads can never overshoot the capacity together. Committing applies the final ledger delta
+ * and drops the reservation under the same lock. Locks are striped by safebox root: uploads to different
+ * safeboxes practically never contend, and nothing is held while bytes are being transferred.
+ */
+@Component
+public class QuotaManager {
+
+    private final SafeBoxUsageLedger usageLedger;
+    private final Object[] stripes;
+    private final long growStepBytes;
+    // safebox root -> bytes reserved by in-flight uploads; only changed under the safebox's stripe lock
+    private final Map<Path, long[]> reserved = new ConcurrentHashMap<>();
+
+    public QuotaManager(SafeBoxUsageLedger usageLedger,
+                        @Value("${quota.lockStripes:64}") int lockStripes,
+                        @Value("${quota.reserveStepBytes:8388608}") long growStepBytes) {
+        this.usageLedger = usageLedger;
+        this.stripes = new Object[Math.max(1, lockStripes)];
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+        this.growStepBytes = Math.max(1, growStepBytes);
+    }
+
+    /** Work done under the safebox lock at commit; returns the {bytes, files, physical bytes} delta to apply to the ledger. */
+    @FunctionalInterface
+    public interface Commit {
+        long[] apply() throws IOException;
+    }
+
+    /** Lock guarding quota decisions for a safebox. Shared by all safeboxes hashing to the same stripe. */
+    public Object lockFor(Path base) {
+        return stripes[(base.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    /** Reserves initialBytes (may be 0) against capacityBytes, or throws IllegalStateException if they don't fit. */
+    public Reservation reserve(Path base, long capacityBytes, long initialBytes) throws IOException {
+        usageLedger.get(base); // load (or scan) the ledger outside the lock
+        Reservation r = new Reservation(base, capacityBytes);
+        if (initialBytes > 0) r.ensure(initialBytes);
+        return r;
+    }
+
+    private void adjust(Path base, long delta) {
+        // caller holds lockFor(base)
+        long[] r = reserved.computeIfAbsent(base, k -> new long[1]);
+        r[0] += delta;
+        if (r[0] <= 0) reserved.remove(base);
+    }
+
+    /** One upload's hold on capacity. Not thread-safe; owned by the uploading thread. */
+    public final class Reservation implements AutoCloseable {
+        private final Path base;
+        private final long capacityBytes;
+        private long held;
+        private boolean done;
+
+        private Reservation(Path base, long capacityBytes) {
+            this.base = base;
+            this.capacityBytes = capacityBytes;
+        }
+
+        /**
+         * Makes sure at least totalBytes are held. Grows in steps so a streamed upload takes the lock once
+         * per step rather than once per buffer.
+         */
+        public void ensure(long totalBytes) throws IOException {
+            if (totalBytes <= held) return;
+            if (done) throw new IllegalStateException("Reservation already closed");
+            synchronized (lockFor(base)) {
+                long[] r = reserved.get(base);
+                long othersAndMine = r == null ? 0L : r[0];
+                long available = capacityBytes - usageLedger.get(base).usedBytes - othersAndMine;
+                long needed = totalBytes - held;
+                if (needed > available) {
+                    throw new IllegalStateException("Not enough space in SafeBox. Remaining=" + Math.max(0, available)
+                            + " bytes, required=" + needed + " bytes, capacity=" + capacityBytes + " bytes");
+                }
+                long grab = Math.min(Math.max(needed, growStepBytes), available);
+                adjust(base, grab);
+                held += grab;
+            }
+        }
+
+        /** Runs action under the safebox lock, applies its ledger delta and releases the reservation. */
+        public void commit(Commit action) throws IOException {
+            if (done) throw new IllegalStateException("Reservation already closed");
+            synchronized (lockFor(base)) {
+                try {
+                    long[] delta = action.apply();
+                    usageLedger.add(base, delta[0], delta[1], delta[2]);
+                } finally {
+                    release();
+                }
+            }
+        }
+
+        /** Releases whatever is still held (no-op after commit, or when already closed). */
+        @Override
+        public void close() {
+            synchronized (lockFor(base)) {
+                if (!done) release();
+            }
+        }
+
+        private void release() {
+            adjust(base, -held);
+            held = 0;
+            done = true;
+        }
+    }
+}
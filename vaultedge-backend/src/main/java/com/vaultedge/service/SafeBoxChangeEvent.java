@@ -0,0 +1,67 @@
+package com.vaultedge.service;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Published (synchronously, via Spring's ApplicationEventPublisher) after every safebox mutation so
+ * caches and derived views can react without StorageService knowing about them.
+ */
+public class SafeBoxChangeEvent {
+
+    public enum Type {
+        CREATE_SAFEBOX, CREATE_FOLDER, UPLOAD_FILE, DELETE_FILE, DELETE_FOLDER, RENAME_FILE, RENAME_FOLDER,
+        EXTERNAL, // seen by the filesystem watcher, not made through the API; path is the changed entry
+        RESTORE, // a file or folder brought back from the trash; path is where it now is
+        RETENTION_CHANGED // audit retention setting; path is "", retentionDays the new value
+    }
+
+    private final String userId;
+    private final String safeBoxName;
+    private final Path safeBoxRoot;
+    private final Type type;
+    private final String path;    // relative to the safebox root, '/' separated; "" for the root
+    private final String newPath; // rename target, otherwise null
+    private final Integer retentionDays; // RETENTION_CHANGED only
+    private final Instant timestamp = Instant.now();
+
+    public SafeBoxChangeEvent(String userId, String safeBoxName, Path safeBoxRoot, Type type, String path, String newPath) {
+        this(userId, safeBoxName, safeBoxRoot, type, path, newPath, null);
+    }
+
+    public SafeBoxChangeEvent(String userId, String safeBoxName, Path safeBoxRoot, Type type, String path, String newPath,
+                              Integer retentionDays) {
+        this.userId = userId;
+        this.safeBoxName = safeBoxName;
+        this.safeBoxRoot = safeBoxRoot;
+        this.type = type;
+        this.path = path;
+        this.newPath = newPath;
+        this.retentionDays = retentionDays;
+    }
+
+    public String getUserId() { return userId; }
+    public String getSafeBoxName() { return safeBoxName; }
+    public Path getSafeBoxRoot() { return safeBoxRoot; }
+    public Type getType() { return type; }
+    public String getPath() { return path; }
+    public String getNewPath() { return newPath; }
+    public Integer getRetentionDays() { return retentionDays; }
+    public Instant getTimestamp() { return timestamp; }
+
+    /** False for setting changes that leave the safebox's files and folders as they were. */
+    public boolean changesContent() {
+        return type != Type.RETENTION_CHANGED;
+    }
+
+    /** True if this change touches relPath or anything beneath it (or above it, for folder operations). */
+    public boolean affects(String relPath) {
+        return changesContent() && overlaps(path, relPath) || overlaps(newPath, relPath);
+    }
+
+    private static boolean overlaps(String changed, String relPath) {
+        if (changed == null) return false;
+        if (relPath == null || relPath.isEmpty() || changed.isEmpty()) return true;
+        return changed.equals(relPath) || changed.startsWith(relPath + "/") || relPath.startsWith(changed + "/");
+    }
+}
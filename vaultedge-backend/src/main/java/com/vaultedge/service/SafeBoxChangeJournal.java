@@ -0,0 +1,365 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-safebox change journal for delta sync: every {@link SafeBoxChangeEvent} gets the next sequence number
+ * and is appended to <code>.vaultedge/changes.journal</code>; <code>changes.json</code> holds the compacted
+ * history. Clients keep the last sequence they applied and ask for what came after it. Each journaled change is
+ * also handed to {@link ChangeBroadcaster} for clients listening live.
+ * <p>
+ * History is held in memory per safebox and the latest sequence is a volatile read, so a poll with nothing
+ * new touches neither the disk nor a lock.
+ * <p>
+ * Compaction squashes everything but the most recent <code>keepRecent</code> entries: an entry is dropped when
+ * a later one makes it irrelevant (a later upload or delete of the same file, a later delete of an enclosing
+ * folder, a later retention setting), unless a rename in between still needs it. Replaying the squashed history therefore gives the same
+ * end state. If history still exceeds <code>maxEntries</code>, the oldest entries are discarded and clients
+ * behind the new floor are told to resync from the tree.
+ */
+@Component
+public class SafeBoxChangeJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(SafeBoxChangeJournal.class);
+
+    private static final String SNAPSHOT_FILE = "changes.json";
+    private static final String JOURNAL_FILE = "changes.journal";
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final SafeBoxMetadataStore metadataStore;
+    private final ChangeBroadcaster broadcaster;
+    private final int compactAfterEntries;
+    private final int keepRecent;
+    private final int maxEntries;
+
+    // safebox root -> loaded history
+    private final Map<Path, JournalState> states = new ConcurrentHashMap<>();
+
+    public SafeBoxChangeJournal(SafeBoxMetadataStore metadataStore, ChangeBroadcaster broadcaster,
+                                @Value("${storage.changes.compactAfterEntries:2000}") int compactAfterEntries,
+                                @Value("${storage.changes.keepRecent:1000}") int keepRecent,
+                                @Value("${storage.changes.maxEntries:100000}") int maxEntries) {
+        this.metadataStore = metadataStore;
+        this.broadcaster = broadcaster;
+        this.compactAfterEntries = Math.max(1, compactAfterEntries);
+        this.keepRecent = Math.max(0, keepRecent);
+        this.maxEntries = Math.max(this.keepRecent + 1, maxEntries);
+    }
+
+    @EventListener
+    public void onSafeBoxChange(SafeBoxChangeEvent event) {
+        try {
+            append(event);
+        } catch (IOException e) {
+            // The mutation itself succeeded; a sync client will see it on its next full resync
+            log.warn("Could not journal {} {} in {}", event.getType(), event.getPath(), event.getSafeBoxRoot(), e);
+            broadcaster.publish(event, null);
+        }
+    }
+
+    /** Records a change, pushes it to live subscribers and returns its sequence number. */
+    public long append(SafeBoxChangeEvent event) throws IOException {
+        Path base = event.getSafeBoxRoot();
+        JournalState st = state(base);
+        Change c = new Change();
+        c.type = event.getType().name();
+        c.path = event.getPath();
+        c.newPath = event.getNewPath();
+        c.at = event.getTimestamp().toEpochMilli();
+        c.retentionDays = event.getRetentionDays();
+        if (event.getType() == SafeBoxChangeEvent.Type.UPLOAD_FILE && c.path != null) {
+            // State after the upload, so clients can skip fetching content they already hold
+            SafeBoxMetadataStore.FileMeta meta = metadataStore.get(base, c.path);
+            if (meta != null) {
+                c.size = meta.contentSize();
+                c.sha256 = meta.sha256;
+            }
+        }
+        synchronized (st) {
+            c.seq = st.lastSeq + 1;
+            byte[] line = (mapper.writeValueAsString(c) + "\n").getBytes(StandardCharsets.UTF_8);
+            Files.createDirectories(st.journalFile.getParent());
+            try (FileChannel ch = FileChannel.open(st.journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buf = ByteBuffer.wrap(line);
+                while (buf.hasRemaining()) ch.write(buf);
+                ch.force(false);
+            }
+            st.entries.add(c);
+            st.lastSeq = c.seq; // published last: readers that see it also see the entry
+            broadcaster.publish(event, c); // under the lock, so subscribers see a safebox's changes in seq order
+            if (++st.journalEntries >= compactAfterEntries) compactLocked(st);
+        }
+        return c.seq;
+    }
+
+    /**
+     * Changes after <code>since</code>, oldest first, at most <code>limit</code>. A null since returns just the
+     * current cursor (the starting point for a client that has just read the tree).
+     */
+    public ChangePage changes(Path base, Long since, int limit) throws IOException {
+        JournalState st = state(base);
+        ChangePage page = new ChangePage();
+        long last = st.lastSeq;
+        page.latestSeq = last;
+        page.items = List.of();
+        if (since == null || since == last) {
+            page.nextSince = last;
+            return page;
+        }
+        synchronized (st) {
+            page.latestSeq = st.lastSeq;
+            page.floorSeq = st.floorSeq;
+            if (since < st.floorSeq || since > st.lastSeq) {
+                // History the client needs was discarded (or the cursor is from another journal): full resync
+                page.resetRequired = true;
+                page.nextSince = st.lastSeq;
+                return page;
+            }
+            int from = firstAfter(st.entries, since);
+            int to = Math.min(st.entries.size(), from + Math.max(1, limit));
+            page.items = new ArrayList<>(st.entries.subList(from, to));
+            page.hasMore = to < st.entries.size();
+            page.nextSince = page.hasMore ? st.entries.get(to - 1).seq : st.lastSeq;
+        }
+        return page;
+    }
+
+    /** Latest sequence number for the safebox (0 if nothing was journaled yet). */
+    public long latestSeq(Path base) throws IOException {
+        return state(base).lastSeq;
+    }
+
+    @Scheduled(fixedDelayString = "${storage.changes.compactIntervalMs:60000}")
+    public void compactIfNeeded() {
+        for (Map.Entry<Path, JournalState> e : states.entrySet()) {
+            JournalState st = e.getValue();
+            if (st.journalEntries == 0) continue;
+            try {
+                synchronized (st) {
+                    compactLocked(st);
+                }
+            } catch (IOException ex) {
+                log.warn("Change journal compaction failed for {}", e.getKey(), ex);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compactIfNeeded();
+    }
+
+    // ===== internals =====
+
+    private static int firstAfter(List<Change> entries, long since) {
+        int lo = 0;
+        int hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid).seq <= since) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private JournalState state(Path base) throws IOException {
+        JournalState st = states.get(base);
+        if (st != null) return st;
+        synchronized (states) {
+            st = states.get(base);
+            if (st == null) {
+                st = load(base);
+                states.put(base, st);
+            }
+            return st;
+        }
+    }
+
+    private JournalState load(Path base) throws IOException {
+        Path dir = base.resolve(StorageService.INTERNAL_DIR);
+        JournalState st = new JournalState(dir.resolve(JOURNAL_FILE));
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            Snapshot snap = mapper.readValue(snapshotFile.toFile(), Snapshot.class);
+            if (snap != null) {
+                if (snap.entries != null) st.entries.addAll(snap.entries);
+                st.floorSeq = snap.floorSeq;
+                st.lastSeq = snap.lastSeq;
+            }
+        }
+        if (Files.exists(st.journalFile)) {
+            try (BufferedReader r = Files.newBufferedReader(st.journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    try {
+                        Change c = mapper.readValue(line, Change.class);
+                        if (c.seq <= st.lastSeq) continue; // already folded into the snapshot
+                        st.entries.add(c);
+                        st.lastSeq = c.seq;
+                        st.journalEntries++;
+                    } catch (IOException e) {
+                        // torn tail from a crash mid-append; everything before it is intact
+                        log.warn("Ignoring unreadable change journal line in {}", st.journalFile);
+                    }
+                }
+            }
+        }
+        return st;
+    }
+
+    private void compactLocked(JournalState st) throws IOException {
+        List<Change> squashed = squash(st.entries, st.entries.size() - keepRecent);
+        long floor = st.floorSeq;
+        if (squashed.size() > maxEntries) {
+            int drop = squashed.size() - maxEntries;
+            floor = squashed.get(drop - 1).seq;
+            squashed = new ArrayList<>(squashed.subList(drop, squashed.size()));
+        }
+        Path snapshotFile = st.journalFile.resolveSibling(SNAPSHOT_FILE);
+        Path tmp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        Snapshot out = new Snapshot();
+        out.floorSeq = floor;
+        out.lastSeq = st.lastSeq;
+        out.entries = squashed;
+        Files.createDirectories(snapshotFile.getParent());
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(mapper.writeValueAsBytes(out));
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        try {
+            Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(st.journalFile);
+        st.journalEntries = 0;
+        st.entries.clear();
+        st.entries.addAll(squashed);
+        st.floorSeq = floor;
+    }
+
+    /**
+     * Drops entries among the first <code>squashable</code> that a later entry supersedes. Walks backwards,
+     * tracking which file paths are rewritten and which folders are deleted later on; a rename reads its source
+     * (and writes its target), so it clears what is known about both before earlier entries are looked at.
+     */
+    static List<Change> squash(List<Change> entries, int squashable) {
+        if (squashable <= 0) return new ArrayList<>(entries);
+        Set<String> rewrittenFiles = new HashSet<>();
+        Set<String> createdFolders = new HashSet<>();
+        Set<String> deletedFolders = new HashSet<>();
+        boolean laterRetention = false;
+        boolean[] keep = new boolean[entries.size()];
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Change c = entries.get(i);
+            String type = c.type == null ? "" : c.type;
+            boolean fileOp = type.equals(SafeBoxChangeEvent.Type.UPLOAD_FILE.name()) || type.equals(SafeBoxChangeEvent.Type.DELETE_FILE.name());
+            boolean folderOp = type.equals(SafeBoxChangeEvent.Type.CREATE_FOLDER.name()) || type.equals(SafeBoxChangeEvent.Type.DELETE_FOLDER.name());
+            // Renames move their source away and external changes and restores cover unknown paths, so all are kept
+            boolean superseded = c.path != null && (fileOp || folderOp) && (under(deletedFolders, c.path)
+                    || fileOp && rewrittenFiles.contains(c.path)
+                    || type.equals(SafeBoxChangeEvent.Type.CREATE_FOLDER.name()) && createdFolders.contains(c.path));
+            if (type.equals(SafeBoxChangeEvent.Type.RETENTION_CHANGED.name())) {
+                superseded = laterRetention; // only the latest setting matters
+                laterRetention = true;
+            }
+            keep[i] = i >= squashable || !superseded;
+            if (c.path == null) continue;
+            switch (type) {
+                case "UPLOAD_FILE", "DELETE_FILE" -> rewrittenFiles.add(c.path);
+                case "CREATE_FOLDER" -> createdFolders.add(c.path);
+                case "DELETE_FOLDER" -> deletedFolders.add(c.path);
+                case "RENAME_FILE", "RENAME_FOLDER", "EXTERNAL", "RESTORE", "CREATE_SAFEBOX" -> {
+                    forget(rewrittenFiles, createdFolders, deletedFolders, c.path);
+                    if (c.newPath != null) forget(rewrittenFiles, createdFolders, deletedFolders, c.newPath);
+                }
+                default -> { }
+            }
+        }
+        List<Change> out = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) if (keep[i]) out.add(entries.get(i));
+        return out;
+    }
+
+    /** True if path is one of the folders or lies beneath one ("" is the safebox root). */
+    private static boolean under(Set<String> folders, String path) {
+        if (folders.isEmpty()) return false;
+        if (folders.contains("")) return true;
+        for (String p = path; ; p = p.substring(0, p.lastIndexOf('/'))) {
+            if (folders.contains(p)) return true;
+            if (p.lastIndexOf('/') < 0) return false;
+        }
+    }
+
+    /** Forgets what is known at, beneath or above path (the entry there reads or replaces all of it). */
+    private static void forget(Set<String> files, Set<String> created, Set<String> deleted, String path) {
+        String prefix = path + "/";
+        for (Set<String> set : List.of(files, created, deleted)) {
+            if (path.isEmpty()) set.clear();
+            else set.removeIf(p -> p.equals(path) || p.startsWith(prefix) || p.isEmpty() || path.startsWith(p + "/"));
+        }
+    }
+
+    private static final class JournalState {
+        final Path journalFile;
+        final List<Change> entries = new ArrayList<>(); // ascending seq; guarded by this
+        volatile long lastSeq;
+        long floorSeq; // entries at or below this were discarded
+        volatile int journalEntries;
+
+        JournalState(Path journalFile) {
+            this.journalFile = journalFile;
+        }
+    }
+
+    public static class Change {
+        public long seq;
+        public String type; // SafeBoxChangeEvent.Type name
+        public String path; // relative, '/' separated; "" is the safebox root
+        public String newPath; // renames only
+        public long at; // epoch millis
+        public Long size; // uploads: logical size after the change
+        public String sha256; // uploads: content digest after the change, when known
+        public Integer retentionDays; // RETENTION_CHANGED only
+    }
+
+    public static class ChangePage {
+        public long latestSeq;
+        public long floorSeq;
+        public boolean resetRequired; // history before the cursor is gone: reload the tree, then continue from nextSince
+        public boolean hasMore;
+        public long nextSince; // pass back as ?since= on the next poll
+        public List<Change> items;
+    }
+
+    public static class Snapshot {
+        public long floorSeq;
+        public long lastSeq;
+        public List<Change> entries;
+    }
+}
@@ -0,0 +1,423 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-file metadata (original date, content type, size, mtime, digest) for each safebox, kept in
+ * <code>.vaultedge/metadata.json</code> and loaded once into memory.
+ * <p>
+ * Same layout as {@link StorageMappingStore}: every change is appended as one JSON line to
+ * <code>.vaultedge/metadata.journal</code> and the journal is folded into the snapshot file from time to
+ * time. On first load of a safebox, legacy <code>&lt;file&gt;.orig</code> sidecars are imported and removed.
+ * <p>
+ * Entries are kept sorted by path, so a folder's entries are one key range and removing or moving a folder costs
+ * only its own entries. Journal channels stay open and are forced to disk on an interval (group commit, as in
+ * {@link AuditLogWriter}) rather than once per change; a crash loses at most that interval's changes, and a torn
+ * last line is skipped on load.
+ */
+@Component
+public class SafeBoxMetadataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SafeBoxMetadataStore.class);
+
+    private static final String SNAPSHOT_FILE = "metadata.json";
+    private static final String JOURNAL_FILE = "metadata.journal";
+    private static final String LEGACY_SIDECAR_SUFFIX = ".orig";
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final int compactAfterEntries;
+    private final long fsyncIntervalMs;
+
+    // safebox root -> loaded metadata
+    private final Map<Path, SafeBoxState> states = new ConcurrentHashMap<>();
+    // forces journals written since the last pass; null when every change is forced inline
+    private final ScheduledExecutorService syncer;
+
+    public SafeBoxMetadataStore(@Value("${storage.metadata.compactAfterEntries:1000}") int compactAfterEntries,
+                                @Value("${storage.metadata.fsyncIntervalMs:1000}") long fsyncIntervalMs) {
+        this.compactAfterEntries = Math.max(1, compactAfterEntries);
+        this.fsyncIntervalMs = Math.max(0, fsyncIntervalMs);
+        this.syncer = this.fsyncIntervalMs > 0 ? Executors.newSingleThreadScheduledExecutor(daemon("metadata-sync")) : null;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (syncer != null) {
+            syncer.scheduleWithFixedDelay(this::syncJournals, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Loads (and on first use migrates) the safebox's metadata. Cheap after the first call. */
+    public void open(Path base) throws IOException {
+        state(base);
+    }
+
+    public FileMeta get(Path base, String relPath) throws IOException {
+        return state(base).files.get(relPath);
+    }
+
+    /** Read-only view of every entry, keyed by '/'-separated relative path (sorted). */
+    public Map<String, FileMeta> all(Path base) throws IOException {
+        return Collections.unmodifiableMap(state(base).files);
+    }
+
+    public void put(Path base, String relPath, FileMeta meta) throws IOException {
+        JournalEntry je = new JournalEntry();
+        je.op = "put";
+        je.path = relPath;
+        je.meta = meta;
+        apply(state(base), je);
+    }
+
+    /** Puts meta only if the entry is still expected (null = absent); false if it changed meanwhile. */
+    public boolean replace(Path base, String relPath, FileMeta expected, FileMeta meta) throws IOException {
+        SafeBoxState st = state(base);
+        synchronized (st) {
+            if (st.files.get(relPath) != expected) return false;
+            put(base, relPath, meta);
+            return true;
+        }
+    }
+
+    /** Removes relPath and, for folders, everything beneath it. */
+    public void remove(Path base, String relPath) throws IOException {
+        SafeBoxState st = state(base);
+        if (!st.files.containsKey(relPath) && !hasDescendants(st, relPath)) return;
+        JournalEntry je = new JournalEntry();
+        je.op = "remove";
+        je.path = relPath;
+        apply(st, je);
+    }
+
+    /** Re-keys relPath (and, for folders, everything beneath it) to newRelPath. */
+    public void move(Path base, String relPath, String newRelPath) throws IOException {
+        SafeBoxState st = state(base);
+        if (!st.files.containsKey(relPath) && !hasDescendants(st, relPath)) return;
+        JournalEntry je = new JournalEntry();
+        je.op = "move";
+        je.path = relPath;
+        je.to = newRelPath;
+        apply(st, je);
+    }
+
+    /** Drops entries at or under relPath whose file no longer exists (after a partially failed delete). */
+    public void pruneMissing(Path base, String relPath) throws IOException {
+        SafeBoxState st = state(base);
+        List<String> gone = new ArrayList<>();
+        if (st.files.containsKey(relPath) && !Files.exists(base.resolve(relPath))) gone.add(relPath);
+        for (String k : descendants(st.files, relPath).keySet()) {
+            if (!Files.exists(base.resolve(k))) gone.add(k);
+        }
+        for (String k : gone) remove(base, k);
+    }
+
+    /** Builds an entry from the file's current attributes, keeping fields the caller does not supply. */
+    public static FileMeta describe(Path file, FileMeta previous, Long originalDateMs) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        FileMeta m = new FileMeta();
+        m.size = attrs.size();
+        m.modifiedAt = attrs.lastModifiedTime().toMillis();
+        m.contentType = URLConnection.guessContentTypeFromName(file.getFileName().toString());
+        m.originalDate = originalDateMs != null && originalDateMs > 0 ? originalDateMs : (previous != null ? previous.originalDate : null);
+        return m;
+    }
+
+    @Scheduled(fixedDelayString = "${storage.metadata.compactIntervalMs:60000}")
+    public void compactIfNeeded() {
+        for (Map.Entry<Path, SafeBoxState> e : states.entrySet()) {
+            SafeBoxState st = e.getValue();
+            if (st.journalEntries == 0) continue;
+            try {
+                synchronized (st) {
+                    compactLocked(st);
+                }
+            } catch (IOException ex) {
+                log.warn("Metadata journal compaction failed for {}", e.getKey(), ex);
+            }
+        }
+    }
+
+    /** Forces every journal written since the last pass, and closes the ones that have been idle since. */
+    void syncJournals() {
+        for (Map.Entry<Path, SafeBoxState> e : states.entrySet()) {
+            SafeBoxState st = e.getValue();
+            FileChannel ch;
+            synchronized (st) {
+                ch = st.journal;
+                if (ch == null) continue;
+                if (!st.unsynced) {
+                    closeJournalLocked(st);
+                    continue;
+                }
+                st.unsynced = false;
+            }
+            try {
+                ch.force(false); // outside the lock: appends carry on while the disk catches up
+            } catch (ClosedChannelException ex) {
+                // compacted meanwhile; the snapshot is forced and the journal gone
+            } catch (IOException ex) {
+                log.warn("Metadata journal sync failed for {}", e.getKey(), ex);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (syncer != null) syncer.shutdownNow();
+        compactIfNeeded(); // also closes the journals
+    }
+
+    // ===== internals =====
+
+    private SafeBoxState state(Path base) throws IOException {
+        SafeBoxState st = states.get(base);
+        if (st != null) return st;
+        synchronized (states) {
+            st = states.get(base);
+            if (st == null) {
+                st = load(base);
+                states.put(base, st);
+            }
+            return st;
+        }
+    }
+
+    private void apply(SafeBoxState st, JournalEntry je) throws IOException {
+        synchronized (st) {
+            byte[] line = (mapper.writeValueAsString(je) + "\n").getBytes(StandardCharsets.UTF_8);
+            if (st.journal == null) {
+                Files.createDirectories(st.journalFile.getParent());
+                st.journal = FileChannel.open(st.journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(line);
+            while (buf.hasRemaining()) st.journal.write(buf);
+            if (syncer == null) st.journal.force(false);
+            else st.unsynced = true;
+            replay(st.files, je);
+            if (++st.journalEntries >= compactAfterEntries) compactLocked(st);
+        }
+    }
+
+    private static void replay(NavigableMap<String, FileMeta> files, JournalEntry je) {
+        if (je.path == null || je.op == null) return;
+        switch (je.op) {
+            case "put" -> {
+                if (je.meta != null) files.put(je.path, je.meta);
+            }
+            case "remove" -> {
+                files.remove(je.path);
+                descendants(files, je.path).clear();
+            }
+            case "move" -> {
+                if (je.to == null) return;
+                Map<String, FileMeta> moved = new HashMap<>();
+                FileMeta self = files.remove(je.path);
+                if (self != null) moved.put(je.to, self);
+                NavigableMap<String, FileMeta> under = descendants(files, je.path);
+                for (Map.Entry<String, FileMeta> e : under.entrySet()) {
+                    moved.put(je.to + e.getKey().substring(je.path.length()), e.getValue());
+                }
+                under.clear();
+                files.putAll(moved);
+            }
+            default -> { }
+        }
+    }
+
+    /** Live view of the entries strictly beneath relPath: the key range ["relPath/", "relPath0"), '0' being '/' + 1. */
+    private static NavigableMap<String, FileMeta> descendants(NavigableMap<String, FileMeta> files, String relPath) {
+        return files.subMap(relPath + "/", true, relPath + "0", false);
+    }
+
+    private static boolean hasDescendants(SafeBoxState st, String relPath) {
+        return !descendants(st.files, relPath).isEmpty();
+    }
+
+    private SafeBoxState load(Path base) throws IOException {
+        Path dir = base.resolve(StorageService.INTERNAL_DIR);
+        SafeBoxState st = new SafeBoxState(dir.resolve(JOURNAL_FILE));
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        boolean existing = Files.exists(snapshotFile) || Files.exists(st.journalFile);
+        if (Files.exists(snapshotFile)) {
+            Snapshot snap = mapper.readValue(snapshotFile.toFile(), Snapshot.class);
+            if (snap != null && snap.files != null) st.files.putAll(snap.files);
+        }
+        if (Files.exists(st.journalFile)) {
+            try (BufferedReader r = Files.newBufferedReader(st.journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    try {
+                        replay(st.files, mapper.readValue(line, JournalEntry.class));
+                        st.journalEntries++;
+                    } catch (IOException e) {
+                        // torn tail from a crash mid-append; everything before it is intact
+                        log.warn("Ignoring unreadable metadata journal line in {}", st.journalFile);
+                    }
+                }
+            }
+        }
+        if (!existing && Files.isDirectory(base)) {
+            migrateSidecars(base, st);
+            Files.createDirectories(dir);
+            compactLocked(st); // writes the snapshot, which also marks the migration as done
+        }
+        return st;
+    }
+
+    /** One-time import of legacy <code>&lt;file&gt;.orig</code> sidecars (epoch millis as text). */
+    private void migrateSidecars(Path base, SafeBoxState st) throws IOException {
+        List<Path> sidecars = new ArrayList<>();
+        Files.walkFileTree(base, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                return StorageService.isInternalPath(base, d) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.getFileName().toString().endsWith(LEGACY_SIDECAR_SUFFIX)) sidecars.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        int imported = 0;
+        for (Path sidecar : sidecars) {
+            String name = sidecar.getFileName().toString();
+            Path file = sidecar.resolveSibling(name.substring(0, name.length() - LEGACY_SIDECAR_SUFFIX.length()));
+            Long ms;
+            try {
+                ms = Long.parseLong(Files.readString(sidecar, StandardCharsets.UTF_8).trim());
+            } catch (IOException | NumberFormatException e) {
+                continue; // not a sidecar after all: a user file that happens to end in .orig
+            }
+            if (Files.isRegularFile(file)) {
+                st.files.put(StorageService.relativize(base, file), describe(file, null, ms));
+                imported++;
+            }
+            // Orphaned sidecars (file already gone) are dropped as well
+            Files.deleteIfExists(sidecar);
+        }
+        if (!sidecars.isEmpty()) log.info("Migrated {} .orig sidecar(s) into metadata store for {}", imported, base);
+    }
+
+    private void compactLocked(SafeBoxState st) throws IOException {
+        Path snapshotFile = st.journalFile.resolveSibling(SNAPSHOT_FILE);
+        Path tmp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        Snapshot out = new Snapshot();
+        out.files = new HashMap<>(st.files);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(mapper.writeValueAsBytes(out));
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        try {
+            Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        closeJournalLocked(st);
+        Files.deleteIfExists(st.journalFile);
+        st.journalEntries = 0;
+    }
+
+    private static void closeJournalLocked(SafeBoxState st) {
+        if (st.journal == null) return;
+        try {
+            st.journal.close();
+        } catch (IOException e) {
+            log.warn("Closing metadata journal {} failed", st.journalFile, e);
+        }
+        st.journal = null;
+        st.unsynced = false;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static final class SafeBoxState {
+        final Path journalFile;
+        final NavigableMap<String, FileMeta> files = new ConcurrentSkipListMap<>();
+        volatile int journalEntries;
+        FileChannel journal; // open while the safebox is being written; guarded by this
+        boolean unsynced; // appended since the last force; guarded by this
+
+        SafeBoxState(Path journalFile) {
+            this.journalFile = journalFile;
+        }
+    }
+
+    /** Entries are shared with readers: replace them via {@link #put}, never modify in place. */
+    public static class FileMeta {
+        public Long originalDate; // client-provided original date, epoch millis
+        public String contentType;
+        public long size;
+        public long modifiedAt; // epoch millis, as of the last write through the API
+        public String sha256; // hex, when known
+        public String encoding; // null = bytes stored as-is; otherwise see FileContentStore
+        public Long logicalSize; // content size when encoded (size is then the stored file's size)
+
+        /** True if the file on disk still has the size/mtime this entry was recorded with. */
+        public boolean matches(BasicFileAttributes attrs) {
+            return attrs.size() == size && attrs.lastModifiedTime().toMillis() == modifiedAt;
+        }
+
+        /** Size of the file's content as users see it. */
+        public long contentSize() {
+            return logicalSize != null ? logicalSize : size;
+        }
+    }
+
+    public static class Snapshot {
+        public Map<String, FileMeta> files;
+    }
+
+    public static class JournalEntry {
+        public String op; // put | remove | move
+        public String path;
+        public String to;
+        public FileMeta meta;
+    }
+}
@@ -0,0 +1,667 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Per-safebox trash. Deleting moves the file or folder into <code>.vaultedge/trash/&lt;id&gt;/</code> with one
+ * rename, whatever its size; a background purger reclaims the space later.
+ * <p>
+ * Each entry has a sidecar <code>trash/&lt;id&gt;.json</code> (original path, kind, time) written before the move,
+ * so a crash leaves at worst a sidecar without content (dropped on load) or content without a sidecar (adopted
+ * under its own name). Metadata follows the entry into the trash and back out on restore.
+ * <p>
+ * Trashed content still occupies the disk, so it stays on the usage ledger until purged, counted as trash rather than
+ * as live files: a delete or restore transfers the entry's totals between the two. Trash counts toward physical usage
+ * but not toward quota, so a delete frees quota at once; a restore has to fit like an upload. The purger takes each file off
+ * the ledger as it deletes it, under the safebox's quota lock, so usage is exact at every point of a purge.
+ * Entries older than the safebox's retention are purged automatically. Purging is paced by a byte and file budget
+ * per second, so emptying a huge folder does not starve user I/O.
+ */
+@Component
+public class SafeBoxTrash {
+
+    private static final Logger log = LoggerFactory.getLogger(SafeBoxTrash.class);
+    static final String TRASH_DIR = "trash";
+    private static final String POLICY_FILE = "trash-policy.json";
+    private static final String SIDECAR_SUFFIX = ".json";
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final SafeBoxMetadataStore metadataStore;
+    private final FileContentStore contentStore;
+    private final SafeBoxUsageLedger usageLedger;
+    private final QuotaManager quotaManager;
+    private final Path storageRoot;
+    private final boolean enabled;
+    private final int defaultRetentionDays;
+    private final long purgeBytesPerSecond;
+    private final long purgeFilesPerSecond;
+
+    // safebox root -> loaded trash index; dropped again once the trash is empty (see evictIfEmpty)
+    private final Map<Path, Bin> bins = new ConcurrentHashMap<>();
+    // safeboxes with entries waiting to be purged
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    // purger thread: paced by the budget, so kept off the shared scheduler where maintenance walks would stall it
+    private final ScheduledExecutorService purger;
+    private final long purgeIntervalMs;
+    // purge budget; only touched by the purger thread
+    private double byteTokens;
+    private double fileTokens;
+    private double byteFloor; // budget the safebox being purged must leave to the ones after it
+    private double fileFloor;
+    private long rotation; // round-robin start among the pending safeboxes
+    private long lastRefill = System.nanoTime();
+
+    public SafeBoxTrash(SafeBoxMetadataStore metadataStore, FileContentStore contentStore,
+                        SafeBoxUsageLedger usageLedger, QuotaManager quotaManager, StorageMappingStore mappingStore,
+                        @Value("${storage.trash.enabled:true}") boolean enabled,
+                        @Value("${storage.trash.retentionDays:30}") int defaultRetentionDays,
+                        @Value("${storage.trash.purgeBytesPerSecond:67108864}") long purgeBytesPerSecond,
+                        @Value("${storage.trash.purgeFilesPerSecond:500}") long purgeFilesPerSecond,
+                        @Value("${storage.trash.purgeIntervalMs:1000}") long purgeIntervalMs) {
+        this.metadataStore = metadataStore;
+        this.contentStore = contentStore;
+        this.usageLedger = usageLedger;
+        this.quotaManager = quotaManager;
+        this.storageRoot = mappingStore.getStorageRoot();
+        this.enabled = enabled;
+        this.defaultRetentionDays = Math.max(0, defaultRetentionDays);
+        this.purgeBytesPerSecond = Math.max(1, purgeBytesPerSecond);
+        this.purgeFilesPerSecond = Math.max(1, purgeFilesPerSecond);
+        this.purger = Executors.newSingleThreadScheduledExecutor(daemon("trash-purge"));
+        this.purgeIntervalMs = Math.max(10, purgeIntervalMs);
+    }
+
+    @PostConstruct
+    public void start() {
+        purger.scheduleWithFixedDelay(this::purgeStep, purgeIntervalMs, purgeIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        purger.shutdownNow();
+    }
+
+    /** False when deletes are configured to be permanent. */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /** True for trashed content (not the sidecars), which still counts as used space. */
+    static boolean isTrashContent(Path base, Path p) {
+        Path root = trashRoot(base);
+        return p.startsWith(root) && !p.equals(root) && !root.equals(p.getParent());
+    }
+
+    /** Trash folder itself or anything inside it (the usage scan descends here despite it being internal). */
+    static boolean inTrash(Path base, Path p) {
+        return p.startsWith(trashRoot(base));
+    }
+
+    // ===== trash / restore =====
+
+    /**
+     * Moves target into the trash in one rename. The caller publishes the change and writes the audit record.
+     * usage is target's {bytes, files} from {@link #measure}, or null to measure it here (fine for a single file;
+     * callers measure folders before taking the quota lock).
+     */
+    public Item put(Path base, Path target, long[] usage) throws IOException {
+        Bin bin = pin(base);
+        try {
+            return put(base, bin, target, usage != null ? usage : measure(base, target));
+        } finally {
+            unpin(bin);
+        }
+    }
+
+    /** Logical {bytes, files} of the regular files at or under target, as the ledger counts them. */
+    public long[] measure(Path base, Path target) throws IOException {
+        long[] usage = new long[2];
+        Files.walkFileTree(target, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    usage[0] += contentStore.contentSize(base, file, attrs);
+                    usage[1]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return usage;
+    }
+
+    /** Same for a trashed entry; {0, 0} if it has no content. */
+    public long[] measure(Path base, String id) throws IOException {
+        Bin bin = bin(base);
+        Item item;
+        synchronized (bin) {
+            item = bin.items.get(id);
+        }
+        Path payload = item == null ? null : payload(bin, item);
+        return payload == null ? new long[2] : measure(base, payload);
+    }
+
+    private Item put(Path base, Bin bin, Path target, long[] usage) throws IOException {
+        Item item = new Item();
+        item.id = newId();
+        item.path = StorageService.relativize(base, target);
+        item.folder = Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS);
+        item.deletedAt = System.currentTimeMillis();
+        Path dir = bin.root.resolve(item.id);
+        Files.createDirectories(dir);
+        Path dest = dir.resolve(target.getFileName().toString());
+        try {
+            // A fresh file, no temp-and-rename: a torn sidecar only means the entry is adopted under its own name
+            Files.write(sidecar(bin, item.id), mapper.writeValueAsBytes(item), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            Files.move(target, dest, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(sidecar(bin, item.id));
+            deleteQuietly(dir);
+            throw e;
+        }
+        usageLedger.transfer(base, SafeBoxUsageLedger.Kind.LIVE, SafeBoxUsageLedger.Kind.TRASH, usage[0], usage[1]);
+        metadataStore.move(base, item.path, StorageService.relativize(base, dest));
+        synchronized (bin) {
+            bin.items.put(item.id, item);
+        }
+        return item;
+    }
+
+    /** @throws NoSuchElementException if the id is not in the trash */
+    public Item find(Path base, String id) throws IOException {
+        Bin bin = bin(base);
+        synchronized (bin) {
+            Item it = bin.items.get(id);
+            if (it == null) throw new NoSuchElementException("Not in trash: " + id);
+            return it;
+        }
+    }
+
+    /** Entries in the trash, oldest first, with their expiry under the current policy. */
+    public List<Item> list(Path base) throws IOException {
+        Bin bin = bin(base);
+        int days = policy(base).retentionDays;
+        List<Item> out = new ArrayList<>();
+        synchronized (bin) {
+            for (Item it : bin.items.values()) out.add(withExpiry(it, days));
+        }
+        return out;
+    }
+
+    /**
+     * Moves an entry back to dest (created parents included). The caller holds the safebox's quota lock, so the
+     * emptiness check and the rename cannot interleave with an upload committing to the same path. usage is the
+     * entry's {bytes, files} from {@link #measure(Path, String)}, or null to measure it here.
+     *
+     * @throws NoSuchElementException if the id is not in the trash
+     * @throws IllegalStateException if the entry is already being purged
+     * @throws IllegalArgumentException if something exists at dest
+     */
+    public Item restore(Path base, String id, Path dest, long[] usage) throws IOException {
+        Bin bin = pin(base);
+        try {
+            return restore(base, bin, id, dest, usage);
+        } finally {
+            unpin(bin);
+        }
+    }
+
+    private Item restore(Path base, Bin bin, String id, Path dest, long[] usage) throws IOException {
+        Item item;
+        synchronized (bin) {
+            item = bin.items.get(id);
+            if (item == null) throw new NoSuchElementException("Not in trash: " + id);
+            if (item.purging) throw new IllegalStateException("Already being purged: " + item.path);
+            bin.items.remove(id); // claimed: the purger and other restores no longer see it
+        }
+        Path payload;
+        try {
+            payload = payload(bin, item);
+            if (payload == null) throw new IllegalStateException("Trash entry has no content: " + item.path);
+            if (Files.exists(dest, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IllegalArgumentException("Something already exists at " + StorageService.relativize(base, dest));
+            }
+            if (usage == null) usage = measure(base, payload);
+            Files.createDirectories(dest.getParent());
+            Files.move(payload, dest, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            synchronized (bin) {
+                bin.items.put(item.id, item);
+            }
+            throw e;
+        }
+        usageLedger.transfer(base, SafeBoxUsageLedger.Kind.TRASH, SafeBoxUsageLedger.Kind.LIVE, usage[0], usage[1]);
+        metadataStore.move(base, StorageService.relativize(base, payload), StorageService.relativize(base, dest));
+        Files.deleteIfExists(sidecar(bin, item.id));
+        deleteQuietly(bin.root.resolve(item.id));
+        return item;
+    }
+
+    // ===== purge / expiry =====
+
+    /** Queues one entry (or, with a null id, the whole trash) for purging; returns the entries queued. */
+    public List<Item> purge(Path base, String id) throws IOException {
+        Bin bin = bin(base);
+        List<Item> marked = new ArrayList<>();
+        synchronized (bin) {
+            if (id != null && !bin.items.containsKey(id)) throw new NoSuchElementException("Not in trash: " + id);
+            for (Item it : bin.items.values()) {
+                if ((id == null || it.id.equals(id)) && !it.purging) {
+                    it.purging = true;
+                    writeSidecar(bin, it);
+                    marked.add(it);
+                }
+            }
+        }
+        if (!marked.isEmpty()) pending.add(base);
+        return marked;
+    }
+
+    /** Queues entries older than the safebox's retention. */
+    public int expire(Path base) throws IOException {
+        int days = policy(base).retentionDays;
+        if (days <= 0) return 0;
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+        Bin bin = bin(base);
+        int marked = 0;
+        synchronized (bin) {
+            for (Item it : bin.items.values()) {
+                if (!it.purging && it.deletedAt < cutoff) {
+                    it.purging = true;
+                    writeSidecar(bin, it);
+                    marked++;
+                }
+            }
+            if (bin.items.values().stream().anyMatch(it -> it.purging)) pending.add(base);
+        }
+        return marked;
+    }
+
+    /**
+     * Finds safeboxes with a trash (walking the storage root, as the version pruner does), expires old entries and
+     * resumes purges interrupted by a restart; then forgets the indexes of trashes that are empty.
+     */
+    @Scheduled(initialDelayString = "${storage.trash.expireInitialDelayMs:60000}",
+            fixedDelayString = "${storage.trash.expireIntervalMs:3600000}")
+    public void expireAll() {
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(storageRoot, Files::isDirectory)) {
+            for (Path userRoot : users) {
+                if (userRoot.getFileName().toString().startsWith(".")) continue;
+                try (DirectoryStream<Path> boxes = Files.newDirectoryStream(userRoot, Files::isDirectory)) {
+                    for (Path box : boxes) {
+                        if ("RootVault".equals(box.getFileName().toString())) {
+                            try (DirectoryStream<Path> masked = Files.newDirectoryStream(box, Files::isDirectory)) {
+                                for (Path m : masked) expireQuietly(m);
+                            }
+                        } else if (!box.getFileName().toString().startsWith(".")) {
+                            expireQuietly(box);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            log.warn("Trash expiry pass failed", e);
+        }
+        for (Path base : bins.keySet()) evictIfEmpty(base); // listed or emptied since, by restores too
+    }
+
+    private void expireQuietly(Path base) {
+        if (!Files.isDirectory(trashRoot(base))) return;
+        try {
+            expire(base);
+        } catch (IOException e) {
+            log.warn("Trash expiry failed for {}", base, e);
+        }
+    }
+
+    /**
+     * Deletes queued entries within the I/O budget accumulated since the last run (at most one second's worth).
+     * Runs every purgeIntervalMs on the purger thread.
+     */
+    public void purgeStep() {
+        try {
+            purgeWithinBudget();
+        } catch (RuntimeException e) { // keep the schedule alive
+            log.warn("Trash purge step failed", e);
+        }
+    }
+
+    private void purgeWithinBudget() {
+        long now = System.nanoTime();
+        double seconds = Math.min(1.0, (now - lastRefill) / 1e9);
+        lastRefill = now;
+        byteTokens = Math.min(purgeBytesPerSecond, byteTokens + seconds * purgeBytesPerSecond);
+        fileTokens = Math.min(purgeFilesPerSecond, fileTokens + seconds * purgeFilesPerSecond);
+        List<Path> queue = new ArrayList<>(pending);
+        if (queue.isEmpty()) return;
+        // Round-robin: each run starts one safebox further, and each safebox may spend only its even share of what
+        // is left, so one large trash cannot starve the others (a share left unspent goes to those after it)
+        int start = (int) (rotation++ % queue.size());
+        for (int i = 0; i < queue.size(); i++) {
+            Path base = queue.get((start + i) % queue.size());
+            int after = queue.size() - i - 1;
+            byteFloor = byteTokens * after / (after + 1);
+            fileFloor = fileTokens * after / (after + 1);
+            Bin bin = bins.get(base);
+            List<Item> queued = new ArrayList<>();
+            if (bin != null) {
+                synchronized (bin) {
+                    for (Item it : bin.items.values()) if (it.purging) queued.add(it);
+                }
+            }
+            if (queued.isEmpty()) {
+                pending.remove(base);
+                evictIfEmpty(base);
+                continue;
+            }
+            boolean finished = true;
+            for (Item it : queued) {
+                try {
+                    if (!purgeItem(base, bin, it)) { // share spent; carry on next run
+                        finished = false;
+                        break;
+                    }
+                } catch (IOException e) {
+                    log.warn("Purging trash entry {} of {} failed; will retry", it.path, base, e);
+                }
+            }
+            if (finished) evictIfEmpty(base);
+        }
+    }
+
+    /** Deletes what the safebox's share of the budget allows of one entry; returns false once it is spent. */
+    private boolean purgeItem(Path base, Bin bin, Item item) throws IOException {
+        Path dir = bin.root.resolve(item.id);
+        List<String> released = new ArrayList<>(); // chunk references of purged deduplicated files
+        try {
+            if (Files.exists(dir, LinkOption.NOFOLLOW_LINKS) && !purgeTree(base, dir, released)) return false;
+        } finally {
+            contentStore.release(userRootOf(base), released);
+        }
+        metadataStore.remove(base, StorageService.relativize(base, dir));
+        Files.deleteIfExists(sidecar(bin, item.id));
+        synchronized (bin) {
+            bin.items.remove(item.id);
+        }
+        return true;
+    }
+
+    private boolean purgeTree(Path base, Path dir, List<String> released) throws IOException {
+        // Entries are streamed, not listed up front: a run reads only as far as its budget reaches
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                if (fileTokens <= fileFloor || byteTokens <= byteFloor) return false;
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attrs.isDirectory()) {
+                    if (!purgeTree(base, p, released)) return false;
+                } else {
+                    purgeFile(base, p, attrs, released);
+                }
+            }
+        }
+        Files.deleteIfExists(dir);
+        return true;
+    }
+
+    private void purgeFile(Path base, Path p, BasicFileAttributes attrs, List<String> released) throws IOException {
+        long physical = attrs.isRegularFile() ? attrs.size() : 0L;
+        synchronized (quotaManager.lockFor(base)) {
+            boolean counted = attrs.isRegularFile();
+            long size = counted ? contentStore.contentSize(base, p, attrs) : 0L;
+            List<String> blocks = counted ? contentStore.blocksOf(base, p) : List.of();
+            if (Files.deleteIfExists(p) && counted) {
+                usageLedger.add(base, SafeBoxUsageLedger.Kind.TRASH, -size, -1, -physical);
+                released.addAll(blocks);
+            }
+        }
+        fileTokens -= 1;
+        byteTokens -= physical;
+    }
+
+    // ===== policy =====
+
+    public Policy policy(Path base) throws IOException {
+        Path f = base.resolve(StorageService.INTERNAL_DIR).resolve(POLICY_FILE);
+        Policy p = new Policy();
+        p.retentionDays = defaultRetentionDays;
+        if (Files.exists(f)) {
+            try {
+                Policy stored = mapper.readValue(f.toFile(), Policy.class);
+                if (stored.retentionDays != null) p.retentionDays = Math.max(0, stored.retentionDays);
+            } catch (IOException e) {
+                log.warn("Trash policy {} unreadable; using defaults", f, e);
+            }
+        }
+        return p;
+    }
+
+    /** Stores the retention (0 keeps entries until purged by hand) and applies it right away. */
+    public Policy setPolicy(Path base, int retentionDays) throws IOException {
+        if (retentionDays < 0) throw new IllegalArgumentException("Trash retention must be >= 0 days");
+        Policy p = new Policy();
+        p.retentionDays = retentionDays;
+        Path f = base.resolve(StorageService.INTERNAL_DIR).resolve(POLICY_FILE);
+        writeAtomically(f, mapper.writeValueAsBytes(p));
+        expire(base);
+        return p;
+    }
+
+    // ===== internals =====
+
+    private static Path trashRoot(Path base) {
+        return base.resolve(StorageService.INTERNAL_DIR).resolve(TRASH_DIR);
+    }
+
+    // Safeboxes sit at userRoot/<name> or userRoot/RootVault/<masked>
+    private static Path userRootOf(Path base) {
+        Path parent = base.getParent();
+        return "RootVault".equals(parent.getFileName().toString()) ? parent.getParent() : parent;
+    }
+
+    private static Path sidecar(Bin bin, String id) {
+        return bin.root.resolve(id + SIDECAR_SUFFIX);
+    }
+
+    /** The trashed file or folder of an entry (the single child of its id folder), or null if gone. */
+    private static Path payload(Bin bin, Item item) throws IOException {
+        Path dir = bin.root.resolve(item.id);
+        if (!Files.isDirectory(dir)) return null;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) return p;
+        }
+        return null;
+    }
+
+    private Bin bin(Path base) throws IOException {
+        Bin bin = bins.get(base);
+        if (bin != null) return bin;
+        synchronized (bins) {
+            bin = bins.get(base);
+            if (bin == null) {
+                bin = load(base);
+                bins.put(base, bin);
+            }
+            return bin;
+        }
+    }
+
+    // Holds the bin for an operation that changes the trash folder before the index, so it is not evicted midway
+    // (a reload in between would take the half-made entry for debris and delete it)
+    private Bin pin(Path base) throws IOException {
+        synchronized (bins) {
+            Bin bin = bin(base);
+            bin.pins++;
+            return bin;
+        }
+    }
+
+    private void unpin(Bin bin) {
+        synchronized (bins) {
+            bin.pins--;
+        }
+    }
+
+    /** Forgets the index of a safebox whose trash is empty, so bins only holds safeboxes with trash; reloaded on use. */
+    private void evictIfEmpty(Path base) {
+        synchronized (bins) {
+            Bin bin = bins.get(base);
+            if (bin == null || bin.pins > 0) return;
+            synchronized (bin) {
+                if (!bin.items.isEmpty()) return;
+            }
+            bins.remove(base);
+        }
+    }
+
+    private Bin load(Path base) throws IOException {
+        Bin bin = new Bin(trashRoot(base));
+        if (!Files.isDirectory(bin.root)) return bin;
+        Map<String, Path> dirs = new TreeMap<>();
+        List<Path> sidecars = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(bin.root)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) dirs.put(name, p);
+                else if (name.endsWith(SIDECAR_SUFFIX)) sidecars.add(p);
+            }
+        }
+        for (Path sc : sidecars) {
+            String id = sc.getFileName().toString();
+            id = id.substring(0, id.length() - SIDECAR_SUFFIX.length());
+            Item it;
+            try {
+                it = mapper.readValue(sc.toFile(), Item.class);
+                it.id = id;
+            } catch (IOException e) {
+                log.warn("Unreadable trash entry {}; adopting its content", sc, e);
+                Files.deleteIfExists(sc);
+                continue;
+            }
+            if (!dirs.containsKey(id) || (!it.purging && payload(bin, it) == null)) {
+                // Crashed between sidecar and move, or the content was restored / purged already
+                Files.deleteIfExists(sc);
+                deleteQuietly(bin.root.resolve(id));
+                dirs.remove(id);
+                continue;
+            }
+            bin.items.put(id, it);
+            dirs.remove(id);
+        }
+        for (Map.Entry<String, Path> orphan : dirs.entrySet()) {
+            // Content without a sidecar: keep it restorable under its own name
+            Item it = new Item();
+            it.id = orphan.getKey();
+            Path content = payload(bin, it);
+            if (content == null) {
+                deleteQuietly(orphan.getValue());
+                continue;
+            }
+            it.path = content.getFileName().toString();
+            it.folder = Files.isDirectory(content, LinkOption.NOFOLLOW_LINKS);
+            it.deletedAt = Files.getLastModifiedTime(orphan.getValue()).toMillis();
+            writeSidecar(bin, it);
+            bin.items.put(it.id, it);
+        }
+        if (bin.items.values().stream().anyMatch(it -> it.purging)) pending.add(base);
+        return bin;
+    }
+
+    private void writeSidecar(Bin bin, Item item) throws IOException {
+        Files.createDirectories(bin.root);
+        writeAtomically(sidecar(bin, item.id), mapper.writeValueAsBytes(item));
+    }
+
+    private static void writeAtomically(Path f, byte[] data) throws IOException {
+        Files.createDirectories(f.getParent());
+        Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+        Files.write(tmp, data);
+        try {
+            Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteQuietly(Path dir) {
+        try {
+            Files.deleteIfExists(dir);
+        } catch (IOException ignored) { // not empty, or already gone
+        }
+    }
+
+    private static Item withExpiry(Item it, int retentionDays) {
+        Item copy = new Item();
+        copy.id = it.id;
+        copy.path = it.path;
+        copy.folder = it.folder;
+        copy.deletedAt = it.deletedAt;
+        copy.purging = it.purging;
+        copy.expiresAt = retentionDays > 0 ? it.deletedAt + TimeUnit.DAYS.toMillis(retentionDays) : null;
+        return copy;
+    }
+
+    // <13-digit epoch millis>-<6 hex>: sorts by deletion time, unique within a millisecond
+    private static String newId() {
+        return String.format("%013d-%06x", System.currentTimeMillis(), ThreadLocalRandom.current().nextInt(1 << 24));
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static final class Bin {
+        final Path root;
+        final Map<String, Item> items = new TreeMap<>(); // by id, i.e. oldest first; guarded by this
+        int pins; // operations in progress that must not see the bin evicted; guarded by bins
+
+        Bin(Path root) {
+            this.root = root;
+        }
+    }
+
+    public static class Item {
+        public String id;
+        public String path; // where it was deleted from (restore target by default)
+        public boolean folder;
+        public long deletedAt; // epoch millis
+        public Long expiresAt; // epoch millis; null if the safebox keeps trash until purged by hand
+        public boolean purging; // queued for or in purge; no longer restorable
+    }
+
+    public static class Policy {
+        public Integer retentionDays; // 0 = no automatic expiry
+    }
+}
@@ -0,0 +1,305 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Incremental per-safebox usage counters (bytes + file count), persisted as
+ * <code>.vaultedge/usage.json</code> inside each safebox. StorageService applies deltas on every
+ * mutation so usage and quota checks are O(1); a background reconcile re-walks the safeboxes to
+ * correct drift from changes made outside the API. Sizes are logical (what the user stored), whatever the
+ * on-disk encoding of a file; the bytes files actually occupy are tracked next to them.
+ * <p>
+ * Live files, file versions and trashed content are counted separately ({@link Kind}); moving content between
+ * them (a replaced file kept as a version, a delete into the trash, a restore) is a {@link #transfer}.
+ */
+@Component
+public class SafeBoxUsageLedger {
+
+    private static final Logger log = LoggerFactory.getLogger(SafeBoxUsageLedger.class);
+    private static final String LEDGER_FILE = "usage.json";
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final FileContentStore contentStore;
+    // safebox base path -> counters
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /** What counted content is: the user's files, kept versions of replaced files, or trashed entries. */
+    public enum Kind { LIVE, VERSIONS, TRASH }
+
+    public SafeBoxUsageLedger(FileContentStore contentStore) {
+        this.contentStore = contentStore;
+    }
+
+    /** Current counters for a safebox; the first access loads the persisted ledger or scans once. */
+    public Snapshot get(Path base) throws IOException {
+        Entry e = entry(base);
+        synchronized (e) {
+            return e.snapshot();
+        }
+    }
+
+    /** Applies a change to live files: logical bytes, file count, and bytes actually occupied on disk. */
+    public void add(Path base, long bytesDelta, long filesDelta, long physicalDelta) throws IOException {
+        add(base, Kind.LIVE, bytesDelta, filesDelta, physicalDelta);
+    }
+
+    /** Applies a change to one kind of content. */
+    public void add(Path base, Kind kind, long bytesDelta, long filesDelta, long physicalDelta) throws IOException {
+        if (bytesDelta == 0 && filesDelta == 0 && physicalDelta == 0) return;
+        Entry e = entry(base);
+        synchronized (e) {
+            e.bytes[kind.ordinal()] += bytesDelta;
+            e.files[kind.ordinal()] += filesDelta;
+            e.physical += physicalDelta;
+            e.version.incrementAndGet();
+            e.dirty = true;
+        }
+    }
+
+    /** Re-labels content that stays on disk (e.g. a delete into the trash): physical usage does not change. */
+    public void transfer(Path base, Kind from, Kind to, long bytes, long files) throws IOException {
+        if (from == to || (bytes == 0 && files == 0)) return;
+        Entry e = entry(base);
+        synchronized (e) {
+            e.bytes[from.ordinal()] -= bytes;
+            e.files[from.ordinal()] -= files;
+            e.bytes[to.ordinal()] += bytes;
+            e.files[to.ordinal()] += files;
+            e.version.incrementAndGet();
+            e.dirty = true;
+        }
+    }
+
+    /**
+     * Registers a batch that changes the disk now but applies its usage delta later, in one step through
+     * {@link #endDeferred}. Until then a reconcile would count the batch's changes twice (once in the walk, again
+     * when the delta lands), so reconcile leaves the safebox alone while any such batch is open.
+     */
+    public void beginDeferred(Path base) throws IOException {
+        Entry e = entry(base);
+        synchronized (e) {
+            e.deferred++;
+            e.version.incrementAndGet();
+        }
+    }
+
+    /** Applies a deferred batch's live-file delta and ends its registration; call exactly once per {@link #beginDeferred}. */
+    public void endDeferred(Path base, long bytesDelta, long filesDelta, long physicalDelta) throws IOException {
+        Entry e = entry(base);
+        synchronized (e) {
+            if (e.deferred > 0) e.deferred--; // none if the entry was forgotten and reloaded meanwhile
+            e.bytes[Kind.LIVE.ordinal()] += bytesDelta;
+            e.files[Kind.LIVE.ordinal()] += filesDelta;
+            e.physical += physicalDelta;
+            e.version.incrementAndGet();
+            if (bytesDelta != 0 || filesDelta != 0 || physicalDelta != 0) e.dirty = true;
+        }
+    }
+
+    /**
+     * Recomputes the counters from disk. If a mutation lands while the walk is running, or a deferred batch is
+     * still open, the result is discarded and the entry is left for the next reconcile pass.
+     */
+    public boolean reconcile(Path base) throws IOException {
+        Entry e = entry(base);
+        long versionBefore = e.version.get();
+        Entry scanned = scan(base);
+        synchronized (e) {
+            if (e.version.get() != versionBefore || e.deferred > 0) return false;
+            e.copyCounters(scanned);
+            e.dirty = true;
+        }
+        return true;
+    }
+
+    @Scheduled(fixedDelayString = "${storage.usage.flushIntervalMs:5000}")
+    public void flushDirty() {
+        for (Map.Entry<Path, Entry> me : entries.entrySet()) {
+            Entry e = me.getValue();
+            if (!e.dirty) continue;
+            try {
+                persist(me.getKey(), e);
+            } catch (IOException ex) {
+                log.warn("Could not persist usage ledger for {}", me.getKey(), ex);
+            }
+        }
+    }
+
+    @Scheduled(initialDelayString = "${storage.usage.reconcileIntervalMs:3600000}",
+            fixedDelayString = "${storage.usage.reconcileIntervalMs:3600000}")
+    public void reconcileAll() {
+        for (Path base : entries.keySet()) {
+            try {
+                if (!Files.isDirectory(base)) {
+                    entries.remove(base);
+                    continue;
+                }
+                reconcile(base);
+            } catch (IOException ex) {
+                log.warn("Usage reconcile failed for {}", base, ex);
+            }
+        }
+        flushDirty();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushDirty();
+    }
+
+    // ===== internals =====
+
+    private Entry entry(Path base) throws IOException {
+        Entry e = entries.get(base);
+        if (e != null) return e;
+        Entry loaded = load(base);
+        Entry prev = entries.putIfAbsent(base, loaded);
+        return prev != null ? prev : loaded;
+    }
+
+    private Entry load(Path base) throws IOException {
+        Path f = base.resolve(StorageService.INTERNAL_DIR).resolve(LEDGER_FILE);
+        if (Files.exists(f)) {
+            try {
+                Persisted s = mapper.readValue(Files.readAllBytes(f), Persisted.class);
+                if (s.physicalBytes != null && Boolean.TRUE.equals(s.countsKinds)) { // older ledgers lack these: rebuild below
+                    Entry e = new Entry();
+                    e.bytes[Kind.LIVE.ordinal()] = s.liveBytes;
+                    e.files[Kind.LIVE.ordinal()] = s.fileCount;
+                    e.bytes[Kind.VERSIONS.ordinal()] = s.versionBytes;
+                    e.files[Kind.VERSIONS.ordinal()] = s.versionCount;
+                    e.bytes[Kind.TRASH.ordinal()] = s.trashBytes;
+                    e.files[Kind.TRASH.ordinal()] = s.trashCount;
+                    e.physical = s.physicalBytes;
+                    return e;
+                }
+            } catch (IOException ex) {
+                log.warn("Usage ledger {} unreadable; rebuilding", f, ex);
+            }
+        }
+        Entry e = scan(base);
+        e.dirty = true;
+        return e;
+    }
+
+    private void persist(Path base, Entry e) throws IOException {
+        Persisted s = new Persisted();
+        s.countsKinds = true;
+        synchronized (e) {
+            Snapshot current = e.snapshot();
+            s.liveBytes = current.liveBytes;
+            s.usedBytes = current.usedBytes;
+            s.fileCount = current.fileCount;
+            s.versionBytes = current.versionBytes;
+            s.versionCount = current.versionCount;
+            s.trashBytes = current.trashBytes;
+            s.trashCount = current.trashCount;
+            s.physicalBytes = current.physicalBytes;
+            e.dirty = false;
+        }
+        Path dir = base.resolve(StorageService.INTERNAL_DIR);
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(LEDGER_FILE + ".tmp");
+        Files.write(tmp, mapper.writeValueAsBytes(s));
+        try {
+            Files.move(tmp, dir.resolve(LEDGER_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, dir.resolve(LEDGER_FILE), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Full walk of user content, trashed content and file versions (the rest of the hidden internal folder is excluded). */
+    private Entry scan(Path base) throws IOException {
+        Entry s = new Entry();
+        if (!Files.isDirectory(base)) return s;
+        Files.walkFileTree(base, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                // Trash and versions still occupy the disk, so they count; the internal folder is entered only to reach them
+                boolean skip = StorageService.isInternalPath(base, dir)
+                        && !dir.equals(base.resolve(StorageService.INTERNAL_DIR)) && !SafeBoxTrash.inTrash(base, dir)
+                        && !FileVersionStore.inVersions(base, dir);
+                return skip ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                Kind kind;
+                if (!StorageService.isInternalPath(base, file)) kind = Kind.LIVE;
+                else if (SafeBoxTrash.isTrashContent(base, file)) kind = Kind.TRASH;
+                else if (FileVersionStore.isVersionContent(base, file)) kind = Kind.VERSIONS;
+                else return FileVisitResult.CONTINUE;
+                s.bytes[kind.ordinal()] += contentStore.contentSize(base, file, attrs);
+                s.files[kind.ordinal()]++;
+                s.physical += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return s;
+    }
+
+    private static final class Entry {
+        // per Kind, by ordinal; counters are guarded by the entry
+        final long[] bytes = new long[Kind.values().length];
+        final long[] files = new long[Kind.values().length];
+        long physical;
+        final AtomicLong version = new AtomicLong();
+        int deferred; // open batches whose delta is not applied yet
+        volatile boolean dirty;
+
+        void copyCounters(Entry other) {
+            System.arraycopy(other.bytes, 0, bytes, 0, bytes.length);
+            System.arraycopy(other.files, 0, files, 0, files.length);
+            physical = other.physical;
+        }
+
+        Snapshot snapshot() {
+            Snapshot s = new Snapshot();
+            s.liveBytes = bytes[Kind.LIVE.ordinal()];
+            s.fileCount = files[Kind.LIVE.ordinal()];
+            s.versionBytes = bytes[Kind.VERSIONS.ordinal()];
+            s.versionCount = files[Kind.VERSIONS.ordinal()];
+            s.trashBytes = bytes[Kind.TRASH.ordinal()];
+            s.trashCount = files[Kind.TRASH.ordinal()];
+            s.usedBytes = s.liveBytes + s.versionBytes;
+            s.physicalBytes = physical;
+            return s;
+        }
+    }
+
+    public static class Snapshot {
+        public long usedBytes; // logical, live files and versions: what quota is checked against (trash is not)
+        public long liveBytes; // logical, the user's files only
+        public long fileCount; // the user's files only
+        public long versionBytes;
+        public long versionCount;
+        public long trashBytes;
+        public long trashCount;
+        public Long physicalBytes; // on disk in the safebox's own files, trash included (compressed size, manifest size)
+    }
+
+    // usage.json; ledgers written before versions and trash were counted apart lack the flag and are rebuilt on load
+    public static class Persisted extends Snapshot {
+        public Boolean countsKinds;
+    }
+}
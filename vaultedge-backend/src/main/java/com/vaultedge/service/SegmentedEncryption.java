@@ -0,0 +1,333 @@
+package com.vaultedge.service;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Encrypted file format with random access: content is cut into fixed-size segments, each sealed with
+ * AES-256-GCM under a per-file data key (DEK). The DEK is stored in the header, wrapped under the master key.
+ * <pre>
+ * header: magic "VEDGEC01", u8 version, u8 flags, u16 0, u32 segment size, u32 master key id,
+ *         12-byte wrap nonce, wrapped DEK (32 + 16 tag), 7-byte nonce prefix
+ * segments: ciphertext + 16-byte tag; every segment but the last holds exactly segment-size bytes
+ * </pre>
+ * Segment i uses nonce = prefix | u32 i | u8 last and associated data = header | u32 i | u8 last. Segments can
+ * therefore not be reordered, moved between files, or dropped from the end without failing authentication,
+ * and the header (flags, segment size) is bound to every segment. The logical size follows from the file
+ * size, so a write is a single streaming pass with one segment buffered.
+ */
+final class SegmentedEncryption {
+
+    static final byte[] MAGIC = "VEDGEC01".getBytes(StandardCharsets.US_ASCII);
+    static final int FLAG_FRAMED = 1; // content inside is a FramedCompression file
+    static final int MAX_SEGMENT_SIZE = 16 << 20;
+    private static final byte VERSION = 1;
+    private static final int NONCE = 12;
+    private static final int TAG = 16;
+    private static final int PREFIX = 7;
+    private static final int WRAPPED_KEY = ContentKeyring.KEY_BYTES + TAG;
+    private static final int WRAP_AAD = MAGIC.length + 1 + 1 + 2 + 4 + 4; // everything before the wrap nonce
+    static final int HEADER = WRAP_AAD + NONCE + WRAPPED_KEY + PREFIX;
+    private static final String TRANSFORM = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SegmentedEncryption() { }
+
+    /** Streams logical bytes into an encrypted file. Not thread-safe; does not close the target. */
+    static final class Writer implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private final Segments segments;
+        private final byte[] segment;
+        private final byte[] sealed;
+        private int filled;
+        private int index;
+        private long logicalSize;
+        private boolean open = true;
+
+        Writer(WritableByteChannel out, SecretKey masterKey, int keyId, int segmentSize, int flags) throws IOException {
+            this.out = out;
+            byte[] header = new byte[HEADER];
+            ByteBuffer h = ByteBuffer.wrap(header);
+            h.put(MAGIC).put(VERSION).put((byte) flags).putShort((short) 0).putInt(segmentSize).putInt(keyId);
+            byte[] dek = new byte[ContentKeyring.KEY_BYTES];
+            byte[] wrapNonce = new byte[NONCE];
+            byte[] prefix = new byte[PREFIX];
+            RANDOM.nextBytes(dek);
+            RANDOM.nextBytes(wrapNonce);
+            RANDOM.nextBytes(prefix);
+            try {
+                Cipher c = Cipher.getInstance(TRANSFORM);
+                c.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG * 8, wrapNonce));
+                c.updateAAD(header, 0, WRAP_AAD);
+                h.put(wrapNonce).put(c.doFinal(dek)).put(prefix);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not wrap file key", e);
+            }
+            this.segments = new Segments(header, new SecretKeySpec(dek, "AES"), segmentSize);
+            Arrays.fill(dek, (byte) 0);
+            this.segment = new byte[segmentSize];
+            this.sealed = new byte[segmentSize + TAG];
+            writeFully(ByteBuffer.wrap(header));
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                // A full segment is sealed only once more data arrives: the final one must carry the last flag
+                if (filled == segment.length) seal(false);
+                int k = Math.min(src.remaining(), segment.length - filled);
+                src.get(segment, filled, k);
+                filled += k;
+            }
+            logicalSize += n;
+            return n;
+        }
+
+        void write(byte[] data, int off, int len) throws IOException {
+            write(ByteBuffer.wrap(data, off, len));
+        }
+
+        /** Seals the last segment. Returns the logical size. */
+        long finish() throws IOException {
+            seal(true);
+            open = false;
+            return logicalSize;
+        }
+
+        private void seal(boolean last) throws IOException {
+            if (index < 0) throw new IOException("File too large for segment size " + segment.length);
+            int n = segments.seal(index, last, segment, filled, sealed);
+            writeFully(ByteBuffer.wrap(sealed, 0, n));
+            index++;
+            filled = 0;
+        }
+
+        private void writeFully(ByteBuffer b) throws IOException {
+            while (b.hasRemaining()) out.write(b);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /** Opens an encrypted file as a read-only seekable channel over its logical bytes. */
+    static EncryptedChannel open(Path file, SecretKey masterKey, int keyId) throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new EncryptedChannel(ch, masterKey, keyId);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** Per-file key and associated-data layout shared by the writer and the reader. */
+    private static final class Segments {
+        private final byte[] aad; // header, then u32 index and u8 last flag
+        private final byte[] nonce; // prefix, then u32 index and u8 last flag
+        private final SecretKey dek;
+        private final int segmentSize;
+        private final Cipher cipher;
+
+        Segments(byte[] header, SecretKey dek, int segmentSize) throws IOException {
+            this.aad = Arrays.copyOf(header, HEADER + 5);
+            this.nonce = new byte[NONCE];
+            System.arraycopy(header, HEADER - PREFIX, nonce, 0, PREFIX);
+            this.dek = dek;
+            this.segmentSize = segmentSize;
+            try {
+                this.cipher = Cipher.getInstance(TRANSFORM);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM is not available", e);
+            }
+        }
+
+        private GCMParameterSpec position(int index, boolean last) {
+            ByteBuffer.wrap(nonce, PREFIX, 5).putInt(index).put((byte) (last ? 1 : 0));
+            System.arraycopy(nonce, PREFIX, aad, HEADER, 5);
+            return new GCMParameterSpec(TAG * 8, nonce);
+        }
+
+        int seal(int index, boolean last, byte[] in, int len, byte[] out) throws IOException {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, dek, position(index, last));
+                cipher.updateAAD(aad);
+                return cipher.doFinal(in, 0, len, out, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt segment " + index, e);
+            }
+        }
+
+        int open(int index, boolean last, byte[] in, int len, byte[] out) throws IOException {
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, dek, position(index, last));
+                cipher.updateAAD(aad);
+                return cipher.doFinal(in, 0, len, out, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Segment " + index + " failed authentication (corrupt, truncated or tampered file)");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not decrypt segment " + index, e);
+            }
+        }
+    }
+
+    /** Decrypts only the segments a read covers; keeps the current one. */
+    static final class EncryptedChannel implements SeekableByteChannel {
+        private final FileChannel file;
+        private final Segments segments;
+        private final int flags;
+        private final long size;
+        private final long count; // segments
+        private final int lastSealed; // stored length of the last segment
+        private final byte[] sealed;
+        private final byte[] current;
+        private long currentSegment = -1;
+        private int currentLength;
+        private long position;
+        private boolean open = true;
+
+        EncryptedChannel(FileChannel file, SecretKey masterKey, int keyId) throws IOException {
+            this.file = file;
+            long fileSize = file.size();
+            if (fileSize < HEADER + TAG) throw new IOException("Not an encrypted file");
+            byte[] header = new byte[HEADER];
+            readFully(ByteBuffer.wrap(header), 0);
+            ByteBuffer h = ByteBuffer.wrap(header);
+            byte[] magic = new byte[MAGIC.length];
+            h.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not an encrypted file");
+            if (h.get() != VERSION) throw new IOException("Unsupported encrypted file version");
+            this.flags = h.get();
+            h.getShort();
+            int segmentSize = h.getInt();
+            if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) throw new IOException("Corrupt encrypted file header");
+            if (h.getInt() != keyId) throw new IOException("File is encrypted under a different master key");
+            byte[] wrapNonce = new byte[NONCE];
+            byte[] wrapped = new byte[WRAPPED_KEY];
+            h.get(wrapNonce).get(wrapped);
+            byte[] dek;
+            try {
+                Cipher c = Cipher.getInstance(TRANSFORM);
+                c.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG * 8, wrapNonce));
+                c.updateAAD(header, 0, WRAP_AAD);
+                dek = c.doFinal(wrapped);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Encrypted file header failed authentication");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not unwrap file key", e);
+            }
+            this.segments = new Segments(header, new SecretKeySpec(dek, "AES"), segmentSize);
+            Arrays.fill(dek, (byte) 0);
+            long body = fileSize - HEADER;
+            long sealedSegment = segmentSize + TAG;
+            this.count = (body + sealedSegment - 1) / sealedSegment;
+            this.lastSealed = (int) (body - (count - 1) * sealedSegment);
+            if (lastSealed < TAG) throw new IOException("Corrupt encrypted file (truncated segment)");
+            this.size = (count - 1) * segmentSize + lastSealed - TAG;
+            this.sealed = new byte[segmentSize + TAG];
+            this.current = new byte[segmentSize];
+        }
+
+        boolean framed() {
+            return (flags & FLAG_FRAMED) != 0;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            if (position >= size) return -1;
+            int total = 0;
+            int segmentSize = current.length;
+            while (dst.hasRemaining() && position < size) {
+                long s = position / segmentSize;
+                load(s);
+                int inSegment = (int) (position - s * segmentSize);
+                int n = Math.min(dst.remaining(), currentLength - inSegment);
+                dst.put(current, inSegment, n);
+                position += n;
+                total += n;
+            }
+            return total;
+        }
+
+        private void load(long s) throws IOException {
+            if (s == currentSegment) return;
+            boolean last = s == count - 1;
+            int len = last ? lastSealed : sealed.length;
+            readFully(ByteBuffer.wrap(sealed, 0, len), HEADER + s * sealed.length);
+            currentLength = segments.open((int) s, last, sealed, len, current);
+            currentSegment = s;
+        }
+
+        private void readFully(ByteBuffer dst, long pos) throws IOException {
+            while (dst.hasRemaining()) {
+                int n = file.read(dst, pos);
+                if (n < 0) throw new IOException("Unexpected end of encrypted file");
+                pos += n;
+            }
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            file.close();
+        }
+    }
+}
@@ -1,43 +1,292 @@
 package com.vaultedge.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Single shared view of <code>.vaultedge_mappings.json</code>.
+ * <p>
+ * Reads are lock-free against an immutable snapshot held in memory. Each update is appended as one
+ * JSON line to <code>.vaultedge_mappings.journal</code> (O(change) I/O); the journal is periodically
+ * folded into the snapshot file, which is written to a temp file and atomically renamed into place.
+ * <p>
+ * The files may be shared with other processes (the migration CLI tools open their own store on the same root).
+ * Appends and compactions hold an OS lock on <code>.vaultedge_mappings.lock</code> and first fold in whatever
+ * others appended (or reload, if another process compacted), so a compaction never drops lines it has not read.
+ * Reads pick up outside changes within <code>storage.mappings.refreshIntervalMs</code>.
+ */
+@Component
 public class StorageMappingStore {
 
+    private static final Logger log = LoggerFactory.getLogger(StorageMappingStore.class);
+    // FileLock is per process: stores in the same JVM on the same root also serialize on this
+    private static final Map<Path, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
     private final Path storageRoot;
     private final ObjectMapper mapper = new ObjectMapper();
     private final Path mappingsFile;
-    private StorageMappings mappings;
+    private final Path journalFile;
+    private final Path lockFile;
+    private final int compactAfterEntries;
+    private final long refreshIntervalMs;
+    private final Object writeLock = new Object();
+
+    // userId -> mapping; replaced wholesale on every update (copy-on-write)
+    private volatile Map<String, StorageMappings.UserMapping> snapshot = Map.of();
+    private volatile int journalEntries;
+    // What the snapshot reflects: the mappings file's identity and how far into the journal it has been read
+    private volatile String mappingsId = "";
+    private volatile Object journalKey;
+    private volatile long journalOffset;
+    private volatile long lastRefreshCheck;
+
+    @Autowired
+    public StorageMappingStore(@Value("${storage.root}") String storageRoot,
+                               @Value("${storage.mappings.compactAfterEntries:500}") int compactAfterEntries,
+                               @Value("${storage.mappings.refreshIntervalMs:1000}") long refreshIntervalMs) throws IOException {
+        this(Paths.get(storageRoot).toAbsolutePath().normalize(), compactAfterEntries, refreshIntervalMs);
+    }
 
     public StorageMappingStore(Path storageRoot) throws IOException {
+        this(storageRoot, 500, 1000);
+    }
+
+    private StorageMappingStore(Path storageRoot, int compactAfterEntries, long refreshIntervalMs) throws IOException {
         this.storageRoot = storageRoot;
         this.mappingsFile = storageRoot.resolve(".vaultedge_mappings.json");
-        load();
+        this.journalFile = storageRoot.resolve(".vaultedge_mappings.journal");
+        this.lockFile = storageRoot.resolve(".vaultedge_mappings.lock");
+        this.compactAfterEntries = Math.max(1, compactAfterEntries);
+        this.refreshIntervalMs = Math.max(0, refreshIntervalMs);
+        synchronized (writeLock) {
+            withFileLock(this::loadLocked);
+        }
     }
 
-    private synchronized void load() throws IOException {
+    public Path getStorageRoot() {
+        return storageRoot;
+    }
+
+    @FunctionalInterface
+    private interface Locked {
+        void run() throws IOException;
+    }
+
+    /** Runs action holding the cross-process lock; callers hold writeLock. */
+    private void withFileLock(Locked action) throws IOException {
+        Files.createDirectories(storageRoot);
+        synchronized (PROCESS_LOCKS.computeIfAbsent(lockFile, k -> new Object())) {
+            try (FileChannel ch = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = ch.lock();
+                try {
+                    action.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private void loadLocked() throws IOException {
+        Map<String, StorageMappings.UserMapping> users = new HashMap<>();
+        String id = fileId(mappingsFile);
         if (Files.exists(mappingsFile)) {
             byte[] bytes = Files.readAllBytes(mappingsFile);
-            mappings = mapper.readValue(bytes, StorageMappings.class);
-            if (mappings == null) mappings = new StorageMappings();
+            StorageMappings mappings = bytes.length == 0 ? null : mapper.readValue(bytes, StorageMappings.class);
+            if (mappings != null && mappings.users != null) users.putAll(mappings.users);
+        }
+        journalOffset = 0;
+        journalEntries = 0;
+        mappingsId = id;
+        replay(users);
+    }
+
+    /** Brings the snapshot up to date with the files; callers hold both locks. */
+    private void refreshLocked() throws IOException {
+        long size = Files.exists(journalFile) ? Files.size(journalFile) : 0L;
+        boolean journalReplaced = journalKey != null && !Objects.equals(journalKey(), journalKey);
+        if (!fileId(mappingsFile).equals(mappingsId) || journalReplaced || size < journalOffset) {
+            loadLocked(); // another process compacted (or replaced the journal)
+        } else if (size > journalOffset) {
+            replay(new HashMap<>(snapshot));
+        }
+    }
+
+    /** Applies journal lines past journalOffset (complete lines only; a line being appended is left for later). */
+    private void replay(Map<String, StorageMappings.UserMapping> users) throws IOException {
+        if (Files.exists(journalFile)) {
+            byte[] tail;
+            try (FileChannel ch = FileChannel.open(journalFile, StandardOpenOption.READ)) {
+                long size = ch.size();
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.max(0, size - journalOffset));
+                while (buf.hasRemaining() && ch.read(buf, journalOffset + buf.position()) >= 0) { }
+                tail = buf.array();
+            }
+            int complete = 0;
+            for (int i = tail.length - 1; i >= 0; i--) {
+                if (tail[i] == '\n') {
+                    complete = i + 1;
+                    break;
+                }
+            }
+            int replayed = 0;
+            for (String line : new String(tail, 0, complete, StandardCharsets.UTF_8).split("\n")) {
+                if (line.isBlank()) continue;
+                try {
+                    JournalEntry je = mapper.readValue(line, JournalEntry.class);
+                    if (je.userId != null) users.put(je.userId, je.mapping);
+                    replayed++;
+                } catch (IOException e) {
+                    // torn line from a crash mid-append; everything around it is intact
+                    log.warn("Ignoring unreadable mapping journal line in {}", journalFile);
+                }
+            }
+            journalOffset += complete;
+            journalEntries += replayed;
+        }
+        journalKey = journalKey();
+        Map<String, StorageMappings.UserMapping> frozen = new HashMap<>();
+        users.forEach((k, v) -> { if (v != null) frozen.put(k, freeze(v)); });
+        snapshot = Map.copyOf(frozen);
+    }
+
+    /** Lock-free lookup. The returned mapping is immutable; use {@link StorageMappings.UserMapping#copy()} to modify. */
+    public StorageMappings.UserMapping getUserMapping(String userId) {
+        maybeRefresh();
+        return snapshot.get(userId);
+    }
+
+    /** At most once per refresh interval: two stats, and a reload only if another process wrote. */
+    private void maybeRefresh() {
+        long now = System.currentTimeMillis();
+        if (now - lastRefreshCheck < refreshIntervalMs) return;
+        lastRefreshCheck = now;
+        try {
+            long size = Files.exists(journalFile) ? Files.size(journalFile) : 0L;
+            if (size == journalOffset && fileId(mappingsFile).equals(mappingsId)) return;
+            synchronized (writeLock) {
+                withFileLock(this::refreshLocked);
+            }
+        } catch (IOException e) {
+            log.warn("Could not re-read storage mappings in {}", storageRoot, e);
+        }
+    }
+
+    /** Journals the change, then publishes a new snapshot. */
+    public void setUserMapping(String userId, StorageMappings.UserMapping m) throws IOException {
+        StorageMappings.UserMapping frozen = freeze(m);
+        synchronized (writeLock) {
+            withFileLock(() -> {
+                refreshLocked();
+                JournalEntry je = new JournalEntry();
+                je.userId = userId;
+                je.mapping = frozen;
+                byte[] line = (mapper.writeValueAsString(je) + "\n").getBytes(StandardCharsets.UTF_8);
+                try (FileChannel ch = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    ByteBuffer buf = ByteBuffer.wrap(line);
+                    while (buf.hasRemaining()) ch.write(buf);
+                    ch.force(false);
+                    journalOffset = ch.size();
+                }
+                journalKey = journalKey();
+                Map<String, StorageMappings.UserMapping> next = new HashMap<>(snapshot);
+                next.put(userId, frozen);
+                snapshot = Map.copyOf(next);
+                if (++journalEntries >= compactAfterEntries) compactLocked();
+            });
+        }
+    }
+
+    /** Folds the journal into the snapshot file (temp file + atomic rename), then truncates the journal. */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            withFileLock(() -> {
+                refreshLocked();
+                compactLocked();
+            });
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${storage.mappings.compactIntervalMs:60000}")
+    public void compactIfNeeded() {
+        try {
+            synchronized (writeLock) {
+                withFileLock(() -> {
+                    refreshLocked(); // also counts lines other processes appended
+                    if (journalEntries > 0) compactLocked();
+                });
+            }
+        } catch (IOException e) {
+            log.warn("Mapping journal compaction failed", e);
+        }
+    }
+
+    // Callers hold both locks and have just refreshed, so the snapshot covers the whole journal
+    private void compactLocked() throws IOException {
+        StorageMappings out = new StorageMappings();
+        out.users.putAll(snapshot);
+        Path tmp = mappingsFile.resolveSibling(mappingsFile.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(mapper.writeValueAsBytes(out));
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        try {
+            Files.move(tmp, mappingsFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, mappingsFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (Files.exists(journalFile) && Files.size(journalFile) != journalOffset) {
+            // Cannot happen under the lock unless a writer ignores it; keep the journal (replaying it is harmless)
+            log.warn("Mapping journal {} grew during compaction; keeping it", journalFile);
         } else {
-            mappings = new StorageMappings();
+            Files.deleteIfExists(journalFile);
+            journalOffset = 0;
+            journalEntries = 0;
         }
+        mappingsId = fileId(mappingsFile);
+        journalKey = journalKey();
+    }
+
+    // Identity of a file's current contents: file key (inode), modification time and size
+    private static String fileId(Path f) throws IOException {
+        if (!Files.exists(f)) return "";
+        BasicFileAttributes a = Files.readAttributes(f, BasicFileAttributes.class);
+        return a.fileKey() + ":" + a.lastModifiedTime().toMillis() + ":" + a.size();
     }
 
-    public synchronized StorageMappings.UserMapping getUserMapping(String userId) {
-        return mappings.users.get(userId);
+    private Object journalKey() throws IOException {
+        if (!Files.exists(journalFile)) return null;
+        Object key = Files.readAttributes(journalFile, BasicFileAttributes.class).fileKey();
+        return key != null ? key : "present";
     }
 
-    public synchronized void setUserMapping(String userId, StorageMappings.UserMapping m) {
-        mappings.users.put(userId, m);
+    private static StorageMappings.UserMapping freeze(StorageMappings.UserMapping m) {
+        StorageMappings.UserMapping f = new StorageMappings.UserMapping();
+        f.maskedUserId = m.maskedUserId;
+        f.safeboxes = m.safeboxes == null ? Map.of() : Map.copyOf(m.safeboxes);
+        return f;
     }
 
-    public synchronized void save() throws IOException {
-        byte[] bytes = mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(mappings);
-        Files.write(mappingsFile, bytes);
+    public static class JournalEntry {
+        public String userId;
+        public StorageMappings.UserMapping mapping;
     }
 }
@@ -9,6 +9,14 @@ public class StorageMappings {
         public String maskedUserId;
         // original safebox name -> masked dir name
         public Map<String, String> safeboxes = new HashMap<>();
+
+        // Mutable copy (mappings handed out by StorageMappingStore are immutable snapshots)
+        public UserMapping copy() {
+            UserMapping c = new UserMapping();
+            c.maskedUserId = maskedUserId;
+            if (safeboxes != null) c.safeboxes.putAll(safeboxes);
+            return c;
+        }
     }
 
     // userId -> mapping
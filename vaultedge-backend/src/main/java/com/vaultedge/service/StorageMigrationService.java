@@ -1,19 +1,31 @@
 package com.vaultedge.service;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.Base64;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+@Service
 public class StorageMigrationService {
 
     private final Path root;
     private final StorageMappingStore mappingStore;
+    private final BlockStore blockStore; // null in standalone use
+
+    @Autowired
+    public StorageMigrationService(StorageMappingStore mappingStore, BlockStore blockStore) {
+        this.root = mappingStore.getStorageRoot();
+        this.mappingStore = mappingStore;
+        this.blockStore = blockStore;
+    }
 
+    // Standalone use (CLI tools) against an arbitrary root
     public StorageMigrationService(Path root) throws IOException {
-        this.root = root;
-        this.mappingStore = new StorageMappingStore(root);
+        this(new StorageMappingStore(root), null);
     }
 
     // deterministic masked id: base64url(userId) truncated
@@ -25,8 +37,8 @@ public class StorageMigrationService {
     public synchronized void migrateUser(String userId) throws IOException {
         Path userPath = root.resolve(userId);
         if (!Files.exists(userPath) || !Files.isDirectory(userPath)) return;
-        StorageMappings.UserMapping um = mappingStore.getUserMapping(userId);
-        if (um == null) um = new StorageMappings.UserMapping();
+        StorageMappings.UserMapping existing = mappingStore.getUserMapping(userId);
+        StorageMappings.UserMapping um = existing == null ? new StorageMappings.UserMapping() : existing.copy();
         if (um.maskedUserId == null || um.maskedUserId.isBlank()) um.maskedUserId = mask(userId);
         // ensure masked root
         Path maskedUserRoot = root.resolve(um.maskedUserId);
@@ -69,8 +81,14 @@ public class StorageMigrationService {
                 }
             }
         }
+        // Deduplicated files reference chunks in the user's block store, which has to follow them
+        if (blockStore != null) {
+            blockStore.relocate(userPath, maskedUserRoot);
+        } else if (Files.isDirectory(userPath.resolve(BlockStore.BLOCKS_DIR)) && !Files.exists(maskedUserRoot.resolve(BlockStore.BLOCKS_DIR))) {
+            Files.move(userPath.resolve(BlockStore.BLOCKS_DIR), maskedUserRoot.resolve(BlockStore.BLOCKS_DIR), StandardCopyOption.ATOMIC_MOVE);
+        }
+        // Journaled append; the store folds it into the mappings file on its own compaction schedule
         mappingStore.setUserMapping(userId, um);
-        mappingStore.save();
     }
 
     public StorageMappings.UserMapping getMapping(String userId) {
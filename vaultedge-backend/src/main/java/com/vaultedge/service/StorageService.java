@@ -1,9 +1,15 @@
 package com.vaultedge.service;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.AccessDeniedException;
@@ -14,104 +20,502 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class StorageService {
 
+    /** Hidden per-safebox folder for server-side working files. */
+    public static final String INTERNAL_DIR = ".vaultedge";
+
+    private static final String CHANGED_SINCE_DELETE = "Changed since delete was requested";
+
     @Value("${storage.root}")
     private String storageRoot;
 
     @Value("${upload.maxFileSizeBytes:2147483648}")
     private long configuredMaxUploadBytes;
 
+    private final SafeBoxUsageLedger usageLedger;
+    private final StorageMappingStore mappingStore;
+    private final SafeBoxMetadataStore metadataStore;
+    private final AuditSegmentStore auditStore;
+    private final AuditQueryEngine auditQuery;
+    private final QuotaManager quotaManager;
+    private final FileContentStore contentStore;
+    private final FileVersionStore versionStore;
+    private final SafeBoxTrash trash;
+    private final DeleteRetryService deleteRetries;
+    private final ApiMutationWindow apiMutations;
+    private final ApplicationEventPublisher events;
+
+    public StorageService(SafeBoxUsageLedger usageLedger, StorageMappingStore mappingStore,
+                          SafeBoxMetadataStore metadataStore, AuditSegmentStore auditStore,
+                          AuditQueryEngine auditQuery, QuotaManager quotaManager,
+                          FileContentStore contentStore, FileVersionStore versionStore, SafeBoxTrash trash,
+                          DeleteRetryService deleteRetries, ApiMutationWindow apiMutations,
+                          ApplicationEventPublisher events) {
+        this.usageLedger = usageLedger;
+        this.quotaManager = quotaManager;
+        this.contentStore = contentStore;
+        this.versionStore = versionStore;
+        this.trash = trash;
+        this.deleteRetries = deleteRetries;
+        this.apiMutations = apiMutations;
+        this.mappingStore = mappingStore;
+        this.metadataStore = metadataStore;
+        this.auditStore = auditStore;
+        this.auditQuery = auditQuery;
+        this.events = events;
+    }
+
     private Path root() {
         return Paths.get(storageRoot).toAbsolutePath().normalize();
     }
 
     public Path ensureUserRoot(String userId) throws IOException {
-        // If a mapping exists (migration performed), use masked user id root under storageRoot
-        try {
-            StorageMappingStore store = new StorageMappingStore(root());
-            var mapping = store.getUserMapping(userId);
-            if (mapping != null && mapping.maskedUserId != null && !mapping.maskedUserId.isBlank()) {
-                Path masked = root().resolve(mapping.maskedUserId).normalize();
-                Files.createDirectories(masked);
-                return masked;
-            }
-        } catch (Exception ignored) {
-            // fallback to original behavior
-        }
-        Path userPath = root().resolve(userId).normalize();
+        Path userPath = userRootPath(userId);
         Files.createDirectories(userPath);
         return userPath;
     }
 
+    private Path userRootPath(String userId) {
+        // If a mapping exists (migration performed), use masked user id root under storageRoot
+        var mapping = mappingStore.getUserMapping(userId);
+        if (mapping != null && mapping.maskedUserId != null && !mapping.maskedUserId.isBlank()) {
+            return root().resolve(mapping.maskedUserId).normalize();
+        }
+        return root().resolve(userId).normalize();
+    }
+
     public Path ensureSafeBox(String userId, String safeBoxName) throws IOException {
         Path userRoot = ensureUserRoot(userId);
         // If mapping exists, safeboxes are nested under RootVault/<maskedName>
-        try {
-            StorageMappingStore store = new StorageMappingStore(root());
-            var mapping = store.getUserMapping(userId);
-            if (mapping != null && mapping.safeboxes != null && mapping.safeboxes.containsKey(safeBoxName)) {
-                String masked = mapping.safeboxes.get(safeBoxName);
-                Path p = userRoot.resolve("RootVault").resolve(masked).normalize();
-                Files.createDirectories(p);
-                return p;
-            }
-        } catch (Exception ignored) { }
+        var mapping = mappingStore.getUserMapping(userId);
+        if (mapping != null && mapping.safeboxes != null && mapping.safeboxes.containsKey(safeBoxName)) {
+            String masked = mapping.safeboxes.get(safeBoxName);
+            Path p = userRoot.resolve("RootVault").resolve(masked).normalize();
+            Files.createDirectories(p);
+            metadataStore.open(p);
+            return p;
+        }
         Path sbPath = userRoot.resolve(safeBoxName).normalize();
         Files.createDirectories(sbPath);
+        // First open of a safebox also migrates legacy .orig sidecars
+        metadataStore.open(sbPath);
         return sbPath;
     }
 
     public Path createSubfolder(String userId, String safeBoxName, String subfolder) throws IOException {
         Path base = ensureSafeBox(userId, safeBoxName);
-        Path sub = base.resolve(subfolder).normalize();
-        if (!sub.startsWith(base)) throw new SecurityException("Invalid subfolder path");
-        Files.createDirectories(sub);
+        Path sub = createFolderAt(userId, safeBoxName, base, subfolder);
     appendSafeBoxLog(userId, safeBoxName, "CREATE_FOLDER " + subfolder);
         return sub;
     }
 
+    private Path createFolderAt(String userId, String safeBoxName, Path base, String subfolder) throws IOException {
+        Path sub = base.resolve(subfolder).normalize();
+        if (!sub.startsWith(base) || isInternalPath(base, sub)) throw new SecurityException("Invalid subfolder path");
+        ApiMutationWindow.Mark mark = apiMutations.begin(base, sub);
+        try {
+            Files.createDirectories(sub);
+            publishChange(userId, safeBoxName, base, SafeBoxChangeEvent.Type.CREATE_FOLDER, sub, null);
+        } finally {
+            mark.close();
+        }
+        return sub;
+    }
+
     public Path saveFile(String userId, String safeBoxName, String relativePath, byte[] content) throws IOException {
         return saveFile(userId, safeBoxName, relativePath, content, null);
     }
 
     public Path saveFile(String userId, String safeBoxName, String relativePath, byte[] content, Long originalDateMs) throws IOException {
+        return saveFile(userId, safeBoxName, relativePath, new ByteArrayInputStream(content), content.length, originalDateMs);
+    }
+
+    public Path saveFile(String userId, String safeBoxName, String relativePath, InputStream content, long declaredSize, Long originalDateMs) throws IOException {
+        return saveFile(userId, safeBoxName, relativePath, Channels.newChannel(content), declaredSize, originalDateMs, Precondition.NONE);
+    }
+
+    public Path saveFile(String userId, String safeBoxName, String relativePath, InputStream content, long declaredSize,
+                         Long originalDateMs, Precondition precondition) throws IOException {
+        return saveFile(userId, safeBoxName, relativePath, Channels.newChannel(content), declaredSize, originalDateMs, precondition);
+    }
+
+    public Path saveFile(String userId, String safeBoxName, String relativePath, ReadableByteChannel content, long declaredSize, Long originalDateMs) throws IOException {
+        return saveFile(userId, safeBoxName, relativePath, content, declaredSize, originalDateMs, Precondition.NONE);
+    }
+
+    /**
+     * Streams content into a temp file inside the safebox and atomically moves it into place.
+     * Size and capacity limits are enforced while bytes flow, so oversized uploads are cut off early.
+     * declaredSize may be -1 when unknown (chunked transfer); it only enables an up-front rejection.
+     * The precondition is checked before any bytes are read; when the file is replaced it must still be the file
+     * that was checked (same size, mtime and file key).
+     */
+    public Path saveFile(String userId, String safeBoxName, String relativePath, ReadableByteChannel content, long declaredSize,
+                         Long originalDateMs, Precondition precondition) throws IOException {
         Path base = ensureSafeBox(userId, safeBoxName);
         Path target = base.resolve(relativePath).normalize();
-        if (!target.startsWith(base)) throw new SecurityException("Invalid file path");
+        if (!target.startsWith(base) || target.equals(base)) throw new SecurityException("Invalid file path");
+        if (isInternalPath(base, target)) throw new SecurityException("Invalid file path");
         // Enforce per-upload max size (configurable via property upload.maxFileSizeBytes; default 2GB if absent)
         long maxUpload = getMaxUploadBytes();
-        if (content.length > maxUpload) {
-            throw new IllegalArgumentException("File size " + content.length + " exceeds maximum allowed upload size of " + maxUpload + " bytes");
+        if (declaredSize > maxUpload) {
+            throw new IllegalArgumentException("File size " + declaredSize + " exceeds maximum allowed upload size of " + maxUpload + " bytes");
         }
-        // Enforce remaining capacity of safebox
-        long currentUsed = usage(userId, safeBoxName).usedBytes; // recompute to be safe
+        // The validator (a digest, possibly computed here) is checked now; under the lock only the file's identity
+        Validated validated = validate(precondition, base, target);
+        // Capacity is reserved before bytes are written (declared size up front, then growing while streaming)
+        // and the final ledger delta is applied under the same safebox lock, so concurrent uploads can't overshoot
         long capacityBytes = pickCapacityBytes(safeBoxName);
-        long remaining = capacityBytes - currentUsed;
-        if (content.length > remaining) {
-            throw new IllegalStateException("Not enough space in SafeBox. Remaining=" + remaining + " bytes, required=" + content.length + " bytes, capacity=" + capacityBytes + " bytes");
+        Path userRoot = userRootPath(userId);
+        ApiMutationWindow.Mark mark = apiMutations.begin(base, target);
+        try {
+            Files.createDirectories(target.getParent());
+            Path tmp = createTempFile(base);
+            FileContentStore.Stored stored;
+            try (QuotaManager.Reservation reservation = quotaManager.reserve(base, capacityBytes, Math.max(declaredSize, 0L))) {
+                stored = contentStore.write(userRoot, target.getFileName().toString(), content, tmp, written -> {
+                    if (written > maxUpload) {
+                        throw new IllegalArgumentException("File size exceeds maximum allowed upload size of " + maxUpload + " bytes");
+                    }
+                    reservation.ensure(written);
+                });
+                commitContent(base, userRoot, target, tmp, stored, reservation, validated);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            finishSave(userId, safeBoxName, base, target, stored, originalDateMs, "UPLOAD_FILE " + relativePath);
+        } finally {
+            mark.close();
+        }
+        return target;
+    }
+
+    /**
+     * Creates a file from chunks the client already stored in the user's block store (deduplicated mode):
+     * only missing chunks are ever sent, via {@link BlockStore#missing} and {@link BlockStore#put}.
+     */
+    public Path saveFileFromBlocks(String userId, String safeBoxName, String relativePath, List<String> hashes,
+                                   List<Long> sizes, Long originalDateMs) throws IOException {
+        if (!contentStore.dedupEnabled()) throw new IllegalStateException("Deduplicated storage is disabled");
+        Path base = ensureSafeBox(userId, safeBoxName);
+        Path target = base.resolve(relativePath).normalize();
+        if (!target.startsWith(base) || target.equals(base)) throw new SecurityException("Invalid file path");
+        if (isInternalPath(base, target)) throw new SecurityException("Invalid file path");
+        long declared = 0;
+        for (Long size : sizes) declared += size == null ? 0 : size;
+        long maxUpload = getMaxUploadBytes();
+        if (declared > maxUpload) {
+            throw new IllegalArgumentException("File size " + declared + " exceeds maximum allowed upload size of " + maxUpload + " bytes");
+        }
+        Path userRoot = userRootPath(userId);
+        ApiMutationWindow.Mark mark = apiMutations.begin(base, target);
+        try {
+            Files.createDirectories(target.getParent());
+            Path tmp = createTempFile(base);
+            FileContentStore.Stored stored;
+            try (QuotaManager.Reservation reservation = quotaManager.reserve(base, pickCapacityBytes(safeBoxName), declared)) {
+                stored = contentStore.writeFromBlocks(userRoot, hashes, sizes, tmp);
+                commitContent(base, userRoot, target, tmp, stored, reservation, Validated.NONE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            finishSave(userId, safeBoxName, base, target, stored, originalDateMs, "UPLOAD_FILE " + relativePath);
+        } finally {
+            mark.close();
+        }
+        return target;
+    }
+
+    /**
+     * Moves written content into place under the quota lock, applying the logical size delta. Chunk references
+     * are taken before the file becomes visible. A replaced file becomes a version (keeping its chunks, and its
+     * place on the ledger) when the safebox retains versions; otherwise its chunk references are dropped afterwards.
+     */
+    private void commitContent(Path base, Path userRoot, Path target, Path tmp, FileContentStore.Stored stored,
+                               QuotaManager.Reservation reservation, Validated validated) throws IOException {
+        contentStore.retain(userRoot, stored);
+        List<String> replaced = new ArrayList<>();
+        boolean[] moved = {false};
+        long physical = Files.size(tmp);
+        try {
+            reservation.commit(() -> {
+                validated.recheck(target);
+                long previousSize = -1L;
+                long previousPhysical = 0L;
+                Path kept = null;
+                if (Files.isRegularFile(target)) {
+                    previousSize = contentStore.contentSize(base, target);
+                    previousPhysical = Files.size(target);
+                    List<String> previousBlocks = contentStore.blocksOf(base, target);
+                    kept = versionStore.preserve(base, target); // a link, not a copy
+                    if (kept == null) replaced.addAll(previousBlocks);
+                }
+                try {
+                    moveIntoPlace(tmp, target);
+                } catch (IOException e) {
+                    if (kept != null) versionStore.rollback(base, kept, target);
+                    throw e;
+                }
+                moved[0] = true;
+                if (kept != null) {
+                    // The replaced content stays on disk, now counted as a version
+                    usageLedger.transfer(base, SafeBoxUsageLedger.Kind.LIVE, SafeBoxUsageLedger.Kind.VERSIONS, previousSize, 1);
+                    return new long[]{stored.size, 1, physical};
+                }
+                return new long[]{stored.size - Math.max(previousSize, 0L), previousSize < 0 ? 1 : 0, physical - previousPhysical};
+            });
+        } finally {
+            if (!moved[0]) contentStore.release(userRoot, stored.blocks);
         }
-        Files.createDirectories(target.getParent());
-        Files.write(target, content, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        contentStore.release(userRoot, replaced);
+    }
+
+    private void finishSave(String userId, String safeBoxName, Path base, Path target, FileContentStore.Stored stored,
+                            Long originalDateMs, String auditMessage) throws IOException {
         // Force update of last modified time to now to reflect replacements immediately
         try {
             Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
         } catch (UnsupportedOperationException ignored) { }
-        // Persist original client-side date if provided (as epoch millis) in a sidecar file: <file>.orig
+        // Original client-side date (epoch millis), file attributes and storage layout go to the metadata store;
+        // a replacement without a new original date keeps the previous one
+        String rel = relativize(base, target);
+        SafeBoxMetadataStore.FileMeta meta = SafeBoxMetadataStore.describe(target, metadataStore.get(base, rel), originalDateMs);
+        meta.encoding = stored.encoding;
+        meta.logicalSize = stored.encoding != null ? stored.size : null;
+        meta.sha256 = stored.sha256;
+        metadataStore.put(base, rel, meta);
+        appendSafeBoxLog(userId, safeBoxName, auditMessage);
+        publishChange(userId, safeBoxName, base, SafeBoxChangeEvent.Type.UPLOAD_FILE, target, null);
+    }
+
+    // ===== File versions =====
+
+    /** Prior versions of a file, newest first (the file itself may have been deleted since). */
+    public List<FileVersionStore.Version> listVersions(String userId, String safeBoxName, String relativePath) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        return versionStore.list(base, checkedRelative(base, relativePath));
+    }
+
+    /** Logical content of a version, for downloads. NoSuchElementException if absent; the caller closes it. */
+    public FileContentStore.Content openVersion(String userId, String safeBoxName, String relativePath, String versionId) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        return contentStore.open(base, versionStore.find(base, checkedRelative(base, relativePath), versionId));
+    }
+
+    /**
+     * Makes a version the current content again. The content being replaced becomes a version itself, so a
+     * restore can be undone like any overwrite.
+     */
+    public Path restoreVersion(String userId, String safeBoxName, String relativePath, String versionId) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        String rel = checkedRelative(base, relativePath);
+        Path version = versionStore.find(base, rel, versionId);
+        Path target = base.resolve(rel);
+        if (Files.isDirectory(target)) throw new IllegalArgumentException("A folder exists at " + rel);
+        SafeBoxMetadataStore.FileMeta versionMeta = metadataStore.get(base, relativize(base, version));
+        Path userRoot = userRootPath(userId);
+        ApiMutationWindow.Mark mark = apiMutations.begin(base, target);
         try {
-            if (originalDateMs != null && originalDateMs > 0) {
-                Path origPath = Paths.get(target.toString() + ".orig");
-                Files.writeString(origPath, Long.toString(originalDateMs), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            Files.createDirectories(target.getParent());
+            Path tmp = createTempFile(base);
+            FileContentStore.Stored stored;
+            try {
+                // Restores are rare: a private copy keeps the version intact whatever happens to the live file
+                // (for deduplicated files this copies only the manifest)
+                Files.copy(version, tmp, StandardCopyOption.REPLACE_EXISTING);
+                stored = contentStore.storedOf(base, version);
+                try (QuotaManager.Reservation reservation = quotaManager.reserve(base, pickCapacityBytes(safeBoxName), stored.size)) {
+                    commitContent(base, userRoot, target, tmp, stored, reservation, Validated.NONE);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
             }
-        } catch (Exception ignored) { }
-    appendSafeBoxLog(userId, safeBoxName, "UPLOAD_FILE " + relativePath);
+            finishSave(userId, safeBoxName, base, target, stored, versionMeta != null ? versionMeta.originalDate : null,
+                    "RESTORE_VERSION " + rel + " @" + versionId);
+        } finally {
+            mark.close();
+        }
         return target;
     }
 
+    public FileVersionStore.Policy getVersionPolicy(String userId, String safeBoxName) throws IOException {
+        return versionStore.policy(ensureSafeBox(userId, safeBoxName));
+    }
+
+    public FileVersionStore.Policy setVersionPolicy(String userId, String safeBoxName, Integer maxVersions, Integer maxAgeDays) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        FileVersionStore.Policy p = versionStore.setPolicy(base, maxVersions, maxAgeDays);
+        appendSafeBoxLog(userId, safeBoxName, "SET_VERSION_POLICY maxVersions=" + p.maxVersions + " maxAgeDays=" + p.maxAgeDays);
+        return p;
+    }
+
+    // ===== Trash =====
+
+    /** Deleted files and folders of a safebox that can still be restored or are waiting to be purged. */
+    public List<SafeBoxTrash.Item> listTrash(String userId, String safeBoxName) throws IOException {
+        return trash.list(ensureSafeBox(userId, safeBoxName));
+    }
+
+    /**
+     * Puts a trashed entry back where it was deleted from, or at <code>to</code> when given (missing parent
+     * folders are created). Fails if something already exists there, or if the entry does not fit the quota.
+     */
+    public String restoreFromTrash(String userId, String safeBoxName, String id, String to) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        SafeBoxTrash.Item item = trash.find(base, id);
+        String rel = checkedRelative(base, to == null || to.isBlank() ? item.path : to);
+        Path target = base.resolve(rel);
+        long[] usage = trash.measure(base, id); // a folder may be large: walked before taking the quota lock
+        ApiMutationWindow.Mark mark = apiMutations.begin(base, target);
+        try {
+            // trash is not counted toward quota, so bringing it back has to fit like an upload
+            try (QuotaManager.Reservation reservation = quotaManager.reserve(base, pickCapacityBytes(safeBoxName), usage[0])) {
+                reservation.commit(() -> {
+                    trash.restore(base, id, target, usage);
+                    return new long[]{0, 0, 0};
+                });
+            }
+            publishChange(userId, safeBoxName, base, SafeBoxChangeEvent.Type.RESTORE, target, null);
+        } finally {
+            mark.close();
+        }
+        appendSafeBoxLog(userId, safeBoxName, "RESTORE " + item.path + (rel.equals(item.path) ? "" : " -> " + rel));
+        return rel;
+    }
+
+    /** Queues one trashed entry for purging; returns its original path. */
+    public String purgeTrash(String userId, String safeBoxName, String id) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        String path = trash.find(base, id).path;
+        trash.purge(base, id);
+        appendSafeBoxLog(userId, safeBoxName, "PURGE_TRASH " + path);
+        return path;
+    }
+
+    /** Queues everything in the trash for purging; returns how many entries were queued. */
+    public int emptyTrash(String userId, String safeBoxName) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        int n = trash.purge(base, null).size();
+        appendSafeBoxLog(userId, safeBoxName, "EMPTY_TRASH " + n + " entries");
+        return n;
+    }
+
+    public SafeBoxTrash.Policy getTrashPolicy(String userId, String safeBoxName) throws IOException {
+        return trash.policy(ensureSafeBox(userId, safeBoxName));
+    }
+
+    public SafeBoxTrash.Policy setTrashPolicy(String userId, String safeBoxName, int retentionDays) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        SafeBoxTrash.Policy p = trash.setPolicy(base, retentionDays);
+        appendSafeBoxLog(userId, safeBoxName, "SET_TRASH_POLICY retentionDays=" + p.retentionDays);
+        return p;
+    }
+
+    private static String checkedRelative(Path base, String relativePath) {
+        Path p = base.resolve(relativePath == null ? "" : relativePath).normalize();
+        if (!p.startsWith(base) || p.equals(base) || isInternalPath(base, p)) throw new SecurityException("Invalid file path");
+        return relativize(base, p);
+    }
+
+    // ===== Deduplicated blocks =====
+    // Block stores are per user: probing for a hash never reveals whether another user stored the same content.
+
+    /** Which of the given chunk hashes the user's block store lacks (the client uploads only those). */
+    public List<String> missingBlocks(String userId, List<String> hashes) throws IOException {
+        if (!contentStore.dedupEnabled()) throw new IllegalStateException("Deduplicated storage is disabled");
+        if (hashes == null) return List.of();
+        return contentStore.blocks().missing(ensureUserRoot(userId), hashes);
+    }
+
+    /** Stores one chunk after verifying its hash. Returns false if the user already had it. */
+    public boolean putBlock(String userId, String hash, InputStream body) throws IOException {
+        if (!contentStore.dedupEnabled()) throw new IllegalStateException("Deduplicated storage is disabled");
+        return contentStore.blocks().put(ensureUserRoot(userId), hash, body, contentStore.maxChunkBytes());
+    }
+
+    /**
+     * Entity tag of a file: its content SHA-256, quoted, when one is recorded for the file as it is now. Otherwise
+     * (a file changed outside the API) a weak tag from size, mtime and file key, while the digest is computed in
+     * the background. Never reads the content, so GET, HEAD and Range requests cost no more than the bytes sent.
+     */
+    public String etag(Path base, Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String sha256 = contentStore.knownSha256(base, file, attrs);
+        if (sha256 != null) return "\"" + sha256 + "\"";
+        contentStore.backfillDigest(base, file);
+        return FileState.of(attrs).weakEtag();
+    }
+
+    /**
+     * Checks a precondition against the file's strong ETag, computing the digest if none is recorded. Runs before
+     * any lock is taken; the file's identity at that point is what {@link Validated#recheck} compares under it.
+     */
+    private Validated validate(Precondition precondition, Path base, Path target) throws IOException {
+        if (precondition == null || precondition.isNone()) return Validated.NONE;
+        FileState before = FileState.of(target);
+        String etag = before == null ? null : "\"" + contentStore.sha256(base, target) + "\"";
+        if (!Objects.equals(before, FileState.of(target))) {
+            throw new PreconditionFailedException("File changed while its ETag was being computed");
+        }
+        precondition.check(etag);
+        return new Validated(before);
+    }
+
+    /** Logical content of a file, for downloads. The caller closes it. */
+    public FileContentStore.Content openContent(Path base, Path file) throws IOException {
+        return contentStore.open(base, file);
+    }
+
+    // ===== Internal area helpers =====
+    // Each safebox keeps server-side working files (upload temp files, etc.) under a hidden folder
+    // that is excluded from tree, usage and zip views.
+
+    private Path internalDir(Path base) throws IOException {
+        Path dir = base.resolve(INTERNAL_DIR);
+        Files.createDirectories(dir);
+        return dir;
+    }
+
+    public static boolean isInternalPath(Path base, Path p) {
+        return p.startsWith(base.resolve(INTERNAL_DIR));
+    }
+
+    private Path createTempFile(Path base) throws IOException {
+        Path tmpDir = internalDir(base).resolve("tmp");
+        Files.createDirectories(tmpDir);
+        return Files.createTempFile(tmpDir, "upload-", ".part");
+    }
+
+    private static void moveIntoPlace(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Holds capacity for an upload that arrives over several requests (a chunked session), so its parts cannot
+     * fill the disk before the final save checks quota. Release it before that save, which reserves on its own.
+     */
+    public QuotaManager.Reservation reserveUpload(String userId, String safeBoxName, long declaredSize, long heldBytes) throws IOException {
+        long maxUpload = getMaxUploadBytes();
+        if (declaredSize > maxUpload) {
+            throw new IllegalArgumentException("File size " + declaredSize + " exceeds maximum allowed upload size of " + maxUpload + " bytes");
+        }
+        Path base = ensureSafeBox(userId, safeBoxName);
+        return quotaManager.reserve(base, pickCapacityBytes(safeBoxName), heldBytes);
+    }
+
     private long getMaxUploadBytes() {
         return configuredMaxUploadBytes > 0 ? configuredMaxUploadBytes : 2L * 1024 * 1024 * 1024;
     }
@@ -122,14 +526,9 @@ public class StorageService {
 
     public List<String> listSafeBoxes(String userId) throws IOException {
         // If user was migrated, mappings contain original safebox names (original -> masked).
-        try {
-            StorageMappingStore store = new StorageMappingStore(root());
-            var mapping = store.getUserMapping(userId);
-            if (mapping != null && mapping.safeboxes != null && !mapping.safeboxes.isEmpty()) {
-                return mapping.safeboxes.keySet().stream().sorted().collect(Collectors.toList());
-            }
-        } catch (Exception ignored) {
-            // fall back to filesystem listing
+        var mapping = mappingStore.getUserMapping(userId);
+        if (mapping != null && mapping.safeboxes != null && !mapping.safeboxes.isEmpty()) {
+            return mapping.safeboxes.keySet().stream().sorted().collect(Collectors.toList());
         }
         Path user = ensureUserRoot(userId);
         if (!Files.exists(user)) return List.of();
@@ -137,6 +536,7 @@ public class StorageService {
             return stream
                     .filter(Files::isDirectory)
                     .map(p -> p.getFileName().toString())
+                    .filter(name -> !name.startsWith(".")) // .audit and other internal folders
                     .sorted()
                     .collect(Collectors.toList());
         }
@@ -149,11 +549,13 @@ public class StorageService {
         rootNode.name = base.getFileName().toString();
         rootNode.path = ""; // base
         rootNode.children = new ArrayList<>();
+        Map<String, SafeBoxMetadataStore.FileMeta> metadata = metadataStore.all(base);
 
         Files.walkFileTree(base, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
                 if (dir.equals(base)) return FileVisitResult.CONTINUE;
+                if (isInternalPath(base, dir)) return FileVisitResult.SKIP_SUBTREE;
                 Node folder = new Node();
                 folder.type = "folder";
                 folder.name = dir.getFileName().toString();
@@ -165,28 +567,17 @@ public class StorageService {
 
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                // Skip sidecar metadata files
-                if (file.getFileName().toString().endsWith(".orig")) {
-                    return FileVisitResult.CONTINUE;
-                }
                 Node f = new Node();
                 f.type = "file";
                 f.name = file.getFileName().toString();
                 f.path = base.relativize(file).toString().replace('\\', '/');
-                f.size = Files.size(file);
-                f.modifiedAt = Files.getLastModifiedTime(file).toInstant();
+                // Original date and logical size come from the in-memory metadata store (no per-file syscalls)
+                SafeBoxMetadataStore.FileMeta meta = metadata.get(f.path);
+                f.size = contentStore.contentSize(base, file, attrs, meta);
+                f.modifiedAt = attrs.lastModifiedTime().toInstant();
                 f.createdAt = attrs.creationTime() != null ? attrs.creationTime().toInstant() : null;
-                // Read sidecar original date if available
-                try {
-                    Path origPath = Paths.get(file.toString() + ".orig");
-                    if (Files.exists(origPath)) {
-                        String txt = Files.readString(origPath, java.nio.charset.StandardCharsets.UTF_8).trim();
-                        if (!txt.isEmpty()) {
-                            long ms = Long.parseLong(txt);
-                            f.originalDate = Instant.ofEpochMilli(ms);
-                        }
-                    }
-                } catch (Exception ignored) { }
+                if (meta != null && meta.originalDate != null) f.originalDate = Instant.ofEpochMilli(meta.originalDate);
+                if (meta != null && meta.matches(attrs)) f.sha256 = meta.sha256;
                 attachNode(f);
                 return FileVisitResult.CONTINUE;
             }
@@ -228,157 +619,456 @@ public class StorageService {
     }
 
     public void deleteFile(String userId, String safeBoxName, String relativePath) throws IOException {
+        deleteFile(userId, safeBoxName, relativePath, Precondition.NONE);
+    }
+
+    /** Deletes a file; the precondition is checked first, and under the delete's lock the file must be unchanged since. */
+    public void deleteFile(String userId, String safeBoxName, String relativePath, Precondition precondition) throws IOException {
         Path base = ensureSafeBox(userId, safeBoxName);
+        deleteFileAt(userId, safeBoxName, base, relativePath, precondition, null);
+        appendSafeBoxLog(userId, safeBoxName, "DELETE_FILE " + relativePath);
+    }
+
+    /**
+     * Deletes a file: moves it to the trash (its usage leaves the ledger when purged), or with the trash disabled
+     * removes it and takes its usage off the ledger at once, or adds it to deferred (a batch) when given.
+     * A locked file is handed to the retry service ({@link DeletePendingException}).
+     */
+    private void deleteFileAt(String userId, String safeBoxName, Path base, String relativePath, Precondition precondition,
+                              UsageDelta deferred) throws IOException {
         Path target = base.resolve(relativePath).normalize();
-        if (!target.startsWith(base)) throw new SecurityException("Invalid file path: " + relativePath);
+        if (!target.startsWith(base) || isInternalPath(base, target)) throw new SecurityException("Invalid file path: " + relativePath);
         if (!Files.exists(target)) throw new IllegalArgumentException("File not found: " + relativePath);
         if (!Files.isRegularFile(target)) throw new IllegalArgumentException("Path is not a file: " + relativePath);
-        long size = Files.size(target);
-        boolean deleted = false;
-        String failReason = null;
-        for (int attempt = 1; attempt <= 3 && !deleted; attempt++) {
-            try {
-                Files.delete(target);
-                deleted = true;
-            } catch (AccessDeniedException ade) {
-                failReason = "access denied"; // locked or insufficient rights
-                // Try to clear DOS read-only attribute if present (Windows)
-                try { Files.setAttribute(target, "dos:readonly", false); } catch (Exception ignored) { }
-                // Backoff (progressive) before retrying
-                try { Thread.sleep(120L * attempt); } catch (InterruptedException ignored) { }
-            } catch (FileSystemException fse) {
-                // Includes AccessDeniedException subclass but we handled it earlier; treat generically
-                if (fse instanceof NoSuchFileException) {
-                    deleted = true; // already gone
-                } else {
-                    failReason = "file is in use or locked";
-                    try { Thread.sleep(150L * attempt); } catch (InterruptedException ignored) { }
-                }
-            } catch (IOException ioe) {
-                failReason = "I/O error";
-                break; // non-retryable generic I/O
+        // Retries must delete the file this request saw, not one uploaded to the same path in the meantime
+        FileState requested = FileState.of(target);
+        DeleteRetryService.Attempt retry = () -> {
+            Validated validated = sameFile(precondition, base, target, requested);
+            if (trash.enabled()) moveToTrash(userId, safeBoxName, base, target, validated, SafeBoxChangeEvent.Type.DELETE_FILE);
+            else deleteFileNow(userId, safeBoxName, base, target, validated, null);
+        };
+        try {
+            Validated validated = validate(precondition, base, target);
+            if (trash.enabled()) moveToTrash(userId, safeBoxName, base, target, validated, SafeBoxChangeEvent.Type.DELETE_FILE);
+            else deleteFileNow(userId, safeBoxName, base, target, validated, deferred);
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("File not found: " + relativePath);
+        } catch (IOException e) {
+            if (!DeleteRetryService.retryable(e)) {
+                throw new IllegalStateException("Failed to delete file: " + relativePath + ". Reason: I/O error");
             }
+            throw pending(userId, safeBoxName, base, SafeBoxChangeEvent.Type.DELETE_FILE, target, e, retry);
         }
-        if (!deleted) {
-            if (failReason == null) failReason = "unknown";
-            throw new IllegalStateException("Failed to delete file (size=" + size + " bytes): " + relativePath + ". Reason: " + failReason);
-        }
-        // Best-effort cleanup of sidecar original date
+    }
+
+    /** One attempt at unlinking a file; a lock surfaces as FileSystemException for the caller to retry. */
+    private void deleteFileNow(String userId, String safeBoxName, Path base, Path target, Validated validated,
+                               UsageDelta deferred) throws IOException {
+        ApiMutationWindow.Mark mark = apiMutations.beginTree(target);
         try {
-            Path origPath = Paths.get(target.toString() + ".orig");
-            if (Files.exists(origPath)) Files.delete(origPath);
-        } catch (Exception ignored) { }
-        appendSafeBoxLog(userId, safeBoxName, "DELETE_FILE " + relativePath);
+            List<String> blocks;
+            // Size, delete and ledger update together under the quota lock (a replacing upload may commit concurrently)
+            synchronized (quotaManager.lockFor(base)) {
+                validated.recheck(target);
+                long size = contentStore.contentSize(base, target);
+                long physical = Files.size(target);
+                blocks = contentStore.blocksOf(base, target);
+                try {
+                    Files.delete(target);
+                } catch (AccessDeniedException ade) {
+                    // May just be the DOS read-only attribute (Windows): clear it and try once more
+                    try { Files.setAttribute(target, "dos:readonly", false); } catch (Exception ignored) { }
+                    Files.delete(target);
+                }
+                addUsage(base, -size, -1, -physical, deferred);
+            }
+            contentStore.release(userRootPath(userId), blocks);
+            metadataStore.remove(base, relativize(base, target));
+            publishChange(userId, safeBoxName, base, SafeBoxChangeEvent.Type.DELETE_FILE, target, null);
+        } finally {
+            mark.close();
+        }
     }
 
     public void deleteFolder(String userId, String safeBoxName, String relativePath) throws IOException {
         Path base = ensureSafeBox(userId, safeBoxName);
+        deleteFolderAt(userId, safeBoxName, base, relativePath, null);
+        appendSafeBoxLog(userId, safeBoxName, "DELETE_FOLDER " + relativePath);
+    }
+
+    private void deleteFolderAt(String userId, String safeBoxName, Path base, String relativePath, UsageDelta deferred) throws IOException {
         Path target = base.resolve(relativePath).normalize();
-        if (!target.startsWith(base)) throw new SecurityException("Invalid folder path: " + relativePath);
+        if (!target.startsWith(base) || isInternalPath(base, target)) throw new SecurityException("Invalid folder path: " + relativePath);
         if (!Files.exists(target)) throw new IllegalArgumentException("Folder not found: " + relativePath);
         if (!Files.isDirectory(target)) throw new IllegalArgumentException("Path is not a folder: " + relativePath);
         // Do not allow deleting safebox root
         if (target.equals(base)) throw new IllegalArgumentException("Cannot delete safebox root");
-        // Recursively delete contents
-        // Best-effort retries on Windows locking issues
-        IOException last = null;
-        for (int attempt = 1; attempt <= 3; attempt++) {
-            try {
-                Files.walk(target)
-                        .sorted(Comparator.reverseOrder())
+        // Retries must remove this folder as it was, not one created at the same path or files uploaded into it since
+        BasicFileAttributes requested = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        FileTime requestedAt = FileTime.from(Instant.now());
+        DeleteRetryService.Attempt retry = () -> {
+            sameFolder(target, requested);
+            if (trash.enabled()) {
+                if (changedSince(target, requestedAt)) throw new PreconditionFailedException(CHANGED_SINCE_DELETE);
+                moveToTrash(userId, safeBoxName, base, target, Validated.NONE, SafeBoxChangeEvent.Type.DELETE_FOLDER);
+            } else {
+                deleteFolderNow(userId, safeBoxName, base, target, requestedAt, null);
+            }
+        };
+        try {
+            if (trash.enabled()) moveToTrash(userId, safeBoxName, base, target, Validated.NONE, SafeBoxChangeEvent.Type.DELETE_FOLDER);
+            else deleteFolderNow(userId, safeBoxName, base, target, null, deferred);
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("Folder not found: " + relativePath);
+        } catch (IOException e) {
+            if (!DeleteRetryService.retryable(e)) throw e;
+            // What could be removed is gone (and accounted for); the retries take care of the rest
+            throw pending(userId, safeBoxName, base, SafeBoxChangeEvent.Type.DELETE_FOLDER, target, e, retry);
+        }
+    }
+
+    /**
+     * One pass over the folder, deepest entries first; stops at the first entry that cannot be removed. A retry
+     * passes the time of the request: files modified after it (and the folders holding them) are kept, and the
+     * delete then fails as changed since it was requested.
+     */
+    private void deleteFolderNow(String userId, String safeBoxName, Path base, Path target, FileTime keepNewerThan,
+                                 UsageDelta deferred) throws IOException {
+        ApiMutationWindow.Mark mark = apiMutations.beginTree(target);
+        try {
+            // Each removed file is taken off the usage ledger as it goes, so it stays exact even on partial failure
+            List<String> released = new ArrayList<>(); // chunk references of removed deduplicated files
+            AtomicInteger kept = new AtomicInteger();
+            try (Stream<Path> walk = Files.walk(target)) {
+                walk.sorted(Comparator.reverseOrder())
                         .forEach(p -> {
                             try {
-                                // Skip sidecar cleanup rules handled implicitly by deleting files
-                                Files.deleteIfExists(p);
+                                synchronized (quotaManager.lockFor(base)) {
+                                    boolean counted = Files.isRegularFile(p);
+                                    if (keepNewerThan != null && counted && Files.getLastModifiedTime(p).compareTo(keepNewerThan) > 0) {
+                                        kept.incrementAndGet();
+                                        return;
+                                    }
+                                    if (kept.get() > 0 && !counted && isNonEmptyDirectory(p)) return; // holds a kept file
+                                    long size = counted ? contentStore.contentSize(base, p) : 0L;
+                                    long physical = counted ? Files.size(p) : 0L;
+                                    List<String> blocks = counted ? contentStore.blocksOf(base, p) : List.of();
+                                    if (Files.deleteIfExists(p) && counted) {
+                                        addUsage(base, -size, -1, -physical, deferred);
+                                        released.addAll(blocks);
+                                    }
+                                }
                             } catch (IOException e) {
-                                throw new RuntimeException(e);
+                                throw new UncheckedIOException(e);
                             }
                         });
-                appendSafeBoxLog(userId, safeBoxName, "DELETE_FOLDER " + relativePath);
-                return;
-            } catch (RuntimeException rte) {
-                if (rte.getCause() instanceof IOException io) {
-                    last = io;
-                    try { Thread.sleep(150L * attempt); } catch (InterruptedException ignored) {}
-                } else {
-                    throw rte;
-                }
+                if (kept.get() > 0) throw new PreconditionFailedException(CHANGED_SINCE_DELETE);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                contentStore.release(userRootPath(userId), released);
+                if (Files.exists(target)) metadataStore.pruneMissing(base, relativize(base, target));
+                else metadataStore.remove(base, relativize(base, target));
+                // Also on partial failure: whatever was removed must invalidate derived views
+                publishChange(userId, safeBoxName, base, SafeBoxChangeEvent.Type.DELETE_FOLDER, target, null);
             }
+        } finally {
+            mark.close();
         }
-        if (last != null) throw last;
     }
 
-    // ===== Audit Log helpers =====
-    private void appendUserLog(String userId, String message) throws IOException {
-        Path userRoot = ensureUserRoot(userId);
-        Path logFile = userRoot.resolve("usuario.log");
-        String line = Instant.now().toString() + " " + message + System.lineSeparator();
-        Files.writeString(logFile, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    /**
+     * One rename, whatever the size of target; under the quota lock so a concurrent upload cannot interleave. A
+     * folder's totals (moved from live files to trash on the ledger) are walked before the lock is taken.
+     */
+    private void moveToTrash(String userId, String safeBoxName, Path base, Path target, Validated validated,
+                             SafeBoxChangeEvent.Type type) throws IOException {
+        ApiMutationWindow.Mark mark = apiMutations.beginTree(target);
+        try {
+            long[] usage = Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS) ? trash.measure(base, target) : null;
+            synchronized (quotaManager.lockFor(base)) {
+                validated.recheck(target);
+                trash.put(base, target, usage);
+            }
+            publishChange(userId, safeBoxName, base, type, target, null);
+        } finally {
+            mark.close();
+        }
     }
 
-    private void appendSafeBoxLog(String userId, String safeBoxName, String message) throws IOException {
-        Path userRoot = ensureUserRoot(userId);
-        Path logFile = userRoot.resolve(safeBoxName + ".log");
-        String line = Instant.now().toString() + " " + message + System.lineSeparator();
-        Files.writeString(logFile, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-        // also reflect a summary line in user log referencing safebox
-        appendUserLog(userId, safeBoxName + ": " + message);
-        // Best-effort prune of safebox log based on retention setting
-        try {
-            int days = getRetentionDays(userId, safeBoxName);
-            pruneSafeBoxLog(userRoot.resolve(safeBoxName + ".log"), days);
-        } catch (Exception ignored) { }
-    }
-
-    private void pruneSafeBoxLog(Path logFile, int retentionDays) throws IOException {
-        if (!Files.exists(logFile) || retentionDays <= 0) return;
-        Instant threshold = Instant.now().minusSeconds((long) retentionDays * 24 * 60 * 60);
-        List<String> lines = Files.readAllLines(logFile, StandardCharsets.UTF_8);
-        List<String> kept = new ArrayList<>(lines.size());
-        for (String line : lines) {
-            if (line == null || line.isBlank()) continue;
-            int idx = line.indexOf(' ');
-            if (idx <= 0) continue;
-            String ts = line.substring(0, idx);
-            try {
-                Instant t = Instant.parse(ts);
-                if (!t.isBefore(threshold)) kept.add(line);
-            } catch (Exception ignored) { kept.add(line); }
+    /**
+     * Hands a delete that hit a locked file to the retry service. Retries skip a target that has gone meanwhile
+     * and write the audit record the request could not; a target replaced meanwhile fails the job for good
+     * (dead-lettered as changed since the delete was requested), see {@link #sameFile} and {@link #sameFolder}.
+     */
+    private DeletePendingException pending(String userId, String safeBoxName, Path base, SafeBoxChangeEvent.Type op,
+                                           Path target, IOException cause, DeleteRetryService.Attempt retry) {
+        String rel = relativize(base, target);
+        DeleteRetryService.DeleteJob job = deleteRetries.submit(userId, safeBoxName, base, op.name(), rel, cause, () -> {
+            if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) return;
+            retry.run();
+            appendSafeBoxLog(userId, safeBoxName, op.name() + " " + rel);
+        });
+        return new DeletePendingException(job);
+    }
+
+    /**
+     * For a delete retry: the file must still be the one the request saw (size, mtime and file key), and still pass
+     * the request's precondition. The result pins that state for the recheck under the delete's lock.
+     */
+    private Validated sameFile(Precondition precondition, Path base, Path target, FileState requested) throws IOException {
+        if (!Objects.equals(requested, FileState.of(target))) throw new PreconditionFailedException(CHANGED_SINCE_DELETE);
+        Validated validated = validate(precondition, base, target);
+        return validated != Validated.NONE ? validated : new Validated(requested, CHANGED_SINCE_DELETE);
+    }
+
+    /** For a delete retry: target must still be the folder the request saw (same file key, else same creation time). */
+    private static void sameFolder(Path target, BasicFileAttributes requested) throws IOException {
+        BasicFileAttributes now = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        boolean same = now.isDirectory() && (requested.fileKey() != null
+                ? requested.fileKey().equals(now.fileKey())
+                : requested.creationTime().equals(now.creationTime()));
+        if (!same) throw new PreconditionFailedException(CHANGED_SINCE_DELETE);
+    }
+
+    /** True if a file under dir was modified after the given time (uploaded or replaced since). */
+    private static boolean changedSince(Path dir, FileTime since) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            return walk.anyMatch(p -> {
+                try {
+                    return Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS) && Files.getLastModifiedTime(p).compareTo(since) > 0;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        if (kept.size() != lines.size()) {
-            Files.write(logFile, kept, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE);
+    }
+
+    private static boolean isNonEmptyDirectory(Path p) throws IOException {
+        if (!Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) return false;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(p)) {
+            return ds.iterator().hasNext();
         }
     }
 
+    /** Status of a delete handed to the retry service; null if unknown (or finished long ago). */
+    public DeleteRetryService.DeleteJob deleteStatus(String userId, String safeBoxName, String jobId) throws IOException {
+        return deleteRetries.get(ensureSafeBox(userId, safeBoxName), jobId);
+    }
+
+    private void addUsage(Path base, long bytes, long files, long physical, UsageDelta deferred) throws IOException {
+        if (deferred != null) deferred.add(bytes, files, physical);
+        else usageLedger.add(base, bytes, files, physical);
+    }
+
+    // ===== Change notification =====
+    private void publishChange(String userId, String safeBoxName, Path base, SafeBoxChangeEvent.Type type, Path path, Path newPath) {
+        events.publishEvent(new SafeBoxChangeEvent(userId, safeBoxName, base, type,
+                relativize(base, path), newPath == null ? null : relativize(base, newPath)));
+    }
+
+    static String relativize(Path base, Path p) {
+        return base.relativize(p).toString().replace('\\', '/');
+    }
+
+    // ===== Audit Log helpers =====
+    // Records are queued to the audit writer as compact per-day segment records; the request thread
+    // never touches log files. The USER view is derived from the safebox streams on read.
+    private void appendSafeBoxLog(String userId, String safeBoxName, String message) throws IOException {
+        auditStore.appendSafeBox(userRootPath(userId), safeBoxName, message, () -> getRetentionDays(userId, safeBoxName));
+    }
+
     // ===== Rename operations =====
     public void renameFile(String userId, String safeBoxName, String relativePath, String newName) throws IOException {
         Path base = ensureSafeBox(userId, safeBoxName);
-        Path src = base.resolve(relativePath).normalize();
-        if (!src.startsWith(base)) throw new SecurityException("Invalid file path");
-        if (!Files.exists(src) || !Files.isRegularFile(src)) throw new IllegalArgumentException("File not found: " + relativePath);
-        if (!newName.matches(".+")) throw new IllegalArgumentException("New name required");
-        Path parent = src.getParent();
-        Path dest = parent.resolve(newName).normalize();
-        if (!dest.startsWith(base)) throw new SecurityException("Invalid destination");
-        if (Files.exists(dest)) throw new IllegalArgumentException("A file with that name already exists");
-        Files.move(src, dest, StandardCopyOption.ATOMIC_MOVE);
-        try { Files.setLastModifiedTime(dest, FileTime.from(Instant.now())); } catch (Exception ignored) {}
-        appendSafeBoxLog(userId, safeBoxName, "RENAME_FILE " + base.relativize(src).toString().replace('\\','/') + " -> " + base.relativize(dest).toString().replace('\\','/'));
+        appendSafeBoxLog(userId, safeBoxName, renameAt(userId, safeBoxName, base, relativePath, newName, false));
     }
 
     public void renameFolder(String userId, String safeBoxName, String relativePath, String newName) throws IOException {
         Path base = ensureSafeBox(userId, safeBoxName);
+        appendSafeBoxLog(userId, safeBoxName, renameAt(userId, safeBoxName, base, relativePath, newName, true));
+    }
+
+    /** Renames a file or folder within its parent; returns the audit message. */
+    private String renameAt(String userId, String safeBoxName, Path base, String relativePath, String newName, boolean folder) throws IOException {
         Path src = base.resolve(relativePath).normalize();
-        if (!src.startsWith(base)) throw new SecurityException("Invalid folder path");
-        if (!Files.exists(src) || !Files.isDirectory(src)) throw new IllegalArgumentException("Folder not found: " + relativePath);
+        String kind = folder ? "folder" : "file";
+        if (!src.startsWith(base) || isInternalPath(base, src)) throw new SecurityException("Invalid " + kind + " path");
+        if (folder ? !Files.isDirectory(src) : !Files.isRegularFile(src)) {
+            throw new IllegalArgumentException((folder ? "Folder" : "File") + " not found: " + relativePath);
+        }
         if (src.equals(base)) throw new IllegalArgumentException("Cannot rename safebox root");
-        if (!newName.matches(".+")) throw new IllegalArgumentException("New name required");
-        Path parent = src.getParent();
-        Path dest = parent.resolve(newName).normalize();
-        if (!dest.startsWith(base)) throw new SecurityException("Invalid destination");
-        if (Files.exists(dest)) throw new IllegalArgumentException("A folder with that name already exists");
-        Files.move(src, dest, StandardCopyOption.ATOMIC_MOVE);
-        appendSafeBoxLog(userId, safeBoxName, "RENAME_FOLDER " + base.relativize(src).toString().replace('\\','/') + " -> " + base.relativize(dest).toString().replace('\\','/'));
+        if (newName == null || newName.isEmpty()) throw new IllegalArgumentException("New name required");
+        Path dest = src.getParent().resolve(newName).normalize();
+        if (!dest.startsWith(base) || isInternalPath(base, dest)) throw new SecurityException("Invalid destination");
+        if (Files.exists(dest)) throw new IllegalArgumentException("A " + kind + " with that name already exists");
+        relocate(userId, safeBoxName, base, src, dest, folder);
+        return (folder ? "RENAME_FOLDER " : "RENAME_FILE ") + relativize(base, src) + " -> " + relativize(base, dest);
+    }
+
+    /** Moves a file or folder into another folder of the same safebox (keeping its name); returns the audit message. */
+    private String moveAt(String userId, String safeBoxName, Path base, String relativePath, String destinationFolder) throws IOException {
+        Path src = base.resolve(relativePath).normalize();
+        if (!src.startsWith(base) || isInternalPath(base, src)) throw new SecurityException("Invalid path");
+        if (!Files.exists(src)) throw new IllegalArgumentException("Not found: " + relativePath);
+        if (src.equals(base)) throw new IllegalArgumentException("Cannot move safebox root");
+        Path folder = base.resolve(destinationFolder == null ? "" : destinationFolder).normalize();
+        if (!folder.startsWith(base) || isInternalPath(base, folder)) throw new SecurityException("Invalid destination");
+        if (!Files.isDirectory(folder)) throw new IllegalArgumentException("Destination folder not found: " + destinationFolder);
+        boolean isFolder = Files.isDirectory(src);
+        if (isFolder && folder.startsWith(src)) throw new IllegalArgumentException("Cannot move a folder into itself");
+        Path dest = folder.resolve(src.getFileName());
+        if (dest.equals(src)) throw new IllegalArgumentException("Already in that folder: " + relativePath);
+        if (Files.exists(dest)) throw new IllegalArgumentException("Destination already has an entry named " + src.getFileName());
+        relocate(userId, safeBoxName, base, src, dest, isFolder);
+        return (isFolder ? "MOVE_FOLDER " : "MOVE_FILE ") + relativize(base, src) + " -> " + relativize(base, dest);
+    }
+
+    /** Same-safebox move: no bytes move, so the usage ledger needs no delta. Metadata and versions follow the entry. */
+    private void relocate(String userId, String safeBoxName, Path base, Path src, Path dest, boolean folder) throws IOException {
+        ApiMutationWindow.Mark mark = apiMutations.begin(base, src, dest);
+        try {
+            Files.move(src, dest, StandardCopyOption.ATOMIC_MOVE);
+            if (folder) {
+                metadataStore.move(base, relativize(base, src), relativize(base, dest));
+            } else {
+                try { Files.setLastModifiedTime(dest, FileTime.from(Instant.now())); } catch (Exception ignored) {}
+                SafeBoxMetadataStore.FileMeta previous = metadataStore.get(base, relativize(base, src));
+                SafeBoxMetadataStore.FileMeta renamed = SafeBoxMetadataStore.describe(dest, previous, null);
+                if (previous != null) { // same stored bytes: the encoding carries over
+                    renamed.encoding = previous.encoding;
+                    renamed.logicalSize = previous.logicalSize;
+                    renamed.sha256 = previous.sha256;
+                }
+                metadataStore.remove(base, relativize(base, src));
+                metadataStore.put(base, relativize(base, dest), renamed);
+            }
+            versionStore.rename(base, relativize(base, src), relativize(base, dest));
+            publishChange(userId, safeBoxName, base, folder ? SafeBoxChangeEvent.Type.RENAME_FOLDER : SafeBoxChangeEvent.Type.RENAME_FILE, src, dest);
+        } finally {
+            mark.close();
+        }
+    }
+
+    // ===== Batch operations =====
+    /** Starts a batch of operations on one safebox; close it to apply the usage delta and write the audit record. */
+    public Batch openBatch(String userId, String safeBoxName) throws IOException {
+        Path base = ensureSafeBox(userId, safeBoxName);
+        usageLedger.beginDeferred(base); // also loads (or scans) the ledger up front, not in the middle of the batch
+        return new Batch(userId, safeBoxName, base);
+    }
+
+    /**
+     * Operations on one safebox that share a single resolution, a single usage-ledger update and a single
+     * audit record, all applied on {@link #close()}. Items may run concurrently from several threads; each
+     * still takes the safebox's quota lock for its own unlink, so a concurrent upload's accounting stays exact.
+     * Until close, the ledger overstates usage by what the batch already freed (uploads see less room, never more),
+     * and the background reconcile skips the safebox so the collected delta is not applied on top of a fresh walk.
+     */
+    public final class Batch implements AutoCloseable {
+        private final String userId;
+        private final String safeBoxName;
+        private final Path base;
+        private final UsageDelta usage = new UsageDelta();
+        private final List<String> done = new ArrayList<>(); // audit lines of completed items; guarded by itself
+        private int failed; // guarded by done
+        private int pending; // guarded by done
+        private boolean closed;
+
+        private Batch(String userId, String safeBoxName, Path base) {
+            this.userId = userId;
+            this.safeBoxName = safeBoxName;
+            this.base = base;
+        }
+
+        public Path base() { return base; }
+
+        public void deleteFile(String relativePath, Precondition precondition) throws IOException {
+            deleteFileAt(userId, safeBoxName, base, relativePath, precondition, usage);
+            record("DELETE_FILE " + relativePath);
+        }
+
+        public void deleteFolder(String relativePath) throws IOException {
+            deleteFolderAt(userId, safeBoxName, base, relativePath, usage);
+            record("DELETE_FOLDER " + relativePath);
+        }
+
+        /** Renames a file or folder, whichever relativePath is. */
+        public void rename(String relativePath, String newName) throws IOException {
+            Path src = base.resolve(relativePath == null ? "" : relativePath).normalize();
+            record(renameAt(userId, safeBoxName, base, relativePath, newName, Files.isDirectory(src)));
+        }
+
+        public void move(String relativePath, String destinationFolder) throws IOException {
+            record(moveAt(userId, safeBoxName, base, relativePath, destinationFolder));
+        }
+
+        public void createFolder(String relativePath) throws IOException {
+            createFolderAt(userId, safeBoxName, base, relativePath);
+            record("CREATE_FOLDER " + relativePath);
+        }
+
+        /** Counts an item that failed (it is summarized, not itemized, in the audit record). */
+        public void failed() {
+            synchronized (done) {
+                failed++;
+            }
+        }
+
+        /** Counts a delete handed to the retry queue (which writes its own audit record once it succeeds). */
+        public void pending() {
+            synchronized (done) {
+                pending++;
+            }
+        }
+
+        private void record(String auditLine) {
+            synchronized (done) {
+                done.add(auditLine);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            List<String> lines;
+            int failures;
+            int retrying;
+            synchronized (done) {
+                if (closed) return;
+                closed = true;
+                lines = new ArrayList<>(done);
+                failures = failed;
+                retrying = pending;
+            }
+            long[] delta = usage.get();
+            synchronized (quotaManager.lockFor(base)) {
+                usageLedger.endDeferred(base, delta[0], delta[1], delta[2]);
+            }
+            if (!lines.isEmpty() || failures > 0 || retrying > 0) {
+                appendSafeBoxLog(userId, safeBoxName, "BATCH " + lines.size() + " ok, " + failures + " failed"
+                        + (retrying > 0 ? ", " + retrying + " pending" : "")
+                        + (lines.isEmpty() ? "" : ": " + String.join("; ", lines)));
+            }
+        }
+    }
+
+    /** Ledger changes collected by a batch and applied in one step. */
+    private static final class UsageDelta {
+        long bytes;
+        long files;
+        long physical;
+
+        synchronized void add(long bytesDelta, long filesDelta, long physicalDelta) {
+            bytes += bytesDelta;
+            files += filesDelta;
+            physical += physicalDelta;
+        }
+
+        synchronized long[] get() {
+            return new long[]{bytes, files, physical};
+        }
     }
 
     // ===== Per-safebox retention setting =====
@@ -402,45 +1092,23 @@ public class StorageService {
         Path userRoot = ensureUserRoot(userId);
         Path cfg = userRoot.resolve(safeBoxName + ".retention");
         Files.writeString(cfg, Integer.toString(days), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-        // After updating retention, prune immediately
-        pruneSafeBoxLog(userRoot.resolve(safeBoxName + ".log"), days);
+        // After updating retention, drop expired segments (on the audit writer thread, after pending appends)
+        auditStore.scheduleRetention(userRoot, safeBoxName, days);
+        events.publishEvent(new SafeBoxChangeEvent(userId, safeBoxName, ensureSafeBox(userId, safeBoxName),
+                SafeBoxChangeEvent.Type.RETENTION_CHANGED, "", null, days));
     }
 
     public void logCreateSafeBox(String userId, String safeBoxName) throws IOException {
         appendSafeBoxLog(userId, safeBoxName, "CREATE_SAFEBOX");
+        Path base = ensureSafeBox(userId, safeBoxName);
+        publishChange(userId, safeBoxName, base, SafeBoxChangeEvent.Type.CREATE_SAFEBOX, base, null);
     }
 
+    /** Newest audit entries first; only the tail of each safebox stream is read. */
     public List<AuditEntry> readAudit(String userId, Integer limit) throws IOException {
         Path userRoot = ensureUserRoot(userId);
-        List<AuditEntry> entries = new ArrayList<>();
-        if (Files.exists(userRoot) && Files.isDirectory(userRoot)) {
-            try (var stream = Files.list(userRoot)) {
-                List<Path> logs = stream.filter(p -> p.getFileName().toString().endsWith(".log")).collect(Collectors.toList());
-                for (Path log : logs) {
-                    String name = log.getFileName().toString();
-                    boolean userLog = name.equals("usuario.log");
-                    List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
-                    for (String line : lines) {
-                        if (line.isBlank()) continue;
-                        int idx = line.indexOf(' ');
-                        String ts = idx > 0 ? line.substring(0, idx) : Instant.now().toString();
-                        String msg = idx > 0 ? line.substring(idx + 1) : line;
-                        AuditEntry e = new AuditEntry();
-                        e.scope = userLog ? "USER" : "SAFEBOX";
-                        e.safeBoxName = userLog ? null : name.substring(0, name.length() - 4); // drop .log
-                        e.timestamp = ts;
-                        e.message = msg;
-                        entries.add(e);
-                    }
-                }
-            }
-        }
-        // sort descending by timestamp string (ISO) then trim
-        entries.sort((a,b)-> b.timestamp.compareTo(a.timestamp));
-        if (limit != null && limit > 0 && entries.size() > limit) {
-            return entries.subList(0, limit);
-        }
-        return entries;
+        auditStore.prepareForRead(userRoot);
+        return auditQuery.latest(userRoot, limit != null && limit > 0 ? limit : Integer.MAX_VALUE);
     }
 
     public AuditPage searchAudit(
@@ -453,66 +1121,74 @@ public class StorageService {
             int page,
             int size
     ) throws IOException {
-        List<AuditEntry> all = readAudit(userId, null);
-        List<AuditEntry> filtered = new ArrayList<>();
-        for (AuditEntry e : all) {
-            // Timestamp
-            try {
-                Instant ts = Instant.parse(e.timestamp);
-                if (from != null && ts.isBefore(from)) continue;
-                if (to != null && ts.isAfter(to)) continue;
-            } catch (Exception ignore) { /* keep if unparsable */ }
-            // Scopes
-            if (scopes != null && !scopes.isEmpty() && (e.scope == null || !scopes.contains(e.scope))) continue;
-            // SafeBoxes (for USER scope lines, safebox may be in message prefix '<sb>: ')
-            if (safeBoxes != null && !safeBoxes.isEmpty()) {
-                String sb = e.safeBoxName;
-                if (sb == null && e.scope != null && e.scope.equals("USER") && e.message != null) {
-                    int idx = e.message.indexOf(':');
-                    if (idx > 0) sb = e.message.substring(0, idx).trim();
-                }
-                if (sb == null || !safeBoxes.contains(sb)) continue;
-            }
-            // Query (substring match against message)
-            if (query != null && !query.isBlank()) {
-                String q = query.toLowerCase();
-                String blob = ((e.message == null ? "" : e.message) + " " + (e.safeBoxName == null ? "" : e.safeBoxName)).toLowerCase();
-                if (!blob.contains(q)) continue;
-            }
-            filtered.add(e);
-        }
-        int total = filtered.size();
-        int fromIdx = Math.max(0, Math.min(page * size, total));
-        int toIdx = Math.max(fromIdx, Math.min(fromIdx + size, total));
-        List<AuditEntry> items = filtered.subList(fromIdx, toIdx);
-        AuditPage ap = new AuditPage();
-        ap.items = items;
-        ap.total = total;
-        ap.page = page;
-        ap.size = size;
-        return ap;
+        return searchAudit(userId, from, to, scopes, safeBoxes, query, null, page, size, true);
+    }
+
+    /**
+     * Filtered audit page, newest first. Filters are applied while the segments are merged, so nothing is
+     * loaded or sorted in full. With a cursor (the previous page's nextCursor) page is ignored and total is -1;
+     * without withTotal the total is skipped (-1) as well. A stale or malformed cursor is an IllegalArgumentException.
+     */
+    public AuditPage searchAudit(
+            String userId,
+            Instant from,
+            Instant to,
+            Set<String> scopes,
+            Set<String> safeBoxes,
+            String query,
+            String cursor,
+            int page,
+            int size,
+            boolean withTotal
+    ) throws IOException {
+        Path userRoot = ensureUserRoot(userId);
+        auditStore.prepareForRead(userRoot);
+        return auditQuery.search(userRoot, auditFilter(from, to, scopes, safeBoxes, query), cursor, page, size, withTotal);
+    }
+
+    /** Streams every matching audit entry, newest first, to consumer without collecting them (for exports). */
+    public void forEachAudit(
+            String userId,
+            Instant from,
+            Instant to,
+            Set<String> scopes,
+            Set<String> safeBoxes,
+            String query,
+            AuditQueryEngine.EntryConsumer consumer
+    ) throws IOException {
+        Path userRoot = ensureUserRoot(userId);
+        auditStore.prepareForRead(userRoot);
+        auditQuery.forEach(userRoot, auditFilter(from, to, scopes, safeBoxes, query), consumer);
+    }
+
+    private static AuditQueryEngine.Filter auditFilter(Instant from, Instant to, Set<String> scopes,
+                                                       Set<String> safeBoxes, String query) {
+        AuditQueryEngine.Filter filter = new AuditQueryEngine.Filter();
+        filter.from = from;
+        filter.to = to;
+        filter.scopes = scopes;
+        filter.safeBoxes = safeBoxes;
+        filter.query = query;
+        return filter;
     }
 
     // ===== Usage / Capacity =====
 
     public SafeBoxUsage usage(String userId, String safeBoxName) throws IOException {
         Path base = ensureSafeBox(userId, safeBoxName);
-        long bytes = 0L;
-        long files = 0L;
-        try (var walk = Files.walk(base)) {
-            for (Path p : walk.collect(Collectors.toList())) {
-                if (Files.isRegularFile(p)) {
-                    if (p.getFileName().toString().endsWith(".orig")) continue; // skip sidecar
-                    bytes += Files.size(p);
-                    files++;
-                }
-            }
-        }
+        SafeBoxUsageLedger.Snapshot counters = usageLedger.get(base);
+        long bytes = counters.usedBytes;
+        long files = counters.fileCount;
         long capacityBytes = pickCapacityBytes(safeBoxName);
         SafeBoxUsage u = new SafeBoxUsage();
         u.safeBoxName = safeBoxName;
         u.usedBytes = bytes;
+        u.physicalBytes = counters.physicalBytes != null ? counters.physicalBytes : bytes;
         u.fileCount = files;
+        u.versionBytes = counters.versionBytes;
+        u.versionCount = counters.versionCount;
+        u.trashBytes = counters.trashBytes;
+        u.trashCount = counters.trashCount;
         u.capacityBytes = capacityBytes;
         return u;
     }
@@ -556,13 +1232,133 @@ public class StorageService {
         public Instant modifiedAt; // only for files
         public Instant createdAt; // only for files
         public Instant originalDate; // client-provided original date (e.g., file.lastModified)
+        public String sha256; // only for files, when known; the download ETag is this value quoted
         public List<Node> children; // only for folders
     }
 
+    /**
+     * If-Match / If-None-Match for a write or delete (raw header values, null = absent), checked against the
+     * file's current ETag. A file that does not exist has no ETag: it fails If-Match and passes If-None-Match.
+     */
+    public static final class Precondition {
+        public static final Precondition NONE = new Precondition(null, null);
+
+        private final String ifMatch;
+        private final String ifNoneMatch;
+
+        public Precondition(String ifMatch, String ifNoneMatch) {
+            this.ifMatch = ifMatch == null || ifMatch.isBlank() ? null : ifMatch.trim();
+            this.ifNoneMatch = ifNoneMatch == null || ifNoneMatch.isBlank() ? null : ifNoneMatch.trim();
+        }
+
+        public boolean isNone() {
+            return ifMatch == null && ifNoneMatch == null;
+        }
+
+        void check(String currentEtag) {
+            // If-Match uses strong comparison; If-None-Match weak (RFC 9110 13.1.1 / 13.1.2)
+            if (ifMatch != null && (currentEtag == null || !listed(ifMatch, currentEtag, false))) {
+                throw new PreconditionFailedException(currentEtag == null ? "File does not exist" : "File has changed; current ETag is " + currentEtag);
+            }
+            if (ifNoneMatch != null && currentEtag != null && listed(ifNoneMatch, currentEtag, true)) {
+                throw new PreconditionFailedException("File already exists with ETag " + currentEtag);
+            }
+        }
+
+        /**
+         * True if a comma-separated entity-tag list (or "*") names etag. With strong comparison (weak = false)
+         * a weak tag on either side never matches.
+         */
+        public static boolean listed(String header, String etag, boolean weak) {
+            boolean etagWeak = etag.startsWith("W/");
+            String opaque = etagWeak ? etag.substring(2) : etag;
+            for (String raw : header.split(",")) {
+                String tag = raw.trim();
+                if (tag.equals("*")) return true;
+                if (!weak && etagWeak) continue;
+                if (tag.startsWith("W/")) {
+                    if (!weak) continue;
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(opaque)) return true;
+            }
+            return false;
+        }
+    }
+
+    /** What identifies a file's content without reading it: size, mtime and file key (inode), when available. */
+    static final class FileState {
+        final long size;
+        final FileTime modified;
+        final Object fileKey;
+
+        private FileState(BasicFileAttributes attrs) {
+            this.size = attrs.size();
+            this.modified = attrs.lastModifiedTime();
+            this.fileKey = attrs.fileKey();
+        }
+
+        static FileState of(BasicFileAttributes attrs) {
+            return new FileState(attrs);
+        }
+
+        /** Current state of a regular file, or null if there is none at path. */
+        static FileState of(Path path) throws IOException {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                return attrs.isRegularFile() ? new FileState(attrs) : null;
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        String weakEtag() {
+            return "W/\"" + Long.toHexString(size) + "-" + Long.toHexString(modified.toMillis())
+                    + "-" + Integer.toHexString(Objects.hashCode(fileKey)) + "\"";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FileState f && size == f.size && modified.equals(f.modified) && Objects.equals(fileKey, f.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified, fileKey);
+        }
+    }
+
+    /** A precondition that passed outside the lock; under it, the file must still be the one that was checked. */
+    private static final class Validated {
+        static final Validated NONE = new Validated(null, null);
+
+        private final FileState state;
+        private final String changedMessage;
+
+        private Validated(FileState state) {
+            this(state, "File has changed since its ETag was checked");
+        }
+
+        private Validated(FileState state, String changedMessage) {
+            this.state = state;
+            this.changedMessage = changedMessage;
+        }
+
+        void recheck(Path target) throws IOException {
+            if (this == NONE) return;
+            if (!Objects.equals(state, FileState.of(target))) throw new PreconditionFailedException(changedMessage);
+        }
+    }
+
     public static class SafeBoxUsage {
         public String safeBoxName;
-        public long usedBytes;
-        public long fileCount;
+        public long usedBytes; // logical: live files and versions, what quota is checked against; trash is left out
+        public long physicalBytes; // on disk after compression (chunk manifests, not the shared chunks)
+        public long fileCount; // live files; versions and trashed files are counted below
+        public long versionBytes;
+        public long versionCount;
+        public long trashBytes;
+        public long trashCount;
         public long capacityBytes;
     }
 
@@ -578,5 +1374,6 @@ public class StorageService {
         public int total;
         public int page;
         public int size;
+        public String nextCursor; // opaque; pass back as ?cursor= for the next page (null on the last page)
     }
 }
@@ -0,0 +1,217 @@
+package com.vaultedge.service;
+
+import com.vaultedge.service.StorageService.Node;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the result of {@link StorageService#tree} per safebox.
+ * <p>
+ * A snapshot is dropped on every API mutation ({@link SafeBoxChangeEvent}) and, while it is cached, its
+ * directories are registered with a {@link WatchService} so edits made directly on disk drop it too (and
+ * are re-published as {@link SafeBoxChangeEvent.Type#EXTERNAL} for the other caches). Echoes of the API's own
+ * writes are recognised through {@link ApiMutationWindow} and dropped, since their events are already out.
+ * Each build gets a new generation number, which is the tree's ETag: a client holding the current generation
+ * gets 304.
+ */
+@Service
+public class TreeSnapshotService {
+
+    private static final Logger log = LoggerFactory.getLogger(TreeSnapshotService.class);
+
+    private final StorageService storageService;
+    private final ApplicationEventPublisher events;
+    private final ApiMutationWindow apiMutations;
+    private final boolean watchEnabled;
+    // Distinguishes generations across restarts so a stale client ETag never matches after a reboot
+    private final String instanceTag = Long.toHexString(System.currentTimeMillis());
+    private final AtomicLong generations = new AtomicLong();
+
+    // safebox root -> snapshot, LRU-bounded
+    private final Map<Path, Snapshot> cache;
+    // safebox root -> invalidation counter, so a build racing with a change is not cached
+    private final Map<Path, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final Map<Path, Object> buildLocks = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Snapshot> watchKeys = new ConcurrentHashMap<>();
+
+    private WatchService watcher;
+    private Thread watchThread;
+
+    public TreeSnapshotService(StorageService storageService,
+                               ApplicationEventPublisher events,
+                               ApiMutationWindow apiMutations,
+                               @Value("${tree.cacheMaxSafeBoxes:64}") int maxSafeBoxes,
+                               @Value("${tree.watch.enabled:true}") boolean watchEnabled) {
+        this.storageService = storageService;
+        this.events = events;
+        this.apiMutations = apiMutations;
+        this.watchEnabled = watchEnabled;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Snapshot> eldest) {
+                if (size() <= maxSafeBoxes) return false;
+                unwatch(eldest.getValue());
+                return true;
+            }
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!watchEnabled) return;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Filesystem watcher unavailable, tree cache relies on API events only: {}", e.toString());
+            return;
+        }
+        watchThread = new Thread(this::watchLoop, "tree-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (watcher == null) return;
+        try {
+            watcher.close();
+        } catch (IOException ignored) { }
+        if (watchThread != null) watchThread.interrupt();
+    }
+
+    /** Returns the cached tree (building it if needed) together with its ETag. */
+    public Snapshot get(String userId, String safeBoxName) throws IOException {
+        Path base = storageService.ensureSafeBox(userId, safeBoxName);
+        Snapshot snap = cache.get(base);
+        if (snap != null) return snap;
+        synchronized (buildLocks.computeIfAbsent(base, k -> new Object())) {
+            snap = cache.get(base);
+            if (snap != null) return snap;
+            long version = version(base).get();
+            Snapshot built = new Snapshot();
+            built.userId = userId;
+            built.safeBoxName = safeBoxName;
+            built.safeBoxRoot = base;
+            // Watch before walking, so a change during the walk is not missed
+            watch(built);
+            built.tree = storageService.tree(userId, safeBoxName);
+            built.etag = "\"" + instanceTag + "-" + generations.incrementAndGet() + "\"";
+            if (version(base).get() == version) {
+                cache.put(base, built);
+            } else {
+                unwatch(built);
+            }
+            return built;
+        }
+    }
+
+    @EventListener
+    public void onSafeBoxChange(SafeBoxChangeEvent event) {
+        if (event.changesContent()) invalidate(event.getSafeBoxRoot());
+    }
+
+    public void invalidate(Path base) {
+        version(base).incrementAndGet();
+        Snapshot snap = cache.remove(base);
+        if (snap != null) unwatch(snap);
+    }
+
+    private AtomicLong version(Path base) {
+        return versions.computeIfAbsent(base, k -> new AtomicLong());
+    }
+
+    // ===== filesystem watcher =====
+
+    private void watch(Snapshot snap) {
+        if (watcher == null) return;
+        Path base = snap.safeBoxRoot;
+        try {
+            Files.walkFileTree(base, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (StorageService.isInternalPath(base, dir)) return FileVisitResult.SKIP_SUBTREE;
+                    WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    snap.keys.add(key);
+                    watchKeys.put(key, snap);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException | ClosedWatchServiceException e) {
+            // e.g. inotify watch limit reached: the snapshot still works, it just won't see external edits
+            log.debug("Could not watch {}: {}", base, e.toString());
+        }
+    }
+
+    private void unwatch(Snapshot snap) {
+        for (WatchKey key : snap.keys) {
+            key.cancel();
+            watchKeys.remove(key);
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Snapshot snap = watchKeys.get(key);
+            List<Path> changed = new ArrayList<>();
+            for (WatchEvent<?> ev : key.pollEvents()) {
+                if (snap == null) continue;
+                Path dir = (Path) key.watchable();
+                if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    changed.add(dir);
+                } else {
+                    Path child = dir.resolve((Path) ev.context());
+                    if (!StorageService.isInternalPath(snap.safeBoxRoot, child) && !apiMutations.isApiChange(child)) changed.add(child);
+                }
+            }
+            key.reset();
+            if (snap == null || changed.isEmpty()) continue;
+            try {
+                // onSafeBoxChange drops this snapshot along with the other caches
+                for (Path p : changed) {
+                    events.publishEvent(new SafeBoxChangeEvent(snap.userId, snap.safeBoxName, snap.safeBoxRoot,
+                            SafeBoxChangeEvent.Type.EXTERNAL, StorageService.relativize(snap.safeBoxRoot, p), null));
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to propagate external change in {}: {}", snap.safeBoxRoot, e.toString());
+            }
+        }
+    }
+
+    public static class Snapshot {
+        public Node tree;
+        public String etag;
+        String userId;
+        String safeBoxName;
+        Path safeBoxRoot;
+        final List<WatchKey> keys = new ArrayList<>();
+    }
+}
@@ -0,0 +1,384 @@
+package com.vaultedge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Resumable chunked uploads. A session lives under the safebox's hidden folder as
+ * <code>.vaultedge/uploads/&lt;sessionId&gt;/</code> with a <code>session.json</code> descriptor and one
+ * <code>chunk-&lt;n&gt;</code> file per received chunk. Chunks may arrive in any order and in parallel;
+ * commit streams them in order through {@link StorageService#saveFile} (single quota check, single audit entry).
+ * <p>
+ * Opening a session reserves its largest possible size (chunkCount x chunkSize) against the safebox's quota, so
+ * chunks cannot fill the disk ahead of the commit; the reservation is dropped on commit, abort or expiry. Expired
+ * sessions are swept on a schedule.
+ */
+@Service
+public class UploadSessionService {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadSessionService.class);
+    private static final String SESSION_FILE = "session.json";
+    private static final String CHUNK_PREFIX = "chunk-";
+
+    private final StorageService storageService;
+    private final Path storageRoot;
+    private final ObjectMapper mapper = new ObjectMapper();
+    // session id -> quota held for its chunks (re-taken lazily after a restart)
+    private final Map<String, QuotaManager.Reservation> reservations = new ConcurrentHashMap<>();
+    // sessions between their commit's release and the removal of their directory; chunk PUTs are refused
+    private final Set<String> committing = ConcurrentHashMap.newKeySet();
+
+    @Value("${upload.session.ttlHours:24}")
+    private long sessionTtlHours;
+
+    @Value("${upload.session.maxChunkBytes:67108864}")
+    private long maxChunkBytes;
+
+    @Value("${upload.session.maxChunks:100000}")
+    private int maxChunks;
+
+    public UploadSessionService(StorageService storageService, StorageMappingStore mappingStore) {
+        this.storageService = storageService;
+        this.storageRoot = mappingStore.getStorageRoot();
+    }
+
+    public UploadSession open(String userId, String safeBoxName, String relativePath, int chunkCount, long chunkSize,
+                              Long totalSize, Long originalDateMs) throws IOException {
+        if (relativePath == null || relativePath.isBlank()) throw new IllegalArgumentException("Path required");
+        if (chunkCount <= 0 || chunkCount > maxChunks) {
+            throw new IllegalArgumentException("chunkCount must be between 1 and " + maxChunks);
+        }
+        if (chunkSize <= 0 || chunkSize > maxChunkBytes) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + maxChunkBytes + " bytes");
+        }
+        long capacity = maxBytes(chunkCount, chunkSize);
+        if (totalSize != null && (totalSize < 0 || totalSize > capacity)) {
+            throw new IllegalArgumentException("totalSize does not fit in chunkCount x chunkSize");
+        }
+        Path base = storageService.ensureSafeBox(userId, safeBoxName);
+        Path target = base.resolve(relativePath).normalize();
+        if (!target.startsWith(base) || target.equals(base) || StorageService.isInternalPath(base, target)) {
+            throw new SecurityException("Invalid file path");
+        }
+        Path uploads = uploadsDir(base);
+        purgeExpired(uploads);
+
+        // Whatever the declared size, the chunks may take up to chunkCount x chunkSize on disk until commit
+        QuotaManager.Reservation reservation = storageService.reserveUpload(userId, safeBoxName,
+                totalSize != null ? totalSize : capacity, capacity);
+        UploadSession s = new UploadSession();
+        s.id = UUID.randomUUID().toString();
+        s.path = relativePath;
+        s.chunkCount = chunkCount;
+        s.chunkSize = chunkSize;
+        s.totalSize = totalSize;
+        s.originalDateMs = originalDateMs;
+        s.createdAt = Instant.now().toEpochMilli();
+        Path dir = uploads.resolve(s.id);
+        try {
+            Files.createDirectories(dir);
+            Files.write(dir.resolve(SESSION_FILE), mapper.writeValueAsBytes(s));
+        } catch (IOException | RuntimeException e) {
+            reservation.close();
+            throw e;
+        }
+        reservations.put(s.id, reservation);
+        return s;
+    }
+
+    private static long maxBytes(int chunkCount, long chunkSize) {
+        try {
+            return Math.multiplyExact(chunkSize, (long) chunkCount);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("chunkCount x chunkSize is too large");
+        }
+    }
+
+    /**
+     * Stores one chunk. The chunk is written to a private temp file and renamed into place, so a
+     * retried or duplicated PUT of the same index simply replaces the previous copy. Refused once the session
+     * is being committed.
+     */
+    public long putChunk(String userId, String safeBoxName, String sessionId, int index, InputStream content) throws IOException {
+        Path dir = sessionDir(userId, safeBoxName, sessionId);
+        UploadSession s = readSession(dir);
+        if (s == null) throw new NoSuchElementException("Upload session not found: " + sessionId);
+        if (index < 0 || index >= s.chunkCount) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index + " (chunkCount=" + s.chunkCount + ")");
+        }
+        if (committing.contains(s.id)) throw new IllegalStateException("Upload is being committed: " + sessionId);
+        reserve(userId, safeBoxName, s);
+        // A commit, abort or expiry may have dropped the session while we reserved; don't leave the hold behind
+        boolean racedCommit = committing.contains(s.id);
+        if (racedCommit || !Files.isDirectory(dir)) {
+            release(s.id);
+            if (racedCommit) throw new IllegalStateException("Upload is being committed: " + sessionId);
+            throw new NoSuchElementException("Upload session not found: " + sessionId);
+        }
+        Path tmp = Files.createTempFile(dir, CHUNK_PREFIX + index + "-", ".part");
+        try {
+            long written = 0L;
+            try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.TRUNCATE_EXISTING)) {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = content.read(buf)) >= 0) {
+                    written += n;
+                    if (written > s.chunkSize) {
+                        throw new IllegalArgumentException("Chunk " + index + " exceeds chunkSize of " + s.chunkSize + " bytes");
+                    }
+                    out.write(buf, 0, n);
+                }
+            }
+            if (written == 0) throw new IllegalArgumentException("Empty chunk");
+            Path chunk = dir.resolve(CHUNK_PREFIX + index);
+            try {
+                Files.move(tmp, chunk, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, chunk, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return written;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public UploadStatus status(String userId, String safeBoxName, String sessionId) throws IOException {
+        Path dir = sessionDir(userId, safeBoxName, sessionId);
+        UploadSession s = readSession(dir);
+        if (s == null) return null;
+        UploadStatus st = new UploadStatus();
+        st.session = s;
+        st.receivedChunks = new ArrayList<>();
+        st.missingChunks = new ArrayList<>();
+        boolean[] present = new boolean[s.chunkCount];
+        try (var stream = Files.list(dir)) {
+            for (Path p : stream.collect(Collectors.toList())) {
+                int idx = chunkIndex(p);
+                if (idx >= 0 && idx < s.chunkCount) {
+                    present[idx] = true;
+                    st.receivedBytes += Files.size(p);
+                }
+            }
+        }
+        for (int i = 0; i < present.length; i++) {
+            if (present[i]) st.receivedChunks.add(i); else st.missingChunks.add(i);
+        }
+        st.complete = st.missingChunks.isEmpty();
+        return st;
+    }
+
+    /** Assembles all chunks in index order into the target file and removes the session. */
+    public UploadSession commit(String userId, String safeBoxName, String sessionId) throws IOException {
+        return commit(userId, safeBoxName, sessionId, StorageService.Precondition.NONE);
+    }
+
+    /** Same, replacing the target only if the precondition holds (the session is kept when it does not). */
+    public UploadSession commit(String userId, String safeBoxName, String sessionId,
+                                StorageService.Precondition precondition) throws IOException {
+        Path dir = sessionDir(userId, safeBoxName, sessionId); // validates the id
+        if (!committing.add(dir.getFileName().toString())) {
+            throw new IllegalStateException("Upload is already being committed: " + sessionId);
+        }
+        try {
+            return commitMarked(userId, safeBoxName, sessionId, dir, precondition);
+        } finally {
+            committing.remove(dir.getFileName().toString());
+        }
+    }
+
+    private UploadSession commitMarked(String userId, String safeBoxName, String sessionId, Path dir,
+                                       StorageService.Precondition precondition) throws IOException {
+        UploadStatus st = status(userId, safeBoxName, sessionId);
+        if (st == null) throw new NoSuchElementException("Upload session not found: " + sessionId);
+        if (!st.complete) {
+            throw new IllegalStateException("Upload incomplete. Missing chunks: " + st.missingChunks);
+        }
+        UploadSession s = st.session;
+        if (s.totalSize != null && s.totalSize != st.receivedBytes) {
+            throw new IllegalStateException("Upload size mismatch. Expected=" + s.totalSize + " bytes, received=" + st.receivedBytes + " bytes");
+        }
+        release(s.id); // the save reserves the real size itself; a failed commit re-reserves with the next chunk
+        try (InputStream in = new SequenceInputStream(new ChunkEnumeration(dir, s.chunkCount))) {
+            storageService.saveFile(userId, safeBoxName, s.path, in, st.receivedBytes, s.originalDateMs, precondition);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        deleteSessionDir(dir);
+        return s;
+    }
+
+    public boolean abort(String userId, String safeBoxName, String sessionId) throws IOException {
+        Path dir = sessionDir(userId, safeBoxName, sessionId);
+        if (!Files.isDirectory(dir)) return false;
+        deleteSessionDir(dir);
+        release(sessionId);
+        return true;
+    }
+
+    /** Removes expired sessions (and their reservations) in every safebox, walking the storage root as the version pruner does. */
+    @Scheduled(initialDelayString = "${upload.session.sweepIntervalMs:600000}",
+            fixedDelayString = "${upload.session.sweepIntervalMs:600000}")
+    public void sweepExpired() {
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(storageRoot, Files::isDirectory)) {
+            for (Path userRoot : users) {
+                if (userRoot.getFileName().toString().startsWith(".")) continue;
+                try (DirectoryStream<Path> boxes = Files.newDirectoryStream(userRoot, Files::isDirectory)) {
+                    for (Path box : boxes) {
+                        if ("RootVault".equals(box.getFileName().toString())) {
+                            try (DirectoryStream<Path> masked = Files.newDirectoryStream(box, Files::isDirectory)) {
+                                for (Path m : masked) purgeExpired(m.resolve(StorageService.INTERNAL_DIR).resolve("uploads"));
+                            }
+                        } else if (!box.getFileName().toString().startsWith(".")) {
+                            purgeExpired(box.resolve(StorageService.INTERNAL_DIR).resolve("uploads"));
+                        }
+                    }
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            log.warn("Upload session sweep failed", e);
+        }
+    }
+
+    // ===== quota =====
+
+    private void reserve(String userId, String safeBoxName, UploadSession s) throws IOException {
+        if (reservations.containsKey(s.id)) return;
+        QuotaManager.Reservation r = storageService.reserveUpload(userId, safeBoxName,
+                s.totalSize != null ? s.totalSize : maxBytes(s.chunkCount, s.chunkSize), maxBytes(s.chunkCount, s.chunkSize));
+        if (reservations.putIfAbsent(s.id, r) != null) r.close(); // a parallel chunk got there first
+    }
+
+    private void release(String sessionId) {
+        QuotaManager.Reservation r = reservations.remove(sessionId);
+        if (r != null) r.close();
+    }
+
+    // ===== helpers =====
+
+    private Path uploadsDir(Path base) throws IOException {
+        Path dir = base.resolve(StorageService.INTERNAL_DIR).resolve("uploads");
+        Files.createDirectories(dir);
+        return dir;
+    }
+
+    private Path sessionDir(String userId, String safeBoxName, String sessionId) throws IOException {
+        String id;
+        try {
+            id = UUID.fromString(sessionId).toString();
+        } catch (IllegalArgumentException e) {
+            throw new NoSuchElementException("Upload session not found: " + sessionId);
+        }
+        Path base = storageService.ensureSafeBox(userId, safeBoxName);
+        return uploadsDir(base).resolve(id);
+    }
+
+    private UploadSession readSession(Path dir) throws IOException {
+        Path f = dir.resolve(SESSION_FILE);
+        if (!Files.exists(f)) return null;
+        UploadSession s = mapper.readValue(Files.readAllBytes(f), UploadSession.class);
+        if (isExpired(s)) {
+            deleteSessionDir(dir);
+            release(s.id);
+            return null;
+        }
+        return s;
+    }
+
+    private boolean isExpired(UploadSession s) {
+        return Instant.ofEpochMilli(s.createdAt).plus(Duration.ofHours(sessionTtlHours)).isBefore(Instant.now());
+    }
+
+    private void purgeExpired(Path uploads) {
+        if (!Files.isDirectory(uploads)) return;
+        try (var stream = Files.list(uploads)) {
+            for (Path dir : stream.collect(Collectors.toList())) {
+                try { readSession(dir); } catch (Exception ignored) { }
+            }
+        } catch (IOException ignored) { }
+    }
+
+    private static int chunkIndex(Path p) {
+        String name = p.getFileName().toString();
+        if (!name.startsWith(CHUNK_PREFIX)) return -1;
+        try {
+            return Integer.parseInt(name.substring(CHUNK_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1; // in-flight .part file
+        }
+    }
+
+    private static void deleteSessionDir(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (var walk = Files.walk(dir)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    /** Opens chunk files lazily so only one is open at a time during assembly. */
+    private static final class ChunkEnumeration implements java.util.Enumeration<InputStream> {
+        private final Path dir;
+        private final int chunkCount;
+        private int next;
+
+        ChunkEnumeration(Path dir, int chunkCount) {
+            this.dir = dir;
+            this.chunkCount = chunkCount;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next < chunkCount;
+        }
+
+        @Override
+        public InputStream nextElement() {
+            try {
+                return Files.newInputStream(dir.resolve(CHUNK_PREFIX + next++));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public static class UploadSession {
+        public String id;
+        public String path;
+        public int chunkCount;
+        public long chunkSize;
+        public Long totalSize; // optional; verified on commit when present
+        public Long originalDateMs;
+        public long createdAt; // epoch millis
+    }
+
+    public static class UploadStatus {
+        public UploadSession session;
+        public List<Integer> receivedChunks;
+        public List<Integer> missingChunks;
+        public long receivedBytes;
+        public boolean complete;
+    }
+}
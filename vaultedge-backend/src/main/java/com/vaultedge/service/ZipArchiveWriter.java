@@ -0,0 +1,172 @@
+package com.vaultedge.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal ZIP container writer for entries whose data is already compressed (or stored) elsewhere.
+ * java.util.zip.ZipOutputStream insists on compressing itself, which rules out parallel per-entry
+ * deflate; this writer only emits headers around caller-supplied bytes. ZIP64 records are added
+ * automatically when sizes, offsets or the entry count exceed the classic limits.
+ */
+final class ZipArchiveWriter {
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private final OutputStream out;
+    private final List<CentralRecord> central = new ArrayList<>();
+    private long offset;
+
+    ZipArchiveWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Writes a local header; the caller then writes exactly compressedSize bytes via {@link #data}. */
+    void beginEntry(String name, int method, long crc, long compressedSize, long size, long lastModifiedMs) throws IOException {
+        CentralRecord r = new CentralRecord();
+        r.name = name.getBytes(StandardCharsets.UTF_8);
+        r.method = method;
+        r.crc = crc;
+        r.compressedSize = compressedSize;
+        r.size = size;
+        r.dosTime = dosTime(lastModifiedMs);
+        r.localOffset = offset;
+        central.add(r);
+
+        boolean zip64 = size >= ZIP32_LIMIT || compressedSize >= ZIP32_LIMIT;
+        ByteArrayOutputStream h = new ByteArrayOutputStream(30 + r.name.length + 20);
+        le32(h, 0x04034b50);
+        le16(h, zip64 ? 45 : 20);
+        le16(h, FLAG_UTF8);
+        le16(h, method);
+        le32(h, r.dosTime);
+        le32(h, crc);
+        le32(h, zip64 ? ZIP32_LIMIT : compressedSize);
+        le32(h, zip64 ? ZIP32_LIMIT : size);
+        le16(h, r.name.length);
+        le16(h, zip64 ? 20 : 0);
+        h.write(r.name);
+        if (zip64) {
+            le16(h, 0x0001);
+            le16(h, 16);
+            le64(h, size);
+            le64(h, compressedSize);
+        }
+        data(h.toByteArray(), 0, h.size());
+    }
+
+    void data(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        offset += len;
+    }
+
+    /** Writes the central directory and end records. Does not close the underlying stream. */
+    void finish() throws IOException {
+        long cdStart = offset;
+        for (CentralRecord r : central) {
+            boolean bigSize = r.size >= ZIP32_LIMIT;
+            boolean bigComp = r.compressedSize >= ZIP32_LIMIT;
+            boolean bigOff = r.localOffset >= ZIP32_LIMIT;
+            int extraLen = (bigSize ? 8 : 0) + (bigComp ? 8 : 0) + (bigOff ? 8 : 0);
+            ByteArrayOutputStream h = new ByteArrayOutputStream(46 + r.name.length + 28);
+            le32(h, 0x02014b50);
+            le16(h, 45);
+            le16(h, extraLen > 0 ? 45 : 20);
+            le16(h, FLAG_UTF8);
+            le16(h, r.method);
+            le32(h, r.dosTime);
+            le32(h, r.crc);
+            le32(h, bigComp ? ZIP32_LIMIT : r.compressedSize);
+            le32(h, bigSize ? ZIP32_LIMIT : r.size);
+            le16(h, r.name.length);
+            le16(h, extraLen > 0 ? extraLen + 4 : 0);
+            le16(h, 0); // comment
+            le16(h, 0); // disk start
+            le16(h, 0); // internal attrs
+            le32(h, 0); // external attrs
+            le32(h, bigOff ? ZIP32_LIMIT : r.localOffset);
+            h.write(r.name);
+            if (extraLen > 0) {
+                le16(h, 0x0001);
+                le16(h, extraLen);
+                if (bigSize) le64(h, r.size);
+                if (bigComp) le64(h, r.compressedSize);
+                if (bigOff) le64(h, r.localOffset);
+            }
+            data(h.toByteArray(), 0, h.size());
+        }
+        long cdSize = offset - cdStart;
+        long count = central.size();
+        ByteArrayOutputStream end = new ByteArrayOutputStream(98);
+        if (count >= 0xFFFF || cdStart >= ZIP32_LIMIT || cdSize >= ZIP32_LIMIT) {
+            long zip64EndOffset = offset;
+            le32(end, 0x06064b50);
+            le64(end, 44);
+            le16(end, 45);
+            le16(end, 45);
+            le32(end, 0);
+            le32(end, 0);
+            le64(end, count);
+            le64(end, count);
+            le64(end, cdSize);
+            le64(end, cdStart);
+            // locator
+            le32(end, 0x07064b50);
+            le32(end, 0);
+            le64(end, zip64EndOffset);
+            le32(end, 1);
+        }
+        le32(end, 0x06054b50);
+        le16(end, 0);
+        le16(end, 0);
+        le16(end, (int) Math.min(count, 0xFFFF));
+        le16(end, (int) Math.min(count, 0xFFFF));
+        le32(end, Math.min(cdSize, ZIP32_LIMIT));
+        le32(end, Math.min(cdStart, ZIP32_LIMIT));
+        le16(end, 0);
+        data(end.toByteArray(), 0, end.size());
+        out.flush();
+    }
+
+    private static long dosTime(long epochMs) {
+        LocalDateTime t = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(epochMs), ZoneId.systemDefault());
+        if (t.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return ((long) (t.getYear() - 1980) << 25) | ((long) t.getMonthValue() << 21) | ((long) t.getDayOfMonth() << 16)
+                | ((long) t.getHour() << 11) | ((long) t.getMinute() << 5) | (t.getSecond() >> 1);
+    }
+
+    private static void le16(ByteArrayOutputStream o, int v) {
+        o.write(v & 0xFF);
+        o.write((v >>> 8) & 0xFF);
+    }
+
+    private static void le32(ByteArrayOutputStream o, long v) {
+        le16(o, (int) (v & 0xFFFF));
+        le16(o, (int) ((v >>> 16) & 0xFFFF));
+    }
+
+    private static void le64(ByteArrayOutputStream o, long v) {
+        le32(o, v & 0xFFFFFFFFL);
+        le32(o, v >>> 32);
+    }
+
+    private static final class CentralRecord {
+        byte[] name;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long dosTime;
+        long localOffset;
+    }
+}
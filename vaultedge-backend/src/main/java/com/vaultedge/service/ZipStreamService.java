@@ -0,0 +1,197 @@
+package com.vaultedge.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes ZIP archives straight to an output stream as entries are produced (no whole-archive buffer).
+ * <p>
+ * A small read-ahead window prepares the next entries on a background pool while the current one is
+ * being compressed: small files are read into memory, large ones are only sized. Already-compressed formats are
+ * not recompressed: small ones are STORED (their CRC, which ZIP needs before the entry data, comes from the
+ * in-memory copy), large ones are written DEFLATED at level 0, which streams with a trailing data descriptor, so no
+ * file is ever read twice. Everything else is DEFLATED at the default level.
+ */
+@Service
+public class ZipStreamService {
+
+    // Formats that do not shrink under deflate; compressing them only burns CPU
+    private static final Set<String> STORED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp4", "m4v", "mov", "mkv", "avi", "webm", "mp3", "m4a", "aac", "ogg", "opus", "flac",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "apk",
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub");
+
+    @Value("${zip.readAheadFiles:4}")
+    private int readAheadFiles;
+
+    @Value("${zip.readAheadMaxFileBytes:1048576}")
+    private long readAheadMaxFileBytes;
+
+    private final FileContentStore contentStore;
+    private final ExecutorService prefetchPool;
+
+    public ZipStreamService(FileContentStore contentStore,
+                            @Value("${zip.prefetchThreads:4}") int prefetchThreads) {
+        this.contentStore = contentStore;
+        this.prefetchPool = Executors.newFixedThreadPool(Math.max(1, prefetchThreads), r -> {
+            Thread t = new Thread(r, "zip-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchPool.shutdownNow();
+    }
+
+    /** Regular files under target (or target itself), skipping the safebox's hidden internal folder. */
+    public List<Path> collectFiles(Path base, Path target) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isRegularFile(target)) {
+            files.add(target);
+            return files;
+        }
+        Files.walkFileTree(target, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return StorageService.isInternalPath(base, dir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /** Streams a ZIP of the given files; entry names are relative to base. The caller owns out. */
+    public void writeZip(Path base, List<Path> files, OutputStream out) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(out);
+        Iterator<Path> pending = files.iterator();
+        Deque<Future<Prepared>> window = new ArrayDeque<>();
+        try {
+            while (window.size() < Math.max(1, readAheadFiles) && pending.hasNext()) window.add(submit(base, pending.next()));
+            while (!window.isEmpty()) {
+                Prepared p = await(window.poll());
+                if (pending.hasNext()) window.add(submit(base, pending.next()));
+                if (p == null) continue; // vanished or unreadable; skip like the old implementation
+                writeEntry(zos, base, p);
+            }
+            zos.finish();
+            zos.flush();
+        } finally {
+            window.forEach(f -> f.cancel(true));
+        }
+    }
+
+    public static boolean isAlreadyCompressed(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && STORED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // ===== internals =====
+
+    private Future<Prepared> submit(Path base, Path file) {
+        return prefetchPool.submit(() -> prepare(base, file));
+    }
+
+    private Prepared prepare(Path base, Path file) {
+        try (FileContentStore.Content content = contentStore.open(base, file)) {
+            Prepared p = new Prepared();
+            p.file = file;
+            p.stored = isAlreadyCompressed(file.getFileName().toString());
+            p.size = content.size;
+            boolean small = p.size <= readAheadMaxFileBytes;
+            if (small) {
+                try (InputStream in = content.stream()) {
+                    p.data = in.readAllBytes();
+                }
+                p.size = p.data.length;
+            }
+            if (p.stored && p.data != null) {
+                CRC32 crc = new CRC32();
+                crc.update(p.data);
+                p.crc = crc.getValue();
+            }
+            return p;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Prepared await(Future<Prepared> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while preparing ZIP entry", e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private void writeEntry(ZipOutputStream zos, Path base, Prepared p) throws IOException {
+        ZipEntry entry = new ZipEntry(base.relativize(p.file).toString().replace('\\', '/'));
+        if (p.stored && p.data != null) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(p.size);
+            entry.setCompressedSize(p.size);
+            entry.setCrc(p.crc);
+        } else {
+            // Level 0 keeps the bytes as-is (a few bytes of framing per 64 KiB) without needing the CRC up front
+            entry.setMethod(ZipEntry.DEFLATED);
+            zos.setLevel(p.stored ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+        }
+        try {
+            entry.setLastModifiedTime(Files.getLastModifiedTime(p.file));
+        } catch (IOException ignored) { }
+        zos.putNextEntry(entry);
+        if (p.data != null) {
+            zos.write(p.data);
+        } else {
+            try (FileContentStore.Content content = contentStore.open(base, p.file); InputStream in = content.stream()) {
+                in.transferTo(zos);
+            }
+        }
+        zos.closeEntry();
+    }
+
+    private static final class Prepared {
+        Path file;
+        boolean stored; // already compressed: not worth deflating
+        long size;
+        long crc; // STORED entries held in data only
+        byte[] data; // only for files within the read-ahead size limit
+    }
+}
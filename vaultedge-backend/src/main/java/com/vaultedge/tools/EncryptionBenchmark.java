@@ -0,0 +1,137 @@
+package com.vaultedge.tools;
+
+import com.vaultedge.service.BlockStore;
+import com.vaultedge.service.ContentKeyring;
+import com.vaultedge.service.FileContentStore;
+import com.vaultedge.service.SafeBoxMetadataStore;
+import com.vaultedge.service.StorageMappingStore;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Compares plaintext and encrypted-at-rest throughput through {@link FileContentStore}: streamed write,
+ * sequential read and random range reads. Compression is off in both modes so only the encryption cost shows.
+ */
+public class EncryptionBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && (args[0].equals("-h") || args[0].equals("--help"))) {
+            System.out.println("Usage: java -cp <jar> com.vaultedge.tools.EncryptionBenchmark [sizeMB=256] [segmentBytes=65536] [rangeBytes=65536] [workDir]");
+            return;
+        }
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) << 20;
+        int segmentBytes = args.length > 1 ? Integer.parseInt(args[1]) : 65536;
+        int rangeBytes = args.length > 2 ? Integer.parseInt(args[2]) : 65536;
+        Path work = args.length > 3 ? Paths.get(args[3]) : Files.createTempDirectory("vaultedge-bench");
+
+        byte[] key = new byte[32];
+        new Random(1).nextBytes(key);
+        StorageMappingStore mappings = new StorageMappingStore(work);
+        ContentKeyring keyring = new ContentKeyring(mappings, Base64.getEncoder().encodeToString(key), "", true, false);
+        try {
+            System.out.printf("size=%d MB segment=%d range=%d dir=%s%n", size >> 20, segmentBytes, rangeBytes, work.toAbsolutePath());
+            System.out.printf("%-10s %12s %12s %14s %10s%n", "mode", "write MB/s", "read MB/s", "ranges/s", "disk MB");
+            // Warm-up round so both modes run JIT-compiled
+            run("warm-up", work, mappings, keyring, false, Math.min(size, 32L << 20), segmentBytes, rangeBytes, false);
+            run("warm-up", work, mappings, keyring, true, Math.min(size, 32L << 20), segmentBytes, rangeBytes, false);
+            run("plaintext", work, mappings, keyring, false, size, segmentBytes, rangeBytes, true);
+            run("aes-gcm", work, mappings, keyring, true, size, segmentBytes, rangeBytes, true);
+        } finally {
+            if (args.length <= 3) {
+                try (Stream<Path> s = Files.walk(work)) {
+                    s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+                }
+            }
+        }
+    }
+
+    private static void run(String mode, Path work, StorageMappingStore mappings, ContentKeyring keyring, boolean encrypt,
+                            long size, int segmentBytes, int rangeBytes, boolean print) throws Exception {
+        FileContentStore store = new FileContentStore(new BlockStore(1000, 0, Long.MAX_VALUE), new SafeBoxMetadataStore(1000, 0), mappings, keyring,
+                false, 16384, 65536, 262144, false, 1, 262144, 0, 1.0, encrypt, segmentBytes);
+        Path userRoot = work.resolve("bench");
+        Path base = userRoot.resolve("sb");
+        Files.createDirectories(base);
+        Path file = base.resolve(mode + ".bin");
+        Files.deleteIfExists(file);
+        Files.createFile(file);
+
+        long t0 = System.nanoTime();
+        store.write(userRoot, file.getFileName().toString(), new RandomSource(size), file, null);
+        long t1 = System.nanoTime();
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        long read = 0;
+        try (FileContentStore.Content c = store.open(base, file)) {
+            SeekableByteChannel ch = c.channel();
+            int n;
+            while ((n = ch.read(buf)) >= 0) {
+                read += n;
+                buf.clear();
+            }
+        }
+        long t2 = System.nanoTime();
+        if (read != size) throw new IllegalStateException(mode + ": read " + read + " of " + size + " bytes");
+
+        int ranges = 2000;
+        Random random = new Random(7);
+        ByteBuffer range = ByteBuffer.allocate(rangeBytes);
+        try (FileContentStore.Content c = store.open(base, file)) {
+            SeekableByteChannel ch = c.channel();
+            for (int i = 0; i < ranges; i++) {
+                range.clear();
+                ch.position((long) (random.nextDouble() * Math.max(1, size - rangeBytes)));
+                while (range.hasRemaining() && ch.read(range) >= 0) { }
+            }
+        }
+        long t3 = System.nanoTime();
+
+        if (print) {
+            System.out.printf("%-10s %12.1f %12.1f %14.0f %10.1f%n", mode,
+                    mbPerSecond(size, t1 - t0), mbPerSecond(size, t2 - t1), ranges / ((t3 - t2) / 1e9),
+                    Files.size(file) / 1048576.0);
+        }
+        Files.delete(file);
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / 1048576.0 / (nanos / 1e9);
+    }
+
+    /** Incompressible bytes of a given length, generated from a repeating random block. */
+    private static final class RandomSource implements ReadableByteChannel {
+        private final byte[] block = new byte[8 << 20];
+        private long remaining;
+
+        RandomSource(long size) {
+            new Random(42).nextBytes(block);
+            remaining = size;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (remaining == 0) return -1;
+            int n = (int) Math.min(Math.min(dst.remaining(), remaining), block.length);
+            int off = (int) ((remaining % block.length) % (block.length - n + 1));
+            dst.put(block, off, n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() { }
+    }
+}